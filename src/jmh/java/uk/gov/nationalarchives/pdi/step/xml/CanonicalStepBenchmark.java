@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.openjdk.jmh.annotations.*;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LoggingObjectInterface;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.trans.steps.mock.StepMockHelper;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the throughput of the canonicalization hot path: parsing, canonicalizing a parsed document,
+ * streaming canonicalization, and the whole of {@link CanonicalStep#processRow}.
+ * <p>
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec@run-benchmarks}, which also enables the gc profiler to
+ * report the allocation rate. The {@code bytes} secondary result of each benchmark is the input XML consumed per
+ * second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CanonicalStepBenchmark {
+
+    @Param({"SMALL", "LARGE"})
+    public CorpusGenerator.Size size;
+
+    @Param({"FLAT", "DEEP", "NAMESPACED"})
+    public CorpusGenerator.Shape shape;
+
+    @Param({"false", "true"})
+    public boolean comments;
+
+    private String xml;
+    private int xmlBytes;
+    private Document document;
+    private CanonicalStepMeta meta;
+    private CanonicalStepData data;
+    private BenchmarkStep step;
+
+    /**
+     * Counts the input XML consumed, which JMH reports as a rate.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        xml = CorpusGenerator.generate(size, shape, comments);
+        xmlBytes = xml.getBytes(StandardCharsets.UTF_8).length;
+
+        final StepMockHelper<CanonicalStepMeta, CanonicalStepData> stepMockHelper =
+                new StepMockHelper<>("Canonical XML benchmark", CanonicalStepMeta.class, CanonicalStepData.class);
+        when(stepMockHelper.logChannelInterfaceFactory.create(any(), any(LoggingObjectInterface.class))).thenReturn(stepMockHelper.logChannelInterface);
+
+        meta = new CanonicalStepMeta();
+        meta.setDefault();
+        meta.getInputFields()[0] = "xml";
+        data = new CanonicalStepData();
+        step = new BenchmarkStep(stepMockHelper, data);
+        final RowMetaInterface inputRowMeta = new RowMeta();
+        inputRowMeta.addValueMeta(new ValueMetaString("xml"));
+        step.setInputRowMeta(inputRowMeta);
+        step.row = new Object[]{xml};
+
+        // the first row initialises the parsers held in the step data, which the other benchmarks then share
+        step.processRow(meta, data);
+
+        document = parse(new Bytes());
+    }
+
+    @Benchmark
+    public Document parse(final Bytes bytes) throws Exception {
+        bytes.bytes += xmlBytes;
+        return data.getDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+
+    @Benchmark
+    public byte[] canonicalize(final Bytes bytes) throws KettleException {
+        bytes.bytes += xmlBytes;
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CanonicalStep.canonicalize(document, data, baos);
+        return baos.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] canonicalizeStreaming(final Bytes bytes) throws KettleException {
+        bytes.bytes += xmlBytes;
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CanonicalStep.canonicalizeStreaming(new InputSource(new StringReader(xml)), data, baos);
+        return baos.toByteArray();
+    }
+
+    @Benchmark
+    public boolean processRow(final Bytes bytes) throws KettleException {
+        bytes.bytes += xmlBytes;
+        return step.processRow(meta, data);
+    }
+
+    /**
+     * Feeds the same row to the step repeatedly, and keeps only the latest output row.
+     */
+    private static class BenchmarkStep extends CanonicalStep {
+        Object[] row;
+        Object[] output;
+
+        BenchmarkStep(final StepMockHelper<CanonicalStepMeta, CanonicalStepData> stepMockHelper, final CanonicalStepData data) {
+            super(stepMockHelper.stepMeta, data, 0, stepMockHelper.transMeta, stepMockHelper.trans);
+        }
+
+        @Override
+        public Object[] getRow() {
+            return row;
+        }
+
+        @Override
+        public void putRow(final RowMetaInterface rowMeta, final Object[] row) {
+            this.output = row;
+        }
+    }
+}
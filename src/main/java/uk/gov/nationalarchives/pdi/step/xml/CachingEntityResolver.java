@@ -0,0 +1,346 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves DTDs and external entities for both the DOM and streaming parsers, and the documents imported or
+ * included by XML Schemas and XSLT stylesheets, first through an optional {@link XmlCatalog}, and then from an
+ * in-memory cache shared by all rows and step copies in the JVM, so that each is read at most once rather than
+ * once per document.
+ * <p>
+ * A local file is read again once it has been modified. The cache holds at most 64 MiB of entities, evicting the
+ * least recently used. Entities are cached as bytes rather than as parsed DTDs, as JAXP has no way to share a
+ * parsed DTD between the DOM, SAX and StAX parsers of the steps; it is reading them, often from the network, that
+ * is slow, rather than parsing them.
+ * <p>
+ * A resolver may be catalog only, for workers without network access. It then fails at once to resolve any entity
+ * which is neither mapped by its catalog to a local file, nor a local file itself, rather than waiting for the
+ * network to time out.
+ */
+public class CachingEntityResolver implements EntityResolver, XMLResolver, LSResourceResolver, URIResolver {
+
+    private static final Map<String, CachingEntityResolver> RESOLVERS = new ConcurrentHashMap<>();
+
+    /**
+     * The most memory that the cached entities may use; when it is exceeded the least recently used are evicted.
+     */
+    static final long MAX_ENTITY_BYTES = 64L * 1024 * 1024;
+
+    private static final LinkedHashMap<String, CachedEntity> ENTITIES = new LinkedHashMap<>(16, 0.75f, true);
+    private static long entityBytes = 0;  // guarded by ENTITIES
+
+    private final XmlCatalog catalog;
+    private final boolean catalogOnly;
+
+    private CachingEntityResolver(final XmlCatalog catalog, final boolean catalogOnly) {
+        this.catalog = catalog;
+        this.catalogOnly = catalogOnly;
+    }
+
+    /**
+     * Gets the resolver for a catalog, loading the catalog if it has not already been loaded.
+     *
+     * @param catalogLocation a local file path or file URI of the catalog, or empty for no catalog
+     * @return the resolver
+     * @throws IOException if the catalog cannot be read
+     */
+    public static CachingEntityResolver forCatalog(final String catalogLocation) throws IOException {
+        return forCatalog(catalogLocation, false);
+    }
+
+    /**
+     * Gets the resolver for a catalog, loading the catalog if it has not already been loaded.
+     *
+     * @param catalogLocation a local file path or file URI of the catalog, or empty for no catalog
+     * @param catalogOnly     true to only read local files, so that an entity which the catalog does not map to one
+     *                        fails to resolve, rather than being fetched from the network
+     * @return the resolver
+     * @throws IOException if the catalog cannot be read
+     */
+    public static CachingEntityResolver forCatalog(final String catalogLocation, final boolean catalogOnly) throws IOException {
+        final String location = catalogLocation == null ? "" : catalogLocation;
+        final String key = (catalogOnly ? "catalog-only:" : "") + location;
+        CachingEntityResolver resolver = RESOLVERS.get(key);
+        if (resolver == null) {
+            resolver = new CachingEntityResolver(location.isEmpty() ? null : XmlCatalog.load(location), catalogOnly);
+            final CachingEntityResolver existing = RESOLVERS.putIfAbsent(key, resolver);
+            if (existing != null) {
+                resolver = existing;
+            }
+        }
+        return resolver;
+    }
+
+    /**
+     * @return true if only local files are read, so that an entity which the catalog does not map to one fails to
+     * resolve
+     */
+    public boolean isCatalogOnly() {
+        return catalogOnly;
+    }
+
+    @Override
+    public InputSource resolveEntity(final String publicId, final String systemId) throws IOException {
+        final String uri = resolveUri(publicId, systemId);
+        if (uri == null) {
+            return null;
+        }
+        final InputSource inputSource = new InputSource(new ByteArrayInputStream(getEntity(uri)));
+        inputSource.setPublicId(publicId);
+        inputSource.setSystemId(uri);
+        return inputSource;
+    }
+
+    @Override
+    public Object resolveEntity(final String publicID, final String systemID, final String baseURI, final String namespace) throws XMLStreamException {
+        final String uri = resolveUri(publicID, absolute(systemID, baseURI));
+        if (uri == null) {
+            return null;
+        }
+        try {
+            return new ByteArrayInputStream(getEntity(uri));
+        } catch (IOException e) {
+            throw new XMLStreamException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public LSInput resolveResource(final String type, final String namespaceURI, final String publicId, final String systemId, final String baseURI) {
+        if (systemId == null) {
+            // an import of a namespace alone, which the schema factory resolves itself
+            return null;
+        }
+        final String uri = resolveUri(publicId, absolute(systemId, baseURI));
+        try {
+            return new ResolvedInput(publicId, uri, baseURI, getEntity(uri));
+        } catch (IOException e) {
+            // a schema which cannot be read is reported by the schema factory, which only reads local files itself
+            // when the resolver is catalog only
+            return null;
+        }
+    }
+
+    @Override
+    public Source resolve(final String href, final String base) throws TransformerException {
+        final String uri = resolveUri(null, absolute(href, base));
+        try {
+            return new StreamSource(new ByteArrayInputStream(getEntity(uri)), uri);
+        } catch (IOException e) {
+            throw new TransformerException(e.getMessage(), e);
+        }
+    }
+
+    private static String absolute(final String systemId, final String baseURI) {
+        if (systemId != null && baseURI != null) {
+            try {
+                return new URI(baseURI).resolve(systemId).toString();
+            } catch (Exception e) {
+                // leave the system id as it is
+            }
+        }
+        return systemId;
+    }
+
+    private String resolveUri(final String publicId, final String systemId) {
+        final String uri = catalog == null ? null : catalog.resolve(publicId, systemId);
+        return uri != null ? uri : systemId;
+    }
+
+    private byte[] getEntity(final String uri) throws IOException {
+        final Path path = XmlFiles.toLocalPath(uri);
+        if (path == null && catalogOnly) {
+            throw new IOException("Unable to resolve " + uri + ": it is not mapped to a local file by the XML catalog, and only the catalog may be used");
+        }
+        // a local file is read again when it has been modified; other resources are assumed not to change
+        final long lastModified = path != null ? Files.getLastModifiedTime(path).toMillis() : -1;
+        synchronized (ENTITIES) {
+            final CachedEntity cached = ENTITIES.get(uri);
+            if (cached != null && cached.lastModified == lastModified) {
+                return cached.bytes;
+            }
+        }
+
+        // an entity read by two threads at once is read twice, rather than one waiting for the other
+        final byte[] entity;
+        if (path != null) {
+            entity = Files.readAllBytes(path);
+        } else {
+            try (final InputStream is = new URL(uri).openStream()) {
+                entity = IOUtils.toByteArray(is);
+            }
+        }
+
+        synchronized (ENTITIES) {
+            final CachedEntity previous = ENTITIES.remove(uri);
+            if (previous != null) {
+                entityBytes -= previous.bytes.length;
+            }
+            if (entity.length <= MAX_ENTITY_BYTES) {
+                ENTITIES.put(uri, new CachedEntity(entity, lastModified));
+                entityBytes += entity.length;
+                final Iterator<CachedEntity> eldest = ENTITIES.values().iterator();
+                while (entityBytes > MAX_ENTITY_BYTES) {
+                    entityBytes -= eldest.next().bytes.length;
+                    eldest.remove();
+                }
+            }
+        }
+        return entity;
+    }
+
+    private static class CachedEntity {
+        private final byte[] bytes;
+        private final long lastModified;
+
+        CachedEntity(final byte[] bytes, final long lastModified) {
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * The bytes of a resource resolved for a schema factory.
+     */
+    private static class ResolvedInput implements LSInput {
+        private String publicId;
+        private String systemId;
+        private String baseURI;
+        private InputStream byteStream;
+        private Reader characterStream;
+        private String stringData;
+        private String encoding;
+        private boolean certifiedText;
+
+        ResolvedInput(final String publicId, final String systemId, final String baseURI, final byte[] bytes) {
+            this.publicId = publicId;
+            this.systemId = systemId;
+            this.baseURI = baseURI;
+            this.byteStream = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public Reader getCharacterStream() {
+            return characterStream;
+        }
+
+        @Override
+        public void setCharacterStream(final Reader characterStream) {
+            this.characterStream = characterStream;
+        }
+
+        @Override
+        public InputStream getByteStream() {
+            return byteStream;
+        }
+
+        @Override
+        public void setByteStream(final InputStream byteStream) {
+            this.byteStream = byteStream;
+        }
+
+        @Override
+        public String getStringData() {
+            return stringData;
+        }
+
+        @Override
+        public void setStringData(final String stringData) {
+            this.stringData = stringData;
+        }
+
+        @Override
+        public String getSystemId() {
+            return systemId;
+        }
+
+        @Override
+        public void setSystemId(final String systemId) {
+            this.systemId = systemId;
+        }
+
+        @Override
+        public String getPublicId() {
+            return publicId;
+        }
+
+        @Override
+        public void setPublicId(final String publicId) {
+            this.publicId = publicId;
+        }
+
+        @Override
+        public String getBaseURI() {
+            return baseURI;
+        }
+
+        @Override
+        public void setBaseURI(final String baseURI) {
+            this.baseURI = baseURI;
+        }
+
+        @Override
+        public String getEncoding() {
+            return encoding;
+        }
+
+        @Override
+        public void setEncoding(final String encoding) {
+            this.encoding = encoding;
+        }
+
+        @Override
+        public boolean getCertifiedText() {
+            return certifiedText;
+        }
+
+        @Override
+        public void setCertifiedText(final boolean certifiedText) {
+            this.certifiedText = certifiedText;
+        }
+    }
+}
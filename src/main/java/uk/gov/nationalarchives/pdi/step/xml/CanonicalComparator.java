@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Compares the canonical forms of two XML documents, by canonicalizing both with a {@link StreamingCanonicalizer}
+ * in lockstep and comparing the output as it is produced. Neither canonical form is held in memory, and both
+ * documents are only read as far as their first difference.
+ */
+public class CanonicalComparator {
+
+    private CanonicalComparator() {
+    }
+
+    /**
+     * @param first  a reader positioned at the start of the first document
+     * @param second a reader positioned at the start of the second document
+     * @return the first difference between the canonical forms of the documents, or null if they are identical
+     * @throws XMLStreamException if either document cannot be parsed before a difference is found
+     * @throws IOException        if either document cannot be read
+     */
+    public static Difference compare(final XMLStreamReader first, final XMLStreamReader second) throws XMLStreamException, IOException {
+        final Side a = new Side(first);
+        final Side b = new Side(second);
+        long offset = 0;
+        while (true) {
+            a.fill();
+            b.fill();
+            final int length = Math.min(a.pending(), b.pending());
+            if (length == 0) {
+                if (a.pending() == 0 && b.pending() == 0) {
+                    return null;
+                }
+                // one canonical form is a prefix of the other
+                return new Difference(offset, a.pending() > 0 ? a.getPath() : b.getPath());
+            }
+            for (int i = 0; i < length; i++) {
+                if (a.buffer.buf[a.buffer.start + i] != b.buffer.buf[b.buffer.start + i]) {
+                    return new Difference(offset + utf8Length(a.buffer.buf, a.buffer.start, i), a.getPath());
+                }
+            }
+            offset += utf8Length(a.buffer.buf, a.buffer.start, length);
+            a.buffer.start += length;
+            b.buffer.start += length;
+        }
+    }
+
+    /**
+     * Calculates the length of characters encoded as UTF-8. A surrogate pair may be split between two calls, so
+     * the whole length of a pair is counted for its high surrogate.
+     */
+    private static long utf8Length(final char[] chars, final int start, final int length) {
+        long utf8Length = 0;
+        for (int i = start; i < start + length; i++) {
+            final char c = chars[i];
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                utf8Length += 4;
+            } else if (!Character.isLowSurrogate(c)) {
+                utf8Length += 3;
+            }
+        }
+        return utf8Length;
+    }
+
+    /**
+     * The first difference between two canonical forms.
+     */
+    public static class Difference {
+        private final long offset;
+        private final String path;
+
+        Difference(final long offset, final String path) {
+            this.offset = offset;
+            this.path = path;
+        }
+
+        /**
+         * @return the offset in bytes, within the UTF-8 encoded canonical forms, of the first character which
+         * differs, or of the end of the shorter canonical form
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return an XPath locating the element of the first document at the difference, or the element of the
+         * second document if the first ended before it
+         */
+        public String getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * One of the documents being compared, with the canonical form of its last event that is yet to be compared.
+     */
+    private static class Side {
+        private final StreamingCanonicalizer canonicalizer;
+        private final CharBuffer buffer = new CharBuffer();
+        private boolean complete = false;
+
+        Side(final XMLStreamReader reader) {
+            canonicalizer = new StreamingCanonicalizer(reader, buffer);
+            canonicalizer.setTrackPath(true);
+        }
+
+        /**
+         * Canonicalizes events until there is output to compare, or the document is complete. Only the output of
+         * a single event is ever pending, so the path is always that of the pending output.
+         */
+        void fill() throws XMLStreamException, IOException {
+            while (pending() == 0 && !complete) {
+                complete = !canonicalizer.advance();
+            }
+        }
+
+        int pending() {
+            return buffer.end - buffer.start;
+        }
+
+        String getPath() {
+            return canonicalizer.getPath();
+        }
+    }
+
+    private static class CharBuffer extends Writer {
+        private char[] buf = new char[8192];
+        private int start = 0;
+        private int end = 0;
+
+        @Override
+        public void write(final int c) {
+            ensureCapacity(1);
+            buf[end++] = (char) c;
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) {
+            ensureCapacity(len);
+            System.arraycopy(cbuf, off, buf, end, len);
+            end += len;
+        }
+
+        @Override
+        public void write(final String str, final int off, final int len) {
+            ensureCapacity(len);
+            str.getChars(off, off + len, buf, end);
+            end += len;
+        }
+
+        private void ensureCapacity(final int len) {
+            if (start == end) {
+                start = 0;
+                end = 0;
+            }
+            if (end + len > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, end + len));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.*;
+import org.xml.sax.InputSource;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+
+/**
+ * Compares the Canonical XML of two fields of each row, without producing either canonical form in full. Both
+ * documents are canonicalized as streams in lockstep, and are only read as far as their first difference.
+ */
+public class CanonicalCompareStep extends BaseStep implements StepInterface {
+
+    private static final Class<?> PKG = CanonicalCompareStep.class;
+
+    /**
+     * The constructor should simply pass on its arguments to the parent class.
+     *
+     * @param stepMeta          step description
+     * @param stepDataInterface step data class
+     * @param copyNr            step copy
+     * @param transMeta         transformation description
+     * @param trans             transformation executing
+     */
+    public CanonicalCompareStep(final StepMeta stepMeta, final StepDataInterface stepDataInterface, final int copyNr, final TransMeta transMeta, final Trans trans) {
+        super(stepMeta, stepDataInterface, copyNr, transMeta, trans);
+    }
+
+    @Override
+    public boolean processRow(final StepMetaInterface smi, final StepDataInterface sdi) throws KettleException {
+        final CanonicalCompareStepMeta meta = (CanonicalCompareStepMeta) smi;
+        final CanonicalCompareStepData data = (CanonicalCompareStepData) sdi;
+
+        final Object[] row = getRow();
+        if (row == null) {
+            setOutputDone();
+            return false;
+        }
+
+        if (first) {
+            first = false;
+            data.setOutputRowMeta(getInputRowMeta().clone());
+            meta.getFields(data.getOutputRowMeta(), getStepname(), null, null, this, null, null);
+            data.setFirstFieldIndex(getInputFieldIndex(meta.getFirstField()));
+            data.setSecondFieldIndex(getInputFieldIndex(meta.getSecondField()));
+            data.setEqualFieldIndex(data.getOutputRowMeta().indexOfValue(meta.getEqualField()));
+            data.setOffsetFieldIndex(Utils.isEmpty(meta.getOffsetField()) ? -1 : data.getOutputRowMeta().indexOfValue(meta.getOffsetField()));
+            data.setPathFieldIndex(Utils.isEmpty(meta.getPathField()) ? -1 : data.getOutputRowMeta().indexOfValue(meta.getPathField()));
+            data.setXmlInputFactory(CanonicalStep.getXmlInputFactory(meta.isSkipExternalDtd(), getEntityResolver(meta)));
+        }
+
+        final CanonicalComparator.Difference difference;
+        try {
+            difference = compare(row[data.getFirstFieldIndex()], row[data.getSecondFieldIndex()], meta, data);
+        } catch (KettleException kex) {
+            putError(data.getOutputRowMeta(), row, 1L, kex.getMessage(), meta.getFirstField() + ", " + meta.getSecondField(), "CanonicalCompareStep001");
+            return true;
+        }
+
+        final Object[] outputRow = RowDataUtil.resizeArray(row, data.getOutputRowMeta().size());
+        outputRow[data.getEqualFieldIndex()] = difference == null;
+        if (data.getOffsetFieldIndex() >= 0) {
+            outputRow[data.getOffsetFieldIndex()] = difference == null ? null : difference.getOffset();
+        }
+        if (data.getPathFieldIndex() >= 0) {
+            outputRow[data.getPathFieldIndex()] = difference == null ? null : difference.getPath();
+        }
+        putRow(data.getOutputRowMeta(), outputRow);
+        return true;
+    }
+
+    private int getInputFieldIndex(final String field) throws KettleException {
+        final int index = getInputRowMeta().indexOfValue(field);
+        if (index < 0) {
+            throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.InputFieldNotFound", field));
+        }
+        return index;
+    }
+
+    private CachingEntityResolver getEntityResolver(final CanonicalCompareStepMeta meta) throws KettleException {
+        try {
+            return CachingEntityResolver.forCatalog(environmentSubstitute(Const.NVL(meta.getCatalogFile(), "")), meta.isCatalogOnly());
+        } catch (IOException e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+    }
+
+    private CanonicalComparator.Difference compare(final Object first, final Object second, final CanonicalCompareStepMeta meta,
+            final CanonicalCompareStepData data) throws KettleException {
+        InputSource firstSource = null;
+        InputSource secondSource = null;
+        XMLStreamReader firstReader = null;
+        XMLStreamReader secondReader = null;
+        try {
+            firstSource = CanonicalStep.getInputSource(first, meta.getFirstField(), meta.isInputIsFile(), this);
+            secondSource = CanonicalStep.getInputSource(second, meta.getSecondField(), meta.isInputIsFile(), this);
+            firstReader = CanonicalStep.createXMLStreamReader(firstSource, data.getXmlInputFactory());
+            secondReader = CanonicalStep.createXMLStreamReader(secondSource, data.getXmlInputFactory());
+            return CanonicalComparator.compare(firstReader, secondReader);
+        } catch (XMLStreamException | IOException e) {
+            throw new KettleException(e.getMessage(), e);
+        } finally {
+            CanonicalStep.closeQuietly(firstReader);
+            CanonicalStep.closeQuietly(secondReader);
+            if (firstSource != null) {
+                IOUtils.closeQuietly(firstSource.getByteStream());
+            }
+            if (secondSource != null) {
+                IOUtils.closeQuietly(secondSource.getByteStream());
+            }
+        }
+    }
+}
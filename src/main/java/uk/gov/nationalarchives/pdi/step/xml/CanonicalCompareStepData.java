@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.step.BaseStepData;
+import org.pentaho.di.trans.step.StepDataInterface;
+
+import javax.xml.stream.XMLInputFactory;
+
+public class CanonicalCompareStepData extends BaseStepData implements StepDataInterface {
+
+    private XMLInputFactory xmlInputFactory;
+    private RowMetaInterface outputRowMeta;
+    private int firstFieldIndex;
+    private int secondFieldIndex;
+    private int equalFieldIndex;
+    private int offsetFieldIndex;
+    private int pathFieldIndex;
+
+    public CanonicalCompareStepData() {
+        super();
+    }
+
+    public XMLInputFactory getXmlInputFactory() {
+        return xmlInputFactory;
+    }
+
+    public void setXmlInputFactory(final XMLInputFactory xmlInputFactory) {
+        this.xmlInputFactory = xmlInputFactory;
+    }
+
+    public RowMetaInterface getOutputRowMeta() {
+        return outputRowMeta;
+    }
+
+    public void setOutputRowMeta(final RowMetaInterface outputRowMeta) {
+        this.outputRowMeta = outputRowMeta;
+    }
+
+    public int getFirstFieldIndex() {
+        return firstFieldIndex;
+    }
+
+    public void setFirstFieldIndex(final int firstFieldIndex) {
+        this.firstFieldIndex = firstFieldIndex;
+    }
+
+    public int getSecondFieldIndex() {
+        return secondFieldIndex;
+    }
+
+    public void setSecondFieldIndex(final int secondFieldIndex) {
+        this.secondFieldIndex = secondFieldIndex;
+    }
+
+    public int getEqualFieldIndex() {
+        return equalFieldIndex;
+    }
+
+    public void setEqualFieldIndex(final int equalFieldIndex) {
+        this.equalFieldIndex = equalFieldIndex;
+    }
+
+    /**
+     * @return the index of the offset field in the output row, or -1 if it is not added
+     */
+    public int getOffsetFieldIndex() {
+        return offsetFieldIndex;
+    }
+
+    public void setOffsetFieldIndex(final int offsetFieldIndex) {
+        this.offsetFieldIndex = offsetFieldIndex;
+    }
+
+    /**
+     * @return the index of the path field in the output row, or -1 if it is not added
+     */
+    public int getPathFieldIndex() {
+        return pathFieldIndex;
+    }
+
+    public void setPathFieldIndex(final int pathFieldIndex) {
+        this.pathFieldIndex = pathFieldIndex;
+    }
+}
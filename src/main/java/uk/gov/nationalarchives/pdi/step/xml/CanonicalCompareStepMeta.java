@@ -0,0 +1,371 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.eclipse.swt.widgets.Shell;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.*;
+import org.pentaho.metastore.api.IMetaStore;
+import org.w3c.dom.Node;
+
+import java.util.List;
+
+@Step(
+        id = "CanonicalCompareStep",
+        name = "CanonicalCompareStep.Name",
+        description = "CanonicalCompareStep.TooltipDesc",
+        image = "CanonicalStep.svg",
+        categoryDescription = "i18n:org.pentaho.di.trans.step:BaseStep.Category.Validation",
+        i18nPackageName = "uk.gov.nationalarchives.pdi.step.xml"
+)
+public class CanonicalCompareStepMeta extends BaseStepMeta implements StepMetaInterface {
+
+    private static final Class<?> PKG = CanonicalCompareStepMeta.class;
+
+    private static final String ELEM_NAME_FIRST_FIELD = "firstField";
+    private static final String ELEM_NAME_SECOND_FIELD = "secondField";
+    private static final String ELEM_NAME_INPUT_IS_FILE = "inputIsFile";
+    private static final String ELEM_NAME_CATALOG_FILE = "catalogFile";
+    private static final String ELEM_NAME_SKIP_EXTERNAL_DTD = "skipExternalDtd";
+    private static final String ELEM_NAME_CATALOG_ONLY = "catalogOnly";
+    private static final String ELEM_NAME_EQUAL_FIELD = "equalField";
+    private static final String ELEM_NAME_OFFSET_FIELD = "offsetField";
+    private static final String ELEM_NAME_PATH_FIELD = "pathField";
+
+    private String firstField;
+    private String secondField;
+    private boolean inputIsFile;
+    private String catalogFile;
+    private boolean skipExternalDtd;
+    private boolean catalogOnly;
+    private String equalField;
+    private String offsetField;
+    private String pathField;
+
+    public CanonicalCompareStepMeta() {
+        super();
+    }
+
+    @Override
+    public void setDefault() {
+        setFirstField("");
+        setSecondField("");
+        setInputIsFile(false);
+        setCatalogFile("");
+        setSkipExternalDtd(false);
+        setCatalogOnly(false);
+        setEqualField("canonical_equal");
+        setOffsetField("");
+        setPathField("");
+    }
+
+    /**
+     * Called by Spoon to get a new instance of the SWT dialog for the step.
+     *
+     * @param shell     an SWT Shell
+     * @param meta      description of the step
+     * @param transMeta description of the the transformation
+     * @param name      the name of the step
+     * @return new instance of a dialog for this step
+     */
+    public StepDialogInterface getDialog(final Shell shell, final StepMetaInterface meta, final TransMeta transMeta, final String name) {
+        return new CanonicalCompareStepDialog(shell, meta, transMeta, name);
+    }
+
+    @Override
+    public StepInterface getStep(final StepMeta stepMeta, final StepDataInterface stepDataInterface, final int copyNr, final TransMeta transMeta, final Trans trans) {
+        return new CanonicalCompareStep(stepMeta, stepDataInterface, copyNr, transMeta, trans);
+    }
+
+    @Override
+    public StepDataInterface getStepData() {
+        return new CanonicalCompareStepData();
+    }
+
+    @Override
+    public boolean supportsErrorHandling() {
+        return true;
+    }
+
+    public String getFirstField() {
+        return firstField;
+    }
+
+    /**
+     * Setter for the name of the input field holding the first XML document to compare.
+     *
+     * @param firstField the name of the field
+     */
+    public void setFirstField(final String firstField) {
+        this.firstField = firstField;
+    }
+
+    public String getSecondField() {
+        return secondField;
+    }
+
+    /**
+     * Setter for the name of the input field holding the second XML document to compare.
+     *
+     * @param secondField the name of the field
+     */
+    public void setSecondField(final String secondField) {
+        this.secondField = secondField;
+    }
+
+    public boolean isInputIsFile() {
+        return inputIsFile;
+    }
+
+    /**
+     * Setter for whether the input fields hold the paths or VFS URIs of files containing the XML, rather than
+     * holding the XML.
+     *
+     * @param inputIsFile true if the input fields hold filenames
+     */
+    public void setInputIsFile(final boolean inputIsFile) {
+        this.inputIsFile = inputIsFile;
+    }
+
+    public String getCatalogFile() {
+        return catalogFile;
+    }
+
+    /**
+     * Setter for the XML catalog used to resolve DTDs and external entities to local copies.
+     *
+     * @param catalogFile the path of the catalog, which may contain variables, or empty to resolve them as given
+     */
+    public void setCatalogFile(final String catalogFile) {
+        this.catalogFile = catalogFile;
+    }
+
+    public boolean isSkipExternalDtd() {
+        return skipExternalDtd;
+    }
+
+    /**
+     * Setter for whether external DTDs are ignored.
+     *
+     * @param skipExternalDtd true to never load external DTDs
+     */
+    public void setSkipExternalDtd(final boolean skipExternalDtd) {
+        this.skipExternalDtd = skipExternalDtd;
+    }
+
+    public boolean isCatalogOnly() {
+        return catalogOnly;
+    }
+
+    /**
+     * Setter for whether DTDs, external entities, and the schemas and stylesheets they import are only read from
+     * local files, so that one which the catalog does not map to a local file fails at once, rather than waiting on
+     * a network which may not be reachable.
+     *
+     * @param catalogOnly true to never fetch DTDs and entities from the network
+     */
+    public void setCatalogOnly(final boolean catalogOnly) {
+        this.catalogOnly = catalogOnly;
+    }
+
+    public String getEqualField() {
+        return equalField;
+    }
+
+    /**
+     * Setter for the name of the Boolean field to add, which is true when the canonical forms of the two
+     * documents are identical.
+     *
+     * @param equalField the name of the field
+     */
+    public void setEqualField(final String equalField) {
+        this.equalField = equalField;
+    }
+
+    public String getOffsetField() {
+        return offsetField;
+    }
+
+    /**
+     * Setter for the name of the field to add holding the byte offset, within the canonical forms, of the first
+     * difference between them. The field is null when the documents are identical.
+     *
+     * @param offsetField the name of the field, or empty if the offset is not required
+     */
+    public void setOffsetField(final String offsetField) {
+        this.offsetField = offsetField;
+    }
+
+    public String getPathField() {
+        return pathField;
+    }
+
+    /**
+     * Setter for the name of the field to add holding an XPath to the element of the first document at which the
+     * canonical forms first differ. The field is null when the documents are identical.
+     *
+     * @param pathField the name of the field, or empty if the path is not required
+     */
+    public void setPathField(final String pathField) {
+        this.pathField = pathField;
+    }
+
+    /**
+     * This method is called by Spoon when a step needs to serialize its configuration to XML.
+     *
+     * @return a string containing the XML serialization of this step
+     */
+    public String getXML() {
+        StringBuilder xml = new StringBuilder();
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_FIRST_FIELD, firstField));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SECOND_FIELD, secondField));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_INPUT_IS_FILE, inputIsFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CATALOG_FILE, catalogFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SKIP_EXTERNAL_DTD, skipExternalDtd));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CATALOG_ONLY, catalogOnly));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_EQUAL_FIELD, equalField));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_OFFSET_FIELD, offsetField));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_PATH_FIELD, pathField));
+        return xml.toString();
+    }
+
+    /**
+     * This method is called by PDI when a step needs to load its configuration from XML.
+     *
+     * @param stepnode  the XML node containing the configuration
+     * @param databases the databases available in the transformation
+     * @param metaStore the metaStore to optionally read from
+     */
+    public void loadXML(final Node stepnode, final List<DatabaseMeta> databases, final IMetaStore metaStore) throws KettleXMLException {
+        try {
+            setFirstField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_FIRST_FIELD), ""));
+            setSecondField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_SECOND_FIELD), ""));
+            setInputIsFile("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_INPUT_IS_FILE)));
+            setCatalogFile(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_CATALOG_FILE), ""));
+            setSkipExternalDtd("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_SKIP_EXTERNAL_DTD)));
+            setCatalogOnly("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_CATALOG_ONLY)));
+            setEqualField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_EQUAL_FIELD), ""));
+            setOffsetField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_OFFSET_FIELD), ""));
+            setPathField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_PATH_FIELD), ""));
+        } catch (Exception e) {
+            throw new KettleXMLException(BaseMessages.getString(PKG, "CanonicalStepMeta.Error.UnableToReadStepInfo"), e);
+        }
+    }
+
+    /**
+     * This method is called by Spoon when a step needs to serialize its configuration to a repository.
+     *
+     * @param rep               the repository to save to
+     * @param metaStore         the metaStore to optionally write to
+     * @param id_transformation the id to use for the transformation when saving
+     * @param id_step           the id to use for the step  when saving
+     */
+    public void saveRep(final Repository rep, final IMetaStore metaStore, final ObjectId id_transformation, final ObjectId id_step)
+            throws KettleException {
+        try {
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_FIRST_FIELD, firstField); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_SECOND_FIELD, secondField); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_INPUT_IS_FILE, inputIsFile); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CATALOG_FILE, catalogFile); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_SKIP_EXTERNAL_DTD, skipExternalDtd); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CATALOG_ONLY, catalogOnly); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_EQUAL_FIELD, equalField); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_OFFSET_FIELD, offsetField); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_PATH_FIELD, pathField); //$NON-NLS-1$
+        } catch (Exception e) {
+            throw new KettleException("Unable to save step into repository: " + id_step, e);
+        }
+    }
+
+    /**
+     * This method is called by PDI when a step needs to read its configuration from a repository.
+     *
+     * @param rep       the repository to read from
+     * @param metaStore the metaStore to optionally read from
+     * @param id_step   the id of the step being read
+     * @param databases the databases available in the transformation
+     */
+    public void readRep(final Repository rep, final IMetaStore metaStore, final ObjectId id_step, final List<DatabaseMeta> databases)
+            throws KettleException {
+        try {
+            firstField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_FIRST_FIELD), ""); //$NON-NLS-1$
+            secondField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_SECOND_FIELD), ""); //$NON-NLS-1$
+            inputIsFile = rep.getStepAttributeBoolean(id_step, ELEM_NAME_INPUT_IS_FILE); //$NON-NLS-1$
+            catalogFile = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_CATALOG_FILE), ""); //$NON-NLS-1$
+            skipExternalDtd = rep.getStepAttributeBoolean(id_step, ELEM_NAME_SKIP_EXTERNAL_DTD); //$NON-NLS-1$
+            catalogOnly = rep.getStepAttributeBoolean(id_step, ELEM_NAME_CATALOG_ONLY); //$NON-NLS-1$
+            equalField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_EQUAL_FIELD), ""); //$NON-NLS-1$
+            offsetField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_OFFSET_FIELD), ""); //$NON-NLS-1$
+            pathField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_PATH_FIELD), ""); //$NON-NLS-1$
+        } catch (Exception e) {
+            throw new KettleException("Unable to load step from repository", e);
+        }
+    }
+
+    /**
+     * Appends the equality field, and the offset and path fields if they are set, to the row-stream.
+     *
+     * @param inputRowMeta the row structure coming in to the step
+     * @param name         the name of the step making the changes
+     * @param info         row structures of any info steps coming in
+     * @param nextStep     the description of a step this step is passing rows to
+     * @param space        the variable space for resolving variables
+     * @param repository   the repository instance optionally read from
+     * @param metaStore    the metaStore to optionally read from
+     */
+    public void getFields(final RowMetaInterface inputRowMeta, final String name, final RowMetaInterface[] info, final StepMeta nextStep,
+                          final VariableSpace space, final Repository repository, final IMetaStore metaStore) throws KettleStepException {
+        final ValueMetaInterface equal = new ValueMetaBoolean(equalField);
+        equal.setOrigin(name);
+        inputRowMeta.addValueMeta(equal);
+
+        if (!Utils.isEmpty(offsetField)) {
+            final ValueMetaInterface v = new ValueMetaInteger(offsetField);
+            v.setOrigin(name);
+            inputRowMeta.addValueMeta(v);
+        }
+        if (!Utils.isEmpty(pathField)) {
+            final ValueMetaInterface v = new ValueMetaString(pathField);
+            v.setOrigin(name);
+            inputRowMeta.addValueMeta(v);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.NamespaceSupport;
+
+import javax.xml.transform.Result;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static uk.gov.nationalarchives.pdi.step.xml.StreamingCanonicalizer.writeAttributeValue;
+import static uk.gov.nationalarchives.pdi.step.xml.StreamingCanonicalizer.writeText;
+
+/**
+ * Exclusive XML Canonicalization (with comments) of a document delivered as SAX events, such as the result tree of
+ * an XSLT transformation, so that the document never has to be serialized and parsed again.
+ * <p>
+ * The output is byte-identical to that which {@link StreamingCanonicalizer} produces from the document as a
+ * serializer would write it: a namespace declaration is output where it is first brought into scope, whether it is
+ * reported by {@link #startPrefixMapping(String, String)} or as an {@code xmlns} attribute, and is sorted together
+ * with the other attributes by its qualified name. Line breaks in comments and processing instructions are
+ * normalized to line feeds, as a parser would normalize them when reading the serialized document.
+ */
+public class CanonicalContentHandler extends DefaultHandler implements LexicalHandler {
+
+    private final Writer writer;
+    private final List<StreamingCanonicalizer.Attribute> attributes = new ArrayList<>();
+    private final List<StreamingCanonicalizer.Attribute> pendingNamespaces = new ArrayList<>();
+    private final NamespaceSupport namespaces = new NamespaceSupport();
+
+    private int depth = 0;
+    private boolean afterDocumentElement = false;
+
+    /**
+     * @param os the stream to write the UTF-8 encoded canonical form to
+     */
+    public CanonicalContentHandler(final OutputStream os) {
+        this(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param writer the writer to write the canonical form to
+     */
+    public CanonicalContentHandler(final Writer writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public void setDocumentLocator(final Locator locator) {
+        // locations are not part of the canonical form
+    }
+
+    @Override
+    public void startDocument() {
+        namespaces.reset();
+        pendingNamespaces.clear();
+        depth = 0;
+        afterDocumentElement = false;
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(final String prefix, final String uri) {
+        pendingNamespaces.add(new StreamingCanonicalizer.Attribute(prefix, uri));
+    }
+
+    @Override
+    public void startElement(final String uri, final String localName, final String qName, final Attributes atts) throws SAXException {
+        namespaces.pushContext();
+        attributes.clear();
+        for (final StreamingCanonicalizer.Attribute namespace : pendingNamespaces) {
+            declare(namespace.name, namespace.value);
+        }
+        pendingNamespaces.clear();
+        for (int i = 0; i < atts.getLength(); i++) {
+            final String name = name(atts.getQName(i), atts.getLocalName(i));
+            if (name.equals("xmlns")) {
+                declare("", atts.getValue(i));
+            } else if (name.startsWith("xmlns:")) {
+                declare(name.substring(6), atts.getValue(i));
+            } else {
+                attributes.add(new StreamingCanonicalizer.Attribute(name, atts.getValue(i)));
+            }
+        }
+        Collections.sort(attributes);
+
+        try {
+            writer.write('<');
+            writer.write(name(qName, localName));
+            for (final StreamingCanonicalizer.Attribute attribute : attributes) {
+                writer.write(' ');
+                writer.write(attribute.name);
+                writer.write("=\"");
+                writeAttributeValue(writer, attribute.value);
+                writer.write('"');
+            }
+            writer.write('>');
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+        depth++;
+    }
+
+    /**
+     * Adds the declaration of a namespace to the attributes of the element being started, unless the same
+     * declaration is already in scope, as a serializer would not repeat it.
+     */
+    private void declare(final String prefix, final String uri) {
+        final String value = uri == null ? "" : uri;
+        final String inScope = namespaces.getURI(prefix);
+        if (value.equals(inScope == null ? "" : inScope) || prefix.equals("xml")) {
+            return;
+        }
+        namespaces.declarePrefix(prefix, value);
+        final String name = prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix;
+        for (final StreamingCanonicalizer.Attribute attribute : attributes) {
+            if (attribute.name.equals(name)) {
+                return;
+            }
+        }
+        attributes.add(new StreamingCanonicalizer.Attribute(name, value));
+    }
+
+    private static String name(final String qName, final String localName) {
+        return qName == null || qName.isEmpty() ? localName : qName;
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+        namespaces.popContext();
+        depth--;
+        try {
+            writer.write("</");
+            writer.write(name(qName, localName));
+            writer.write('>');
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+        if (depth == 0) {
+            afterDocumentElement = true;
+        }
+    }
+
+    @Override
+    public void characters(final char[] ch, final int start, final int length) throws SAXException {
+        // whitespace outside of the document element is not part of the canonical form
+        if (depth > 0) {
+            try {
+                writeText(writer, ch, start, length);
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(final char[] ch, final int start, final int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(final String target, final String data) throws SAXException {
+        if (Result.PI_DISABLE_OUTPUT_ESCAPING.equals(target) || Result.PI_ENABLE_OUTPUT_ESCAPING.equals(target)) {
+            // instructions to a serializer, which are not part of the result tree
+            return;
+        }
+        try {
+            beforeTopLevelNode();
+            writer.write("<?");
+            writer.write(target);
+            if (data != null && !data.isEmpty()) {
+                writer.write(' ');
+                writer.write(normalizeLineBreaks(data));
+            }
+            writer.write("?>");
+            afterTopLevelNode();
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void comment(final char[] ch, final int start, final int length) throws SAXException {
+        try {
+            beforeTopLevelNode();
+            writer.write("<!--");
+            writer.write(normalizeLineBreaks(new String(ch, start, length)));
+            writer.write("-->");
+            afterTopLevelNode();
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    private static String normalizeLineBreaks(final String value) {
+        return value.indexOf('\r') < 0 ? value : value.replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    private void beforeTopLevelNode() throws IOException {
+        if (depth == 0 && afterDocumentElement) {
+            writer.write('\n');
+        }
+    }
+
+    private void afterTopLevelNode() throws IOException {
+        if (depth == 0 && !afterDocumentElement) {
+            writer.write('\n');
+        }
+    }
+
+    @Override
+    public void startDTD(final String name, final String publicId, final String systemId) {
+        // the DTD produces no output
+    }
+
+    @Override
+    public void endDTD() {
+        // the DTD produces no output
+    }
+
+    @Override
+    public void startEntity(final String name) {
+        // entities are canonicalized as their replacement text
+    }
+
+    @Override
+    public void endEntity(final String name) {
+        // entities are canonicalized as their replacement text
+    }
+
+    @Override
+    public void startCDATA() {
+        // CDATA sections are canonicalized as text
+    }
+
+    @Override
+    public void endCDATA() {
+        // CDATA sections are canonicalized as text
+    }
+}
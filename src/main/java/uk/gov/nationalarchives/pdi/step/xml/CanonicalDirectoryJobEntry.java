@@ -0,0 +1,495 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.pentaho.di.cluster.SlaveServer;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.Result;
+import org.pentaho.di.core.ResultFile;
+import org.pentaho.di.core.annotations.JobEntry;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.job.entry.JobEntryBase;
+import org.pentaho.di.job.entry.JobEntryInterface;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.metastore.api.IMetaStore;
+import org.w3c.dom.Node;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the Canonical XML of every XML file in a directory tree, with a manifest of their sizes and digests.
+ * This avoids passing each file through the rows of a transformation when re-canonicalizing whole storage trees.
+ */
+@JobEntry(
+        id = "CanonicalDirectoryJobEntry",
+        name = "CanonicalDirectoryJobEntry.Name",
+        description = "CanonicalDirectoryJobEntry.TooltipDesc",
+        image = "CanonicalStep.svg",
+        categoryDescription = "i18n:org.pentaho.di.job:JobCategory.Category.XML",
+        i18nPackageName = "uk.gov.nationalarchives.pdi.step.xml"
+)
+public class CanonicalDirectoryJobEntry extends JobEntryBase implements Cloneable, JobEntryInterface {
+
+    private static final Class<?> PKG = CanonicalDirectoryJobEntry.class;
+
+    private static final String DEFAULT_INCLUDE_FILES = "*.xml";
+
+    private static final String ELEM_NAME_SOURCE_DIRECTORY = "sourceDirectory";
+    private static final String ELEM_NAME_INCLUDE_FILES = "includeFiles";
+    private static final String ELEM_NAME_TARGET_DIRECTORY = "targetDirectory";
+    private static final String ELEM_NAME_OUTPUT_SUFFIX = "outputSuffix";
+    private static final String ELEM_NAME_MANIFEST_FILE = "manifestFile";
+    private static final String ELEM_NAME_THREADS = "threads";
+    private static final String ELEM_NAME_CATALOG_FILE = "catalogFile";
+    private static final String ELEM_NAME_SKIP_EXTERNAL_DTD = "skipExternalDtd";
+    private static final String ELEM_NAME_CATALOG_ONLY = "catalogOnly";
+    private static final String ELEM_NAME_STREAMING = "streaming";
+    private static final String ELEM_NAME_SHA256 = "sha256";
+    private static final String ELEM_NAME_SHA512 = "sha512";
+    private static final String ELEM_NAME_MD5 = "md5";
+
+    private String sourceDirectory;
+    private String includeFiles;
+    private String targetDirectory;
+    private String outputSuffix;
+    private String manifestFile;
+    private int threads;
+    private String catalogFile;
+    private boolean skipExternalDtd;
+    private boolean catalogOnly;
+    private boolean streaming;
+    private boolean sha256;
+    private boolean sha512;
+    private boolean md5;
+
+    public CanonicalDirectoryJobEntry(final String name) {
+        super(name, "");
+        setDefault();
+    }
+
+    public CanonicalDirectoryJobEntry() {
+        this("");
+    }
+
+    /**
+     * Sets the default settings of a new job entry.
+     */
+    public void setDefault() {
+        setSourceDirectory("");
+        setIncludeFiles(DEFAULT_INCLUDE_FILES);
+        setTargetDirectory("");
+        setOutputSuffix(".c14n.xml");
+        setManifestFile("");
+        setThreads(0);
+        setCatalogFile("");
+        setSkipExternalDtd(false);
+        setCatalogOnly(false);
+        setStreaming(true);
+        setSha256(true);
+        setSha512(false);
+        setMd5(false);
+    }
+
+    @Override
+    public Object clone() {
+        return super.clone();
+    }
+
+    @Override
+    public String getDialogClassName() {
+        return CanonicalDirectoryJobEntryDialog.class.getName();
+    }
+
+    @Override
+    public boolean evaluates() {
+        return true;
+    }
+
+    @Override
+    public Result execute(final Result previousResult, final int nr) throws KettleException {
+        final Result result = previousResult;
+        result.setResult(false);
+
+        final Path source = Paths.get(environmentSubstitute(Const.NVL(sourceDirectory, "")));
+        final String target = environmentSubstitute(Const.NVL(targetDirectory, ""));
+        final String manifest = environmentSubstitute(Const.NVL(manifestFile, ""));
+        if (!Files.isDirectory(source)) {
+            logError(BaseMessages.getString(PKG, "CanonicalDirectoryJobEntry.Error.SourceDirectoryNotFound", source));
+            result.setNrErrors(1);
+            return result;
+        }
+        if (Utils.isEmpty(manifest)) {
+            logError(BaseMessages.getString(PKG, "CanonicalDirectoryJobEntry.Error.ManifestFileRequired"));
+            result.setNrErrors(1);
+            return result;
+        }
+        final String suffix = environmentSubstitute(Const.NVL(outputSuffix, ""));
+        if (Utils.isEmpty(target) && Utils.isEmpty(suffix)) {
+            logError(BaseMessages.getString(PKG, "CanonicalDirectoryJobEntry.Error.OutputSuffixRequired"));
+            result.setNrErrors(1);
+            return result;
+        }
+
+        final DirectoryCanonicalizer canonicalizer = new DirectoryCanonicalizer(source, Utils.isEmpty(target) ? null : Paths.get(target), Paths.get(manifest));
+        canonicalizer.setOutputSuffix(suffix);
+        final String include = environmentSubstitute(Const.NVL(includeFiles, ""));
+        // an empty pattern would match no files, leaving an empty manifest
+        canonicalizer.setInclude(Utils.isEmpty(include) ? DEFAULT_INCLUDE_FILES : include);
+        canonicalizer.setStreaming(streaming);
+        canonicalizer.setDigestAlgorithms(getDigestAlgorithms());
+        try {
+            canonicalizer.setEntityResolution(skipExternalDtd, CachingEntityResolver.forCatalog(environmentSubstitute(Const.NVL(catalogFile, "")), catalogOnly));
+            final DirectoryCanonicalizer.Summary summary = canonicalizer.canonicalize(getName(),
+                    threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), () -> parentJob.isStopped());
+            logBasic(BaseMessages.getString(PKG, "CanonicalDirectoryJobEntry.Log.Summary",
+                    summary.getFiles(), summary.getErrors(), summary.getInputBytes(), summary.getOutputBytes()));
+
+            final ResultFile resultFile = new ResultFile(ResultFile.FILE_TYPE_GENERAL, KettleVFS.getFileObject(manifest, this),
+                    parentJob.getJobname(), toString());
+            result.getResultFiles().put(resultFile.getFile().toString(), resultFile);
+            result.setNrErrors(summary.getErrors());
+            result.setResult(summary.getErrors() == 0 && !parentJob.isStopped());
+        } catch (IOException | RuntimeException e) {
+            logError(BaseMessages.getString(PKG, "CanonicalDirectoryJobEntry.Error.Failed", source), e);
+            result.setNrErrors(1);
+        }
+        return result;
+    }
+
+    /**
+     * @return the names of the digest algorithms selected, in the order of their columns in the manifest
+     */
+    String[] getDigestAlgorithms() {
+        final List<String> digestAlgorithms = new ArrayList<>();
+        if (sha256) {
+            digestAlgorithms.add("SHA-256");
+        }
+        if (sha512) {
+            digestAlgorithms.add("SHA-512");
+        }
+        if (md5) {
+            digestAlgorithms.add("MD5");
+        }
+        return digestAlgorithms.toArray(new String[0]);
+    }
+
+    public String getSourceDirectory() {
+        return sourceDirectory;
+    }
+
+    /**
+     * Setter for the root of the tree of XML files to canonicalize.
+     *
+     * @param sourceDirectory the path of the directory, which may contain variables
+     */
+    public void setSourceDirectory(final String sourceDirectory) {
+        this.sourceDirectory = sourceDirectory;
+    }
+
+    public String getIncludeFiles() {
+        return includeFiles;
+    }
+
+    /**
+     * Setter for the files within the tree to canonicalize.
+     *
+     * @param includeFiles a glob pattern matched against the name of each file, for example {@code *.xml}, which
+     *                     is also used when the pattern is empty
+     */
+    public void setIncludeFiles(final String includeFiles) {
+        this.includeFiles = includeFiles;
+    }
+
+    public String getTargetDirectory() {
+        return targetDirectory;
+    }
+
+    /**
+     * Setter for the root of the mirror tree to write the Canonical XML to.
+     *
+     * @param targetDirectory the path of the directory, which may contain variables, or empty to write the
+     *                        Canonical XML alongside each file
+     */
+    public void setTargetDirectory(final String targetDirectory) {
+        this.targetDirectory = targetDirectory;
+    }
+
+    public String getOutputSuffix() {
+        return outputSuffix;
+    }
+
+    /**
+     * Setter for the suffix appended to the name of each file to name its Canonical XML.
+     *
+     * @param outputSuffix the suffix, which may only be empty when writing to a mirror tree
+     */
+    public void setOutputSuffix(final String outputSuffix) {
+        this.outputSuffix = outputSuffix;
+    }
+
+    public String getManifestFile() {
+        return manifestFile;
+    }
+
+    /**
+     * Setter for the CSV file to write the path, sizes and digests of each file to.
+     *
+     * @param manifestFile the path of the file, which may contain variables
+     */
+    public void setManifestFile(final String manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Setter for the number of files to canonicalize at once.
+     *
+     * @param threads the number of threads, or 0 for one per processor
+     */
+    public void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    public String getCatalogFile() {
+        return catalogFile;
+    }
+
+    /**
+     * Setter for the XML catalog used to resolve DTDs and external entities to local copies.
+     *
+     * @param catalogFile the path of the catalog, which may contain variables, or empty to resolve them as given
+     */
+    public void setCatalogFile(final String catalogFile) {
+        this.catalogFile = catalogFile;
+    }
+
+    public boolean isSkipExternalDtd() {
+        return skipExternalDtd;
+    }
+
+    /**
+     * Setter for whether external DTDs are ignored.
+     *
+     * @param skipExternalDtd true to never load external DTDs
+     */
+    public void setSkipExternalDtd(final boolean skipExternalDtd) {
+        this.skipExternalDtd = skipExternalDtd;
+    }
+
+    public boolean isCatalogOnly() {
+        return catalogOnly;
+    }
+
+    /**
+     * Setter for whether DTDs, external entities, and the schemas and stylesheets they import are only read from
+     * local files, so that one which the catalog does not map to a local file fails at once, rather than waiting on
+     * a network which may not be reachable.
+     *
+     * @param catalogOnly true to never fetch DTDs and entities from the network
+     */
+    public void setCatalogOnly(final boolean catalogOnly) {
+        this.catalogOnly = catalogOnly;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Setter for whether each file is canonicalized in a single streaming pass, rather than through a DOM.
+     *
+     * @param streaming true to canonicalize by streaming
+     */
+    public void setStreaming(final boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isSha256() {
+        return sha256;
+    }
+
+    /**
+     * Setter for whether the SHA-256 digest of each Canonical XML file is recorded in the manifest.
+     *
+     * @param sha256 true to record the digest
+     */
+    public void setSha256(final boolean sha256) {
+        this.sha256 = sha256;
+    }
+
+    public boolean isSha512() {
+        return sha512;
+    }
+
+    /**
+     * Setter for whether the SHA-512 digest of each Canonical XML file is recorded in the manifest.
+     *
+     * @param sha512 true to record the digest
+     */
+    public void setSha512(final boolean sha512) {
+        this.sha512 = sha512;
+    }
+
+    public boolean isMd5() {
+        return md5;
+    }
+
+    /**
+     * Setter for whether the MD5 digest of each Canonical XML file is recorded in the manifest.
+     *
+     * @param md5 true to record the digest
+     */
+    public void setMd5(final boolean md5) {
+        this.md5 = md5;
+    }
+
+    /**
+     * This method is called by Spoon when a job entry needs to serialize its configuration to XML.
+     *
+     * @return a string containing the XML serialization of this job entry
+     */
+    @Override
+    public String getXML() {
+        StringBuilder xml = new StringBuilder(super.getXML());
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SOURCE_DIRECTORY, sourceDirectory));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_INCLUDE_FILES, includeFiles));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_TARGET_DIRECTORY, targetDirectory));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_OUTPUT_SUFFIX, outputSuffix));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_MANIFEST_FILE, manifestFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_THREADS, threads));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CATALOG_FILE, catalogFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SKIP_EXTERNAL_DTD, skipExternalDtd));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CATALOG_ONLY, catalogOnly));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_STREAMING, streaming));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SHA256, sha256));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SHA512, sha512));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_MD5, md5));
+        return xml.toString();
+    }
+
+    /**
+     * This method is called by PDI when a job entry needs to load its configuration from XML.
+     *
+     * @param entrynode    the XML node containing the configuration
+     * @param databases    the databases available in the job
+     * @param slaveServers the slave servers available in the job
+     * @param rep          the repository to optionally read from
+     * @param metaStore    the metaStore to optionally read from
+     */
+    @Override
+    public void loadXML(final Node entrynode, final List<DatabaseMeta> databases, final List<SlaveServer> slaveServers, final Repository rep,
+                        final IMetaStore metaStore) throws KettleXMLException {
+        try {
+            super.loadXML(entrynode, databases, slaveServers);
+            setSourceDirectory(Const.NVL(XMLHandler.getTagValue(entrynode, ELEM_NAME_SOURCE_DIRECTORY), ""));
+            setIncludeFiles(Const.NVL(XMLHandler.getTagValue(entrynode, ELEM_NAME_INCLUDE_FILES), ""));
+            setTargetDirectory(Const.NVL(XMLHandler.getTagValue(entrynode, ELEM_NAME_TARGET_DIRECTORY), ""));
+            setOutputSuffix(Const.NVL(XMLHandler.getTagValue(entrynode, ELEM_NAME_OUTPUT_SUFFIX), ""));
+            setManifestFile(Const.NVL(XMLHandler.getTagValue(entrynode, ELEM_NAME_MANIFEST_FILE), ""));
+            setThreads(Const.toInt(XMLHandler.getTagValue(entrynode, ELEM_NAME_THREADS), 0));
+            setCatalogFile(Const.NVL(XMLHandler.getTagValue(entrynode, ELEM_NAME_CATALOG_FILE), ""));
+            setSkipExternalDtd("Y".equalsIgnoreCase(XMLHandler.getTagValue(entrynode, ELEM_NAME_SKIP_EXTERNAL_DTD)));
+            setCatalogOnly("Y".equalsIgnoreCase(XMLHandler.getTagValue(entrynode, ELEM_NAME_CATALOG_ONLY)));
+            setStreaming("Y".equalsIgnoreCase(XMLHandler.getTagValue(entrynode, ELEM_NAME_STREAMING)));
+            setSha256("Y".equalsIgnoreCase(XMLHandler.getTagValue(entrynode, ELEM_NAME_SHA256)));
+            setSha512("Y".equalsIgnoreCase(XMLHandler.getTagValue(entrynode, ELEM_NAME_SHA512)));
+            setMd5("Y".equalsIgnoreCase(XMLHandler.getTagValue(entrynode, ELEM_NAME_MD5)));
+        } catch (Exception e) {
+            throw new KettleXMLException(BaseMessages.getString(PKG, "CanonicalDirectoryJobEntry.Error.UnableToReadJobEntryInfo"), e);
+        }
+    }
+
+    /**
+     * This method is called by Spoon when a job entry needs to serialize its configuration to a repository.
+     *
+     * @param rep       the repository to save to
+     * @param metaStore the metaStore to optionally write to
+     * @param id_job    the id of the job being saved
+     */
+    @Override
+    public void saveRep(final Repository rep, final IMetaStore metaStore, final ObjectId id_job) throws KettleException {
+        try {
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_SOURCE_DIRECTORY, sourceDirectory); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_INCLUDE_FILES, includeFiles); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_TARGET_DIRECTORY, targetDirectory); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_OUTPUT_SUFFIX, outputSuffix); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_MANIFEST_FILE, manifestFile); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_THREADS, threads); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_CATALOG_FILE, catalogFile); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_SKIP_EXTERNAL_DTD, skipExternalDtd); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_CATALOG_ONLY, catalogOnly); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_STREAMING, streaming); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_SHA256, sha256); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_SHA512, sha512); //$NON-NLS-1$
+            rep.saveJobEntryAttribute(id_job, getObjectId(), ELEM_NAME_MD5, md5); //$NON-NLS-1$
+        } catch (Exception e) {
+            throw new KettleException("Unable to save job entry into repository: " + getObjectId(), e);
+        }
+    }
+
+    /**
+     * This method is called by PDI when a job entry needs to read its configuration from a repository.
+     *
+     * @param rep          the repository to read from
+     * @param metaStore    the metaStore to optionally read from
+     * @param id_jobentry  the id of the job entry being read
+     * @param databases    the databases available in the job
+     * @param slaveServers the slave servers available in the job
+     */
+    @Override
+    public void loadRep(final Repository rep, final IMetaStore metaStore, final ObjectId id_jobentry, final List<DatabaseMeta> databases,
+                        final List<SlaveServer> slaveServers) throws KettleException {
+        try {
+            sourceDirectory = Const.NVL(rep.getJobEntryAttributeString(id_jobentry, ELEM_NAME_SOURCE_DIRECTORY), ""); //$NON-NLS-1$
+            includeFiles = Const.NVL(rep.getJobEntryAttributeString(id_jobentry, ELEM_NAME_INCLUDE_FILES), ""); //$NON-NLS-1$
+            targetDirectory = Const.NVL(rep.getJobEntryAttributeString(id_jobentry, ELEM_NAME_TARGET_DIRECTORY), ""); //$NON-NLS-1$
+            outputSuffix = Const.NVL(rep.getJobEntryAttributeString(id_jobentry, ELEM_NAME_OUTPUT_SUFFIX), ""); //$NON-NLS-1$
+            manifestFile = Const.NVL(rep.getJobEntryAttributeString(id_jobentry, ELEM_NAME_MANIFEST_FILE), ""); //$NON-NLS-1$
+            threads = (int) rep.getJobEntryAttributeInteger(id_jobentry, ELEM_NAME_THREADS); //$NON-NLS-1$
+            catalogFile = Const.NVL(rep.getJobEntryAttributeString(id_jobentry, ELEM_NAME_CATALOG_FILE), ""); //$NON-NLS-1$
+            skipExternalDtd = rep.getJobEntryAttributeBoolean(id_jobentry, ELEM_NAME_SKIP_EXTERNAL_DTD); //$NON-NLS-1$
+            catalogOnly = rep.getJobEntryAttributeBoolean(id_jobentry, ELEM_NAME_CATALOG_ONLY); //$NON-NLS-1$
+            streaming = rep.getJobEntryAttributeBoolean(id_jobentry, ELEM_NAME_STREAMING); //$NON-NLS-1$
+            sha256 = rep.getJobEntryAttributeBoolean(id_jobentry, ELEM_NAME_SHA256); //$NON-NLS-1$
+            sha512 = rep.getJobEntryAttributeBoolean(id_jobentry, ELEM_NAME_SHA512); //$NON-NLS-1$
+            md5 = rep.getJobEntryAttributeBoolean(id_jobentry, ELEM_NAME_MD5); //$NON-NLS-1$
+        } catch (Exception e) {
+            throw new KettleException("Unable to load job entry from repository", e);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.*;
+import org.eclipse.swt.layout.FormAttachment;
+import org.eclipse.swt.layout.FormData;
+import org.eclipse.swt.layout.FormLayout;
+import org.eclipse.swt.widgets.*;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.job.JobMeta;
+import org.pentaho.di.job.entry.JobEntryDialogInterface;
+import org.pentaho.di.job.entry.JobEntryInterface;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.ui.core.widget.LabelText;
+import org.pentaho.di.ui.job.dialog.JobDialog;
+import org.pentaho.di.ui.job.entry.JobEntryDialog;
+import org.pentaho.di.ui.trans.step.BaseStepDialog;
+
+public class CanonicalDirectoryJobEntryDialog extends JobEntryDialog implements JobEntryDialogInterface {
+
+    private static final Class<?> PKG = CanonicalDirectoryJobEntry.class; // for i18n purposes
+
+    private CanonicalDirectoryJobEntry jobEntry;
+    private boolean changed;
+
+    private LabelText entryName;
+    private LabelText sourceDirectory;
+    private LabelText includeFiles;
+    private LabelText targetDirectory;
+    private LabelText outputSuffix;
+    private LabelText manifestFile;
+    private LabelText threads;
+    private LabelText catalogFile;
+    private Button skipExternalDtd;
+    private Button catalogOnly;
+    private Button streaming;
+    private Button sha256;
+    private Button sha512;
+    private Button md5;
+
+    /**
+     * @param parent      the SWT shell to open the dialog in
+     * @param jobEntryInt the job entry holding the settings
+     * @param rep         the repository the job is held in, if any
+     * @param jobMeta     job description
+     */
+    public CanonicalDirectoryJobEntryDialog(final Shell parent, final JobEntryInterface jobEntryInt, final Repository rep, final JobMeta jobMeta) {
+        super(parent, jobEntryInt, rep, jobMeta);
+        jobEntry = (CanonicalDirectoryJobEntry) jobEntryInt;
+    }
+
+    /**
+     * Opens the dialog, and returns once it has been closed.
+     *
+     * @return the job entry if the dialog was confirmed, or null if it was cancelled
+     */
+    public JobEntryInterface open() {
+        Shell parent = getParent();
+        Display display = parent.getDisplay();
+
+        shell = new Shell(parent, props.getJobsDialogStyle());
+        props.setLook(shell);
+        JobDialog.setShellImage(shell, jobEntry);
+
+        changed = jobEntry.hasChanged();
+
+        ModifyListener lsMod = new ModifyListener() {
+            public void modifyText(ModifyEvent e) {
+                jobEntry.setChanged();
+            }
+        };
+
+        FormLayout formLayout = new FormLayout();
+        formLayout.marginWidth = Const.FORM_MARGIN;
+        formLayout.marginHeight = Const.FORM_MARGIN;
+        shell.setLayout(formLayout);
+        shell.setText(BaseMessages.getString(PKG, "CanonicalDirectoryJobEntry.Shell.Title"));
+        int middle = props.getMiddlePct();
+        int margin = Const.MARGIN;
+
+        entryName = addLabelText("CanonicalDirectoryJobEntry.EntryName.Label", null, lsMod, margin);
+
+        // Files to canonicalize, and where to write them
+        sourceDirectory = addLabelText("CanonicalDirectoryJobEntry.SourceDirectory.Label", entryName, lsMod, margin);
+        includeFiles = addLabelText("CanonicalDirectoryJobEntry.IncludeFiles.Label", sourceDirectory, lsMod, margin);
+        targetDirectory = addLabelText("CanonicalDirectoryJobEntry.TargetDirectory.Label", includeFiles, lsMod, margin);
+        outputSuffix = addLabelText("CanonicalDirectoryJobEntry.OutputSuffix.Label", targetDirectory, lsMod, margin);
+        manifestFile = addLabelText("CanonicalDirectoryJobEntry.ManifestFile.Label", outputSuffix, lsMod, margin);
+        threads = addLabelText("CanonicalDirectoryJobEntry.Threads.Label", manifestFile, lsMod, margin);
+
+        // Parsing, as for the Canonical XML step
+        catalogFile = addLabelText("CanonicalStep.CatalogFile.Label", threads, lsMod, margin);
+        skipExternalDtd = addCheckbox("CanonicalStep.SkipExternalDtd.Label", catalogFile, middle, margin);
+        catalogOnly = addCheckbox("CanonicalStep.CatalogOnly.Label", skipExternalDtd, middle, margin);
+        streaming = addCheckbox("CanonicalStep.Streaming.Label", catalogOnly, middle, margin);
+
+        // Digests recorded in the manifest
+        sha256 = addCheckbox("CanonicalDirectoryJobEntry.Sha256.Label", streaming, middle, margin);
+        sha512 = addCheckbox("CanonicalDirectoryJobEntry.Sha512.Label", sha256, middle, margin);
+        md5 = addCheckbox("CanonicalDirectoryJobEntry.Md5.Label", sha512, middle, margin);
+
+        // OK and cancel buttons
+        Button wOK = new Button(shell, SWT.PUSH);
+        wOK.setText(BaseMessages.getString(PKG, "System.Button.OK"));
+        Button wCancel = new Button(shell, SWT.PUSH);
+        wCancel.setText(BaseMessages.getString(PKG, "System.Button.Cancel"));
+        BaseStepDialog.positionBottomButtons(shell, new Button[]{wOK, wCancel}, margin, md5);
+
+        // Add listeners for cancel and OK
+        wCancel.addListener(SWT.Selection, new Listener() {
+            public void handleEvent(Event e) {
+                cancel();
+            }
+        });
+        wOK.addListener(SWT.Selection, new Listener() {
+            public void handleEvent(Event e) {
+                ok();
+            }
+        });
+
+        // default listener (for hitting "enter")
+        SelectionAdapter lsDef = new SelectionAdapter() {
+            public void widgetDefaultSelected(SelectionEvent e) {
+                ok();
+            }
+        };
+        entryName.getTextWidget().addSelectionListener(lsDef);
+
+        // Detect X or ALT-F4 or something that kills this window and cancel the dialog properly
+        shell.addShellListener(new ShellAdapter() {
+            public void shellClosed(ShellEvent e) {
+                cancel();
+            }
+        });
+
+        BaseStepDialog.setSize(shell);
+        populateDialog();
+        jobEntry.setChanged(changed);
+
+        shell.open();
+        while (!shell.isDisposed()) {
+            if (!display.readAndDispatch()) {
+                display.sleep();
+            }
+        }
+        return jobEntry;
+    }
+
+    /**
+     * Adds a labelled checkbox below another control, which marks the job entry as changed when toggled.
+     *
+     * @param labelKey the i18n key of the label text
+     * @param above    the control to place the checkbox below
+     * @param middle   the percentage of the dialog width at which the label ends
+     * @param margin   the margin between controls
+     * @return the checkbox
+     */
+    private Button addCheckbox(final String labelKey, final Control above, final int middle, final int margin) {
+        final Label label = new Label(shell, SWT.RIGHT);
+        label.setText(BaseMessages.getString(PKG, labelKey));
+        props.setLook(label);
+        final FormData fdLabel = new FormData();
+        fdLabel.left = new FormAttachment(0, 0);
+        fdLabel.top = new FormAttachment(above, margin);
+        fdLabel.right = new FormAttachment(middle, -margin);
+        label.setLayoutData(fdLabel);
+
+        final Button checkbox = new Button(shell, SWT.CHECK);
+        props.setLook(checkbox);
+        final FormData fdCheckbox = new FormData();
+        fdCheckbox.left = new FormAttachment(middle, margin);
+        fdCheckbox.top = new FormAttachment(above, margin);
+        fdCheckbox.right = new FormAttachment(100, -margin);
+        checkbox.setLayoutData(fdCheckbox);
+        checkbox.addSelectionListener(new SelectionAdapter() {
+            public void widgetSelected(SelectionEvent e) {
+                jobEntry.setChanged();
+            }
+        });
+        return checkbox;
+    }
+
+    /**
+     * Adds a labelled text field below another control.
+     *
+     * @param labelKey the i18n key of the label text
+     * @param above    the control to place the text field below, or null to place it at the top
+     * @param lsMod    the listener to notify of modifications
+     * @param margin   the margin between controls
+     * @return the text field
+     */
+    private LabelText addLabelText(final String labelKey, final Control above, final ModifyListener lsMod, final int margin) {
+        final LabelText labelText = new LabelText(shell, BaseMessages.getString(PKG, labelKey), null);
+        props.setLook(labelText);
+        labelText.addModifyListener(lsMod);
+        final FormData fdLabelText = new FormData();
+        fdLabelText.left = new FormAttachment(0, 0);
+        fdLabelText.right = new FormAttachment(100, 0);
+        fdLabelText.top = above == null ? new FormAttachment(0, margin) : new FormAttachment(above, margin);
+        labelText.setLayoutData(fdLabelText);
+        return labelText;
+    }
+
+    private void populateDialog() {
+        entryName.setText(Const.NVL(jobEntry.getName(), ""));
+        entryName.getTextWidget().selectAll();
+        sourceDirectory.setText(Const.NVL(jobEntry.getSourceDirectory(), ""));
+        includeFiles.setText(Const.NVL(jobEntry.getIncludeFiles(), ""));
+        targetDirectory.setText(Const.NVL(jobEntry.getTargetDirectory(), ""));
+        outputSuffix.setText(Const.NVL(jobEntry.getOutputSuffix(), ""));
+        manifestFile.setText(Const.NVL(jobEntry.getManifestFile(), ""));
+        threads.setText(Integer.toString(jobEntry.getThreads()));
+        catalogFile.setText(Const.NVL(jobEntry.getCatalogFile(), ""));
+        skipExternalDtd.setSelection(jobEntry.isSkipExternalDtd());
+        catalogOnly.setSelection(jobEntry.isCatalogOnly());
+        streaming.setSelection(jobEntry.isStreaming());
+        sha256.setSelection(jobEntry.isSha256());
+        sha512.setSelection(jobEntry.isSha512());
+        md5.setSelection(jobEntry.isMd5());
+    }
+
+    private void cancel() {
+        jobEntry.setChanged(changed);
+        jobEntry = null;
+        shell.dispose();
+    }
+
+    private void ok() {
+        jobEntry.setName(entryName.getText());
+        jobEntry.setSourceDirectory(sourceDirectory.getText());
+        jobEntry.setIncludeFiles(includeFiles.getText());
+        jobEntry.setTargetDirectory(targetDirectory.getText());
+        jobEntry.setOutputSuffix(outputSuffix.getText());
+        jobEntry.setManifestFile(manifestFile.getText());
+        jobEntry.setThreads(Const.toInt(threads.getText(), 0));
+        jobEntry.setCatalogFile(catalogFile.getText());
+        jobEntry.setSkipExternalDtd(skipExternalDtd.getSelection());
+        jobEntry.setCatalogOnly(catalogOnly.getSelection());
+        jobEntry.setStreaming(streaming.getSelection());
+        jobEntry.setSha256(sha256.getSelection());
+        jobEntry.setSha512(sha512.getSelection());
+        jobEntry.setMd5(md5.getSelection());
+        shell.dispose();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.validation.ValidatorHandler;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.Writer;
+
+/**
+ * Checks whether XML is already in canonical form, by canonicalizing it with a {@link StreamingCanonicalizer} and
+ * comparing each part of the canonical form with the input as soon as it is produced. Nothing is held in memory
+ * beyond the parser's own buffers, and the check stops at the first difference, which for XML that is not
+ * canonical is usually within the first few events.
+ */
+public class CanonicalFormCheck {
+
+    private final XMLInputFactory xmlInputFactory;
+    private final ValidatorHandler validatorHandler;
+
+    /**
+     * @param xmlInputFactory the factory to create parsers with, configured as for canonicalization
+     */
+    public CanonicalFormCheck(final XMLInputFactory xmlInputFactory) {
+        this(xmlInputFactory, null);
+    }
+
+    /**
+     * @param xmlInputFactory  the factory to create parsers with, configured as for canonicalization
+     * @param validatorHandler the validator of the XML Schema that XML must be valid against to be passed through,
+     *                         in the same parse, or null if it is not validated
+     */
+    public CanonicalFormCheck(final XMLInputFactory xmlInputFactory, final ValidatorHandler validatorHandler) {
+        this.xmlInputFactory = xmlInputFactory;
+        this.validatorHandler = validatorHandler;
+    }
+
+    /**
+     * @param xml the XML
+     * @return true if the XML is identical to its canonical form, false if it differs, cannot be parsed, or is
+     * not valid
+     */
+    public boolean isCanonical(final String xml) {
+        final ComparingWriter writer = new ComparingWriter(xml);
+        XMLStreamReader reader = null;
+        try {
+            reader = createXMLStreamReader(xmlInputFactory.createXMLStreamReader(new StringReader(xml)));
+            new StreamingCanonicalizer(reader, writer).canonicalize();
+        } catch (XMLStreamException | IOException e) {
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+        return writer.position == xml.length();
+    }
+
+    /**
+     * @param xml the XML
+     * @return true if the XML is identical, byte for byte, to its UTF-8 encoded canonical form, false if it differs,
+     * cannot be parsed, or is not valid
+     */
+    public boolean isCanonical(final byte[] xml) {
+        final ComparingOutputStream os = new ComparingOutputStream(xml);
+        XMLStreamReader reader = null;
+        try {
+            reader = createXMLStreamReader(xmlInputFactory.createXMLStreamReader(new ByteArrayInputStream(xml)));
+            new StreamingCanonicalizer(reader, os).canonicalize();
+        } catch (XMLStreamException | IOException e) {
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+        return os.position == xml.length;
+    }
+
+    private XMLStreamReader createXMLStreamReader(final XMLStreamReader reader) throws XMLStreamException {
+        return validatorHandler == null ? reader : new ValidatingStreamReader(reader, validatorHandler);
+    }
+
+    private static void closeQuietly(final XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Thrown as soon as the canonical form differs from the input, to stop canonicalizing.
+     */
+    private static class NotCanonicalException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            // thrown for control flow only, so there is no need for the cost of a stack trace
+            return this;
+        }
+    }
+
+    private static class ComparingWriter extends Writer {
+        private final String expected;
+        private int position = 0;
+
+        ComparingWriter(final String expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        public void write(final int c) throws IOException {
+            if (position >= expected.length() || expected.charAt(position) != (char) c) {
+                throw new NotCanonicalException();
+            }
+            position++;
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException {
+            if (len > expected.length() - position) {
+                throw new NotCanonicalException();
+            }
+            for (int i = 0; i < len; i++) {
+                if (expected.charAt(position + i) != cbuf[off + i]) {
+                    throw new NotCanonicalException();
+                }
+            }
+            position += len;
+        }
+
+        @Override
+        public void write(final String str, final int off, final int len) throws IOException {
+            if (!expected.regionMatches(position, str, off, len)) {
+                throw new NotCanonicalException();
+            }
+            position += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class ComparingOutputStream extends OutputStream {
+        private final byte[] expected;
+        private int position = 0;
+
+        ComparingOutputStream(final byte[] expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (position >= expected.length || expected[position] != (byte) b) {
+                throw new NotCanonicalException();
+            }
+            position++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len > expected.length - position) {
+                throw new NotCanonicalException();
+            }
+            for (int i = 0; i < len; i++) {
+                if (expected[position + i] != b[off + i]) {
+                    throw new NotCanonicalException();
+                }
+            }
+            position += len;
+        }
+    }
+}
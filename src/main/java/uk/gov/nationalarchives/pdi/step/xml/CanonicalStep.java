@@ -22,26 +22,86 @@
  */
 package uk.gov.nationalarchives.pdi.step.xml;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.vfs2.FileContent;
+import org.apache.commons.vfs2.FileObject;
 import org.apache.xml.security.c14n.Canonicalizer;
+import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.*;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.validation.ValidatorHandler;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
 
 public class CanonicalStep extends BaseStep implements StepInterface {
 
     private static final Class<?> PKG = CanonicalStep.class;
 
+    /**
+     * The number of rows per worker thread that may be in flight at once, which bounds the memory
+     * used by rows waiting to be put in order.
+     */
+    private static final int IN_FLIGHT_ROWS_PER_WORKER = 4;
+
+    /**
+     * Outputs larger than this are hashed in parallel when parallel digests are enabled; below it, handing the
+     * bytes to other threads costs more than it saves.
+     */
+    static final long PARALLEL_DIGEST_THRESHOLD = 1024 * 1024;
+
+    private static final String LOAD_EXTERNAL_DTD_FEATURE = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+    private static final String IGNORE_EXTERNAL_DTD_PROPERTY = "http://java.sun.com/xml/stream/properties/ignore-external-dtd";
+
     /**
      * This is the base step that forms that basis for all steps. You can derive from this class to implement your own
      * steps.
@@ -64,6 +124,7 @@ public class CanonicalStep extends BaseStep implements StepInterface {
 
         final Object[] row = getRow();
         if (row == null) {
+            putPendingRows(meta, data, 0);
             setOutputDone();
             return false;
         }
@@ -72,41 +133,771 @@ public class CanonicalStep extends BaseStep implements StepInterface {
             first = false;
             data.setOutputRowMeta(getInputRowMeta().clone());
             meta.getFields(data.getOutputRowMeta(), getStepname(), null, null, this, null, null);
-            data.setXmlFieldIdx(getInputRowMeta().indexOfValue(meta.getInputField()));
-            data.setOutputFieldIndex(data.getOutputRowMeta().indexOfValue(meta.getOutputField()));
+            data.setXmlFieldIndexes(getXmlFieldIndexes(meta));
+            data.setOutputFieldIndexes(getOutputFieldIndexes(meta, data));
+            data.setDigestFieldIndexes(getDigestFieldIndexes(meta, data));
+            data.setSpillFileFieldIndexes(getOptionalFieldIndexes(meta.getSpillFileFields(), data));
+            data.setLengthFieldIndexes(getOptionalFieldIndexes(meta.getLengthFields(), data));
+            data.setDocumentFieldIndexes(getOptionalFieldIndexes(meta.getDocumentFields(), data));
+            data.setMetricFieldIndexes(getOptionalFieldIndexes(meta.getMetricFields(), data));
             org.apache.xml.security.Init.init();
-            data.setCanonicalizer(getCanonicalizer());
-            data.setDocumentBuilder(getDocumentBuilder());
+            initParsers(meta, data);
+            if (!Utils.isEmpty(meta.getRecordPath())) {
+                if (meta.getNrFieldMappings() != 1) {
+                    throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.RecordPathSingleField"));
+                }
+                // records are split and put in document order by this thread, and are never cached
+                data.setRecordPath(environmentSubstitute(meta.getRecordPath()));
+            } else if (meta.getCacheSizeMb() > 0) {
+                data.setCaches(createCaches(meta));
+            }
+            if (meta.isParallelDigests()) {
+                data.setDigestExecutor(WorkerExecutors.newDigestExecutor(getStepname()));
+            }
+            if (meta.getWorkerThreads() > 1 && data.getRecordPath() == null) {
+                if (meta.isInputIsFile()) {
+                    // reading files is mostly waiting, which costs little on the virtual threads of Java 21
+                    data.setExecutor(FileWorkerExecutors.newFileWorkerExecutor(getStepname(), meta.getWorkerThreads()));
+                    logDetailed(BaseMessages.getString(PKG, FileWorkerExecutors.isVirtual()
+                            ? "CanonicalStep.Log.VirtualFileWorkers" : "CanonicalStep.Log.PlatformFileWorkers"));
+                } else {
+                    data.setExecutor(WorkerExecutors.newWorkerExecutor(getStepname(), meta.getWorkerThreads()));
+                }
+            }
         }
-        final Object xmlFieldValue = row[data.getXmlFieldIdx()];
-        if (xmlFieldValue instanceof String) {
-            final CanonicalizationResult result = process((String) xmlFieldValue, data);
-            if (result.hasError()) {
-                putError(data.getOutputRowMeta(), row, 1L, result.getErrorMessage(), meta.getInputField(), "CanonicalStep001");
+        // the number of the row, read here as the workers may process rows in any order
+        final long rowNr = getLinesRead();
+        final int[] xmlFieldIndexes = data.getXmlFieldIndexes();
+        if (data.getRecordPath() != null) {
+            splitRecords(row, rowNr, row[xmlFieldIndexes[0]], meta, data);
+            return true;
+        }
+        final Object[] xmlFieldValues = new Object[xmlFieldIndexes.length];
+        for (int i = 0; i < xmlFieldIndexes.length; i++) {
+            xmlFieldValues[i] = row[xmlFieldIndexes[i]];
+        }
+
+        if (data.getExecutor() == null) {
+            putResult(row, process(rowNr, xmlFieldValues, meta, data), meta, data);
+        } else {
+            final Future<CanonicalizationResult[]> result = data.getExecutor().submit(() -> processInWorker(rowNr, xmlFieldValues, meta, data));
+            data.getPendingRows().add(new CanonicalStepData.PendingRow(row, result));
+            putPendingRows(meta, data, meta.getWorkerThreads() * IN_FLIGHT_ROWS_PER_WORKER);
+        }
+        return true;
+    }
+
+    @Override
+    public void dispose(final StepMetaInterface smi, final StepDataInterface sdi) {
+        final CanonicalStepMeta meta = (CanonicalStepMeta) smi;
+        final CanonicalStepData data = (CanonicalStepData) sdi;
+        if (data.getExecutor() != null) {
+            data.getExecutor().shutdownNow();
+            data.setExecutor(null);
+        }
+        if (data.getDigestExecutor() != null) {
+            data.getDigestExecutor().shutdownNow();
+            data.setDigestExecutor(null);
+        }
+        endDeflater(data);
+        for (final CanonicalStepData workerData : data.getIdleWorkerData()) {
+            endDeflater(workerData);
+        }
+        final CanonicalizationCache[] caches = data.getCaches();
+        if (caches != null) {
+            for (int i = 0; i < caches.length; i++) {
+                final CanonicalizationCache cache = caches[i];
+                logBasic(BaseMessages.getString(PKG, "CanonicalStep.Log.CacheStatistics", meta.getInputFields()[i], cache.getHits(), cache.getMisses(), cache.getEntries(), cache.getBytes()));
+                if (meta.isCacheShared()) {
+                    CanonicalizationCache.releaseShared(getSharedCacheName(i), cache);
+                }
+            }
+            data.setCaches(null);
+        }
+        logMetrics(data.getMetrics());
+        super.dispose(smi, sdi);
+    }
+
+    /**
+     * Frees the native memory of the compressor of a step copy or worker thread.
+     */
+    private static void endDeflater(final CanonicalStepData data) {
+        if (data.getDeflater() != null) {
+            data.getDeflater().end();
+            data.setDeflater(null);
+        }
+    }
+
+    /**
+     * Reports the metrics of all rows processed to the step log and, when the transformation is gathering
+     * performance metrics, to Kettle's metrics.
+     */
+    private void logMetrics(final CanonicalStepMetrics metrics) {
+        if (metrics.getRows() == 0) {
+            return;
+        }
+        logBasic(BaseMessages.getString(PKG, "CanonicalStep.Log.Metrics", metrics.getRows(), metrics.getInputBytes(), metrics.getOutputBytes(),
+                CanonicalStepMetrics.summarize(metrics.getParseNanos()), CanonicalStepMetrics.summarize(metrics.getCanonicalizeNanos()), metrics.getPassThroughs()));
+        if (log.isGatheringMetrics()) {
+            log.snap(CanonicalStepMetrics.METRIC_PARSE_TIME, getStepname(), (long) CanonicalStepMetrics.toMillis(metrics.getParseNanos().getTotal()));
+            log.snap(CanonicalStepMetrics.METRIC_CANONICALIZE_TIME, getStepname(), (long) CanonicalStepMetrics.toMillis(metrics.getCanonicalizeNanos().getTotal()));
+            log.snap(CanonicalStepMetrics.METRIC_INPUT_BYTES, getStepname(), metrics.getInputBytes());
+            log.snap(CanonicalStepMetrics.METRIC_OUTPUT_BYTES, getStepname(), metrics.getOutputBytes());
+            log.snap(CanonicalStepMetrics.METRIC_PASS_THROUGH, getStepname(), metrics.getPassThroughs());
+        }
+    }
+
+    /**
+     * Puts the results of rows processed by the worker threads, in the order that the rows were read. Results
+     * which are already complete are always put; beyond that, this waits for results until no more than
+     * {@code maxPending} rows remain in flight.
+     */
+    private void putPendingRows(final CanonicalStepMeta meta, final CanonicalStepData data, final int maxPending) throws KettleException {
+        final Deque<CanonicalStepData.PendingRow> pendingRows = data.getPendingRows();
+        while (!pendingRows.isEmpty() && (pendingRows.size() > maxPending || pendingRows.peek().getResult().isDone())) {
+            final CanonicalStepData.PendingRow pendingRow = pendingRows.poll();
+            try {
+                putResult(pendingRow.getRow(), pendingRow.getResult().get(), meta, data);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KettleException(e.getMessage(), e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof KettleException) {
+                    throw (KettleException) e.getCause();
+                }
+                throw new KettleException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Puts a row with the results of each of its field mappings, or puts it to the error stream if any mapping
+     * failed; the rest of the mappings of a failed row are not processed, and their results are null.
+     */
+    private void putResult(final Object[] row, final CanonicalizationResult[] results, final CanonicalStepMeta meta, final CanonicalStepData data) throws KettleException {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].hasError()) {
+                deleteSpillFiles(results, i);
+                putError(data.getOutputRowMeta(), row, 1L, results[i].getErrorMessage(), meta.getInputFields()[i], "CanonicalStep001");
+                return;
+            }
+        }
+
+        // the row is resized once for all the field mappings
+        final Object[] outputRow = RowDataUtil.resizeArray(row, data.getOutputRowMeta().size());
+        for (int i = 0; i < results.length; i++) {
+            final CanonicalizationResult result = results[i];
+            if (data.getOutputFieldIndexes()[i] >= 0) {
+                outputRow[data.getOutputFieldIndexes()[i]] = result.getCanonicalXml();
+            }
+            final int[] digestFieldIndexes = data.getDigestFieldIndexes()[i];
+            for (int j = 0; j < digestFieldIndexes.length; j++) {
+                outputRow[digestFieldIndexes[j]] = result.getDigests()[j];
+            }
+            if (data.getSpillFileFieldIndexes()[i] >= 0) {
+                outputRow[data.getSpillFileFieldIndexes()[i]] = result.getSpillFile();
+            }
+            if (data.getLengthFieldIndexes()[i] >= 0) {
+                outputRow[data.getLengthFieldIndexes()[i]] = result.getOutputBytes();
+            }
+            if (data.getDocumentFieldIndexes()[i] >= 0) {
+                outputRow[data.getDocumentFieldIndexes()[i]] = result.getDocument();
+            }
+            data.getMetrics().record(result);
+        }
+        putMetricFields(outputRow, results, data.getMetricFieldIndexes());
+        putRow(data.getOutputRowMeta(), outputRow);
+    }
+
+    /**
+     * Deletes the spill files of the field mappings of a row before the one which failed, as the row goes to the
+     * error stream without them, so no later step will read or delete them.
+     */
+    private static void deleteSpillFiles(final CanonicalizationResult[] results, final int failed) {
+        for (int i = 0; i < failed; i++) {
+            if (results[i].getSpillFile() != null) {
+                FileUtils.deleteQuietly(Paths.get(results[i].getSpillFile()).toFile());
+            }
+        }
+    }
+
+    /**
+     * Sets the metric fields of a row, each the total over all of its field mappings.
+     */
+    private static void putMetricFields(final Object[] outputRow, final CanonicalizationResult[] results, final int[] metricFieldIndexes) {
+        long parseNanos = 0;
+        long canonicalizeNanos = 0;
+        long inputBytes = 0;
+        long outputBytes = 0;
+        for (final CanonicalizationResult result : results) {
+            parseNanos += result.getParseNanos();
+            canonicalizeNanos += result.getCanonicalizeNanos();
+            inputBytes += result.getInputBytes();
+            outputBytes += result.getOutputBytes();
+        }
+        if (metricFieldIndexes[0] >= 0) {
+            outputRow[metricFieldIndexes[0]] = CanonicalStepMetrics.toMillis(parseNanos);
+        }
+        if (metricFieldIndexes[1] >= 0) {
+            outputRow[metricFieldIndexes[1]] = CanonicalStepMetrics.toMillis(canonicalizeNanos);
+        }
+        if (metricFieldIndexes[2] >= 0) {
+            outputRow[metricFieldIndexes[2]] = inputBytes;
+        }
+        if (metricFieldIndexes[3] >= 0) {
+            outputRow[metricFieldIndexes[3]] = outputBytes;
+        }
+    }
+
+    /**
+     * Processes a row on a worker thread. The parsers, canonicalizer and digests are not thread-safe, so each
+     * worker thread borrows its own set from the pool held in the step data.
+     */
+    private CanonicalizationResult[] processInWorker(final long rowNr, final Object[] xmlFieldValues, final CanonicalStepMeta meta, final CanonicalStepData data) throws KettleException {
+        CanonicalStepData workerData = data.getIdleWorkerData().poll();
+        if (workerData == null) {
+            workerData = new CanonicalStepData();
+            initParsers(meta, workerData);
+            workerData.setCaches(data.getCaches());
+            workerData.setDigestExecutor(data.getDigestExecutor());
+        }
+        try {
+            return process(rowNr, xmlFieldValues, meta, workerData);
+        } finally {
+            data.getIdleWorkerData().add(workerData);
+        }
+    }
+
+    private void initParsers(final CanonicalStepMeta meta, final CanonicalStepData data) throws KettleException {
+        data.setCanonicalizer(getCanonicalizer());
+        final CachingEntityResolver entityResolver = getEntityResolver(meta);
+        data.setDocumentBuilder(getDocumentBuilder(meta.isSkipExternalDtd(), entityResolver));
+        data.setXmlInputFactory(getXmlInputFactory(meta.isSkipExternalDtd(), entityResolver));
+        data.setValidatorHandler(getValidatorHandler(meta, entityResolver));
+        data.setXPathExpression(getXPathExpression(meta));
+        if (meta.isPassThroughCanonical() && !meta.isInputIsFile() && data.getXPathExpression() == null) {
+            data.setCanonicalFormCheck(new CanonicalFormCheck(data.getXmlInputFactory(), data.getValidatorHandler()));
+        }
+        data.setSpillDirectory(getSpillDirectory(meta));
+        data.setDigests(getDigests(meta));
+        if (meta.isCompressOutput() && !meta.isDigestOnly()) {
+            data.setDeflater(DeflatedXml.newDeflater());
+        }
+    }
+
+    /**
+     * Creates a MessageDigest for each digest field that is configured, for each field mapping.
+     */
+    private MessageDigest[][] getDigests(final CanonicalStepMeta meta) throws KettleException {
+        final MessageDigest[][] mappingDigests = new MessageDigest[meta.getNrFieldMappings()][];
+        for (int mapping = 0; mapping < mappingDigests.length; mapping++) {
+            final String[] digestFields = meta.getDigestFields(mapping);
+            final List<MessageDigest> digests = new ArrayList<>();
+            for (int i = 0; i < digestFields.length; i++) {
+                if (!Utils.isEmpty(digestFields[i])) {
+                    try {
+                        digests.add(MessageDigest.getInstance(CanonicalStepMeta.DIGEST_ALGORITHMS[i]));
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new KettleException(e.getMessage(), e);
+                    }
+                }
+            }
+            mappingDigests[mapping] = digests.toArray(new MessageDigest[0]);
+        }
+        return mappingDigests;
+    }
+
+    private int[] getXmlFieldIndexes(final CanonicalStepMeta meta) throws KettleException {
+        final int[] indexes = new int[meta.getNrFieldMappings()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = getInputRowMeta().indexOfValue(meta.getInputFields()[i]);
+            if (indexes[i] < 0) {
+                throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.InputFieldNotFound", meta.getInputFields()[i]));
+            }
+        }
+        return indexes;
+    }
+
+    private int[] getOutputFieldIndexes(final CanonicalStepMeta meta, final CanonicalStepData data) {
+        final int[] indexes = new int[meta.getNrFieldMappings()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = meta.isDigestOnly() ? -1 : data.getOutputRowMeta().indexOfValue(meta.getOutputFields()[i]);
+        }
+        return indexes;
+    }
+
+    private int[][] getDigestFieldIndexes(final CanonicalStepMeta meta, final CanonicalStepData data) {
+        final int[][] mappingIndexes = new int[meta.getNrFieldMappings()][];
+        for (int mapping = 0; mapping < mappingIndexes.length; mapping++) {
+            final List<Integer> digestFieldIndexes = new ArrayList<>();
+            for (final String digestField : meta.getDigestFields(mapping)) {
+                if (!Utils.isEmpty(digestField)) {
+                    digestFieldIndexes.add(data.getOutputRowMeta().indexOfValue(digestField));
+                }
+            }
+            final int[] indexes = new int[digestFieldIndexes.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = digestFieldIndexes.get(i);
+            }
+            mappingIndexes[mapping] = indexes;
+        }
+        return mappingIndexes;
+    }
+
+    /**
+     * Creates a cache for each field mapping, as the digests of each mapping may differ. The memory available
+     * to the step is divided equally between them. The configuration of the caches has its variables
+     * substituted, so that a shared cache is not reused when a variable, such as a schema file, has changed.
+     */
+    private CanonicalizationCache[] createCaches(final CanonicalStepMeta meta) throws KettleException {
+        final CanonicalizationCache[] caches = new CanonicalizationCache[meta.getNrFieldMappings()];
+        final long maxBytes = meta.getCacheSizeMb() * 1024L * 1024L / Math.max(1, caches.length);
+        final String configuration = environmentSubstitute(meta.getXML());
+        for (int i = 0; i < caches.length; i++) {
+            if (meta.isCacheShared()) {
+                caches[i] = CanonicalizationCache.getShared(getSharedCacheName(i), configuration, maxBytes);
             } else {
-                Object[] outputRow = RowDataUtil.resizeArray(row, data.getOutputRowMeta().size());
-                outputRow[data.getOutputFieldIndex()] = result.getCanonicalXml();
-                putRow(data.getOutputRowMeta(), outputRow);
+                caches[i] = new CanonicalizationCache(configuration, maxBytes);
             }
-            return true;
+        }
+        return caches;
+    }
+
+    private String getSharedCacheName(final int mapping) {
+        return getTransMeta().getName() + "/" + getStepname() + "/" + mapping;
+    }
+
+    /**
+     * @return the index in the output row of each of the fields, or -1 for those which are not configured
+     */
+    private int[] getOptionalFieldIndexes(final String[] fields, final CanonicalStepData data) {
+        final int[] indexes = new int[fields.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = Utils.isEmpty(fields[i]) ? -1 : data.getOutputRowMeta().indexOfValue(fields[i]);
+        }
+        return indexes;
+    }
+
+    /**
+     * Checks that a field holds XML, as a String or binary, or the location of a file of XML, as a String.
+     *
+     * @param value       the value of the field
+     * @param field       the name of the field, for the error message
+     * @param inputIsFile true if the field holds the location of a file
+     * @throws KettleException if the value is of another type
+     */
+    static void checkInputType(final Object value, final String field, final boolean inputIsFile) throws KettleException {
+        if (inputIsFile) {
+            if (!(value instanceof String)) {
+                throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.FilenameNotFound", field, value == null ? null : value.getClass()));
+            }
+        } else if (!(value instanceof String || value instanceof byte[])) {
+            throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.XmlStringNotFound", field, value == null ? null : value.getClass()));
+        }
+    }
+
+    /**
+     * Creates an input source for the XML held in, or referenced by, a field, for each of the steps which read XML
+     * from fields. Binary XML and files are passed to the parser as bytes, so that they are decoded with the
+     * encoding that the document declares, and compressed XML is inflated.
+     *
+     * @param value       the value of the field
+     * @param field       the name of the field, for error messages
+     * @param inputIsFile true if the field holds the location of a file of XML, rather than XML
+     * @param space       the variable space used to configure VFS
+     * @return the input source, whose byte stream, if it has one, must be closed by the caller
+     * @throws KettleException if the field does not hold XML, or the file cannot be opened
+     */
+    static InputSource getInputSource(final Object value, final String field, final boolean inputIsFile, final VariableSpace space) throws KettleException {
+        checkInputType(value, field, inputIsFile);
+        if (inputIsFile) {
+            try {
+                return XmlFiles.open((String) value, space);
+            } catch (IOException e) {
+                throw new KettleException(e.getMessage(), e);
+            }
+        } else if (value instanceof String) {
+            return new InputSource(new StringReader((String) value));
+        } else {
+            return new InputSource(DeflatedXml.open((byte[]) value));
+        }
+    }
+
+    /**
+     * Processes each of the field mappings of a row in turn, with the same parsers, stopping at the first which
+     * fails.
+     */
+    private CanonicalizationResult[] process(final long rowNr, final Object[] xmlFieldValues, final CanonicalStepMeta meta, final CanonicalStepData data) throws KettleException {
+        final CanonicalizationResult[] results = new CanonicalizationResult[xmlFieldValues.length];
+        for (int i = 0; i < xmlFieldValues.length; i++) {
+            results[i] = process(i, rowNr, xmlFieldValues[i], meta, data);
+            if (results[i].hasError()) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    private CanonicalizationResult process(final int mapping, final long rowNr, final Object xmlFieldValue, final CanonicalStepMeta meta, final CanonicalStepData data) throws KettleException {
+        checkInputType(xmlFieldValue, meta.getInputFields()[mapping], meta.isInputIsFile());
+
+        // a cached result has no document, as each row's document must be its own
+        if (data.getCaches() == null || isDocumentRequired(mapping, meta)) {
+            return canonicalizeValue(mapping, rowNr, xmlFieldValue, meta, data);
+        }
+        final CanonicalizationCache cache = data.getCaches()[mapping];
+
+        final CanonicalizationCache.Key key;
+        try {
+            key = getCacheKey(xmlFieldValue, meta);
+        } catch (KettleException kex) {
+            return errorResult(kex);
+        }
+        final CanonicalizationResult cached = cache.get(key);
+        if (cached != null) {
+            return cached.copyForCacheHit();
+        }
+        final CanonicalizationResult result = canonicalizeValue(mapping, rowNr, xmlFieldValue, meta, data);
+        // results in files are not cached, as the files belong to the steps which read them
+        if (!result.hasError() && result.getSpillFile() == null) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    private CanonicalizationCache.Key getCacheKey(final Object xmlFieldValue, final CanonicalStepMeta meta) throws KettleException {
+        if (meta.isInputIsFile()) {
+            return getFileCacheKey((String) xmlFieldValue);
+        } else if (xmlFieldValue instanceof String) {
+            return CanonicalizationCache.keyOf((String) xmlFieldValue);
         } else {
-            throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.XmlStringNotFound", meta.getInputField(), xmlFieldValue.getClass()));
+            return CanonicalizationCache.keyOf((byte[]) xmlFieldValue);
+        }
+    }
+
+    /**
+     * Keys a file by its location, size and last modified time, rather than by its content, so that the file is
+     * only read when it is canonicalized.
+     */
+    private CanonicalizationCache.Key getFileCacheKey(final String location) throws KettleException {
+        try {
+            final Path path = XmlFiles.toLocalPath(location);
+            if (path != null) {
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return CanonicalizationCache.keyOf(path.toAbsolutePath().toString(), attributes.size(), attributes.lastModifiedTime().toMillis());
+            }
+            try (final FileObject file = KettleVFS.getFileObject(location, this)) {
+                final FileContent content = file.getContent();
+                return CanonicalizationCache.keyOf(file.getName().getURI(), content.getSize(), content.getLastModifiedTime());
+            }
+        } catch (IOException e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+    }
+
+    private static boolean isDocumentRequired(final int mapping, final CanonicalStepMeta meta) {
+        return !Utils.isEmpty(meta.getDocumentFields()[mapping]);
+    }
+
+    private static CanonicalizationResult errorResult(final KettleException kex) {
+        CanonicalizationResult result = new CanonicalizationResult("");
+        result.setErrorMessage(kex.getMessage());
+        result.setHasError(true);
+        return result;
+    }
+
+    private CanonicalizationResult canonicalizeValue(final int mapping, final long rowNr, final Object xmlFieldValue, final CanonicalStepMeta meta, final CanonicalStepData data) {
+        final boolean documentRequired = isDocumentRequired(mapping, meta);
+        long checkNanos = 0;
+        // compressed XML is not checked, as it would have to be inflated twice when it is not canonical
+        if (data.getCanonicalFormCheck() != null && !documentRequired
+                && !(xmlFieldValue instanceof byte[] && DeflatedXml.isDeflated((byte[]) xmlFieldValue))) {
+            final long start = System.nanoTime();
+            final long length = xmlFieldValue instanceof byte[] ? ((byte[]) xmlFieldValue).length : utf8Length((String) xmlFieldValue);
+            // XML which would be spilled to a file is always canonicalized, so that it is written to one
+            if (length <= getSpillThreshold(mapping, meta) && isCanonical(xmlFieldValue, data.getCanonicalFormCheck())) {
+                return passThrough(mapping, xmlFieldValue, length, System.nanoTime() - start, meta, data);
+            }
+            checkNanos = System.nanoTime() - start;
+        }
+
+        final CanonicalOutput output = new CanonicalOutput(mapping, meta, data);
+        final OutputStream os = output.os;
+        InputSource inputSource = null;
+        CountingInputStream is = null;
+        long stringBytes = 0;
+        // the event of the phase in progress, which is ended as failed if the phase fails
+        PhaseEvent event = null;
+        try {
+            inputSource = getInputSource(xmlFieldValue, meta.getInputFields()[mapping], meta.isInputIsFile(), this);
+            if (inputSource.getByteStream() != null) {
+                is = new CountingInputStream(inputSource.getByteStream());
+                inputSource.setByteStream(is);
+            } else {
+                stringBytes = utf8Length((String) xmlFieldValue);
+            }
+
+            final long start = System.nanoTime();
+            final long parsed;
+            Document xmlDoc = null;
+            if (meta.isStreaming() && data.getXPathExpression() == null && !documentRequired) {
+                parsed = start;
+                event = PhaseEvent.canonicalize();
+                canonicalizeStreaming(inputSource, data, os);
+            } else {
+                event = PhaseEvent.parse();
+                xmlDoc = createDocument(inputSource, data);
+                validate(xmlDoc, data);
+                parsed = System.nanoTime();
+                event.end(getStepname(), getCopy(), rowNr, is != null ? is.getByteCount() : stringBytes, 0, false);
+                event = PhaseEvent.canonicalize();
+                if (data.getXPathExpression() != null) {
+                    canonicalizeSelection(xmlDoc, data, os);
+                } else {
+                    canonicalize(xmlDoc, data, os);
+                }
+            }
+            final long canonicalized = System.nanoTime();
+
+            final CanonicalizationResult result = output.toResult(meta);
+            result.setParseNanos(parsed - start);
+            result.setCanonicalizeNanos(canonicalized - parsed + checkNanos);
+            result.setInputBytes(is != null ? is.getByteCount() : stringBytes);
+            if (documentRequired) {
+                result.setDocument(xmlDoc);
+            }
+            event.end(getStepname(), getCopy(), rowNr, result.getInputBytes(), result.getOutputBytes(), false);
+            return result;
+        } catch (KettleException kex) {
+            if (event != null) {
+                event.end(getStepname(), getCopy(), rowNr, is != null ? is.getByteCount() : stringBytes, output.os.getByteCount(), true);
+            }
+            output.discard();
+            return errorResult(kex);
+        } finally {
+            if (inputSource != null) {
+                IOUtils.closeQuietly(inputSource.getByteStream());
+            }
         }
     }
 
-    private CanonicalizationResult process(final String xmlString, final CanonicalStepData data) {
+    /**
+     * Puts a row for each record of the document in the field of the only field mapping, holding the canonical
+     * form of the record. If the document cannot be parsed part way through, the rows of the records before the
+     * error will already have been put when the input row is put to the error stream.
+     */
+    private void splitRecords(final Object[] row, final long rowNr, final Object xmlFieldValue, final CanonicalStepMeta meta, final CanonicalStepData data) throws KettleException {
+        InputSource inputSource = null;
+        XMLStreamReader reader = null;
         try {
-            final Document xmlDoc = createDocument(xmlString, data);
-            return new CanonicalizationResult(canonicalize(xmlDoc, data));
+            inputSource = getInputSource(xmlFieldValue, meta.getInputFields()[0], meta.isInputIsFile(), this);
+            CountingInputStream is = null;
+            if (inputSource.getByteStream() != null) {
+                is = new CountingInputStream(inputSource.getByteStream());
+                inputSource.setByteStream(is);
+            }
+            reader = createXMLStreamReader(inputSource, data);
+            final RecordSplitter splitter = new RecordSplitter(reader, data.getRecordPath());
+
+            // XML held in a String is counted as read in full with the first record
+            final long stringBytes = is == null ? utf8Length((String) xmlFieldValue) : 0;
+            long previousBytes = 0;
+            while (true) {
+                final CanonicalOutput output = new CanonicalOutput(0, meta, data);
+                final long start = System.nanoTime();
+                final PhaseEvent event = PhaseEvent.canonicalize();
+                final boolean found;
+                try {
+                    found = splitter.next(output.os);
+                } catch (XMLStreamException | IOException e) {
+                    event.end(getStepname(), getCopy(), rowNr, (is != null ? is.getByteCount() : stringBytes) - previousBytes, output.os.getByteCount(), true);
+                    output.discard();
+                    throw new KettleException(e.getMessage(), e);
+                }
+                if (!found) {
+                    output.discard();
+                    break;
+                }
+                final long canonicalized = System.nanoTime();
+
+                final CanonicalizationResult result = output.toResult(meta);
+                result.setCanonicalizeNanos(canonicalized - start);
+                final long readBytes = is != null ? is.getByteCount() : stringBytes;
+                result.setInputBytes(readBytes - previousBytes);
+                previousBytes = readBytes;
+                event.end(getStepname(), getCopy(), rowNr, result.getInputBytes(), result.getOutputBytes(), false);
+                putResult(row, new CanonicalizationResult[]{result}, meta, data);
+            }
         } catch (KettleException kex) {
-            CanonicalizationResult result = new CanonicalizationResult("");
-            result.setErrorMessage(kex.getMessage());
-            result.setHasError(true);
+            putError(data.getOutputRowMeta(), row, 1L, kex.getMessage(), meta.getInputFields()[0], "CanonicalStep001");
+        } catch (XMLStreamException e) {
+            putError(data.getOutputRowMeta(), row, 1L, e.getMessage(), meta.getInputFields()[0], "CanonicalStep001");
+        } finally {
+            closeQuietly(reader);
+            if (inputSource != null) {
+                IOUtils.closeQuietly(inputSource.getByteStream());
+            }
+        }
+    }
+
+    private static boolean isCanonical(final Object xmlFieldValue, final CanonicalFormCheck canonicalFormCheck) {
+        if (xmlFieldValue instanceof String) {
+            return canonicalFormCheck.isCanonical((String) xmlFieldValue);
+        } else {
+            return canonicalFormCheck.isCanonical((byte[]) xmlFieldValue);
+        }
+    }
+
+    /**
+     * Creates the result for XML which is already canonical, so that the XML itself is the output. It is only
+     * converted if the output type differs from the input type, and the digests are computed over it directly.
+     */
+    private static CanonicalizationResult passThrough(final int mapping, final Object xmlFieldValue, final long length, final long checkNanos,
+            final CanonicalStepMeta meta, final CanonicalStepData data) {
+        final MessageDigest[] digests = data.getDigests()[mapping];
+        final boolean outputBytes = !meta.isDigestOnly() && (meta.isOutputBinary() || meta.isCompressOutput());
+
+        // XML held in a String is only encoded if its bytes are needed, and then only once
+        final byte[] bytes;
+        if (xmlFieldValue instanceof byte[]) {
+            bytes = (byte[]) xmlFieldValue;
+        } else {
+            bytes = outputBytes || digests.length > 0 ? ((String) xmlFieldValue).getBytes(StandardCharsets.UTF_8) : null;
+        }
+
+        final Object canonicalXml;
+        if (meta.isDigestOnly()) {
+            canonicalXml = null;
+        } else if (meta.isCompressOutput()) {
+            canonicalXml = DeflatedXml.deflate(bytes, data.getDeflater());
+        } else if (meta.isOutputBinary()) {
+            canonicalXml = bytes;
+        } else {
+            canonicalXml = xmlFieldValue instanceof byte[] ? new String(bytes, StandardCharsets.UTF_8) : xmlFieldValue;
+        }
+        final CanonicalizationResult result = new CanonicalizationResult(canonicalXml);
+        if (digests.length > 0) {
+            final MultiDigestOutputStream digestOutputStream = new MultiDigestOutputStream(digests, null, data.getDigestExecutor(), PARALLEL_DIGEST_THRESHOLD);
+            try {
+                digestOutputStream.write(bytes);
+                result.setDigests(digestOutputStream.getHexDigests());
+            } catch (IOException e) {
+                digestOutputStream.abort();
+                return errorResult(new KettleException(e.getMessage(), e));
+            }
+        }
+        result.setPassThrough(true);
+        result.setCanonicalizeNanos(checkNanos);
+        result.setInputBytes(length);
+        result.setOutputBytes(length);
+        return result;
+    }
+
+    /**
+     * @return the number of bytes of canonical XML of a field mapping which may be held in memory
+     */
+    private static long getSpillThreshold(final int mapping, final CanonicalStepMeta meta) {
+        if (meta.getSpillThresholdMb() <= 0 || Utils.isEmpty(meta.getSpillFileFields()[mapping])) {
+            return Long.MAX_VALUE;
+        }
+        return meta.getSpillThresholdMb() * 1024L * 1024L;
+    }
+
+    private Path getSpillDirectory(final CanonicalStepMeta meta) {
+        if (Utils.isEmpty(meta.getSpillDirectory())) {
+            return Paths.get(System.getProperty("java.io.tmpdir"));
+        }
+        return Paths.get(environmentSubstitute(meta.getSpillDirectory()));
+    }
+
+    /**
+     * The streams that the canonical XML of a field mapping is written through: to memory or to a spill file,
+     * unless only digests are output, updating the digests, and counting the bytes written.
+     */
+    private static class CanonicalOutput {
+        private final SpillOutputStream out;
+        private final DeflaterOutputStream deflaterOutputStream;
+        private final MultiDigestOutputStream digestOutputStream;
+        private final CountingOutputStream os;
+
+        CanonicalOutput(final int mapping, final CanonicalStepMeta meta, final CanonicalStepData data) {
+            if (meta.isDigestOnly()) {
+                out = null;
+                deflaterOutputStream = null;
+            } else if (data.getDeflater() != null) {
+                // the spill threshold applies to the compressed bytes, as those are what is held in memory
+                out = new SpillOutputStream(getSpillThreshold(mapping, meta), data.getSpillDirectory(), DeflatedXml.FILE_SUFFIX);
+                deflaterOutputStream = DeflatedXml.deflating(out, data.getDeflater());
+            } else {
+                out = new SpillOutputStream(getSpillThreshold(mapping, meta), data.getSpillDirectory());
+                deflaterOutputStream = null;
+            }
+            final OutputStream sink = deflaterOutputStream != null ? deflaterOutputStream : out;
+
+            // digests and lengths are of the canonical XML, before it is compressed
+            final MessageDigest[] digests = data.getDigests()[mapping];
+            digestOutputStream = digests.length > 0
+                    ? new MultiDigestOutputStream(digests, sink, data.getDigestExecutor(), PARALLEL_DIGEST_THRESHOLD) : null;
+            if (digestOutputStream != null) {
+                os = new CountingOutputStream(digestOutputStream);
+            } else if (sink != null) {
+                os = new CountingOutputStream(sink);
+            } else {
+                os = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+            }
+        }
+
+        /**
+         * Closes the output, and creates a result holding the canonical XML or its spill file, its digests and
+         * its length.
+         */
+        CanonicalizationResult toResult(final CanonicalStepMeta meta) throws KettleException {
+            if (out != null) {
+                try {
+                    if (deflaterOutputStream != null) {
+                        deflaterOutputStream.finish();
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    throw new KettleException(e.getMessage(), e);
+                }
+            }
+
+            final Object canonicalXml;
+            if (out == null || out.isSpilled()) {
+                canonicalXml = null;
+            } else {
+                canonicalXml = meta.isOutputBinary() || meta.isCompressOutput() ? out.toByteArray() : out.toUtf8String();
+            }
+            final CanonicalizationResult result = new CanonicalizationResult(canonicalXml);
+            if (out != null && out.isSpilled()) {
+                result.setSpillFile(out.getFile().toString());
+            }
+            if (digestOutputStream != null) {
+                try {
+                    result.setDigests(digestOutputStream.getHexDigests());
+                } catch (IOException e) {
+                    throw new KettleException(e.getMessage(), e);
+                }
+            }
+            result.setOutputBytes(os.getByteCount());
             return result;
         }
+
+        /**
+         * Discards the output of a failed canonicalization, deleting its spill file if one was written.
+         */
+        void discard() {
+            if (digestOutputStream != null) {
+                digestOutputStream.abort();
+            }
+            if (out != null) {
+                out.discard();
+            }
+        }
     }
 
-    private Canonicalizer getCanonicalizer() throws KettleException {
+    static Canonicalizer getCanonicalizer() throws KettleException {
         try {
             return Canonicalizer.getInstance(Canonicalizer.ALGO_ID_C14N_EXCL_WITH_COMMENTS);
         } catch (Exception e) {
@@ -114,32 +905,319 @@ public class CanonicalStep extends BaseStep implements StepInterface {
         }
     }
 
-    private DocumentBuilder getDocumentBuilder() throws KettleException {
+    /**
+     * Gets the resolver for DTDs and external entities, which is shared by all the parsers using the same catalog.
+     */
+    private CachingEntityResolver getEntityResolver(final CanonicalStepMeta meta) throws KettleException {
+        try {
+            return CachingEntityResolver.forCatalog(environmentSubstitute(Const.NVL(meta.getCatalogFile(), "")), meta.isCatalogOnly());
+        } catch (IOException e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+    }
+
+    static DocumentBuilder getDocumentBuilder(final boolean skipExternalDtd, final CachingEntityResolver entityResolver) throws KettleException {
         final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
         try {
-            return dbf.newDocumentBuilder();
+            if (skipExternalDtd) {
+                dbf.setFeature(LOAD_EXTERNAL_DTD_FEATURE, false);
+            }
+            final DocumentBuilder builder = dbf.newDocumentBuilder();
+            builder.setEntityResolver(entityResolver);
+            return builder;
         } catch (Exception e) {
             throw new KettleException(e.getMessage(), e);
         }
     }
 
-    private Document createDocument(final String xmlString, final CanonicalStepData data) throws KettleException {
+    /**
+     * Creates a namespace aware SAX parser, as needed to read documents for an XSLT transformation, which resolves
+     * DTDs and external entities in the same way as the parsers for canonicalization.
+     */
+    static XMLReader getXmlReader(final boolean skipExternalDtd, final CachingEntityResolver entityResolver) throws KettleException {
+        final SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        try {
+            if (skipExternalDtd) {
+                spf.setFeature(LOAD_EXTERNAL_DTD_FEATURE, false);
+            }
+            final XMLReader reader = spf.newSAXParser().getXMLReader();
+            reader.setEntityResolver(entityResolver);
+            return reader;
+        } catch (Exception e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates the factory for the parsers of streaming canonicalization, which are configured to produce the same
+     * events as the DOM that would otherwise be built.
+     */
+    static XMLInputFactory getXmlInputFactory(final boolean skipExternalDtd, final CachingEntityResolver entityResolver) throws KettleException {
+        try {
+            final XMLInputFactory xif = XMLInputFactory.newInstance();
+            xif.setProperty(XMLInputFactory.SUPPORT_DTD, true);
+            xif.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+            if (skipExternalDtd) {
+                xif.setProperty(IGNORE_EXTERNAL_DTD_PROPERTY, true);
+            }
+            xif.setXMLResolver(entityResolver);
+            return xif;
+        } catch (Exception e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates this thread's validator for the XML Schema that documents must be valid against, from the schema
+     * compiled once for the JVM.
+     *
+     * @return the validator, or null if documents are not validated
+     */
+    private ValidatorHandler getValidatorHandler(final CanonicalStepMeta meta, final CachingEntityResolver entityResolver) throws KettleException {
+        if (Utils.isEmpty(meta.getSchemaFile())) {
+            return null;
+        }
+        final String schemaFile = environmentSubstitute(meta.getSchemaFile());
+        try {
+            return SchemaCache.newValidatorHandler(SchemaCache.getSchema(schemaFile, entityResolver));
+        } catch (IOException | SAXException e) {
+            throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.InvalidSchema", schemaFile), e);
+        }
+    }
+
+    /**
+     * Compiles the XPath expression selecting the nodes to canonicalize. Compiled expressions are not thread-safe,
+     * so each worker thread compiles its own, once.
+     */
+    private XPathExpression getXPathExpression(final CanonicalStepMeta meta) throws KettleException {
+        if (Utils.isEmpty(meta.getXpath())) {
+            return null;
+        }
+        try {
+            return XPathFactory.newInstance().newXPath().compile(environmentSubstitute(meta.getXpath()));
+        } catch (XPathExpressionException e) {
+            throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.InvalidXPath", meta.getXpath()), e);
+        }
+    }
+
+    static Document createDocument(final InputSource inputSource, final CanonicalStepData data) throws KettleException {
         try {
-            return data.getDocumentBuilder().parse(new InputSource(new StringReader(xmlString)));
+            return data.getDocumentBuilder().parse(inputSource);
         } catch (Exception e) {
             throw new KettleException(e.getMessage(), e);
         }
     }
 
+    /**
+     * Validates a parsed document against the step's XML Schema, if it has one, without parsing it again.
+     */
+    static void validate(final Document document, final CanonicalStepData data) throws KettleException {
+        if (data.getValidatorHandler() != null) {
+            try {
+                DocumentValidator.validate(document, data.getValidatorHandler());
+            } catch (SAXException e) {
+                throw new KettleException(e.getMessage(), e);
+            }
+        }
+    }
+
     protected static String canonicalize(final Document document, final CanonicalStepData data) throws KettleException {
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
-            data.getCanonicalizer().canonicalizeSubtree(document, baos);
-            return baos.toString();
+            canonicalize(document, data, baos);
+            return toUtf8String(baos);
+        } finally {
+            IOUtils.closeQuietly(baos);
+        }
+    }
+
+    protected static void canonicalize(final Document document, final CanonicalStepData data, final OutputStream os) throws KettleException {
+        try {
+            data.getCanonicalizer().canonicalizeSubtree(document, os);
+        } catch (Exception e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Canonicalizes the nodes selected by the step's XPath expression, in document order.
+     */
+    protected static void canonicalizeSelection(final Document document, final CanonicalStepData data, final OutputStream os) throws KettleException {
+        final NodeList nodes;
+        try {
+            nodes = (NodeList) data.getXPathExpression().evaluate(document, XPathConstants.NODESET);
+        } catch (XPathExpressionException e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+        if (nodes.getLength() == 0) {
+            throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.XPathNoMatch"));
+        }
+        try {
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Node node = nodes.item(i);
+                if (node instanceof Element) {
+                    node = declareInScopeNamespaces((Element) node);
+                }
+                data.getCanonicalizer().canonicalizeSubtree(node, os);
+            }
+        } catch (Exception e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The document is not parsed namespace aware, so namespace declarations are ordinary attributes, and those
+     * of the ancestors of a subtree would not otherwise be output. As Exclusive XML Canonicalization would, this
+     * declares each inherited namespace only where it is visibly used: on each element of a deep copy of the
+     * subtree whose name or attributes use it, and which is not within an element of the copy that declares it.
+     * The element itself is left unchanged, as the document may also be output for later steps to read.
+     *
+     * @return the copy of the element
+     */
+    private static Element declareInScopeNamespaces(final Element element) {
+        final Map<String, String> inherited = new HashMap<>();
+        for (Node ancestor = element.getParentNode(); ancestor instanceof Element; ancestor = ancestor.getParentNode()) {
+            final NamedNodeMap attributes = ancestor.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                final Node attribute = attributes.item(i);
+                if (isNamespaceAttribute(attribute.getNodeName())) {
+                    inherited.putIfAbsent(attribute.getNodeName(), attribute.getNodeValue());
+                }
+            }
+        }
+        final Element copy = (Element) element.cloneNode(true);
+        declareUsedNamespaces(copy, inherited, new HashSet<>());
+        return copy;
+    }
+
+    /**
+     * Declares on the element each inherited namespace that its name or attributes use, unless it is in scope
+     * already, and then does the same for each of its descendants.
+     *
+     * @param inScope the namespace attributes in scope from the ancestors of the element within the copy
+     */
+    private static void declareUsedNamespaces(final Element element, final Map<String, String> inherited, final Set<String> inScope) {
+        final List<String> added = new ArrayList<>();
+        final List<String> used = new ArrayList<>();
+        used.add(getNamespaceAttribute(element.getNodeName()));
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final String name = attributes.item(i).getNodeName();
+            if (isNamespaceAttribute(name)) {
+                if (inScope.add(name)) {
+                    added.add(name);
+                }
+            } else if (name.indexOf(':') > 0) {
+                // an attribute without a prefix is in no namespace, rather than the default namespace
+                used.add(getNamespaceAttribute(name));
+            }
+        }
+        for (final String name : used) {
+            if (name != null && inScope.add(name)) {
+                added.add(name);
+                final String uri = inherited.get(name);
+                if (uri != null && !(name.equals("xmlns") && uri.isEmpty())) {
+                    element.setAttribute(name, uri);
+                }
+            }
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element) {
+                declareUsedNamespaces((Element) child, inherited, inScope);
+            }
+        }
+        inScope.removeAll(added);
+    }
+
+    private static boolean isNamespaceAttribute(final String name) {
+        return name.equals("xmlns") || name.startsWith("xmlns:");
+    }
+
+    /**
+     * @param qualifiedName the qualified name of an element or attribute
+     * @return the name of the attribute which declares the namespace of its prefix, or null for the {@code xml}
+     * prefix, which is never declared
+     */
+    private static String getNamespaceAttribute(final String qualifiedName) {
+        final int colon = qualifiedName.indexOf(':');
+        if (colon < 0) {
+            return "xmlns";
+        }
+        final String prefix = qualifiedName.substring(0, colon);
+        return prefix.equals("xml") ? null : "xmlns:" + prefix;
+    }
+
+    protected static void canonicalizeStreaming(final InputSource inputSource, final CanonicalStepData data, final OutputStream os) throws KettleException {
+        XMLStreamReader reader = null;
+        try {
+            reader = createXMLStreamReader(inputSource, data);
+            new StreamingCanonicalizer(reader, os).canonicalize();
         } catch (Exception e) {
             throw new KettleException(e.getMessage(), e);
         } finally {
-            IOUtils.closeQuietly(baos);
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Creates a parser for streaming canonicalization, which also validates the document if the step has an XML
+     * Schema.
+     */
+    private static XMLStreamReader createXMLStreamReader(final InputSource inputSource, final CanonicalStepData data) throws XMLStreamException {
+        final XMLStreamReader reader = createXMLStreamReader(inputSource, data.getXmlInputFactory());
+        return data.getValidatorHandler() == null ? reader : new ValidatingStreamReader(reader, data.getValidatorHandler());
+    }
+
+    static XMLStreamReader createXMLStreamReader(final InputSource inputSource, final XMLInputFactory xif) throws XMLStreamException {
+        if (inputSource.getCharacterStream() != null) {
+            return xif.createXMLStreamReader(inputSource.getCharacterStream());
+        } else if (inputSource.getSystemId() != null) {
+            return xif.createXMLStreamReader(inputSource.getSystemId(), inputSource.getByteStream());
+        } else {
+            return xif.createXMLStreamReader(inputSource.getByteStream());
+        }
+    }
+
+    /**
+     * The canonical form is always UTF-8, so it must not be decoded with the platform default charset.
+     */
+    static String toUtf8String(final ByteArrayOutputStream baos) throws KettleException {
+        try {
+            return baos.toString(StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Calculates the length of a string encoded as UTF-8, without encoding it.
+     */
+    static long utf8Length(final String s) {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static void closeQuietly(final XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                // ignore
+            }
         }
     }
 }
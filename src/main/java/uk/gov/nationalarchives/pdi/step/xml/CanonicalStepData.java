@@ -28,25 +28,67 @@ import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
 
 import javax.xml.parsers.DocumentBuilder;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.validation.ValidatorHandler;
+import javax.xml.xpath.XPathExpression;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 public class CanonicalStepData extends BaseStepData implements StepDataInterface {
 
     private Canonicalizer canon;
     private DocumentBuilder builder;
+    private XMLInputFactory xmlInputFactory;
+    private XPathExpression xpathExpression;
+    private CanonicalFormCheck canonicalFormCheck;
+    private ValidatorHandler validatorHandler;
+    private String recordPath;
     private RowMetaInterface outputRowMeta;
-    private int xmlFieldIdx;
-    private int outputFieldIndex = -1;
+    private int[] xmlFieldIndexes = new int[0];
+    private int[] outputFieldIndexes = new int[0];
+    private MessageDigest[][] digests = new MessageDigest[0][];
+    private Deflater deflater;
+    private int[][] digestFieldIndexes = new int[0][];
+    private int[] spillFileFieldIndexes = new int[0];
+    private int[] lengthFieldIndexes = new int[0];
+    private int[] documentFieldIndexes = new int[0];
+    private Path spillDirectory;
+    private int[] metricFieldIndexes = new int[0];
+    private final CanonicalStepMetrics metrics = new CanonicalStepMetrics();
+    private ExecutorService executor;
+    private ExecutorService digestExecutor;
+    private CanonicalizationCache[] caches;
+    private final Deque<PendingRow> pendingRows = new ArrayDeque<>();
+    private final Queue<CanonicalStepData> idleWorkerData = new ConcurrentLinkedQueue<>();
 
-    public void setXmlFieldIdx(final int xmlFieldIdx) {
-        this.xmlFieldIdx = xmlFieldIdx;
+    public void setXmlFieldIndexes(final int[] xmlFieldIndexes) {
+        this.xmlFieldIndexes = xmlFieldIndexes;
     }
 
-    public int getOutputFieldIndex() {
-        return outputFieldIndex;
+    /**
+     * @return the index in the input row of the field of each field mapping
+     */
+    public int[] getXmlFieldIndexes() {
+        return xmlFieldIndexes;
     }
 
-    public void setOutputFieldIndex(final int outputFieldIndex) {
-        this.outputFieldIndex = outputFieldIndex;
+    /**
+     * @return the index in the output row of the canonical XML of each field mapping, or -1 for each if only
+     * digests are output
+     */
+    public int[] getOutputFieldIndexes() {
+        return outputFieldIndexes;
+    }
+
+    public void setOutputFieldIndexes(final int[] outputFieldIndexes) {
+        this.outputFieldIndexes = outputFieldIndexes;
     }
 
     public void setCanonicalizer(final Canonicalizer canon) {
@@ -73,7 +115,219 @@ public class CanonicalStepData extends BaseStepData implements StepDataInterface
         return builder;
     }
 
-    public int getXmlFieldIdx() {
-        return xmlFieldIdx;
+    public void setXmlInputFactory(final XMLInputFactory xmlInputFactory) {
+        this.xmlInputFactory = xmlInputFactory;
+    }
+
+    public XMLInputFactory getXmlInputFactory() {
+        return xmlInputFactory;
+    }
+
+    public void setXPathExpression(final XPathExpression xpathExpression) {
+        this.xpathExpression = xpathExpression;
+    }
+
+    /**
+     * @return the compiled expression selecting the nodes to canonicalize, or null to canonicalize the whole document
+     */
+    public XPathExpression getXPathExpression() {
+        return xpathExpression;
+    }
+
+    public void setRecordPath(final String recordPath) {
+        this.recordPath = recordPath;
+    }
+
+    /**
+     * @return the name of or path to the record elements to split documents into, or null if each document is
+     * canonicalized as a whole
+     */
+    public String getRecordPath() {
+        return recordPath;
+    }
+
+    public void setValidatorHandler(final ValidatorHandler validatorHandler) {
+        this.validatorHandler = validatorHandler;
+    }
+
+    /**
+     * @return this thread's validator for the step's XML Schema, or null if documents are not validated
+     */
+    public ValidatorHandler getValidatorHandler() {
+        return validatorHandler;
+    }
+
+    public void setCanonicalFormCheck(final CanonicalFormCheck canonicalFormCheck) {
+        this.canonicalFormCheck = canonicalFormCheck;
+    }
+
+    /**
+     * @return the check for XML which is already canonical, or null if such XML is not to be passed through
+     */
+    public CanonicalFormCheck getCanonicalFormCheck() {
+        return canonicalFormCheck;
+    }
+
+    public void setDigests(final MessageDigest[][] digests) {
+        this.digests = digests;
+    }
+
+    /**
+     * @return the digests configured for each field mapping
+     */
+    public MessageDigest[][] getDigests() {
+        return digests;
+    }
+
+    public void setDeflater(final Deflater deflater) {
+        this.deflater = deflater;
+    }
+
+    /**
+     * @return the compressor of the outputs of all the field mappings, or null if outputs are not compressed
+     */
+    public Deflater getDeflater() {
+        return deflater;
+    }
+
+    public void setDigestFieldIndexes(final int[][] digestFieldIndexes) {
+        this.digestFieldIndexes = digestFieldIndexes;
+    }
+
+    /**
+     * @return the index in the output row of each digest configured for each field mapping
+     */
+    public int[][] getDigestFieldIndexes() {
+        return digestFieldIndexes;
+    }
+
+    public void setSpillFileFieldIndexes(final int[] spillFileFieldIndexes) {
+        this.spillFileFieldIndexes = spillFileFieldIndexes;
+    }
+
+    /**
+     * @return the index in the output row of the spill file field of each field mapping, or -1 for mappings
+     * without one
+     */
+    public int[] getSpillFileFieldIndexes() {
+        return spillFileFieldIndexes;
+    }
+
+    public void setLengthFieldIndexes(final int[] lengthFieldIndexes) {
+        this.lengthFieldIndexes = lengthFieldIndexes;
+    }
+
+    /**
+     * @return the index in the output row of the length field of each field mapping, or -1 for mappings without one
+     */
+    public int[] getLengthFieldIndexes() {
+        return lengthFieldIndexes;
+    }
+
+    public void setDocumentFieldIndexes(final int[] documentFieldIndexes) {
+        this.documentFieldIndexes = documentFieldIndexes;
+    }
+
+    /**
+     * @return the index in the output row of the document field of each field mapping, or -1 for mappings without one
+     */
+    public int[] getDocumentFieldIndexes() {
+        return documentFieldIndexes;
+    }
+
+    public void setSpillDirectory(final Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setMetricFieldIndexes(final int[] metricFieldIndexes) {
+        this.metricFieldIndexes = metricFieldIndexes;
+    }
+
+    /**
+     * @return the index of each metric field in the output row, in the order of
+     * {@link CanonicalStepMeta#getMetricFields()}, or -1 for metric fields which are not configured
+     */
+    public int[] getMetricFieldIndexes() {
+        return metricFieldIndexes;
+    }
+
+    public CanonicalStepMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setExecutor(final ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the executor for the worker threads, or null if rows are processed on the step's own thread
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void setDigestExecutor(final ExecutorService digestExecutor) {
+        this.digestExecutor = digestExecutor;
+    }
+
+    /**
+     * @return the executor for updating the digests of large outputs in parallel, or null if digests are always
+     * updated on the thread producing the output
+     */
+    public ExecutorService getDigestExecutor() {
+        return digestExecutor;
+    }
+
+    /**
+     * @return the rows submitted to the worker threads whose results have not yet been put, in input order
+     */
+    public Deque<PendingRow> getPendingRows() {
+        return pendingRows;
+    }
+
+    /**
+     * @return the step data holding the parsers of each worker thread which is not currently processing a row
+     */
+    public Queue<CanonicalStepData> getIdleWorkerData() {
+        return idleWorkerData;
+    }
+
+    public void setCaches(final CanonicalizationCache[] caches) {
+        this.caches = caches;
+    }
+
+    /**
+     * @return the cache of results of each field mapping, or null if results are not cached
+     */
+    public CanonicalizationCache[] getCaches() {
+        return caches;
+    }
+
+    /**
+     * A row which has been submitted to the worker threads.
+     */
+    public static class PendingRow {
+        private final Object[] row;
+        private final Future<CanonicalizationResult[]> result;
+
+        public PendingRow(final Object[] row, final Future<CanonicalizationResult[]> result) {
+            this.row = row;
+            this.result = result;
+        }
+
+        public Object[] getRow() {
+            return row;
+        }
+
+        /**
+         * @return the results of each field mapping
+         */
+        public Future<CanonicalizationResult[]> getResult() {
+            return result;
+        }
     }
 }
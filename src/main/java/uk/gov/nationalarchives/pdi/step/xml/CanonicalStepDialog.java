@@ -23,9 +23,7 @@
 package uk.gov.nationalarchives.pdi.step.xml;
 
 import org.eclipse.swt.SWT;
-import org.eclipse.swt.custom.CCombo;
 import org.eclipse.swt.events.*;
-import org.eclipse.swt.graphics.Cursor;
 import org.eclipse.swt.layout.FormAttachment;
 import org.eclipse.swt.layout.FormData;
 import org.eclipse.swt.layout.FormLayout;
@@ -33,13 +31,14 @@ import org.eclipse.swt.widgets.*;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowMetaInterface;
-import org.pentaho.di.core.util.Utils;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDialogInterface;
 import org.pentaho.di.ui.core.dialog.ErrorDialog;
+import org.pentaho.di.ui.core.widget.ColumnInfo;
 import org.pentaho.di.ui.core.widget.LabelText;
+import org.pentaho.di.ui.core.widget.TableView;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
 
 public class CanonicalStepDialog extends BaseStepDialog implements StepDialogInterface {
@@ -56,9 +55,30 @@ public class CanonicalStepDialog extends BaseStepDialog implements StepDialogInt
     // the dialog writes the settings to it when confirmed
     private final CanonicalStepMeta meta;
 
-    // text field holding the name of the field to add to the row stream
-    private LabelText xmlOutputFieldName;
-    private CCombo xmlInputField;
+    // table holding the input fields, and the names of the fields to add to the row stream for each
+    private TableView fieldMappings;
+    private Button inputIsFile;
+    private LabelText xpath;
+    private LabelText recordPath;
+    private LabelText catalogFile;
+    private Button skipExternalDtd;
+    private Button catalogOnly;
+    private LabelText schemaFile;
+    private Button streaming;
+    private Button passThroughCanonical;
+    private Button outputBinary;
+    private Button compressOutput;
+    private Button digestOnly;
+    private Button parallelDigests;
+    private LabelText workerThreads;
+    private LabelText cacheSizeMb;
+    private Button cacheShared;
+    private LabelText spillThresholdMb;
+    private LabelText spillDirectory;
+    private LabelText parseTimeFieldName;
+    private LabelText canonicalizeTimeFieldName;
+    private LabelText inputBytesFieldName;
+    private LabelText outputBytesFieldName;
 
     /**
      * The constructor should simply invoke super() and save the incoming meta
@@ -144,53 +164,89 @@ public class CanonicalStepDialog extends BaseStepDialog implements StepDialogInt
         fdStepname.right = new FormAttachment(100, 0);
         wStepname.setLayoutData(fdStepname);
 
-        // FieldName to evaluate
-        Label wlField = new Label(shell, SWT.RIGHT);
-        wlField.setText(BaseMessages.getString(PKG, "CanonicalStep.Input.Field.Label"));
-        props.setLook(wlField);
-        FormData fdlField = new FormData();
-        fdlField.left = new FormAttachment(0, 0);
-        fdlField.top = new FormAttachment(wStepname, 2 * margin);
-        fdlField.right = new FormAttachment(middle, -margin);
-        wlField.setLayoutData(fdlField);
-        xmlInputField = new CCombo(shell, SWT.BORDER | SWT.READ_ONLY);
-        xmlInputField.setEditable(true);
-        props.setLook(xmlInputField);
-        xmlInputField.addModifyListener(lsMod);
-
-        FormData fdField = new FormData();
-        fdField.left = new FormAttachment(middle, margin);
-        fdField.top = new FormAttachment(wStepname, 2 * margin);
-        fdField.right = new FormAttachment(100, -margin);
-        xmlInputField.setLayoutData(fdField);
-        xmlInputField.addFocusListener(new FocusListener() {
-            public void focusLost(org.eclipse.swt.events.FocusEvent e) {
-            }
+        // Input fields hold filenames
+        inputIsFile = addCheckbox("CanonicalStep.InputIsFile.Label", wStepname, middle, margin);
 
-            public void focusGained(org.eclipse.swt.events.FocusEvent e) {
-                Cursor busy = new Cursor(shell.getDisplay(), SWT.CURSOR_WAIT);
-                shell.setCursor(busy);
-                PopulateFields(xmlInputField);
-                shell.setCursor(null);
-                busy.dispose();
-            }
-        });
+        // XPath selecting the nodes to canonicalize
+        xpath = addLabelText("CanonicalStep.XPath.Label", inputIsFile, lsMod, margin);
+
+        // Records to split documents into
+        recordPath = addLabelText("CanonicalStep.RecordPath.Label", xpath, lsMod, margin);
+
+        // Resolution of DTDs and external entities
+        catalogFile = addLabelText("CanonicalStep.CatalogFile.Label", recordPath, lsMod, margin);
+        skipExternalDtd = addCheckbox("CanonicalStep.SkipExternalDtd.Label", catalogFile, middle, margin);
+        catalogOnly = addCheckbox("CanonicalStep.CatalogOnly.Label", skipExternalDtd, middle, margin);
+        schemaFile = addLabelText("CanonicalStep.SchemaFile.Label", catalogOnly, lsMod, margin);
+
+        // Streaming canonicalization
+        streaming = addCheckbox("CanonicalStep.Streaming.Label", schemaFile, middle, margin);
+
+        // Pass through XML which is already canonical
+        passThroughCanonical = addCheckbox("CanonicalStep.PassThroughCanonical.Label", streaming, middle, margin);
+
+        // Binary output
+        outputBinary = addCheckbox("CanonicalStep.OutputBinary.Label", passThroughCanonical, middle, margin);
+
+        // Compressed binary output
+        compressOutput = addCheckbox("CanonicalStep.CompressOutput.Label", outputBinary, middle, margin);
+
+        // Digests of the canonical XML, without the canonical XML
+        digestOnly = addCheckbox("CanonicalStep.DigestOnly.Label", compressOutput, middle, margin);
 
-        xmlOutputFieldName = new LabelText(shell, BaseMessages.getString(PKG, "CanonicalStep.Output.Field.Label"), null);
-        props.setLook(xmlOutputFieldName);
-        xmlOutputFieldName.addModifyListener(lsMod);
-        FormData fdValName = new FormData();
-        fdValName.left = new FormAttachment(0, 0);
-        fdValName.right = new FormAttachment(100, 0);
-        fdValName.top = new FormAttachment(xmlInputField, margin);
-        xmlOutputFieldName.setLayoutData(fdValName);
+        // Digests of large outputs computed in parallel
+        parallelDigests = addCheckbox("CanonicalStep.ParallelDigests.Label", digestOnly, middle, margin);
+
+        // Worker threads
+        workerThreads = addLabelText("CanonicalStep.WorkerThreads.Label", parallelDigests, lsMod, margin);
+
+        // Cache of results
+        cacheSizeMb = addLabelText("CanonicalStep.CacheSizeMb.Label", workerThreads, lsMod, margin);
+        cacheShared = addCheckbox("CanonicalStep.CacheShared.Label", cacheSizeMb, middle, margin);
+
+        // Large outputs written to files
+        spillThresholdMb = addLabelText("CanonicalStep.SpillThresholdMb.Label", cacheShared, lsMod, margin);
+        spillDirectory = addLabelText("CanonicalStep.SpillDirectory.Label", spillThresholdMb, lsMod, margin);
+
+        // Per-row metrics
+        parseTimeFieldName = addLabelText("CanonicalStep.ParseTime.Field.Label", spillDirectory, lsMod, margin);
+        canonicalizeTimeFieldName = addLabelText("CanonicalStep.CanonicalizeTime.Field.Label", parseTimeFieldName, lsMod, margin);
+        inputBytesFieldName = addLabelText("CanonicalStep.InputBytes.Field.Label", canonicalizeTimeFieldName, lsMod, margin);
+        outputBytesFieldName = addLabelText("CanonicalStep.OutputBytes.Field.Label", inputBytesFieldName, lsMod, margin);
 
         // OK and cancel buttons
         wOK = new Button(shell, SWT.PUSH);
         wOK.setText(BaseMessages.getString(PKG, "System.Button.OK"));
         wCancel = new Button(shell, SWT.PUSH);
         wCancel.setText(BaseMessages.getString(PKG, "System.Button.Cancel"));
-        setButtonPositions(new Button[]{wOK, wCancel}, margin, xmlOutputFieldName);
+        setButtonPositions(new Button[]{wOK, wCancel}, margin, null);
+
+        // Fields to canonicalize, filling the space above the buttons
+        final Label wlFieldMappings = new Label(shell, SWT.NONE);
+        wlFieldMappings.setText(BaseMessages.getString(PKG, "CanonicalStep.FieldMappings.Label"));
+        props.setLook(wlFieldMappings);
+        final FormData fdlFieldMappings = new FormData();
+        fdlFieldMappings.left = new FormAttachment(0, 0);
+        fdlFieldMappings.top = new FormAttachment(outputBytesFieldName, margin);
+        wlFieldMappings.setLayoutData(fdlFieldMappings);
+
+        final ColumnInfo[] columns = new ColumnInfo[]{
+                new ColumnInfo(BaseMessages.getString(PKG, "CanonicalStep.Input.Field.Label"), ColumnInfo.COLUMN_TYPE_CCOMBO, getPreviousFieldNames(), false),
+                new ColumnInfo(BaseMessages.getString(PKG, "CanonicalStep.Output.Field.Label"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+                new ColumnInfo(BaseMessages.getString(PKG, "CanonicalStep.Sha256.Field.Label"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+                new ColumnInfo(BaseMessages.getString(PKG, "CanonicalStep.Sha512.Field.Label"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+                new ColumnInfo(BaseMessages.getString(PKG, "CanonicalStep.Md5.Field.Label"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+                new ColumnInfo(BaseMessages.getString(PKG, "CanonicalStep.SpillFile.Field.Label"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+                new ColumnInfo(BaseMessages.getString(PKG, "CanonicalStep.Length.Field.Label"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+                new ColumnInfo(BaseMessages.getString(PKG, "CanonicalStep.Document.Field.Label"), ColumnInfo.COLUMN_TYPE_TEXT, false)
+        };
+        fieldMappings = new TableView(transMeta, shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, columns, meta.getNrFieldMappings(), lsMod, props);
+        final FormData fdFieldMappings = new FormData();
+        fdFieldMappings.left = new FormAttachment(0, 0);
+        fdFieldMappings.top = new FormAttachment(wlFieldMappings, margin);
+        fdFieldMappings.right = new FormAttachment(100, 0);
+        fdFieldMappings.bottom = new FormAttachment(wOK, -2 * margin);
+        fieldMappings.setLayoutData(fdFieldMappings);
 
         // Add listeners for cancel and OK
         lsCancel = new Listener() {
@@ -245,14 +301,102 @@ public class CanonicalStepDialog extends BaseStepDialog implements StepDialogInt
         return stepname;
     }
 
+    /**
+     * Adds a labelled checkbox below another control, which marks the meta object as changed when toggled.
+     *
+     * @param labelKey the i18n key of the label text
+     * @param above    the control to place the checkbox below
+     * @param middle   the percentage of the dialog width at which the label ends
+     * @param margin   the margin between controls
+     * @return the checkbox
+     */
+    private Button addCheckbox(final String labelKey, final Control above, final int middle, final int margin) {
+        final Label label = new Label(shell, SWT.RIGHT);
+        label.setText(BaseMessages.getString(PKG, labelKey));
+        props.setLook(label);
+        final FormData fdLabel = new FormData();
+        fdLabel.left = new FormAttachment(0, 0);
+        fdLabel.top = new FormAttachment(above, margin);
+        fdLabel.right = new FormAttachment(middle, -margin);
+        label.setLayoutData(fdLabel);
+
+        final Button checkbox = new Button(shell, SWT.CHECK);
+        props.setLook(checkbox);
+        final FormData fdCheckbox = new FormData();
+        fdCheckbox.left = new FormAttachment(middle, margin);
+        fdCheckbox.top = new FormAttachment(above, margin);
+        fdCheckbox.right = new FormAttachment(100, -margin);
+        checkbox.setLayoutData(fdCheckbox);
+        checkbox.addSelectionListener(new SelectionAdapter() {
+            public void widgetSelected(SelectionEvent e) {
+                meta.setChanged();
+            }
+        });
+        return checkbox;
+    }
+
+    /**
+     * Adds a labelled text field below another control.
+     *
+     * @param labelKey the i18n key of the label text
+     * @param above    the control to place the text field below
+     * @param lsMod    the listener to notify of modifications
+     * @param margin   the margin between controls
+     * @return the text field
+     */
+    private LabelText addLabelText(final String labelKey, final Control above, final ModifyListener lsMod, final int margin) {
+        final LabelText labelText = new LabelText(shell, BaseMessages.getString(PKG, labelKey), null);
+        props.setLook(labelText);
+        labelText.addModifyListener(lsMod);
+        final FormData fdLabelText = new FormData();
+        fdLabelText.left = new FormAttachment(0, 0);
+        fdLabelText.right = new FormAttachment(100, 0);
+        fdLabelText.top = new FormAttachment(above, margin);
+        labelText.setLayoutData(fdLabelText);
+        return labelText;
+    }
+
     /**
      * This helper method puts the step configuration stored in the meta object
      * and puts it into the dialog controls.
      */
     private void populateDialog() {
         wStepname.selectAll();
-        xmlInputField.setText(meta.getInputField());
-        xmlOutputFieldName.setText(meta.getOutputField());
+        for (int i = 0; i < meta.getNrFieldMappings(); i++) {
+            final TableItem item = fieldMappings.table.getItem(i);
+            item.setText(1, Const.NVL(meta.getInputFields()[i], ""));
+            item.setText(2, Const.NVL(meta.getOutputFields()[i], ""));
+            item.setText(3, Const.NVL(meta.getSha256Fields()[i], ""));
+            item.setText(4, Const.NVL(meta.getSha512Fields()[i], ""));
+            item.setText(5, Const.NVL(meta.getMd5Fields()[i], ""));
+            item.setText(6, Const.NVL(meta.getSpillFileFields()[i], ""));
+            item.setText(7, Const.NVL(meta.getLengthFields()[i], ""));
+            item.setText(8, Const.NVL(meta.getDocumentFields()[i], ""));
+        }
+        fieldMappings.setRowNums();
+        fieldMappings.optWidth(true);
+        inputIsFile.setSelection(meta.isInputIsFile());
+        xpath.setText(Const.NVL(meta.getXpath(), ""));
+        recordPath.setText(Const.NVL(meta.getRecordPath(), ""));
+        catalogFile.setText(Const.NVL(meta.getCatalogFile(), ""));
+        skipExternalDtd.setSelection(meta.isSkipExternalDtd());
+        catalogOnly.setSelection(meta.isCatalogOnly());
+        schemaFile.setText(Const.NVL(meta.getSchemaFile(), ""));
+        streaming.setSelection(meta.isStreaming());
+        passThroughCanonical.setSelection(meta.isPassThroughCanonical());
+        outputBinary.setSelection(meta.isOutputBinary());
+        compressOutput.setSelection(meta.isCompressOutput());
+        digestOnly.setSelection(meta.isDigestOnly());
+        parallelDigests.setSelection(meta.isParallelDigests());
+        workerThreads.setText(Integer.toString(meta.getWorkerThreads()));
+        cacheSizeMb.setText(Integer.toString(meta.getCacheSizeMb()));
+        cacheShared.setSelection(meta.isCacheShared());
+        spillThresholdMb.setText(Integer.toString(meta.getSpillThresholdMb()));
+        spillDirectory.setText(Const.NVL(meta.getSpillDirectory(), ""));
+        parseTimeFieldName.setText(Const.NVL(meta.getParseTimeField(), ""));
+        canonicalizeTimeFieldName.setText(Const.NVL(meta.getCanonicalizeTimeField(), ""));
+        inputBytesFieldName.setText(Const.NVL(meta.getInputBytesField(), ""));
+        outputBytesFieldName.setText(Const.NVL(meta.getOutputBytesField(), ""));
     }
 
     /**
@@ -276,30 +420,59 @@ public class CanonicalStepDialog extends BaseStepDialog implements StepDialogInt
         // Setting to step name from the dialog control
         stepname = wStepname.getText();
         // Setting the  settings to the meta object
-        meta.setInputField(xmlInputField.getText());
-        meta.setOutputField(xmlOutputFieldName.getText());
+        final int nrMappings = fieldMappings.nrNonEmpty();
+        meta.allocate(nrMappings);
+        for (int i = 0; i < nrMappings; i++) {
+            final TableItem item = fieldMappings.getNonEmpty(i);
+            meta.getInputFields()[i] = item.getText(1);
+            meta.getOutputFields()[i] = item.getText(2);
+            meta.getSha256Fields()[i] = item.getText(3);
+            meta.getSha512Fields()[i] = item.getText(4);
+            meta.getMd5Fields()[i] = item.getText(5);
+            meta.getSpillFileFields()[i] = item.getText(6);
+            meta.getLengthFields()[i] = item.getText(7);
+            meta.getDocumentFields()[i] = item.getText(8);
+        }
+        meta.setInputIsFile(inputIsFile.getSelection());
+        meta.setXpath(xpath.getText());
+        meta.setRecordPath(recordPath.getText());
+        meta.setCatalogFile(catalogFile.getText());
+        meta.setSkipExternalDtd(skipExternalDtd.getSelection());
+        meta.setCatalogOnly(catalogOnly.getSelection());
+        meta.setSchemaFile(schemaFile.getText());
+        meta.setStreaming(streaming.getSelection());
+        meta.setPassThroughCanonical(passThroughCanonical.getSelection());
+        meta.setOutputBinary(outputBinary.getSelection());
+        meta.setCompressOutput(compressOutput.getSelection());
+        meta.setDigestOnly(digestOnly.getSelection());
+        meta.setParallelDigests(parallelDigests.getSelection());
+        meta.setWorkerThreads(Math.max(1, Const.toInt(workerThreads.getText(), 1)));
+        meta.setCacheSizeMb(Math.max(0, Const.toInt(cacheSizeMb.getText(), 0)));
+        meta.setCacheShared(cacheShared.getSelection());
+        meta.setSpillThresholdMb(Math.max(0, Const.toInt(spillThresholdMb.getText(), 0)));
+        meta.setSpillDirectory(spillDirectory.getText());
+        meta.setParseTimeField(parseTimeFieldName.getText());
+        meta.setCanonicalizeTimeField(canonicalizeTimeFieldName.getText());
+        meta.setInputBytesField(inputBytesFieldName.getText());
+        meta.setOutputBytesField(outputBytesFieldName.getText());
         // close the SWT dialog window
         dispose();
     }
 
-    private void PopulateFields(final CCombo cc) {
-        if (cc.isDisposed()) {
-            return;
-        }
+    /**
+     * @return the names of the fields output by the previous steps, from which the input fields may be chosen
+     */
+    private String[] getPreviousFieldNames() {
         try {
-            String initValue = cc.getText();
-            cc.removeAll();
-            RowMetaInterface r = transMeta.getPrevStepFields(stepname);
+            final RowMetaInterface r = transMeta.getPrevStepFields(stepname);
             if (r != null) {
-                cc.setItems(r.getFieldNames());
-            }
-            if (!Utils.isEmpty(initValue)) {
-                cc.setText(initValue);
+                return r.getFieldNames();
             }
         } catch (KettleException ke) {
             new ErrorDialog(shell, BaseMessages.getString(PKG, "CanonicalStepDialog.FailedToGetFields.DialogTitle"), BaseMessages
                     .getString(PKG, "CanonicalStepDialog.FailedToGetFields.DialogMessage"), ke);
         }
+        return new String[0];
     }
 
 }
@@ -23,6 +23,7 @@
 package uk.gov.nationalarchives.pdi.step.xml;
 
 import org.eclipse.swt.widgets.Shell;
+import org.pentaho.di.core.Const;
 import org.pentaho.di.core.annotations.Step;
 import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.exception.KettleException;
@@ -31,7 +32,12 @@ import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.exception.KettleXMLException;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaSerializable;
 import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.util.Utils;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.repository.ObjectId;
@@ -58,11 +64,75 @@ public class CanonicalStepMeta extends BaseStepMeta implements StepMetaInterface
 
     private static final Class<?> PKG = CanonicalStepMeta.class;
 
+    private static final String ELEM_NAME_FIELD_MAPPINGS = "fieldMappings";
+    private static final String ELEM_NAME_FIELD_MAPPING = "fieldMapping";
     private static final String ELEM_NAME_INPUT_FIELD = "inputField";
     private static final String ELEM_NAME_OUTPUT_FIELD = "outputField";
+    private static final String ELEM_NAME_INPUT_IS_FILE = "inputIsFile";
+    private static final String ELEM_NAME_XPATH = "xpath";
+    private static final String ELEM_NAME_RECORD_PATH = "recordPath";
+    private static final String ELEM_NAME_CATALOG_FILE = "catalogFile";
+    private static final String ELEM_NAME_SKIP_EXTERNAL_DTD = "skipExternalDtd";
+    private static final String ELEM_NAME_CATALOG_ONLY = "catalogOnly";
+    private static final String ELEM_NAME_SCHEMA_FILE = "schemaFile";
+    private static final String ELEM_NAME_STREAMING = "streaming";
+    private static final String ELEM_NAME_PASS_THROUGH_CANONICAL = "passThroughCanonical";
+    private static final String ELEM_NAME_OUTPUT_BINARY = "outputBinary";
+    private static final String ELEM_NAME_COMPRESS_OUTPUT = "compressOutput";
+    private static final String ELEM_NAME_SHA256_FIELD = "sha256Field";
+    private static final String ELEM_NAME_SHA512_FIELD = "sha512Field";
+    private static final String ELEM_NAME_MD5_FIELD = "md5Field";
+    private static final String ELEM_NAME_SPILL_FILE_FIELD = "spillFileField";
+    private static final String ELEM_NAME_LENGTH_FIELD = "lengthField";
+    private static final String ELEM_NAME_DOCUMENT_FIELD = "documentField";
+    private static final String ELEM_NAME_DIGEST_ONLY = "digestOnly";
+    private static final String ELEM_NAME_PARALLEL_DIGESTS = "parallelDigests";
+    private static final String ELEM_NAME_WORKER_THREADS = "workerThreads";
+    private static final String ELEM_NAME_CACHE_SIZE_MB = "cacheSizeMb";
+    private static final String ELEM_NAME_CACHE_SHARED = "cacheShared";
+    private static final String ELEM_NAME_SPILL_THRESHOLD_MB = "spillThresholdMb";
+    private static final String ELEM_NAME_SPILL_DIRECTORY = "spillDirectory";
+    private static final String ELEM_NAME_PARSE_TIME_FIELD = "parseTimeField";
+    private static final String ELEM_NAME_CANONICALIZE_TIME_FIELD = "canonicalizeTimeField";
+    private static final String ELEM_NAME_INPUT_BYTES_FIELD = "inputBytesField";
+    private static final String ELEM_NAME_OUTPUT_BYTES_FIELD = "outputBytesField";
 
-    private String inputField;
-    private String outputField;
+    /**
+     * The digest algorithms which may be computed over the canonical XML,
+     * in the same order as the fields returned by {@link #getDigestFields(int)}.
+     */
+    static final String[] DIGEST_ALGORITHMS = {"SHA-256", "SHA-512", "MD5"};
+
+    private String[] inputFields = new String[0];
+    private String[] outputFields = new String[0];
+    private boolean inputIsFile;
+    private String xpath;
+    private String recordPath;
+    private String catalogFile;
+    private boolean skipExternalDtd;
+    private boolean catalogOnly;
+    private String schemaFile;
+    private boolean streaming;
+    private boolean passThroughCanonical;
+    private boolean outputBinary;
+    private boolean compressOutput;
+    private String[] sha256Fields = new String[0];
+    private String[] sha512Fields = new String[0];
+    private String[] md5Fields = new String[0];
+    private String[] spillFileFields = new String[0];
+    private String[] lengthFields = new String[0];
+    private String[] documentFields = new String[0];
+    private boolean digestOnly;
+    private boolean parallelDigests;
+    private int workerThreads;
+    private int cacheSizeMb;
+    private boolean cacheShared;
+    private int spillThresholdMb;
+    private String spillDirectory;
+    private String parseTimeField;
+    private String canonicalizeTimeField;
+    private String inputBytesField;
+    private String outputBytesField;
 
     /**
      * Constructor should call super() to make sure the base class has a chance to initialize properly.
@@ -77,8 +147,66 @@ public class CanonicalStepMeta extends BaseStepMeta implements StepMetaInterface
      */
     @Override
     public void setDefault() {
-        setInputField("");
-        setOutputField("canonical_xml");
+        allocate(1);
+        inputFields[0] = "";
+        outputFields[0] = "canonical_xml";
+        sha256Fields[0] = "";
+        sha512Fields[0] = "";
+        md5Fields[0] = "";
+        spillFileFields[0] = "";
+        lengthFields[0] = "";
+        documentFields[0] = "";
+        setXpath("");
+        setRecordPath("");
+        setCatalogFile("");
+        setSkipExternalDtd(false);
+        setCatalogOnly(false);
+        setSchemaFile("");
+        setStreaming(false);
+        setPassThroughCanonical(false);
+        setOutputBinary(false);
+        setCompressOutput(false);
+        setDigestOnly(false);
+        setParallelDigests(false);
+        setWorkerThreads(1);
+        setCacheSizeMb(0);
+        setCacheShared(false);
+        setSpillThresholdMb(0);
+        setSpillDirectory("");
+        setParseTimeField("");
+        setCanonicalizeTimeField("");
+        setInputBytesField("");
+        setOutputBytesField("");
+    }
+
+    /**
+     * Allocates the arrays holding the field mappings.
+     *
+     * @param nrMappings the number of input fields to canonicalize
+     */
+    public void allocate(final int nrMappings) {
+        inputFields = new String[nrMappings];
+        outputFields = new String[nrMappings];
+        sha256Fields = new String[nrMappings];
+        sha512Fields = new String[nrMappings];
+        md5Fields = new String[nrMappings];
+        spillFileFields = new String[nrMappings];
+        lengthFields = new String[nrMappings];
+        documentFields = new String[nrMappings];
+    }
+
+    @Override
+    public Object clone() {
+        final CanonicalStepMeta retval = (CanonicalStepMeta) super.clone();
+        retval.inputFields = inputFields.clone();
+        retval.outputFields = outputFields.clone();
+        retval.sha256Fields = sha256Fields.clone();
+        retval.sha512Fields = sha512Fields.clone();
+        retval.md5Fields = md5Fields.clone();
+        retval.spillFileFields = spillFileFields.clone();
+        retval.lengthFields = lengthFields.clone();
+        retval.documentFields = documentFields.clone();
+        return retval;
     }
 
     /**
@@ -105,35 +233,474 @@ public class CanonicalStepMeta extends BaseStepMeta implements StepMetaInterface
         return new CanonicalStepData();
     }
 
-    public String getOutputField() {
-        return outputField;
-    }
-
     @Override
     public boolean supportsErrorHandling() {
         return true;
     }
 
-    public String getInputField() {
-        return inputField;
+    /**
+     * @return the number of input fields which are canonicalized
+     */
+    public int getNrFieldMappings() {
+        return inputFields.length;
+    }
+
+    public String[] getInputFields() {
+        return inputFields;
+    }
+
+    /**
+     * Setter for the names of the input fields to this step, each of which is canonicalized in turn, with the
+     * same parsers, as the row passes through the step.
+     *
+     * @param inputFields the names of the fields used
+     */
+    public void setInputFields(final String[] inputFields) {
+        this.inputFields = inputFields;
+    }
+
+    public String[] getOutputFields() {
+        return outputFields;
+    }
+
+    /**
+     * Setter for the names of the fields added by this step, in the same order as the input fields
+     *
+     * @param outputFields the names of the fields added
+     */
+    public void setOutputFields(final String[] outputFields) {
+        this.outputFields = outputFields;
+    }
+
+    public boolean isInputIsFile() {
+        return inputIsFile;
+    }
+
+    /**
+     * Setter for whether the input field holds the path or VFS URI of a file containing the XML, which the step
+     * then reads itself, rather than holding the XML.
+     *
+     * @param inputIsFile true if the input field holds a filename
+     */
+    public void setInputIsFile(final boolean inputIsFile) {
+        this.inputIsFile = inputIsFile;
+    }
+
+    public String getXpath() {
+        return xpath;
+    }
+
+    /**
+     * Setter for an XPath expression selecting the nodes to canonicalize, rather than the whole document. The
+     * canonical forms of the selected nodes are concatenated in document order. As the document is not parsed
+     * namespace aware, elements are matched by their qualified names, e.g. {@code //Record} or
+     * {@code //*[local-name()='Record']}, and namespaces declared by ancestors of a selected element are declared
+     * on it. A DOM is always built when an XPath expression is set, even if streaming is selected.
+     *
+     * @param xpath the XPath expression, which may contain variables, or empty to canonicalize the whole document
+     */
+    public void setXpath(final String xpath) {
+        this.xpath = xpath;
+    }
+
+    public String getRecordPath() {
+        return recordPath;
+    }
+
+    /**
+     * Setter for the records that each document is split into, so that a row is output for each record, holding
+     * its canonical form, rather than a row for each document. Records are either all elements of a qualified
+     * name, e.g. {@code record}, or the elements at an absolute path, e.g. {@code /export/records/record}, and are
+     * canonicalized as if selected by XPath. The document is split as a stream in a single pass, so memory is
+     * bounded by the largest record, and the XPath, streaming, pass through, worker thread and cache options do
+     * not apply. Only a single field may be canonicalized.
+     *
+     * @param recordPath the name of or path to the record elements, which may contain variables, or empty to
+     *                   output a row per document
+     */
+    public void setRecordPath(final String recordPath) {
+        this.recordPath = recordPath;
+    }
+
+    public String getCatalogFile() {
+        return catalogFile;
+    }
+
+    /**
+     * Setter for an OASIS XML catalog mapping the identifiers of DTDs and external entities to local copies, so
+     * that they need not be fetched from the network. Whether or not a catalog is set, each DTD or external
+     * entity is read only once per JVM, and then served from memory.
+     *
+     * @param catalogFile the path of the catalog file, which may contain variables, or empty for no catalog
+     */
+    public void setCatalogFile(final String catalogFile) {
+        this.catalogFile = catalogFile;
+    }
+
+    public boolean isSkipExternalDtd() {
+        return skipExternalDtd;
+    }
+
+    /**
+     * Setter for whether external DTDs are ignored. Attribute defaults and entities declared in them are then
+     * not available, but documents with a DOCTYPE no longer need their DTD to be reachable.
+     *
+     * @param skipExternalDtd true to never load external DTDs
+     */
+    public void setSkipExternalDtd(final boolean skipExternalDtd) {
+        this.skipExternalDtd = skipExternalDtd;
+    }
+
+    public boolean isCatalogOnly() {
+        return catalogOnly;
+    }
+
+    /**
+     * Setter for whether DTDs, external entities, and the schemas and stylesheets they import are only read from
+     * local files, so that one which the catalog does not map to a local file fails at once, rather than waiting on
+     * a network which may not be reachable.
+     *
+     * @param catalogOnly true to never fetch DTDs and entities from the network
+     */
+    public void setCatalogOnly(final boolean catalogOnly) {
+        this.catalogOnly = catalogOnly;
+    }
+
+    public String getSchemaFile() {
+        return schemaFile;
+    }
+
+    /**
+     * Setter for an XML Schema which each document must be valid against before it is canonicalized. Validation
+     * is done in the same parse as canonicalization; a document which is not valid is sent to the error stream.
+     * The compiled schema is shared by all step copies in the JVM, and is only compiled again if its file changes.
+     *
+     * @param schemaFile the path or URI of the schema, which may contain variables, or empty for no validation
+     */
+    public void setSchemaFile(final String schemaFile) {
+        this.schemaFile = schemaFile;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Setter for whether the XML is canonicalized directly from a stream of parser events, rather than by first
+     * building a DOM. Both produce identical output, but streaming needs far less memory for large documents.
+     *
+     * @param streaming true to canonicalize from a stream of parser events
+     */
+    public void setStreaming(final boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isPassThroughCanonical() {
+        return passThroughCanonical;
+    }
+
+    /**
+     * Setter for whether XML is first checked, in a single streaming pass, to see if it is already in canonical
+     * form. XML which is already canonical is passed through unchanged, without building a DOM or serializing it
+     * again; any other XML is then canonicalized as usual. Only XML held in fields is checked, and never when an
+     * XPath expression is set.
+     *
+     * @param passThroughCanonical true to pass through XML which is already canonical
+     */
+    public void setPassThroughCanonical(final boolean passThroughCanonical) {
+        this.passThroughCanonical = passThroughCanonical;
+    }
+
+    public boolean isOutputBinary() {
+        return outputBinary;
+    }
+
+    /**
+     * Setter for whether the field added by this step holds the canonical XML as UTF-8 encoded bytes (a Binary
+     * field), rather than as a String.
+     *
+     * @param outputBinary true to output a Binary field
+     */
+    public void setOutputBinary(final boolean outputBinary) {
+        this.outputBinary = outputBinary;
+    }
+
+    public boolean isCompressOutput() {
+        return compressOutput;
+    }
+
+    /**
+     * Setter for whether the field added by this step holds the canonical XML compressed by {@link DeflatedXml},
+     * as a Binary field, whatever {@link #setOutputBinary(boolean)} is set to. Spill files are compressed too.
+     * The steps of this plugin read compressed XML directly.
+     *
+     * @param compressOutput true to output compressed XML
+     */
+    public void setCompressOutput(final boolean compressOutput) {
+        this.compressOutput = compressOutput;
+    }
+
+    public String[] getSha256Fields() {
+        return sha256Fields;
+    }
+
+    /**
+     * Setter for the names of the fields to add holding the SHA-256 digest of each canonical XML output.
+     *
+     * @param sha256Fields the names of the fields, in the same order as the input fields, each empty if the
+     *                     digest is not required
+     */
+    public void setSha256Fields(final String[] sha256Fields) {
+        this.sha256Fields = sha256Fields;
+    }
+
+    public String[] getSha512Fields() {
+        return sha512Fields;
+    }
+
+    /**
+     * Setter for the names of the fields to add holding the SHA-512 digest of each canonical XML output.
+     *
+     * @param sha512Fields the names of the fields, in the same order as the input fields, each empty if the
+     *                     digest is not required
+     */
+    public void setSha512Fields(final String[] sha512Fields) {
+        this.sha512Fields = sha512Fields;
+    }
+
+    public String[] getMd5Fields() {
+        return md5Fields;
+    }
+
+    /**
+     * Setter for the names of the fields to add holding the MD5 digest of each canonical XML output.
+     *
+     * @param md5Fields the names of the fields, in the same order as the input fields, each empty if the digest
+     *                  is not required
+     */
+    public void setMd5Fields(final String[] md5Fields) {
+        this.md5Fields = md5Fields;
+    }
+
+    public String[] getSpillFileFields() {
+        return spillFileFields;
+    }
+
+    /**
+     * Setter for the names of the fields to add holding the path of the file that each canonical XML output was
+     * written to, if it was larger than the spill threshold. The output field is then null. Outputs are never
+     * written to files for mappings without a spill file field.
+     *
+     * @param spillFileFields the names of the fields, in the same order as the input fields, each empty if the
+     *                        output is always held in memory
+     */
+    public void setSpillFileFields(final String[] spillFileFields) {
+        this.spillFileFields = spillFileFields;
+    }
+
+    public String[] getLengthFields() {
+        return lengthFields;
+    }
+
+    /**
+     * Setter for the names of the fields to add holding the length in bytes of each canonical XML output.
+     *
+     * @param lengthFields the names of the fields, in the same order as the input fields, each empty if the
+     *                     length is not required
+     */
+    public void setLengthFields(final String[] lengthFields) {
+        this.lengthFields = lengthFields;
+    }
+
+    public String[] getDocumentFields() {
+        return documentFields;
+    }
+
+    /**
+     * Setter for the names of the fields to add holding the parsed {@link org.w3c.dom.Document} of each input, so
+     * that the XSLT and XPath steps of this plugin can read it without parsing the XML again. A mapping with a
+     * document field is always canonicalized from the DOM, and is never streamed, passed through or cached; no
+     * document is output for the records of a split document. The document is not thread-safe, so it should be
+     * read by only one step at a time.
+     *
+     * @param documentFields the names of the fields, in the same order as the input fields, each empty if the
+     *                       document is not required
+     */
+    public void setDocumentFields(final String[] documentFields) {
+        this.documentFields = documentFields;
+    }
+
+    /**
+     * @param mapping the index of the field mapping
+     * @return the names of the digest fields of the mapping, in the same order as {@link #DIGEST_ALGORITHMS}
+     */
+    public String[] getDigestFields(final int mapping) {
+        return new String[]{sha256Fields[mapping], sha512Fields[mapping], md5Fields[mapping]};
+    }
+
+    public boolean isDigestOnly() {
+        return digestOnly;
+    }
+
+    /**
+     * Setter for whether only the digest fields are added, in which case the canonical XML is never held in
+     * memory.
+     *
+     * @param digestOnly true to omit the canonical XML output field
+     */
+    public void setDigestOnly(final boolean digestOnly) {
+        this.digestOnly = digestOnly;
+    }
+
+    public boolean isParallelDigests() {
+        return parallelDigests;
+    }
+
+    /**
+     * Setter for whether, when a field mapping has more than one digest field, the digests of large outputs are
+     * each computed on a thread of their own, so that hashing takes about as long as the slowest digest rather
+     * than all of them together. Small outputs are always hashed on the thread canonicalizing them.
+     *
+     * @param parallelDigests true to compute the digests of large outputs in parallel
+     */
+    public void setParallelDigests(final boolean parallelDigests) {
+        this.parallelDigests = parallelDigests;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Setter for the number of threads used to canonicalize rows concurrently within each copy of the step.
+     * Unlike running multiple copies of the step, rows are still output in the order they were read.
+     * <p>
+     * When the XML is read from files, on Java 21 and later each row in flight is processed on its own virtual
+     * thread, so that many more workers than processors may wait for reads at little cost; on older versions of
+     * Java, no more than {@link FileWorkerExecutors#MAX_THREADS_PER_PROCESSOR} platform threads per processor
+     * are used.
+     *
+     * @param workerThreads the number of worker threads, or 1 to process rows on the step's own thread
+     */
+    public void setWorkerThreads(final int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getCacheSizeMb() {
+        return cacheSizeMb;
+    }
+
+    /**
+     * Setter for the memory available to cache results, so that identical XML is only canonicalized once. Files
+     * are cached by their location, size and last modified time, so a file is canonicalized again once changed.
+     *
+     * @param cacheSizeMb the size of the cache in megabytes, or 0 to disable caching
+     */
+    public void setCacheSizeMb(final int cacheSizeMb) {
+        this.cacheSizeMb = cacheSizeMb;
+    }
+
+    public boolean isCacheShared() {
+        return cacheShared;
+    }
+
+    /**
+     * Setter for whether the cache of results is shared by all copies of the step in the JVM. The shared cache
+     * is discarded when the last running copy of the step finishes.
+     *
+     * @param cacheShared true to share the cache, false for each copy of the step to have its own
+     */
+    public void setCacheShared(final boolean cacheShared) {
+        this.cacheShared = cacheShared;
+    }
+
+    public int getSpillThresholdMb() {
+        return spillThresholdMb;
+    }
+
+    /**
+     * Setter for the size above which canonical XML is written to a file rather than held in memory, for mappings
+     * with a spill file field.
+     *
+     * @param spillThresholdMb the size in megabytes, or 0 to always hold canonical XML in memory
+     */
+    public void setSpillThresholdMb(final int spillThresholdMb) {
+        this.spillThresholdMb = spillThresholdMb;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Setter for the directory in which files of canonical XML larger than the spill threshold are created. The
+     * files are not deleted by the step, they belong to the steps that read them.
+     *
+     * @param spillDirectory the directory, which may contain variables, or empty for the system temporary directory
+     */
+    public void setSpillDirectory(final String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public String getParseTimeField() {
+        return parseTimeField;
     }
 
     /**
-     * Setter for the name of the field added by this step
+     * Setter for the name of the field to add holding the milliseconds spent parsing the XML of all the input
+     * fields into a DOM. This is always 0 when streaming, as parsing and canonicalization are then a single phase.
      *
-     * @param outputField the name of the field added
+     * @param parseTimeField the name of the field, or empty if the metric is not required
      */
-    public void setOutputField(final String outputField) {
-        this.outputField = outputField;
+    public void setParseTimeField(final String parseTimeField) {
+        this.parseTimeField = parseTimeField;
+    }
+
+    public String getCanonicalizeTimeField() {
+        return canonicalizeTimeField;
     }
 
     /**
-     * Setter for the name of the input field to this step
+     * Setter for the name of the field to add holding the milliseconds spent canonicalizing the XML of all the
+     * input fields.
      *
-     * @param inputField the name of the field used
+     * @param canonicalizeTimeField the name of the field, or empty if the metric is not required
      */
-    public void setInputField(final String inputField) {
-        this.inputField = inputField;
+    public void setCanonicalizeTimeField(final String canonicalizeTimeField) {
+        this.canonicalizeTimeField = canonicalizeTimeField;
+    }
+
+    public String getInputBytesField() {
+        return inputBytesField;
+    }
+
+    /**
+     * Setter for the name of the field to add holding the total length in bytes of the XML read.
+     *
+     * @param inputBytesField the name of the field, or empty if the metric is not required
+     */
+    public void setInputBytesField(final String inputBytesField) {
+        this.inputBytesField = inputBytesField;
+    }
+
+    public String getOutputBytesField() {
+        return outputBytesField;
+    }
+
+    /**
+     * Setter for the name of the field to add holding the total length in bytes of the canonical XML written.
+     *
+     * @param outputBytesField the name of the field, or empty if the metric is not required
+     */
+    public void setOutputBytesField(final String outputBytesField) {
+        this.outputBytesField = outputBytesField;
+    }
+
+    /**
+     * @return the names of the per-row metric fields: parse time, canonicalize time, input bytes and output bytes
+     */
+    public String[] getMetricFields() {
+        return new String[]{parseTimeField, canonicalizeTimeField, inputBytesField, outputBytesField};
     }
 
     /**
@@ -146,8 +713,42 @@ public class CanonicalStepMeta extends BaseStepMeta implements StepMetaInterface
      */
     public String getXML() throws KettleValueException {
         StringBuilder xml = new StringBuilder();
-        xml.append(XMLHandler.addTagValue(ELEM_NAME_INPUT_FIELD, inputField));
-        xml.append(XMLHandler.addTagValue(ELEM_NAME_OUTPUT_FIELD, outputField));
+        xml.append(XMLHandler.openTag(ELEM_NAME_FIELD_MAPPINGS));
+        for (int i = 0; i < inputFields.length; i++) {
+            xml.append(XMLHandler.openTag(ELEM_NAME_FIELD_MAPPING));
+            xml.append(XMLHandler.addTagValue(ELEM_NAME_INPUT_FIELD, inputFields[i]));
+            xml.append(XMLHandler.addTagValue(ELEM_NAME_OUTPUT_FIELD, outputFields[i]));
+            xml.append(XMLHandler.addTagValue(ELEM_NAME_SHA256_FIELD, sha256Fields[i]));
+            xml.append(XMLHandler.addTagValue(ELEM_NAME_SHA512_FIELD, sha512Fields[i]));
+            xml.append(XMLHandler.addTagValue(ELEM_NAME_MD5_FIELD, md5Fields[i]));
+            xml.append(XMLHandler.addTagValue(ELEM_NAME_SPILL_FILE_FIELD, spillFileFields[i]));
+            xml.append(XMLHandler.addTagValue(ELEM_NAME_LENGTH_FIELD, lengthFields[i]));
+            xml.append(XMLHandler.addTagValue(ELEM_NAME_DOCUMENT_FIELD, documentFields[i]));
+            xml.append(XMLHandler.closeTag(ELEM_NAME_FIELD_MAPPING));
+        }
+        xml.append(XMLHandler.closeTag(ELEM_NAME_FIELD_MAPPINGS));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_INPUT_IS_FILE, inputIsFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_XPATH, xpath));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_RECORD_PATH, recordPath));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CATALOG_FILE, catalogFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SKIP_EXTERNAL_DTD, skipExternalDtd));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CATALOG_ONLY, catalogOnly));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SCHEMA_FILE, schemaFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_STREAMING, streaming));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_PASS_THROUGH_CANONICAL, passThroughCanonical));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_OUTPUT_BINARY, outputBinary));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_COMPRESS_OUTPUT, compressOutput));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_DIGEST_ONLY, digestOnly));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_PARALLEL_DIGESTS, parallelDigests));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_WORKER_THREADS, workerThreads));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CACHE_SIZE_MB, cacheSizeMb));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CACHE_SHARED, cacheShared));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SPILL_THRESHOLD_MB, spillThresholdMb));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SPILL_DIRECTORY, spillDirectory));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_PARSE_TIME_FIELD, parseTimeField));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CANONICALIZE_TIME_FIELD, canonicalizeTimeField));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_INPUT_BYTES_FIELD, inputBytesField));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_OUTPUT_BYTES_FIELD, outputBytesField));
         return xml.toString();
     }
 
@@ -163,13 +764,56 @@ public class CanonicalStepMeta extends BaseStepMeta implements StepMetaInterface
      */
     public void loadXML(final Node stepnode, final List<DatabaseMeta> databases, final IMetaStore metaStore) throws KettleXMLException {
         try {
-            setInputField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, ELEM_NAME_INPUT_FIELD)));
-            setOutputField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, ELEM_NAME_OUTPUT_FIELD)));
+            final Node mappingsNode = XMLHandler.getSubNode(stepnode, ELEM_NAME_FIELD_MAPPINGS);
+            if (mappingsNode == null) {
+                // saved before multiple fields could be canonicalized
+                allocate(1);
+                loadFieldMappingXML(stepnode, 0);
+            } else {
+                final int nrMappings = XMLHandler.countNodes(mappingsNode, ELEM_NAME_FIELD_MAPPING);
+                allocate(nrMappings);
+                for (int i = 0; i < nrMappings; i++) {
+                    loadFieldMappingXML(XMLHandler.getSubNodeByNr(mappingsNode, ELEM_NAME_FIELD_MAPPING, i), i);
+                }
+            }
+            setInputIsFile("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_INPUT_IS_FILE)));
+            setXpath(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_XPATH), ""));
+            setRecordPath(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_RECORD_PATH), ""));
+            setCatalogFile(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_CATALOG_FILE), ""));
+            setSkipExternalDtd("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_SKIP_EXTERNAL_DTD)));
+            setCatalogOnly("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_CATALOG_ONLY)));
+            setSchemaFile(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_SCHEMA_FILE), ""));
+            setStreaming("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_STREAMING)));
+            setPassThroughCanonical("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_PASS_THROUGH_CANONICAL)));
+            setOutputBinary("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_OUTPUT_BINARY)));
+            setCompressOutput("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_COMPRESS_OUTPUT)));
+            setDigestOnly("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_DIGEST_ONLY)));
+            setParallelDigests("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_PARALLEL_DIGESTS)));
+            setWorkerThreads(Const.toInt(XMLHandler.getTagValue(stepnode, ELEM_NAME_WORKER_THREADS), 1));
+            setCacheSizeMb(Const.toInt(XMLHandler.getTagValue(stepnode, ELEM_NAME_CACHE_SIZE_MB), 0));
+            setCacheShared("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_CACHE_SHARED)));
+            setSpillThresholdMb(Const.toInt(XMLHandler.getTagValue(stepnode, ELEM_NAME_SPILL_THRESHOLD_MB), 0));
+            setSpillDirectory(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_SPILL_DIRECTORY), ""));
+            setParseTimeField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_PARSE_TIME_FIELD), ""));
+            setCanonicalizeTimeField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_CANONICALIZE_TIME_FIELD), ""));
+            setInputBytesField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_INPUT_BYTES_FIELD), ""));
+            setOutputBytesField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_OUTPUT_BYTES_FIELD), ""));
         } catch (Exception e) {
             throw new KettleXMLException(BaseMessages.getString(PKG, "CanonicalStepMeta.Error.UnableToReadStepInfo"), e);
         }
     }
 
+    private void loadFieldMappingXML(final Node mappingNode, final int i) {
+        inputFields[i] = XMLHandler.getNodeValue(XMLHandler.getSubNode(mappingNode, ELEM_NAME_INPUT_FIELD));
+        outputFields[i] = XMLHandler.getNodeValue(XMLHandler.getSubNode(mappingNode, ELEM_NAME_OUTPUT_FIELD));
+        sha256Fields[i] = Const.NVL(XMLHandler.getTagValue(mappingNode, ELEM_NAME_SHA256_FIELD), "");
+        sha512Fields[i] = Const.NVL(XMLHandler.getTagValue(mappingNode, ELEM_NAME_SHA512_FIELD), "");
+        md5Fields[i] = Const.NVL(XMLHandler.getTagValue(mappingNode, ELEM_NAME_MD5_FIELD), "");
+        spillFileFields[i] = Const.NVL(XMLHandler.getTagValue(mappingNode, ELEM_NAME_SPILL_FILE_FIELD), "");
+        lengthFields[i] = Const.NVL(XMLHandler.getTagValue(mappingNode, ELEM_NAME_LENGTH_FIELD), "");
+        documentFields[i] = Const.NVL(XMLHandler.getTagValue(mappingNode, ELEM_NAME_DOCUMENT_FIELD), "");
+    }
+
     /**
      * This method is called by Spoon when a step needs to serialize its configuration to a repository.
      * The repository implementation provides the necessary methods to save the step attributes.
@@ -182,8 +826,38 @@ public class CanonicalStepMeta extends BaseStepMeta implements StepMetaInterface
     public void saveRep(final Repository rep, final IMetaStore metaStore, final ObjectId id_transformation, final ObjectId id_step)
             throws KettleException {
         try {
-            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_INPUT_FIELD, inputField);
-            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_OUTPUT_FIELD, outputField); //$NON-NLS-1$
+            for (int i = 0; i < inputFields.length; i++) {
+                rep.saveStepAttribute(id_transformation, id_step, i, ELEM_NAME_INPUT_FIELD, inputFields[i]); //$NON-NLS-1$
+                rep.saveStepAttribute(id_transformation, id_step, i, ELEM_NAME_OUTPUT_FIELD, outputFields[i]); //$NON-NLS-1$
+                rep.saveStepAttribute(id_transformation, id_step, i, ELEM_NAME_SHA256_FIELD, sha256Fields[i]); //$NON-NLS-1$
+                rep.saveStepAttribute(id_transformation, id_step, i, ELEM_NAME_SHA512_FIELD, sha512Fields[i]); //$NON-NLS-1$
+                rep.saveStepAttribute(id_transformation, id_step, i, ELEM_NAME_MD5_FIELD, md5Fields[i]); //$NON-NLS-1$
+                rep.saveStepAttribute(id_transformation, id_step, i, ELEM_NAME_SPILL_FILE_FIELD, spillFileFields[i]); //$NON-NLS-1$
+                rep.saveStepAttribute(id_transformation, id_step, i, ELEM_NAME_LENGTH_FIELD, lengthFields[i]); //$NON-NLS-1$
+                rep.saveStepAttribute(id_transformation, id_step, i, ELEM_NAME_DOCUMENT_FIELD, documentFields[i]); //$NON-NLS-1$
+            }
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_INPUT_IS_FILE, inputIsFile); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_XPATH, xpath); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_RECORD_PATH, recordPath); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CATALOG_FILE, catalogFile); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_SKIP_EXTERNAL_DTD, skipExternalDtd); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CATALOG_ONLY, catalogOnly); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_SCHEMA_FILE, schemaFile); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_STREAMING, streaming); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_PASS_THROUGH_CANONICAL, passThroughCanonical); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_OUTPUT_BINARY, outputBinary); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_COMPRESS_OUTPUT, compressOutput); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_DIGEST_ONLY, digestOnly); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_PARALLEL_DIGESTS, parallelDigests); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_WORKER_THREADS, workerThreads); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CACHE_SIZE_MB, cacheSizeMb); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CACHE_SHARED, cacheShared); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_SPILL_THRESHOLD_MB, spillThresholdMb); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_SPILL_DIRECTORY, spillDirectory); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_PARSE_TIME_FIELD, parseTimeField); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CANONICALIZE_TIME_FIELD, canonicalizeTimeField); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_INPUT_BYTES_FIELD, inputBytesField); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_OUTPUT_BYTES_FIELD, outputBytesField); //$NON-NLS-1$
         } catch (Exception e) {
             throw new KettleException("Unable to save step into repository: " + id_step, e);
         }
@@ -201,8 +875,40 @@ public class CanonicalStepMeta extends BaseStepMeta implements StepMetaInterface
     public void readRep(final Repository rep, final IMetaStore metaStore, final ObjectId id_step, final List<DatabaseMeta> databases)
             throws KettleException {
         try {
-            inputField = rep.getStepAttributeString(id_step, ELEM_NAME_INPUT_FIELD); //$NON-NLS-1$
-            outputField = rep.getStepAttributeString(id_step, ELEM_NAME_OUTPUT_FIELD); //$NON-NLS-1$
+            final int nrMappings = rep.countNrStepAttributes(id_step, ELEM_NAME_INPUT_FIELD); //$NON-NLS-1$
+            allocate(nrMappings);
+            for (int i = 0; i < nrMappings; i++) {
+                inputFields[i] = rep.getStepAttributeString(id_step, i, ELEM_NAME_INPUT_FIELD); //$NON-NLS-1$
+                outputFields[i] = rep.getStepAttributeString(id_step, i, ELEM_NAME_OUTPUT_FIELD); //$NON-NLS-1$
+                sha256Fields[i] = Const.NVL(rep.getStepAttributeString(id_step, i, ELEM_NAME_SHA256_FIELD), ""); //$NON-NLS-1$
+                sha512Fields[i] = Const.NVL(rep.getStepAttributeString(id_step, i, ELEM_NAME_SHA512_FIELD), ""); //$NON-NLS-1$
+                md5Fields[i] = Const.NVL(rep.getStepAttributeString(id_step, i, ELEM_NAME_MD5_FIELD), ""); //$NON-NLS-1$
+                spillFileFields[i] = Const.NVL(rep.getStepAttributeString(id_step, i, ELEM_NAME_SPILL_FILE_FIELD), ""); //$NON-NLS-1$
+                lengthFields[i] = Const.NVL(rep.getStepAttributeString(id_step, i, ELEM_NAME_LENGTH_FIELD), ""); //$NON-NLS-1$
+                documentFields[i] = Const.NVL(rep.getStepAttributeString(id_step, i, ELEM_NAME_DOCUMENT_FIELD), ""); //$NON-NLS-1$
+            }
+            inputIsFile = rep.getStepAttributeBoolean(id_step, ELEM_NAME_INPUT_IS_FILE); //$NON-NLS-1$
+            xpath = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_XPATH), ""); //$NON-NLS-1$
+            recordPath = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_RECORD_PATH), ""); //$NON-NLS-1$
+            catalogFile = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_CATALOG_FILE), ""); //$NON-NLS-1$
+            skipExternalDtd = rep.getStepAttributeBoolean(id_step, ELEM_NAME_SKIP_EXTERNAL_DTD); //$NON-NLS-1$
+            catalogOnly = rep.getStepAttributeBoolean(id_step, ELEM_NAME_CATALOG_ONLY); //$NON-NLS-1$
+            schemaFile = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_SCHEMA_FILE), ""); //$NON-NLS-1$
+            streaming = rep.getStepAttributeBoolean(id_step, ELEM_NAME_STREAMING); //$NON-NLS-1$
+            passThroughCanonical = rep.getStepAttributeBoolean(id_step, ELEM_NAME_PASS_THROUGH_CANONICAL); //$NON-NLS-1$
+            outputBinary = rep.getStepAttributeBoolean(id_step, ELEM_NAME_OUTPUT_BINARY); //$NON-NLS-1$
+            compressOutput = rep.getStepAttributeBoolean(id_step, ELEM_NAME_COMPRESS_OUTPUT); //$NON-NLS-1$
+            digestOnly = rep.getStepAttributeBoolean(id_step, ELEM_NAME_DIGEST_ONLY); //$NON-NLS-1$
+            parallelDigests = rep.getStepAttributeBoolean(id_step, ELEM_NAME_PARALLEL_DIGESTS); //$NON-NLS-1$
+            workerThreads = (int) Math.max(1, rep.getStepAttributeInteger(id_step, ELEM_NAME_WORKER_THREADS)); //$NON-NLS-1$
+            cacheSizeMb = (int) rep.getStepAttributeInteger(id_step, ELEM_NAME_CACHE_SIZE_MB); //$NON-NLS-1$
+            cacheShared = rep.getStepAttributeBoolean(id_step, ELEM_NAME_CACHE_SHARED); //$NON-NLS-1$
+            spillThresholdMb = (int) rep.getStepAttributeInteger(id_step, ELEM_NAME_SPILL_THRESHOLD_MB); //$NON-NLS-1$
+            spillDirectory = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_SPILL_DIRECTORY), ""); //$NON-NLS-1$
+            parseTimeField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_PARSE_TIME_FIELD), ""); //$NON-NLS-1$
+            canonicalizeTimeField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_CANONICALIZE_TIME_FIELD), ""); //$NON-NLS-1$
+            inputBytesField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_INPUT_BYTES_FIELD), ""); //$NON-NLS-1$
+            outputBytesField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_OUTPUT_BYTES_FIELD), ""); //$NON-NLS-1$
         } catch (Exception e) {
             throw new KettleException("Unable to load step from repository", e);
         }
@@ -226,20 +932,64 @@ public class CanonicalStepMeta extends BaseStepMeta implements StepMetaInterface
                           final VariableSpace space, final Repository repository, final IMetaStore metaStore) throws KettleStepException {
 
         /*
-         * This implementation appends the outputField to the row-stream
+         * This implementation appends the outputField, digest, spill file and length fields of each field mapping,
+         * and then any metric fields, to the row-stream
          */
 
-        // a value meta object contains the meta data for a field
-        ValueMetaInterface v = new ValueMetaString(outputField);
+        for (int i = 0; i < inputFields.length; i++) {
+            if (!digestOnly) {
+                // a value meta object contains the meta data for a field
+                final ValueMetaInterface v;
+                if (outputBinary || compressOutput) {
+                    v = new ValueMetaBinary(outputFields[i]);
+                } else {
+                    v = new ValueMetaString(outputFields[i]);
+
+                    // setting trim type to "both"
+                    v.setTrimType(ValueMetaInterface.TRIM_TYPE_BOTH);
+                }
+
+                // the name of the step that adds this field
+                v.setOrigin(name);
 
-        // setting trim type to "both"
-        v.setTrimType(ValueMetaInterface.TRIM_TYPE_BOTH);
+                // modify the row structure and add the field this step generates
+                inputRowMeta.addValueMeta(v);
+            }
 
-        // the name of the step that adds this field
-        v.setOrigin(name);
+            for (final String digestField : getDigestFields(i)) {
+                if (!Utils.isEmpty(digestField)) {
+                    final ValueMetaInterface v = new ValueMetaString(digestField);
+                    v.setOrigin(name);
+                    inputRowMeta.addValueMeta(v);
+                }
+            }
 
-        // modify the row structure and add the field this step generates
-        inputRowMeta.addValueMeta(v);
+            if (!Utils.isEmpty(spillFileFields[i])) {
+                final ValueMetaInterface v = new ValueMetaString(spillFileFields[i]);
+                v.setOrigin(name);
+                inputRowMeta.addValueMeta(v);
+            }
+            if (!Utils.isEmpty(lengthFields[i])) {
+                final ValueMetaInterface v = new ValueMetaInteger(lengthFields[i]);
+                v.setOrigin(name);
+                inputRowMeta.addValueMeta(v);
+            }
+            if (!Utils.isEmpty(documentFields[i])) {
+                final ValueMetaInterface v = new ValueMetaSerializable(documentFields[i]);
+                v.setOrigin(name);
+                inputRowMeta.addValueMeta(v);
+            }
+        }
+
+        final String[] metricFields = getMetricFields();
+        for (int i = 0; i < metricFields.length; i++) {
+            if (!Utils.isEmpty(metricFields[i])) {
+                // the first two metrics are times in milliseconds, the others are byte counts
+                final ValueMetaInterface v = i < 2 ? new ValueMetaNumber(metricFields[i]) : new ValueMetaInteger(metricFields[i]);
+                v.setOrigin(name);
+                inputRowMeta.addValueMeta(v);
+            }
+        }
     }
 
 }
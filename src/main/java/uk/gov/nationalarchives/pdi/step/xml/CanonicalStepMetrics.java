@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.pentaho.di.core.logging.Metrics;
+import org.pentaho.di.core.metrics.MetricsSnapshotType;
+
+/**
+ * Accumulates the time spent in each phase of canonicalization, and the bytes read and written, for all the rows
+ * processed by a copy of the step.
+ * <p>
+ * Rows are recorded on the step's own thread as they are put, so this class is not thread-safe.
+ */
+public class CanonicalStepMetrics {
+
+    public static final Metrics METRIC_PARSE_TIME = new Metrics(MetricsSnapshotType.SUM, "METRIC_CANONICAL_XML_PARSE_TIME", "Time spent parsing XML (ms)");
+    public static final Metrics METRIC_CANONICALIZE_TIME = new Metrics(MetricsSnapshotType.SUM, "METRIC_CANONICAL_XML_CANONICALIZE_TIME", "Time spent canonicalizing XML (ms)");
+    public static final Metrics METRIC_INPUT_BYTES = new Metrics(MetricsSnapshotType.SUM, "METRIC_CANONICAL_XML_INPUT_BYTES", "XML bytes read");
+    public static final Metrics METRIC_OUTPUT_BYTES = new Metrics(MetricsSnapshotType.SUM, "METRIC_CANONICAL_XML_OUTPUT_BYTES", "Canonical XML bytes written");
+    public static final Metrics METRIC_PASS_THROUGH = new Metrics(MetricsSnapshotType.SUM, "METRIC_CANONICAL_XML_PASS_THROUGH", "Documents already canonical and passed through");
+
+    private static final double NANOS_PER_MILLI = 1_000_000d;
+
+    private final LatencyHistogram parseNanos = new LatencyHistogram();
+    private final LatencyHistogram canonicalizeNanos = new LatencyHistogram();
+    private long inputBytes;
+    private long outputBytes;
+    private long passThroughs;
+
+    /**
+     * Records the metrics of a canonicalized row.
+     *
+     * @param result the result of canonicalizing the row
+     */
+    public void record(final CanonicalizationResult result) {
+        parseNanos.record(result.getParseNanos());
+        canonicalizeNanos.record(result.getCanonicalizeNanos());
+        inputBytes += result.getInputBytes();
+        outputBytes += result.getOutputBytes();
+        if (result.isPassThrough()) {
+            passThroughs++;
+        }
+    }
+
+    public long getRows() {
+        return canonicalizeNanos.getCount();
+    }
+
+    public LatencyHistogram getParseNanos() {
+        return parseNanos;
+    }
+
+    public LatencyHistogram getCanonicalizeNanos() {
+        return canonicalizeNanos;
+    }
+
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * @return the number of documents which were already canonical, and so were passed through
+     */
+    public long getPassThroughs() {
+        return passThroughs;
+    }
+
+    static double toMillis(final long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Formats the distribution of a histogram of nanoseconds as milliseconds.
+     *
+     * @param nanos the histogram
+     * @return the mean, median, 99th percentile and maximum
+     */
+    static String summarize(final LatencyHistogram nanos) {
+        return String.format("mean %.3f, p50 %.3f, p99 %.3f, max %.3f",
+                toMillis((long) nanos.getMean()),
+                toMillis(nanos.getValueAtPercentile(50)),
+                toMillis(nanos.getValueAtPercentile(99)),
+                toMillis(nanos.getMax()));
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of canonicalization results, keyed by the content of the XML that was canonicalized, so that identical
+ * documents need only be parsed and canonicalized once. XML in files is instead keyed by the location, size and last
+ * modified time of the file, so that a file is not read once to look it up and again to canonicalize it.
+ * <p>
+ * The memory used by the cached results is bounded; when it is exceeded the least recently used results are
+ * evicted. Keys are SHA-256 digests of the input, so that distinct documents cannot be confused with each other.
+ */
+public class CanonicalizationCache {
+
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final Map<String, CanonicalizationCache> SHARED_CACHES = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<MessageDigest> KEY_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final String configuration;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, CanonicalizationResult> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // the number of step copies using a shared cache, only changed while its entry in SHARED_CACHES is locked
+    private int references = 0;
+
+    /**
+     * @param configuration the configuration of the step producing the results
+     * @param maxBytes      the approximate maximum memory that the cached results may use
+     */
+    public CanonicalizationCache(final String configuration, final long maxBytes) {
+        this.configuration = configuration;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets a cache which is shared by all copies of a step within the JVM. If the configuration of the step has
+     * changed since the cache was created, the cache is replaced, as its results may no longer be valid. Each
+     * copy must call {@link #releaseShared(String, CanonicalizationCache)} when it is done with the cache.
+     *
+     * @param name          a name identifying the step
+     * @param configuration the configuration of the step producing the results
+     * @param maxBytes      the approximate maximum memory that the cached results may use
+     * @return the shared cache
+     */
+    public static CanonicalizationCache getShared(final String name, final String configuration, final long maxBytes) {
+        return SHARED_CACHES.compute(name, (key, existing) -> {
+            final CanonicalizationCache cache;
+            if (existing != null && existing.configuration.equals(configuration) && existing.maxBytes == maxBytes) {
+                cache = existing;
+            } else {
+                cache = new CanonicalizationCache(configuration, maxBytes);
+            }
+            cache.references++;
+            return cache;
+        });
+    }
+
+    /**
+     * Releases a shared cache. When the last step copy using it releases it, its results are discarded, so that
+     * the transformations run by a long-lived JVM do not each keep a cache for the life of the JVM.
+     *
+     * @param name  a name identifying the step
+     * @param cache the cache returned by {@link #getShared(String, String, long)}
+     */
+    public static void releaseShared(final String name, final CanonicalizationCache cache) {
+        SHARED_CACHES.computeIfPresent(name, (key, existing) -> {
+            // a cache which has been replaced is no longer shared
+            if (existing != cache || --existing.references > 0) {
+                return existing;
+            }
+            return null;
+        });
+    }
+
+    public static Key keyOf(final String xml) {
+        final MessageDigest digest = KEY_DIGEST.get();
+        digest.reset();
+        digest.update((byte) 'S');
+        final byte[] buf = new byte[Math.min(8192, xml.length() * 2)];
+        int len = 0;
+        for (int i = 0; i < xml.length(); i++) {
+            if (len == buf.length) {
+                digest.update(buf, 0, len);
+                len = 0;
+            }
+            final char c = xml.charAt(i);
+            buf[len++] = (byte) (c >> 8);
+            buf[len++] = (byte) c;
+        }
+        digest.update(buf, 0, len);
+        return new Key(digest.digest());
+    }
+
+    public static Key keyOf(final byte[] xml) {
+        final MessageDigest digest = KEY_DIGEST.get();
+        digest.reset();
+        digest.update((byte) 'B');
+        digest.update(xml);
+        return new Key(digest.digest());
+    }
+
+    /**
+     * @param location     the absolute path or URI of a file of XML
+     * @param size         the size of the file
+     * @param lastModified the time at which the file was last modified, in milliseconds since the epoch
+     * @return the key of the version of the file
+     */
+    public static Key keyOf(final String location, final long size, final long lastModified) {
+        final MessageDigest digest = KEY_DIGEST.get();
+        digest.reset();
+        digest.update((byte) 'F');
+        digest.update((size + ":" + lastModified + ":" + location).getBytes(StandardCharsets.UTF_8));
+        return new Key(digest.digest());
+    }
+
+    /**
+     * @param key the key of the input XML
+     * @return the cached result, or null if there is none
+     */
+    public synchronized CanonicalizationResult get(final Key key) {
+        final CanonicalizationResult result = results.get(key);
+        if (result == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Caches a result, evicting the least recently used results if the memory limit would otherwise be exceeded.
+     * Results which are larger than the memory limit by themselves are not cached.
+     *
+     * @param key    the key of the input XML
+     * @param result the successful result of canonicalizing the XML
+     */
+    public synchronized void put(final Key key, final CanonicalizationResult result) {
+        final long size = sizeOf(result);
+        if (size > maxBytes) {
+            return;
+        }
+        final CanonicalizationResult previous = results.put(key, result);
+        if (previous != null) {
+            bytes -= sizeOf(previous);
+        }
+        bytes += size;
+
+        final Iterator<CanonicalizationResult> eldest = results.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= sizeOf(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private static long sizeOf(final CanonicalizationResult result) {
+        long size = ENTRY_OVERHEAD;
+        final Object canonicalXml = result.getCanonicalXml();
+        if (canonicalXml instanceof String) {
+            size += ((String) canonicalXml).length() * 2L;
+        } else if (canonicalXml instanceof byte[]) {
+            size += ((byte[]) canonicalXml).length;
+        }
+        for (final String digest : result.getDigests()) {
+            size += digest.length() * 2L;
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getEntries() {
+        return results.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * The digest of some input XML.
+     */
+    public static final class Key {
+        private final byte[] digest;
+        private final int hashCode;
+
+        private Key(final byte[] digest) {
+            this.digest = digest;
+            this.hashCode = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Key && Arrays.equals(digest, ((Key) other).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -22,20 +22,58 @@
  */
 package uk.gov.nationalarchives.pdi.step.xml;
 
+import org.w3c.dom.Document;
+
 public class CanonicalizationResult {
 
-    private final String canonicalXml;
+    private final Object canonicalXml;
+    private String[] digests = new String[0];
     private String errorMessage = "";
     private boolean hasError = false;
+    private long parseNanos;
+    private long canonicalizeNanos;
+    private long inputBytes;
+    private long outputBytes;
+    private String spillFile;
+    private boolean passThrough;
+    private Document document;
 
-    public CanonicalizationResult(final String canonicalXml) {
+    /**
+     * @param canonicalXml the canonical XML, either as a String or as UTF-8 encoded bytes
+     */
+    public CanonicalizationResult(final Object canonicalXml) {
         this.canonicalXml = canonicalXml;
     }
 
-    public String getCanonicalXml() {
+    /**
+     * Creates a copy of a result for a row which did not need to be parsed or canonicalized, because its result
+     * was found in the cache.
+     *
+     * @return a copy of the result, with no time spent in either phase
+     */
+    public CanonicalizationResult copyForCacheHit() {
+        final CanonicalizationResult copy = new CanonicalizationResult(canonicalXml);
+        copy.digests = digests;
+        copy.inputBytes = inputBytes;
+        copy.outputBytes = outputBytes;
+        return copy;
+    }
+
+    public Object getCanonicalXml() {
         return canonicalXml;
     }
 
+    /**
+     * @return the hexadecimal digests of the canonical XML, in the order of the step's configured digests
+     */
+    public String[] getDigests() {
+        return digests;
+    }
+
+    public void setDigests(final String[] digests) {
+        this.digests = digests;
+    }
+
     public boolean hasError() {
         return hasError;
     }
@@ -52,4 +90,80 @@ public class CanonicalizationResult {
         this.errorMessage = errorMessage;
     }
 
+    /**
+     * @return the time spent parsing the XML into a DOM, which is 0 when the XML was canonicalized as a stream of
+     * parser events
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    public void setParseNanos(final long parseNanos) {
+        this.parseNanos = parseNanos;
+    }
+
+    /**
+     * @return the time spent canonicalizing the XML, including parsing when the XML was canonicalized as a stream of
+     * parser events
+     */
+    public long getCanonicalizeNanos() {
+        return canonicalizeNanos;
+    }
+
+    public void setCanonicalizeNanos(final long canonicalizeNanos) {
+        this.canonicalizeNanos = canonicalizeNanos;
+    }
+
+    /**
+     * @return the length of the XML input, as UTF-8 for XML held in a String
+     */
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    public void setInputBytes(final long inputBytes) {
+        this.inputBytes = inputBytes;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    public void setOutputBytes(final long outputBytes) {
+        this.outputBytes = outputBytes;
+    }
+
+    /**
+     * @return the path of the file holding the canonical XML, or null if it is held in memory
+     */
+    public String getSpillFile() {
+        return spillFile;
+    }
+
+    public void setSpillFile(final String spillFile) {
+        this.spillFile = spillFile;
+    }
+
+    /**
+     * @return true if the XML was already canonical, and so was passed through rather than canonicalized
+     */
+    public boolean isPassThrough() {
+        return passThrough;
+    }
+
+    public void setPassThrough(final boolean passThrough) {
+        this.passThrough = passThrough;
+    }
+
+    /**
+     * @return the DOM that the XML was parsed into, or null if it was not requested
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    public void setDocument(final Document document) {
+        this.document = document;
+    }
+
 }
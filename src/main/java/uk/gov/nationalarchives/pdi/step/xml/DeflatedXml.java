@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * XML compressed in the zlib format (RFC 1950), which the Canonical XML step may output so that large documents
+ * take a fraction of the memory in row sets and spill files.
+ * <p>
+ * The steps of this plugin read compressed XML wherever they read XML as bytes or from a file, recognising it by
+ * its zlib header. This is unambiguous: the first byte of a zlib stream has 8 in its low four bits, which is true
+ * of no byte that a well-formed XML document, in any encoding, may begin with.
+ */
+public class DeflatedXml {
+
+    /**
+     * The suffix of spill files holding compressed XML.
+     */
+    static final String FILE_SUFFIX = ".xml.zlib";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private DeflatedXml() {
+    }
+
+    /**
+     * Creates the compressor for a step, which is reset and reused for each output. Canonical XML is so repetitive
+     * that the fastest level of compression already shrinks it severalfold.
+     *
+     * @return a new Deflater, which must be ended when the step no longer needs it
+     */
+    public static Deflater newDeflater() {
+        return new Deflater(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param os       the stream to write the compressed bytes to
+     * @param deflater the compressor to use, which is reset first
+     * @return a stream compressing the bytes written to it, which must be finished or closed to write the last of
+     * them; the compressor is not ended when it is closed
+     */
+    public static DeflaterOutputStream deflating(final OutputStream os, final Deflater deflater) {
+        deflater.reset();
+        return new DeflaterOutputStream(os, deflater, BUFFER_SIZE);
+    }
+
+    /**
+     * @param bytes    the bytes to compress
+     * @param deflater the compressor to use, which is reset first
+     * @return the compressed bytes
+     */
+    public static byte[] deflate(final byte[] bytes, final Deflater deflater) {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(32, bytes.length / 4));
+        try (final DeflaterOutputStream dos = deflating(baos, deflater)) {
+            dos.write(bytes);
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @param bytes XML bytes, which may be compressed
+     * @return true if the bytes begin with a zlib header
+     */
+    public static boolean isDeflated(final byte[] bytes) {
+        return bytes.length >= 2 && isZlibHeader(bytes[0] & 0xff, bytes[1] & 0xff);
+    }
+
+    /**
+     * @param bytes XML bytes, which may be compressed
+     * @return a stream of the uncompressed XML
+     */
+    public static InputStream open(final byte[] bytes) {
+        final InputStream is = new ByteArrayInputStream(bytes);
+        return isDeflated(bytes) ? inflate(is) : is;
+    }
+
+    /**
+     * @param is a stream of XML, which may be compressed
+     * @return a stream of the uncompressed XML, which closes the given stream when it is closed
+     * @throws IOException if the first bytes of the stream cannot be read
+     */
+    public static InputStream open(final InputStream is) throws IOException {
+        final PushbackInputStream pis = new PushbackInputStream(is, 2);
+        final byte[] header = new byte[2];
+        int read = 0;
+        while (read < header.length) {
+            final int n = pis.read(header, read, header.length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        pis.unread(header, 0, read);
+        return read == header.length && isZlibHeader(header[0] & 0xff, header[1] & 0xff) ? inflate(pis) : pis;
+    }
+
+    private static boolean isZlibHeader(final int cmf, final int flg) {
+        // the deflate method, a window of at most 32K, and a check value making the header a multiple of 31
+        return (cmf & 0x0f) == 8 && (cmf >> 4) <= 7 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    private static InputStream inflate(final InputStream is) {
+        return new InflaterInputStream(is, new Inflater(), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // an Inflater which is not the stream's default is not ended by the stream
+                    inf.end();
+                }
+            }
+        };
+    }
+}
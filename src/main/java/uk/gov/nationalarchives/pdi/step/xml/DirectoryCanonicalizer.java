@@ -0,0 +1,419 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.xml.sax.InputSource;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Canonicalizes every XML file within a directory tree on a pool of threads, parsing and canonicalizing each
+ * exactly as {@link CanonicalStep} does. The Canonical XML of each file is written either alongside it, or to the
+ * same relative path within a mirror tree, and a CSV manifest records the relative path, the sizes and the digests
+ * of each file written, or the reason it could not be.
+ * <p>
+ * The tree is walked by the calling thread, which hands each file to a worker as it is found, so that memory use
+ * does not grow with the number of files. Rows are added to the manifest as files are completed, so their order
+ * is not that of the tree.
+ */
+public class DirectoryCanonicalizer {
+
+    private final Path sourceDirectory;
+    private final Path targetDirectory;
+    private final Path manifestFile;
+    private PathMatcher include = FileSystems.getDefault().getPathMatcher("glob:*.xml");
+    private String outputSuffix = "";
+    private boolean streaming;
+    private boolean skipExternalDtd;
+    private CachingEntityResolver entityResolver;
+    private String[] digestAlgorithms = new String[0];
+
+    private final Queue<CanonicalStepData> idleData = new ConcurrentLinkedQueue<>();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong inputBytes = new AtomicLong();
+    private final AtomicLong outputBytes = new AtomicLong();
+
+    /**
+     * @param sourceDirectory the root of the tree of XML files
+     * @param targetDirectory the root of the tree to write the Canonical XML to, or null (or the source directory)
+     *                        to write it alongside each XML file
+     * @param manifestFile    the CSV file to write the manifest to, which is replaced if it exists
+     */
+    public DirectoryCanonicalizer(final Path sourceDirectory, final Path targetDirectory, final Path manifestFile) {
+        this.sourceDirectory = sourceDirectory.toAbsolutePath().normalize();
+        final Path target = targetDirectory == null ? null : targetDirectory.toAbsolutePath().normalize();
+        this.targetDirectory = this.sourceDirectory.equals(target) ? null : target;
+        this.manifestFile = manifestFile.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Sets the files to canonicalize, by default those whose names end with {@code .xml}.
+     *
+     * @param glob a glob pattern, matched against the name of each file
+     */
+    public void setInclude(final String glob) {
+        this.include = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+    }
+
+    /**
+     * Sets the suffix appended to the name of each file to name its Canonical XML. When writing alongside the XML
+     * files the suffix must not be empty, and files which already have it are not canonicalized again.
+     *
+     * @param outputSuffix the suffix, for example {@code .c14n.xml}
+     */
+    public void setOutputSuffix(final String outputSuffix) {
+        this.outputSuffix = Const.NVL(outputSuffix, "");
+    }
+
+    /**
+     * Sets whether the files are canonicalized in a single streaming pass, rather than through a DOM.
+     *
+     * @param streaming true to canonicalize by streaming
+     */
+    public void setStreaming(final boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Sets how the parsers resolve DTDs and external entities.
+     *
+     * @param skipExternalDtd true to never load external DTDs
+     * @param entityResolver  the resolver shared by the parsers
+     */
+    public void setEntityResolution(final boolean skipExternalDtd, final CachingEntityResolver entityResolver) {
+        this.skipExternalDtd = skipExternalDtd;
+        this.entityResolver = entityResolver;
+    }
+
+    /**
+     * Sets the digests of the Canonical XML to record in the manifest.
+     *
+     * @param digestAlgorithms the names of the digest algorithms, in the order of their columns
+     */
+    public void setDigestAlgorithms(final String[] digestAlgorithms) {
+        this.digestAlgorithms = digestAlgorithms;
+    }
+
+    /**
+     * Canonicalizes the files within the tree, returning once they have all been written.
+     *
+     * @param name    the name of the caller, used to name the threads
+     * @param threads the number of files to canonicalize at once
+     * @param stopped checked before each file, so that the walk can be stopped early
+     * @return the numbers of files and bytes processed
+     * @throws IOException if the manifest cannot be written, or the wait for the threads is interrupted
+     */
+    public Summary canonicalize(final String name, final int threads, final BooleanSupplier stopped) throws IOException {
+        if (targetDirectory == null && outputSuffix.isEmpty()) {
+            throw new IllegalStateException("An output suffix is required to write Canonical XML alongside the source files");
+        }
+        for (final String digestAlgorithm : digestAlgorithms) {
+            newDigest(digestAlgorithm);
+        }
+        org.apache.xml.security.Init.init();
+        files.set(0);
+        errors.set(0);
+        inputBytes.set(0);
+        outputBytes.set(0);
+
+        try (final Manifest manifest = new Manifest(Files.newBufferedWriter(manifestFile, StandardCharsets.UTF_8))) {
+            final ExecutorService executor = WorkerExecutors.newBoundedWorkerExecutor(name, Math.max(1, threads));
+            try {
+                Files.walkFileTree(sourceDirectory, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                        if (stopped.getAsBoolean()) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        // the mirror tree may be within the source tree
+                        return dir.equals(targetDirectory) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                        if (stopped.getAsBoolean()) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        if (isIncluded(file, attrs)) {
+                            executor.execute(() -> canonicalizeFile(file, attrs.size(), manifest));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+                        errors.incrementAndGet();
+                        manifest.add(relativePath(file), -1, -1, null, exc);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            } finally {
+                executor.shutdownNow();
+            }
+            manifest.checkError();
+        }
+        return new Summary(files.get(), errors.get(), inputBytes.get(), outputBytes.get());
+    }
+
+    private boolean isIncluded(final Path file, final BasicFileAttributes attrs) {
+        if (!attrs.isRegularFile() || file.equals(manifestFile) || !include.matches(file.getFileName())) {
+            return false;
+        }
+        // Canonical XML previously written alongside the source files is not canonicalized again
+        return targetDirectory != null || !file.getFileName().toString().endsWith(outputSuffix);
+    }
+
+    private void canonicalizeFile(final Path file, final long size, final Manifest manifest) {
+        final String relativePath = relativePath(file);
+        CanonicalStepData data = idleData.poll();
+        Path temp = null;
+        try {
+            if (data == null) {
+                data = newData();
+            }
+            final Path output = getOutputPath(file);
+            Files.createDirectories(output.getParent());
+            temp = Files.createTempFile(output.getParent(), "." + output.getFileName(), ".tmp");
+
+            final MultiDigestOutputStream os = new MultiDigestOutputStream(data.getDigests()[0], new BufferedOutputStream(Files.newOutputStream(temp)));
+            final InputSource inputSource = XmlFiles.open(file);
+            try (final InputStream is = inputSource.getByteStream(); final MultiDigestOutputStream closeable = os) {
+                if (streaming) {
+                    CanonicalStep.canonicalizeStreaming(inputSource, data, os);
+                } else {
+                    CanonicalStep.canonicalize(CanonicalStep.createDocument(inputSource, data), data, os);
+                }
+            }
+            final String[] hexDigests = os.getHexDigests();
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+
+            final long outputSize = Files.size(output);
+            files.incrementAndGet();
+            inputBytes.addAndGet(size);
+            outputBytes.addAndGet(outputSize);
+            manifest.add(relativePath, size, outputSize, hexDigests, null);
+        } catch (Exception e) {
+            errors.incrementAndGet();
+            manifest.add(relativePath, size, -1, null, e);
+        } finally {
+            deleteQuietly(temp);
+            if (data != null) {
+                idleData.add(data);
+            }
+        }
+    }
+
+    /**
+     * Creates the parsers and digests for a thread, as {@link CanonicalStep} does for each of its workers.
+     */
+    private CanonicalStepData newData() throws KettleException {
+        final CanonicalStepData data = new CanonicalStepData();
+        data.setCanonicalizer(CanonicalStep.getCanonicalizer());
+        data.setDocumentBuilder(CanonicalStep.getDocumentBuilder(skipExternalDtd, entityResolver));
+        data.setXmlInputFactory(CanonicalStep.getXmlInputFactory(skipExternalDtd, entityResolver));
+        final MessageDigest[] digests = new MessageDigest[digestAlgorithms.length];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = newDigest(digestAlgorithms[i]);
+        }
+        data.setDigests(new MessageDigest[][]{digests});
+        return data;
+    }
+
+    private static MessageDigest newDigest(final String digestAlgorithm) {
+        try {
+            return MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    private Path getOutputPath(final Path file) {
+        final String name = file.getFileName() + outputSuffix;
+        if (targetDirectory == null) {
+            return file.resolveSibling(name);
+        }
+        return targetDirectory.resolve(sourceDirectory.relativize(file)).resolveSibling(name);
+    }
+
+    /**
+     * @return the path of a file relative to the source directory, with forward slashes on every platform
+     */
+    private String relativePath(final Path file) {
+        return sourceDirectory.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private static void deleteQuietly(final Path path) {
+        if (path != null) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Writes the rows of the manifest, which may be added by several threads at once.
+     */
+    private class Manifest implements AutoCloseable {
+        private final Writer writer;
+        private IOException error;
+
+        Manifest(final Writer writer) throws IOException {
+            this.writer = new BufferedWriter(writer);
+            final StringBuilder header = new StringBuilder("path,input_bytes,output_bytes");
+            for (final String digestAlgorithm : digestAlgorithms) {
+                header.append(',').append(digestAlgorithm.replace("-", "").toLowerCase(Locale.ROOT));
+            }
+            this.writer.write(header.append(",error\n").toString());
+        }
+
+        /**
+         * Adds a row. Failures to write are held until {@link #checkError()}, so that they do not abort a worker.
+         *
+         * @param relativePath the path of the file relative to the source directory
+         * @param inputSize    the size of the file, or -1 if unknown
+         * @param outputSize   the size of its Canonical XML, or -1 if it was not written
+         * @param hexDigests   the digests of its Canonical XML, or null if it was not written
+         * @param e            the reason the Canonical XML was not written, or null
+         */
+        synchronized void add(final String relativePath, final long inputSize, final long outputSize, final String[] hexDigests, final Exception e) {
+            final StringBuilder row = new StringBuilder(quote(relativePath));
+            row.append(',').append(inputSize < 0 ? "" : Long.toString(inputSize));
+            row.append(',').append(outputSize < 0 ? "" : Long.toString(outputSize));
+            for (int i = 0; i < digestAlgorithms.length; i++) {
+                row.append(',').append(hexDigests == null ? "" : hexDigests[i]);
+            }
+            row.append(',').append(e == null ? "" : quote(Const.NVL(e.getMessage(), e.toString()).trim())).append('\n');
+            try {
+                writer.write(row.toString());
+            } catch (IOException ioe) {
+                if (error == null) {
+                    error = ioe;
+                }
+            }
+        }
+
+        synchronized void checkError() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Quotes a CSV value if it contains a delimiter, quote or line break.
+     */
+    static String quote(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return '"' + value.replace("\"", "\"\"") + '"';
+            }
+        }
+        return value;
+    }
+
+    /**
+     * The numbers of files and bytes processed by {@link #canonicalize(String, int, BooleanSupplier)}.
+     */
+    public static class Summary {
+        private final long files;
+        private final long errors;
+        private final long inputBytes;
+        private final long outputBytes;
+
+        Summary(final long files, final long errors, final long inputBytes, final long outputBytes) {
+            this.files = files;
+            this.errors = errors;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+        }
+
+        /**
+         * @return the number of files whose Canonical XML was written
+         */
+        public long getFiles() {
+            return files;
+        }
+
+        /**
+         * @return the number of files which could not be read or canonicalized
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the total size of the files whose Canonical XML was written
+         */
+        public long getInputBytes() {
+            return inputBytes;
+        }
+
+        /**
+         * @return the total size of the Canonical XML written
+         */
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.xml.validation.ValidatorHandler;
+
+/**
+ * Validates a document which has already been parsed against an XML Schema, without parsing it again.
+ * <p>
+ * The DOM is not parsed namespace aware, so that its namespace declarations are canonicalized as attributes, and
+ * {@link javax.xml.validation.Validator} would then find the namespace of no element. Instead the document is
+ * read by a {@link DocumentXMLReader}, and passed to a {@link ValidatorHandler} as the SAX events a namespace aware
+ * parse would have produced.
+ */
+public class DocumentValidator {
+
+    private DocumentValidator() {
+    }
+
+    /**
+     * @param document         the document to validate
+     * @param validatorHandler the validator, which is used by one thread at a time
+     * @throws SAXException at the first error found, if the document is not valid
+     */
+    public static void validate(final Document document, final ValidatorHandler validatorHandler) throws SAXException {
+        final DocumentXMLReader reader = new DocumentXMLReader(document);
+        reader.setContentHandler(validatorHandler);
+        validatorHandler.setDocumentLocator(null);
+        reader.parse();
+    }
+}
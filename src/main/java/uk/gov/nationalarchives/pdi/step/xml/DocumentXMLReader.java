@@ -0,0 +1,279 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.NamespaceSupport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a document which has already been parsed by {@link CanonicalStep}, so that it can be passed to an
+ * {@link XMLReader} consumer, such as an XSLT transformation, without being parsed again.
+ * <p>
+ * The DOM is not parsed namespace aware, so that its namespace declarations are canonicalized as attributes, and
+ * a {@link javax.xml.transform.dom.DOMSource} of it would find the namespace of no element. Instead the document
+ * is walked in document order, resolving the namespace of each element and attribute from the declarations in
+ * scope, and reported as the SAX events a namespace aware parse would have produced. Comments are reported to the
+ * lexical handler, if one is set. The document type is not reported, and the children of any entity references
+ * which were not expanded are reported as if they had been.
+ * <p>
+ * The input source given to {@link #parse(InputSource)} is ignored, as the document is the input.
+ */
+public class DocumentXMLReader implements XMLReader {
+
+    private static final String NAMESPACES_FEATURE = "http://xml.org/sax/features/namespaces";
+    private static final String NAMESPACE_PREFIXES_FEATURE = "http://xml.org/sax/features/namespace-prefixes";
+    private static final String LEXICAL_HANDLER_PROPERTY = "http://xml.org/sax/properties/lexical-handler";
+
+    private final Document document;
+    private ContentHandler contentHandler;
+    private LexicalHandler lexicalHandler;
+    private DTDHandler dtdHandler;
+    private EntityResolver entityResolver;
+    private ErrorHandler errorHandler;
+
+    private final NamespaceSupport namespaces = new NamespaceSupport();
+    private final AttributesImpl attributes = new AttributesImpl();
+    private final List<List<String>> declaredPrefixes = new ArrayList<>();
+    private final String[] parts = new String[3];
+
+    /**
+     * @param document the document to read, which must not be modified or read by another thread while it is read
+     */
+    public DocumentXMLReader(final Document document) {
+        this.document = document;
+    }
+
+    @Override
+    public boolean getFeature(final String name) throws SAXNotRecognizedException {
+        if (NAMESPACES_FEATURE.equals(name)) {
+            return true;
+        } else if (NAMESPACE_PREFIXES_FEATURE.equals(name)) {
+            return false;
+        }
+        throw new SAXNotRecognizedException(name);
+    }
+
+    @Override
+    public void setFeature(final String name, final boolean value) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (getFeature(name) != value) {
+            throw new SAXNotSupportedException(name);
+        }
+    }
+
+    @Override
+    public Object getProperty(final String name) throws SAXNotRecognizedException {
+        if (LEXICAL_HANDLER_PROPERTY.equals(name)) {
+            return lexicalHandler;
+        }
+        throw new SAXNotRecognizedException(name);
+    }
+
+    @Override
+    public void setProperty(final String name, final Object value) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (!LEXICAL_HANDLER_PROPERTY.equals(name)) {
+            throw new SAXNotRecognizedException(name);
+        } else if (value != null && !(value instanceof LexicalHandler)) {
+            throw new SAXNotSupportedException(name);
+        }
+        this.lexicalHandler = (LexicalHandler) value;
+    }
+
+    @Override
+    public void setEntityResolver(final EntityResolver entityResolver) {
+        this.entityResolver = entityResolver;
+    }
+
+    @Override
+    public EntityResolver getEntityResolver() {
+        return entityResolver;
+    }
+
+    @Override
+    public void setDTDHandler(final DTDHandler dtdHandler) {
+        this.dtdHandler = dtdHandler;
+    }
+
+    @Override
+    public DTDHandler getDTDHandler() {
+        return dtdHandler;
+    }
+
+    @Override
+    public void setContentHandler(final ContentHandler contentHandler) {
+        this.contentHandler = contentHandler;
+    }
+
+    @Override
+    public ContentHandler getContentHandler() {
+        return contentHandler;
+    }
+
+    @Override
+    public void setErrorHandler(final ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    @Override
+    public ErrorHandler getErrorHandler() {
+        return errorHandler;
+    }
+
+    @Override
+    public void parse(final InputSource input) throws SAXException {
+        parse();
+    }
+
+    @Override
+    public void parse(final String systemId) throws SAXException {
+        parse();
+    }
+
+    /**
+     * Reports the document to the content handler.
+     *
+     * @throws SAXException if the content handler stops the walk, or the prefix of a name is not declared
+     */
+    void parse() throws SAXException {
+        namespaces.reset();
+        declaredPrefixes.clear();
+        contentHandler.startDocument();
+
+        // walked without recursion, as documents may be nested more deeply than the stack allows
+        Node node = document;
+        while (true) {
+            Node next = node.getFirstChild();
+            if (next == null) {
+                // end the node, and each ancestor of which it is the last descendant
+                while (true) {
+                    if (node == document) {
+                        contentHandler.endDocument();
+                        return;
+                    }
+                    end(node);
+                    next = node.getNextSibling();
+                    if (next != null) {
+                        break;
+                    }
+                    node = node.getParentNode();
+                }
+            }
+            node = next;
+            start(node);
+        }
+    }
+
+    private void start(final Node node) throws SAXException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                startElement((Element) node);
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                final char[] text = ((CharacterData) node).getData().toCharArray();
+                contentHandler.characters(text, 0, text.length);
+                break;
+            case Node.COMMENT_NODE:
+                if (lexicalHandler != null) {
+                    final char[] comment = ((CharacterData) node).getData().toCharArray();
+                    lexicalHandler.comment(comment, 0, comment.length);
+                }
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                final ProcessingInstruction pi = (ProcessingInstruction) node;
+                contentHandler.processingInstruction(pi.getTarget(), pi.getData());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void end(final Node node) throws SAXException {
+        if (node.getNodeType() == Node.ELEMENT_NODE) {
+            resolve(node.getNodeName(), false);
+            contentHandler.endElement(parts[0], parts[1], parts[2]);
+            for (final String prefix : declaredPrefixes.remove(declaredPrefixes.size() - 1)) {
+                contentHandler.endPrefixMapping(prefix);
+            }
+            namespaces.popContext();
+        }
+    }
+
+    private void startElement(final Element element) throws SAXException {
+        namespaces.pushContext();
+        final List<String> prefixes = new ArrayList<>();
+        final NamedNodeMap attrs = element.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            final Attr attr = (Attr) attrs.item(i);
+            final String name = attr.getName();
+            if (isNamespaceDeclaration(name)) {
+                final String prefix = name.length() == 5 ? "" : name.substring(6);
+                namespaces.declarePrefix(prefix, attr.getValue());
+                contentHandler.startPrefixMapping(prefix, attr.getValue());
+                prefixes.add(prefix);
+            }
+        }
+        declaredPrefixes.add(prefixes);
+
+        attributes.clear();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            final Attr attr = (Attr) attrs.item(i);
+            final String name = attr.getName();
+            if (!isNamespaceDeclaration(name)) {
+                resolve(name, true);
+                attributes.addAttribute(parts[0], parts[1], parts[2], "CDATA", attr.getValue());
+            }
+        }
+        resolve(element.getNodeName(), false);
+        contentHandler.startElement(parts[0], parts[1], parts[2], attributes);
+    }
+
+    private static boolean isNamespaceDeclaration(final String name) {
+        return name.equals("xmlns") || name.startsWith("xmlns:");
+    }
+
+    private void resolve(final String qualifiedName, final boolean isAttribute) throws SAXException {
+        if (namespaces.processName(qualifiedName, parts, isAttribute) == null) {
+            throw new SAXException("The prefix of " + qualifiedName + " is not declared");
+        }
+    }
+}
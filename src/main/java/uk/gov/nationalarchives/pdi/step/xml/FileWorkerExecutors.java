@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the executor used to process rows concurrently within a single step copy when the XML is read from
+ * files, which spends most of its time waiting for I/O.
+ * <p>
+ * This is the version for Java 8 to 20, which uses a bounded pool of platform threads. The plugin jar is a
+ * multi-release jar, and on Java 21 and later the version in {@code META-INF/versions/21} is used instead, which
+ * runs each row on its own virtual thread.
+ */
+public class FileWorkerExecutors {
+
+    /**
+     * The most platform threads for each processor which the executor may have, as each costs a stack whether
+     * it is waiting for I/O or not.
+     */
+    static final int MAX_THREADS_PER_PROCESSOR = 8;
+
+    private FileWorkerExecutors() {
+    }
+
+    /**
+     * Creates a fixed size pool of daemon worker threads, of no more than {@link #MAX_THREADS_PER_PROCESSOR} for
+     * each processor.
+     *
+     * @param name    the name of the step, used to name the threads
+     * @param threads the number of worker threads
+     * @return the executor
+     */
+    public static ExecutorService newFileWorkerExecutor(final String name, final int threads) {
+        return WorkerExecutors.newWorkerExecutor(name, Math.min(threads, Runtime.getRuntime().availableProcessors() * MAX_THREADS_PER_PROCESSOR));
+    }
+
+    /**
+     * @return true if the executors created run their tasks on virtual threads
+     */
+    public static boolean isVirtual() {
+        return false;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An OutputStream which updates several message digests with the bytes written to it, and optionally passes
+ * them on to another stream. This allows fixity values to be computed in the same pass that produces the
+ * bytes, without needing to hold them in memory.
+ * <p>
+ * When given an executor, once more than a threshold of bytes has been written, each digest is instead updated
+ * on a thread of its own. The bytes are then passed to the digests in chunks through a bounded queue for each,
+ * so that the time taken is close to that of the slowest digest rather than the sum of them all, while the bytes
+ * held in memory remain bounded.
+ */
+public class MultiDigestOutputStream extends OutputStream {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * The size of the chunks of bytes passed to the digest threads.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The number of chunks which may be waiting for each digest thread.
+     */
+    static final int QUEUED_CHUNKS = 8;
+
+    // marks the end of the bytes for a digest thread
+    private static final byte[] END = new byte[0];
+
+    private final MessageDigest[] digests;
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final long parallelThreshold;
+
+    private long written = 0;
+    private BlockingQueue<byte[]>[] queues;
+    private Future<?>[] digestTasks;
+    private byte[] chunk;
+    private int chunkLength;
+
+    /**
+     * @param digests the digests to update, which are reset first
+     * @param out     the stream to pass the bytes on to, or null to discard them
+     */
+    public MultiDigestOutputStream(final MessageDigest[] digests, final OutputStream out) {
+        this(digests, out, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param digests           the digests to update, which are reset first
+     * @param out               the stream to pass the bytes on to, or null to discard them
+     * @param executor          the executor to update the digests on in parallel, or null to always update them
+     *                          on the writing thread; it must be able to run a task for each digest at once
+     * @param parallelThreshold the number of bytes after which the digests are updated in parallel
+     */
+    public MultiDigestOutputStream(final MessageDigest[] digests, final OutputStream out, final ExecutorService executor, final long parallelThreshold) {
+        this.digests = digests;
+        this.out = out;
+        this.executor = digests.length > 1 ? executor : null;
+        this.parallelThreshold = parallelThreshold;
+        for (final MessageDigest digest : digests) {
+            digest.reset();
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (queues == null && executor != null && written + 1 > parallelThreshold) {
+            startDigestTasks();
+        }
+        if (queues != null) {
+            if (chunkLength == CHUNK_SIZE) {
+                putChunk();
+            }
+            chunk[chunkLength++] = (byte) b;
+        } else {
+            for (final MessageDigest digest : digests) {
+                digest.update((byte) b);
+            }
+        }
+        written++;
+        if (out != null) {
+            out.write(b);
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (queues == null && executor != null && written + len > parallelThreshold) {
+            startDigestTasks();
+        }
+        if (queues != null) {
+            int copied = 0;
+            while (copied < len) {
+                if (chunkLength == CHUNK_SIZE) {
+                    putChunk();
+                }
+                final int length = Math.min(len - copied, CHUNK_SIZE - chunkLength);
+                System.arraycopy(b, off + copied, chunk, chunkLength, length);
+                chunkLength += length;
+                copied += length;
+            }
+        } else {
+            for (final MessageDigest digest : digests) {
+                digest.update(b, off, len);
+            }
+        }
+        written += len;
+        if (out != null) {
+            out.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void startDigestTasks() {
+        queues = new BlockingQueue[digests.length];
+        digestTasks = new Future<?>[digests.length];
+        for (int i = 0; i < digests.length; i++) {
+            final MessageDigest digest = digests[i];
+            final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+            queues[i] = queue;
+            digestTasks[i] = executor.submit(() -> {
+                for (byte[] bytes = queue.take(); bytes != END; bytes = queue.take()) {
+                    digest.update(bytes);
+                }
+                return null;
+            });
+        }
+        chunk = new byte[CHUNK_SIZE];
+        chunkLength = 0;
+    }
+
+    /**
+     * Passes the current chunk to every digest thread. The chunk is never written to again, so it is shared
+     * between them.
+     */
+    private void putChunk() throws InterruptedIOException {
+        final byte[] full = chunkLength == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, chunkLength);
+        put(full);
+        chunk = new byte[CHUNK_SIZE];
+        chunkLength = 0;
+    }
+
+    private void put(final byte[] bytes) throws InterruptedIOException {
+        try {
+            for (final BlockingQueue<byte[]> queue : queues) {
+                queue.put(bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Completes the digests.
+     *
+     * @return the lower-case hexadecimal value of each digest, in the order they were given
+     * @throws IOException if a digest thread failed, or the wait for them was interrupted
+     */
+    public String[] getHexDigests() throws IOException {
+        if (queues != null) {
+            if (chunkLength > 0) {
+                putChunk();
+            }
+            put(END);
+            try {
+                for (final Future<?> digestTask : digestTasks) {
+                    digestTask.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort();
+                throw new InterruptedIOException(e.getMessage());
+            } catch (ExecutionException e) {
+                abort();
+                throw new IOException(e.getCause());
+            }
+            queues = null;
+            digestTasks = null;
+        }
+
+        final String[] hexDigests = new String[digests.length];
+        for (int i = 0; i < digests.length; i++) {
+            hexDigests[i] = toHex(digests[i].digest());
+        }
+        return hexDigests;
+    }
+
+    /**
+     * Stops any digest threads, without completing the digests. This must be called if the digests of bytes
+     * which have been written will not be completed, so that the threads are not left waiting for more bytes.
+     */
+    public void abort() {
+        if (digestTasks != null) {
+            for (final Future<?> digestTask : digestTasks) {
+                digestTask.cancel(true);
+            }
+            queues = null;
+            digestTasks = null;
+        }
+    }
+
+    static String toHex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+/**
+ * A Java Flight Recorder event timing a phase of the canonicalization of a document by the Canonical XML step, so
+ * that slow documents can be correlated with GC pauses and allocation in the same recording.
+ * <p>
+ * This is the version for Java 8, which has no Flight Recorder API, and so records nothing. The plugin jar is a
+ * multi-release jar, and on Java 11 and later the version in {@code META-INF/versions/11} is used instead.
+ */
+public class PhaseEvent {
+
+    private static final PhaseEvent NONE = new PhaseEvent();
+
+    private PhaseEvent() {
+    }
+
+    /**
+     * Begins timing the parse of a document into a DOM.
+     *
+     * @return the event, to be ended when the document is parsed
+     */
+    public static PhaseEvent parse() {
+        return NONE;
+    }
+
+    /**
+     * Begins timing the canonicalization of a document, which includes its parse when it is canonicalized as a
+     * stream of parser events.
+     *
+     * @return the event, to be ended when the canonical XML is written
+     */
+    public static PhaseEvent canonicalize() {
+        return NONE;
+    }
+
+    /**
+     * Ends the phase, and commits the event if it is being recorded and lasted long enough.
+     *
+     * @param stepName    the name of the step
+     * @param copyNr      the copy of the step
+     * @param rowNr       the number of the row read by the step copy
+     * @param inputBytes  the number of bytes of XML read
+     * @param outputBytes the number of bytes of canonical XML written
+     * @param error       true if the phase failed
+     */
+    public void end(final String stepName, final int copyNr, final long rowNr, final long inputBytes, final long outputBytes, final boolean error) {
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/**
+ * Splits a document into records, and canonicalizes each record on its own, in a single pass over a stream of
+ * parser events. Only the canonical form of one record is ever produced at a time, so memory is bounded by the
+ * largest record rather than by the document.
+ * <p>
+ * Records are identified either by the qualified name of their element, in which case any element of that name
+ * is a record, or by an absolute path of qualified names such as {@code /export/records/record}. Elements nested
+ * within a record are part of it, and are never records themselves. The canonical form of each record is the
+ * same as that of its element selected by XPath: the namespace declarations in scope from its ancestors are
+ * declared on the elements of the record which use them.
+ */
+public class RecordSplitter {
+
+    private final XMLStreamReader reader;
+    private final String recordName;
+    private final String[] recordPath;
+
+    // the qualified names of the open elements, and their namespace declarations by attribute name
+    private final List<String> path = new ArrayList<>();
+    private final List<Map<String, String>> namespaces = new ArrayList<>();
+
+    /**
+     * @param reader the reader to pull events from, positioned at the start of the document
+     * @param record the qualified name of the record elements, or an absolute path to them
+     */
+    public RecordSplitter(final XMLStreamReader reader, final String record) {
+        this.reader = reader;
+        if (record.startsWith("/")) {
+            this.recordName = null;
+            this.recordPath = record.substring(1).split("/");
+        } else {
+            this.recordName = record;
+            this.recordPath = null;
+        }
+    }
+
+    /**
+     * Reads to the next record, and writes its canonical form.
+     *
+     * @param os the stream to write the UTF-8 encoded canonical form of the record to
+     * @return true if a record was written, or false if the document has no more records
+     * @throws XMLStreamException if the document cannot be parsed
+     * @throws IOException        if the canonical form cannot be written
+     */
+    public boolean next(final OutputStream os) throws XMLStreamException, IOException {
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == START_ELEMENT) {
+                final String name = qualifiedName(reader.getPrefix(), reader.getLocalName());
+                if (isRecord(name)) {
+                    new StreamingCanonicalizer(reader, os).canonicalizeElement(getInheritedNamespaces());
+                    return true;
+                }
+                path.add(name);
+                namespaces.add(getNamespaces());
+            } else if (event == END_ELEMENT) {
+                path.remove(path.size() - 1);
+                namespaces.remove(namespaces.size() - 1);
+            }
+        }
+        return false;
+    }
+
+    private boolean isRecord(final String name) {
+        if (recordName != null) {
+            return recordName.equals(name);
+        }
+        if (path.size() != recordPath.length - 1 || !recordPath[path.size()].equals(name)) {
+            return false;
+        }
+        for (int i = 0; i < path.size(); i++) {
+            if (!recordPath[i].equals(path.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Map<String, String> getNamespaces() {
+        final Map<String, String> declarations = new HashMap<>();
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            final String prefix = reader.getNamespacePrefix(i);
+            final String uri = reader.getNamespaceURI(i);
+            declarations.put(prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, uri == null ? "" : uri);
+        }
+        return declarations;
+    }
+
+    /**
+     * @return the nearest declaration of each namespace attribute on the open elements, which the record declares
+     * only where it uses them
+     */
+    private Map<String, String> getInheritedNamespaces() {
+        final Map<String, String> inherited = new HashMap<>();
+        for (final Map<String, String> declarations : namespaces) {
+            inherited.putAll(declarations);
+        }
+        return inherited;
+    }
+
+    private static String qualifiedName(final String prefix, final String localName) {
+        if (prefix == null || prefix.isEmpty()) {
+            return localName;
+        }
+        return prefix + ':' + localName;
+    }
+}
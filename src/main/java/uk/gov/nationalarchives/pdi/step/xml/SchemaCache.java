@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiles XML Schemas, holding them for reuse by all rows and step copies in the JVM. Compiling a large set of
+ * schemas costs far more than validating a document against them, and a compiled {@link Schema} is thread-safe, so
+ * only the {@link ValidatorHandler}s created from it need to be held for each thread.
+ * <p>
+ * A schema held in a local file is compiled again once the file has been modified. The documents it imports or
+ * includes are resolved through, and cached by, a {@link CachingEntityResolver}, and changes to them are not seen.
+ */
+public class SchemaCache {
+
+    private static final Map<Key, CachedSchema> SCHEMAS = new ConcurrentHashMap<>();
+
+    private SchemaCache() {
+    }
+
+    /**
+     * Gets a compiled schema, compiling it if it has not already been compiled, or its file has since been modified.
+     *
+     * @param schemaLocation a local file path or URI of the schema
+     * @param entityResolver the resolver for the documents the schema imports or includes
+     * @return the compiled schema
+     * @throws IOException  if the modification time of a local schema file cannot be read
+     * @throws SAXException if the schema cannot be compiled
+     */
+    public static Schema getSchema(final String schemaLocation, final CachingEntityResolver entityResolver) throws IOException, SAXException {
+        final Key key = new Key(schemaLocation, entityResolver);
+        final Path path = XmlFiles.toLocalPath(schemaLocation);
+        final long lastModified = path != null ? Files.getLastModifiedTime(path).toMillis() : -1;
+
+        final CachedSchema cached = SCHEMAS.get(key);
+        if (cached != null && cached.lastModified == lastModified) {
+            return cached.schema;
+        }
+
+        // a schema compiled by two threads at once is compiled twice, rather than one waiting for the other
+        final SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        schemaFactory.setResourceResolver(entityResolver);
+        if (entityResolver.isCatalogOnly()) {
+            // a document which the resolver cannot read must not then be fetched by the factory itself
+            schemaFactory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "file");
+            schemaFactory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "file");
+        }
+        final Schema schema = schemaFactory.newSchema(new StreamSource(path != null ? path.toUri().toString() : schemaLocation));
+        SCHEMAS.put(key, new CachedSchema(schema, lastModified));
+        return schema;
+    }
+
+    /**
+     * Creates a validator for a thread, which fails at the first error in a document rather than only at fatal errors.
+     *
+     * @param schema the schema to validate against
+     * @return the validator
+     */
+    public static ValidatorHandler newValidatorHandler(final Schema schema) {
+        final ValidatorHandler validatorHandler = schema.newValidatorHandler();
+        validatorHandler.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(final SAXParseException exception) {
+                // warnings do not make a document invalid
+            }
+
+            @Override
+            public void error(final SAXParseException exception) throws SAXException {
+                throw exception;
+            }
+
+            @Override
+            public void fatalError(final SAXParseException exception) throws SAXException {
+                throw exception;
+            }
+        });
+        return validatorHandler;
+    }
+
+    private static class Key {
+        private final String schemaLocation;
+        private final CachingEntityResolver entityResolver;
+
+        Key(final String schemaLocation, final CachingEntityResolver entityResolver) {
+            this.schemaLocation = schemaLocation;
+            this.entityResolver = entityResolver;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return schemaLocation.equals(other.schemaLocation) && entityResolver == other.entityResolver;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(schemaLocation, System.identityHashCode(entityResolver));
+        }
+    }
+
+    private static class CachedSchema {
+        private final Schema schema;
+        private final long lastModified;
+
+        CachedSchema(final Schema schema, final long lastModified) {
+            this.schema = schema;
+            this.lastModified = lastModified;
+        }
+    }
+}
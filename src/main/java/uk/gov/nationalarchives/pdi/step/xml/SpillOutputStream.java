@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An OutputStream which holds the bytes written to it in memory until they exceed a threshold, and then moves them
+ * to a temporary file, which all further bytes are written to through a FileChannel. This bounds the memory needed
+ * for an output regardless of its size.
+ */
+public class SpillOutputStream extends OutputStream {
+
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final long threshold;
+    private final Path directory;
+    private final String suffix;
+    private MemoryBuffer memory = new MemoryBuffer();
+    private Path file;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+
+    /**
+     * @param threshold the number of bytes that may be held in memory
+     * @param directory the directory in which to create the file, if the threshold is exceeded
+     */
+    public SpillOutputStream(final long threshold, final Path directory) {
+        this(threshold, directory, ".xml");
+    }
+
+    /**
+     * @param threshold the number of bytes that may be held in memory
+     * @param directory the directory in which to create the file, if the threshold is exceeded
+     * @param suffix    the suffix of the name of the file
+     */
+    public SpillOutputStream(final long threshold, final Path directory, final String suffix) {
+        this.threshold = threshold;
+        this.directory = directory;
+        this.suffix = suffix;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (channel == null) {
+            if (memory.size() < threshold) {
+                memory.write(b);
+                return;
+            }
+            spill();
+        }
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (channel == null) {
+            if (memory.size() + (long) len <= threshold) {
+                memory.write(b, off, len);
+                return;
+            }
+            spill();
+        }
+        if (len > buffer.remaining()) {
+            drain();
+        }
+        if (len >= buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(b, off, len));
+        } else {
+            buffer.put(b, off, len);
+        }
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile(directory, "canonical-", suffix);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        buffer = ByteBuffer.allocate(FILE_BUFFER_SIZE);
+        writeFully(memory.asByteBuffer());
+        memory = null;
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(final ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (channel != null) {
+            drain();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            try {
+                drain();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the stream and deletes the file, if the bytes were moved to one.
+     */
+    public void discard() {
+        try {
+            close();
+        } catch (IOException e) {
+            // the file is deleted regardless
+        }
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * @return true if the threshold was exceeded, and the bytes were moved to a file
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @return the file holding the bytes, or null if they are held in memory
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return a copy of the bytes held in memory
+     */
+    public byte[] toByteArray() {
+        return memory.toByteArray();
+    }
+
+    /**
+     * @return the bytes held in memory decoded as UTF-8
+     */
+    public String toUtf8String() {
+        return memory.toUtf8String();
+    }
+
+    /**
+     * A ByteArrayOutputStream whose bytes can be read without copying them.
+     */
+    private static class MemoryBuffer extends ByteArrayOutputStream {
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        String toUtf8String() {
+            return new String(buf, 0, count, StandardCharsets.UTF_8);
+        }
+    }
+}
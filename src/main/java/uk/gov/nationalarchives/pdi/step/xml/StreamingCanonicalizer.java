@@ -0,0 +1,431 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static javax.xml.stream.XMLStreamConstants.*;
+
+/**
+ * Exclusive XML Canonicalization (with comments) performed directly from a StAX event stream, so that no DOM has
+ * to be built for the document.
+ * <p>
+ * The output is byte-identical to that produced by
+ * {@link CanonicalStep#canonicalize(org.w3c.dom.Document, CanonicalStepData)} for the same input. The
+ * DocumentBuilder used by the DOM path is not namespace aware, so Apache Santuario sees namespace declarations as
+ * ordinary attributes; they are therefore reproduced here exactly as declared, and sorted together with the other
+ * attributes by their qualified name.
+ * <p>
+ * A document may either be canonicalized in one call to {@link #canonicalize()}, or one event at a time with
+ * {@link #advance()}, so that the output can be consumed as it is produced.
+ */
+public class StreamingCanonicalizer {
+
+    private final XMLStreamReader reader;
+    private final Writer writer;
+    private final List<Attribute> attributes = new ArrayList<>();
+
+    private int depth = 0;
+    private boolean afterDocumentElement = false;
+    private boolean started = false;
+
+    // the steps of the path to the current element, and the number of child elements of each name seen so far
+    // for the document and each open element; only kept when the path is tracked
+    private boolean trackPath = false;
+    private final List<String> pathSteps = new ArrayList<>();
+    private final List<Map<String, Integer>> childCounts = new ArrayList<>();
+    private boolean endElementPending = false;
+
+    // namespace declarations of the ancestors of an element canonicalized on its own, the namespace attributes in
+    // scope within its output, and those put in scope by each open element of it
+    private Map<String, String> inheritedNamespaces = Collections.emptyMap();
+    private final Set<String> namespacesInScope = new HashSet<>();
+    private final List<List<String>> namespaceScopes = new ArrayList<>();
+
+    /**
+     * @param reader the reader to pull events from, positioned at the start of the document
+     * @param os     the stream to write the UTF-8 encoded canonical form to
+     */
+    public StreamingCanonicalizer(final XMLStreamReader reader, final OutputStream os) {
+        this(reader, new OutputStreamWriter(os, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param reader the reader to pull events from, positioned at the start of the document
+     * @param writer the writer to write the canonical form to
+     */
+    public StreamingCanonicalizer(final XMLStreamReader reader, final Writer writer) {
+        this.reader = reader;
+        this.writer = writer;
+    }
+
+    /**
+     * Canonicalizes all remaining events of the document, and flushes the output.
+     *
+     * @throws XMLStreamException if the document cannot be parsed
+     * @throws IOException        if the canonical form cannot be written
+     */
+    public void canonicalize() throws XMLStreamException, IOException {
+        while (advance()) {
+            // each event is written by advance
+        }
+    }
+
+    /**
+     * Canonicalizes the next event of the document. Output written to an OutputStream may remain buffered until
+     * the document is complete; output written to a Writer is written as each event is canonicalized.
+     *
+     * @return true if an event was canonicalized, or false if the document was already complete, in which case the
+     * output has been flushed
+     * @throws XMLStreamException if the document cannot be parsed
+     * @throws IOException        if the canonical form cannot be written
+     */
+    public boolean advance() throws XMLStreamException, IOException {
+        if (started) {
+            if (!reader.hasNext()) {
+                writer.flush();
+                return false;
+            }
+            reader.next();
+        }
+        started = true;
+        handleEvent();
+        return true;
+    }
+
+    /**
+     * Canonicalizes the element at which the reader is positioned, and its content, as a subtree on its own. The
+     * reader is left at the end of the element. As with the DOM path, namespace declarations of the ancestors of
+     * the element are not otherwise output, so those in scope must be given. As in Exclusive XML Canonicalization,
+     * each is declared only on the elements of the subtree whose name or attributes use it, and which are not within
+     * an element that declares it.
+     *
+     * @param inheritedNamespaces the nearest declaration of each namespace attribute ({@code xmlns} or
+     *                            {@code xmlns:prefix}) on the ancestors of the element, by name
+     * @throws XMLStreamException if the element cannot be parsed
+     * @throws IOException        if the canonical form cannot be written
+     */
+    public void canonicalizeElement(final Map<String, String> inheritedNamespaces) throws XMLStreamException, IOException {
+        this.inheritedNamespaces = inheritedNamespaces;
+        started = true;
+        handleEvent();
+        while (depth > 0) {
+            reader.next();
+            handleEvent();
+        }
+        this.inheritedNamespaces = Collections.emptyMap();
+        writer.flush();
+    }
+
+    /**
+     * Sets whether the path to the current element is tracked, so that it can be reported by {@link #getPath()}.
+     * This must be set before the first event is canonicalized.
+     *
+     * @param trackPath true to track the path
+     */
+    public void setTrackPath(final boolean trackPath) {
+        this.trackPath = trackPath;
+        if (trackPath && childCounts.isEmpty()) {
+            childCounts.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * @return an XPath, such as {@code /doc[1]/item[3]}, locating the element of the event last canonicalized,
+     * or {@code /} if that event was outside of the document element; the path is only tracked when
+     * {@link #setTrackPath(boolean)} is set
+     */
+    public String getPath() {
+        if (pathSteps.isEmpty()) {
+            return "/";
+        }
+        final StringBuilder path = new StringBuilder();
+        for (final String step : pathSteps) {
+            path.append('/').append(step);
+        }
+        return path.toString();
+    }
+
+    private void handleEvent() throws IOException {
+        if (endElementPending) {
+            // the path of an end element is that of the element, so it is only left at the next event
+            pathSteps.remove(pathSteps.size() - 1);
+            childCounts.remove(childCounts.size() - 1);
+            endElementPending = false;
+        }
+        switch (reader.getEventType()) {
+            case START_ELEMENT:
+                if (trackPath) {
+                    enterElement();
+                }
+                writeStartElement();
+                depth++;
+                break;
+
+            case END_ELEMENT:
+                endElementPending = trackPath;
+                depth--;
+                if (!namespaceScopes.isEmpty()) {
+                    namespacesInScope.removeAll(namespaceScopes.remove(namespaceScopes.size() - 1));
+                }
+                writer.write("</");
+                writer.write(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+                writer.write('>');
+                if (depth == 0) {
+                    afterDocumentElement = true;
+                }
+                break;
+
+            case CHARACTERS:
+            case CDATA:
+            case SPACE:
+                // whitespace outside of the document element is not part of the canonical form
+                if (depth > 0) {
+                    writeText(writer, reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+                break;
+
+            case COMMENT:
+                beforeTopLevelNode();
+                writer.write("<!--");
+                writeEscapingCarriageReturns(reader.getText());
+                writer.write("-->");
+                afterTopLevelNode();
+                break;
+
+            case PROCESSING_INSTRUCTION:
+                beforeTopLevelNode();
+                writer.write("<?");
+                writer.write(reader.getPITarget());
+                final String data = reader.getPIData();
+                if (data != null && !data.isEmpty()) {
+                    writer.write(' ');
+                    writeEscapingCarriageReturns(data);
+                }
+                writer.write("?>");
+                afterTopLevelNode();
+                break;
+
+            default:
+                // the XML declaration, DTD and end of document produce no output
+                break;
+        }
+    }
+
+    private void enterElement() {
+        final String name = qualifiedName(reader.getPrefix(), reader.getLocalName());
+        final int position = childCounts.get(childCounts.size() - 1).merge(name, 1, Integer::sum);
+        pathSteps.add(name + '[' + position + ']');
+        childCounts.add(new HashMap<>());
+    }
+
+    private void beforeTopLevelNode() throws IOException {
+        if (depth == 0 && afterDocumentElement) {
+            writer.write('\n');
+        }
+    }
+
+    private void afterTopLevelNode() throws IOException {
+        if (depth == 0 && !afterDocumentElement) {
+            writer.write('\n');
+        }
+    }
+
+    private void writeStartElement() throws IOException {
+        writer.write('<');
+        writer.write(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+
+        attributes.clear();
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            final String prefix = reader.getNamespacePrefix(i);
+            final String uri = reader.getNamespaceURI(i);
+            final String name = prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix;
+            attributes.add(new Attribute(name, uri == null ? "" : uri));
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            attributes.add(new Attribute(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                    reader.getAttributeValue(i)));
+        }
+        if (!inheritedNamespaces.isEmpty()) {
+            declareUsedNamespaces();
+        }
+        Collections.sort(attributes);
+
+        for (final Attribute attribute : attributes) {
+            writer.write(' ');
+            writer.write(attribute.name);
+            writer.write("=\"");
+            writeAttributeValue(writer, attribute.value);
+            writer.write('"');
+        }
+        writer.write('>');
+    }
+
+    /**
+     * Adds a declaration of each inherited namespace that the name or attributes of the element use, unless it is
+     * in scope already. The namespace attributes put in scope by the element are taken out of scope at its end.
+     */
+    private void declareUsedNamespaces() {
+        final List<String> added = new ArrayList<>();
+        // only the namespace declarations have been added to the attributes so far
+        final int declarations = reader.getNamespaceCount();
+        for (int i = 0; i < declarations; i++) {
+            if (namespacesInScope.add(attributes.get(i).name)) {
+                added.add(attributes.get(i).name);
+            }
+        }
+        declareIfUsed(reader.getPrefix(), added);
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            final String prefix = reader.getAttributePrefix(i);
+            // an attribute without a prefix is in no namespace, rather than the default namespace
+            if (prefix != null && !prefix.isEmpty()) {
+                declareIfUsed(prefix, added);
+            }
+        }
+        namespaceScopes.add(added);
+    }
+
+    private void declareIfUsed(final String prefix, final List<String> added) {
+        if ("xml".equals(prefix)) {
+            return;
+        }
+        final String name = prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix;
+        if (namespacesInScope.add(name)) {
+            added.add(name);
+            final String uri = inheritedNamespaces.get(name);
+            if (uri != null && !(name.equals("xmlns") && uri.isEmpty())) {
+                attributes.add(new Attribute(name, uri));
+            }
+        }
+    }
+
+    private static String qualifiedName(final String prefix, final String localName) {
+        if (prefix == null || prefix.isEmpty()) {
+            return localName;
+        }
+        return prefix + ':' + localName;
+    }
+
+    static void writeText(final Writer writer, final char[] ch, final int start, final int length) throws IOException {
+        final int end = start + length;
+        int unescaped = start;
+        for (int i = start; i < end; i++) {
+            final String replacement;
+            switch (ch[i]) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '\r':
+                    replacement = "&#xD;";
+                    break;
+                default:
+                    continue;
+            }
+            writer.write(ch, unescaped, i - unescaped);
+            writer.write(replacement);
+            unescaped = i + 1;
+        }
+        writer.write(ch, unescaped, end - unescaped);
+    }
+
+    static void writeAttributeValue(final Writer writer, final String value) throws IOException {
+        final int end = value.length();
+        int unescaped = 0;
+        for (int i = 0; i < end; i++) {
+            final String replacement;
+            switch (value.charAt(i)) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\t':
+                    replacement = "&#x9;";
+                    break;
+                case '\n':
+                    replacement = "&#xA;";
+                    break;
+                case '\r':
+                    replacement = "&#xD;";
+                    break;
+                default:
+                    continue;
+            }
+            writer.write(value, unescaped, i - unescaped);
+            writer.write(replacement);
+            unescaped = i + 1;
+        }
+        writer.write(value, unescaped, end - unescaped);
+    }
+
+    private void writeEscapingCarriageReturns(final String value) throws IOException {
+        final int end = value.length();
+        int unescaped = 0;
+        for (int i = 0; i < end; i++) {
+            if (value.charAt(i) == '\r') {
+                writer.write(value, unescaped, i - unescaped);
+                writer.write("&#xD;");
+                unescaped = i + 1;
+            }
+        }
+        writer.write(value, unescaped, end - unescaped);
+    }
+
+    static class Attribute implements Comparable<Attribute> {
+        final String name;
+        final String value;
+
+        Attribute(final String name, final String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(final Attribute other) {
+            return name.compareTo(other.name);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiles XSLT stylesheets, holding them for reuse by all rows, step copies and runs in the JVM. A compiled
+ * {@link Templates} is thread-safe, so only the {@link Transformer}s created from it need to be held for each thread.
+ * <p>
+ * A stylesheet is identified by its URI and a SHA-256 checksum of its content, and is compiled again once its
+ * content changes. The stylesheets it imports or includes are resolved through, and cached by, a
+ * {@link CachingEntityResolver}, and changes to them are not seen.
+ */
+public class TemplatesCache {
+
+    private static final Map<Key, CachedTemplates> TEMPLATES = new ConcurrentHashMap<>();
+
+    private TemplatesCache() {
+    }
+
+    /**
+     * Gets a compiled stylesheet, compiling it if it has not already been compiled, or its content has since changed.
+     *
+     * @param stylesheetLocation a local file path or URI of the stylesheet
+     * @param entityResolver     the resolver for the stylesheets it imports or includes
+     * @return the compiled stylesheet
+     * @throws IOException                       if the stylesheet cannot be read
+     * @throws TransformerConfigurationException if the stylesheet cannot be compiled
+     */
+    public static Templates getTemplates(final String stylesheetLocation, final CachingEntityResolver entityResolver)
+            throws IOException, TransformerConfigurationException {
+        final Path path = XmlFiles.toLocalPath(stylesheetLocation);
+        final String systemId = path != null ? path.toUri().toString() : stylesheetLocation;
+        final byte[] stylesheet;
+        if (path != null) {
+            stylesheet = Files.readAllBytes(path);
+        } else {
+            try (final InputStream is = new URL(systemId).openStream()) {
+                stylesheet = IOUtils.toByteArray(is);
+            }
+        }
+        final byte[] checksum = sha256(stylesheet);
+
+        final Key key = new Key(systemId, entityResolver);
+        final CachedTemplates cached = TEMPLATES.get(key);
+        if (cached != null && Arrays.equals(cached.checksum, checksum)) {
+            return cached.templates;
+        }
+
+        // a stylesheet compiled by two threads at once is compiled twice, rather than one waiting for the other
+        final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+        transformerFactory.setURIResolver(entityResolver);
+        final Templates templates = transformerFactory.newTemplates(new StreamSource(new ByteArrayInputStream(stylesheet), systemId));
+        TEMPLATES.put(key, new CachedTemplates(templates, checksum));
+        return templates;
+    }
+
+    /**
+     * Creates a transformer for a thread. Documents read by the {@code document()} function while transforming are
+     * resolved as given, rather than through the cache used for the stylesheet's imports, as they may change
+     * between rows.
+     *
+     * @param templates the compiled stylesheet
+     * @return the transformer
+     * @throws TransformerConfigurationException if the transformer cannot be created
+     */
+    public static Transformer newTransformer(final Templates templates) throws TransformerConfigurationException {
+        final Transformer transformer = templates.newTransformer();
+        transformer.setURIResolver(null);
+        return transformer;
+    }
+
+    private static byte[] sha256(final byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Key {
+        private final String systemId;
+        private final CachingEntityResolver entityResolver;
+
+        Key(final String systemId, final CachingEntityResolver entityResolver) {
+            this.systemId = systemId;
+            this.entityResolver = entityResolver;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return systemId.equals(other.systemId) && entityResolver == other.entityResolver;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(systemId, System.identityHashCode(entityResolver));
+        }
+    }
+
+    private static class CachedTemplates {
+        private final Templates templates;
+        private final byte[] checksum;
+
+        CachedTemplates(final Templates templates, final byte[] checksum) {
+            this.templates = templates;
+            this.checksum = checksum;
+        }
+    }
+}
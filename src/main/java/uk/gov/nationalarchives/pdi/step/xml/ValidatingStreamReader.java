@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import javax.xml.validation.ValidatorHandler;
+
+import static javax.xml.stream.XMLStreamConstants.*;
+
+/**
+ * A stream reader which passes each event read from it on to a {@link ValidatorHandler}, so that a document is
+ * validated against an XML Schema in the same parse that canonicalizes or splits it, rather than being parsed again.
+ * The document is invalid if {@link #next()} throws an XMLStreamException whose cause is a SAXException, which is
+ * thrown at the event where the first error was found.
+ */
+public class ValidatingStreamReader extends StreamReaderDelegate {
+
+    private final ValidatorHandler validatorHandler;
+    private final AttributesImpl attributes = new AttributesImpl();
+
+    /**
+     * @param reader           a reader which has not yet been advanced past the start of the document
+     * @param validatorHandler the validator, which is used by one thread at a time
+     * @throws XMLStreamException if the validator cannot be started
+     */
+    public ValidatingStreamReader(final XMLStreamReader reader, final ValidatorHandler validatorHandler) throws XMLStreamException {
+        super(reader);
+        this.validatorHandler = validatorHandler;
+        validatorHandler.setDocumentLocator(new ReaderLocator());
+        try {
+            validatorHandler.startDocument();
+        } catch (SAXException e) {
+            throw new XMLStreamException(e.getMessage(), getLocation(), e);
+        }
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+        final int event = super.next();
+        try {
+            switch (event) {
+                case START_ELEMENT:
+                    startElement();
+                    break;
+                case END_ELEMENT:
+                    endElement();
+                    break;
+                case CHARACTERS:
+                case CDATA:
+                case SPACE:
+                    validatorHandler.characters(getTextCharacters(), getTextStart(), getTextLength());
+                    break;
+                case END_DOCUMENT:
+                    validatorHandler.endDocument();
+                    break;
+                default:
+                    // comments, processing instructions and DTDs are not validated
+                    break;
+            }
+        } catch (SAXException e) {
+            throw new XMLStreamException(e.getMessage(), getLocation(), e);
+        }
+        return event;
+    }
+
+    private void startElement() throws SAXException {
+        for (int i = 0; i < getNamespaceCount(); i++) {
+            validatorHandler.startPrefixMapping(nonNull(getNamespacePrefix(i)), nonNull(getNamespaceURI(i)));
+        }
+        attributes.clear();
+        for (int i = 0; i < getAttributeCount(); i++) {
+            final QName name = getAttributeName(i);
+            attributes.addAttribute(nonNull(name.getNamespaceURI()), name.getLocalPart(), qualifiedName(name), getAttributeType(i), getAttributeValue(i));
+        }
+        final QName name = getName();
+        validatorHandler.startElement(nonNull(name.getNamespaceURI()), name.getLocalPart(), qualifiedName(name), attributes);
+    }
+
+    private void endElement() throws SAXException {
+        final QName name = getName();
+        validatorHandler.endElement(nonNull(name.getNamespaceURI()), name.getLocalPart(), qualifiedName(name));
+        // at the end of an element, the namespaces are those going out of scope
+        for (int i = 0; i < getNamespaceCount(); i++) {
+            validatorHandler.endPrefixMapping(nonNull(getNamespacePrefix(i)));
+        }
+    }
+
+    private static String qualifiedName(final QName name) {
+        final String prefix = name.getPrefix();
+        return prefix == null || prefix.isEmpty() ? name.getLocalPart() : prefix + ':' + name.getLocalPart();
+    }
+
+    private static String nonNull(final String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * Reports the position of the reader, so that validation errors give the line and column they were found at.
+     */
+    private class ReaderLocator implements Locator {
+        @Override
+        public String getPublicId() {
+            final Location location = getLocation();
+            return location == null ? null : location.getPublicId();
+        }
+
+        @Override
+        public String getSystemId() {
+            final Location location = getLocation();
+            return location == null ? null : location.getSystemId();
+        }
+
+        @Override
+        public int getLineNumber() {
+            final Location location = getLocation();
+            return location == null ? -1 : location.getLineNumber();
+        }
+
+        @Override
+        public int getColumnNumber() {
+            final Location location = getLocation();
+            return location == null ? -1 : location.getColumnNumber();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors used to process rows concurrently within a single step copy, or files concurrently
+ * within a job entry.
+ */
+public class WorkerExecutors {
+
+    /**
+     * The number of tasks for each thread of a bounded executor which may be waiting to run.
+     */
+    static final int QUEUED_TASKS_PER_THREAD = 4;
+
+    private WorkerExecutors() {
+    }
+
+    /**
+     * Creates a fixed size pool of daemon worker threads.
+     *
+     * @param name    the name of the step, used to name the threads
+     * @param threads the number of worker threads
+     * @return the executor
+     */
+    public static ExecutorService newWorkerExecutor(final String name, final int threads) {
+        return Executors.newFixedThreadPool(threads, daemonThreadFactory(name + " worker "));
+    }
+
+    /**
+     * Creates a fixed size pool of daemon worker threads, which holds at most a few tasks for each thread waiting
+     * to run. Once that many are waiting, further tasks are run by the thread submitting them, so that a producer
+     * of many tasks is slowed to the rate at which they are completed rather than queueing them all.
+     *
+     * @param name    the name of the job entry, used to name the threads
+     * @param threads the number of worker threads
+     * @return the executor
+     */
+    public static ExecutorService newBoundedWorkerExecutor(final String name, final int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * QUEUED_TASKS_PER_THREAD), daemonThreadFactory(name + " worker "), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Creates a pool of daemon threads to update digests in parallel. Each document hashed in parallel needs a
+     * thread for each of its digests at once, so the pool grows as needed, and idle threads are discarded.
+     *
+     * @param name the name of the step, used to name the threads
+     * @return the executor
+     */
+    public static ExecutorService newDigestExecutor(final String name) {
+        return Executors.newCachedThreadPool(daemonThreadFactory(name + " digest "));
+    }
+
+    /**
+     * Creates a factory of daemon threads, numbered from 1.
+     *
+     * @param prefix the name of each thread, before its number
+     * @return the thread factory
+     */
+    private static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
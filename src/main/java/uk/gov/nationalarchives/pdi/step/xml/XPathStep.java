@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.*;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Extracts values from the XML of each row with a list of XPath expressions. Each document is parsed once, with
+ * the same parser set up as the Canonical XML step, and all the expressions, compiled once for each step copy, are
+ * evaluated against it. The Canonical XML of the document may also be output from the same parse.
+ * <p>
+ * A document which a Canonical XML step has already parsed, and output as a DOM, is read without being parsed again.
+ */
+public class XPathStep extends BaseStep implements StepInterface {
+
+    private static final Class<?> PKG = XPathStep.class;
+
+    /**
+     * The constructor should simply pass on its arguments to the parent class.
+     *
+     * @param stepMeta          step description
+     * @param stepDataInterface step data class
+     * @param copyNr            step copy
+     * @param transMeta         transformation description
+     * @param trans             transformation executing
+     */
+    public XPathStep(final StepMeta stepMeta, final StepDataInterface stepDataInterface, final int copyNr, final TransMeta transMeta, final Trans trans) {
+        super(stepMeta, stepDataInterface, copyNr, transMeta, trans);
+    }
+
+    @Override
+    public boolean processRow(final StepMetaInterface smi, final StepDataInterface sdi) throws KettleException {
+        final XPathStepMeta meta = (XPathStepMeta) smi;
+        final XPathStepData data = (XPathStepData) sdi;
+
+        final Object[] row = getRow();
+        if (row == null) {
+            setOutputDone();
+            return false;
+        }
+
+        if (first) {
+            first = false;
+            data.setOutputRowMeta(getInputRowMeta().clone());
+            meta.getFields(data.getOutputRowMeta(), getStepname(), null, null, this, null, null);
+            data.setInputFieldIndex(getInputRowMeta().indexOfValue(meta.getInputField()));
+            if (data.getInputFieldIndex() < 0) {
+                throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.InputFieldNotFound", meta.getInputField()));
+            }
+            data.setFirstFieldIndex(getInputRowMeta().size());
+            data.setCanonicalFieldIndex(Utils.isEmpty(meta.getCanonicalField()) ? -1 : data.getOutputRowMeta().indexOfValue(meta.getCanonicalField()));
+            data.setParserData(getParserData(meta, data.getCanonicalFieldIndex() >= 0));
+            data.setXpathExpressions(getXpathExpressions(meta));
+        }
+
+        final Object[] outputRow = RowDataUtil.resizeArray(row, data.getOutputRowMeta().size());
+        try {
+            final Document document = parse(row[data.getInputFieldIndex()], meta, data);
+            for (int i = 0; i < meta.getNrFields(); i++) {
+                outputRow[data.getFirstFieldIndex() + i] = evaluate(i, document, meta, data);
+            }
+            if (data.getCanonicalFieldIndex() >= 0) {
+                outputRow[data.getCanonicalFieldIndex()] = CanonicalStep.canonicalize(document, data.getParserData());
+            }
+        } catch (KettleException kex) {
+            putError(data.getOutputRowMeta(), row, 1L, kex.getMessage(), meta.getInputField(), "XPathStep001");
+            return true;
+        }
+
+        putRow(data.getOutputRowMeta(), outputRow);
+        return true;
+    }
+
+    private CanonicalStepData getParserData(final XPathStepMeta meta, final boolean canonicalize) throws KettleException {
+        final CachingEntityResolver entityResolver;
+        try {
+            entityResolver = CachingEntityResolver.forCatalog(environmentSubstitute(Const.NVL(meta.getCatalogFile(), "")), meta.isCatalogOnly());
+        } catch (IOException e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+        final CanonicalStepData parserData = new CanonicalStepData();
+        parserData.setDocumentBuilder(CanonicalStep.getDocumentBuilder(meta.isSkipExternalDtd(), entityResolver));
+        if (canonicalize) {
+            parserData.setCanonicalizer(CanonicalStep.getCanonicalizer());
+        }
+        return parserData;
+    }
+
+    /**
+     * Compiles the XPath expressions of the fields, which are not thread-safe, for this step copy.
+     */
+    private XPathExpression[] getXpathExpressions(final XPathStepMeta meta) throws KettleException {
+        final XPath xpath = XPathFactory.newInstance().newXPath();
+        final XPathExpression[] expressions = new XPathExpression[meta.getNrFields()];
+        for (int i = 0; i < expressions.length; i++) {
+            try {
+                expressions[i] = xpath.compile(environmentSubstitute(meta.getXpaths()[i]));
+            } catch (XPathExpressionException e) {
+                throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.InvalidXPath", meta.getXpaths()[i]), e);
+            }
+        }
+        return expressions;
+    }
+
+    private Document parse(final Object value, final XPathStepMeta meta, final XPathStepData data) throws KettleException {
+        if (value instanceof Document && !meta.isInputIsFile()) {
+            // already parsed by a Canonical XML step with a DOM output field
+            return (Document) value;
+        }
+        final InputSource inputSource = CanonicalStep.getInputSource(value, meta.getInputField(), meta.isInputIsFile(), this);
+        try {
+            return CanonicalStep.createDocument(inputSource, data.getParserData());
+        } finally {
+            IOUtils.closeQuietly(inputSource.getByteStream());
+        }
+    }
+
+    /**
+     * Evaluates the XPath expression of a field, and converts its result to the type of the field. Numbers are
+     * converted from the string value of the result as XPath writes them, whatever the locale.
+     */
+    private Object evaluate(final int field, final Document document, final XPathStepMeta meta, final XPathStepData data) throws KettleException {
+        final XPathExpression expression = data.getXpathExpressions()[field];
+        final int type = meta.getFieldTypes()[field];
+        final String value;
+        try {
+            if (type == ValueMetaInterface.TYPE_BOOLEAN) {
+                return expression.evaluate(document, XPathConstants.BOOLEAN);
+            }
+            value = (String) expression.evaluate(document, XPathConstants.STRING);
+        } catch (XPathExpressionException e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+
+        if (type == ValueMetaInterface.TYPE_STRING) {
+            return value;
+        }
+        final String number = value.trim();
+        if (number.isEmpty()) {
+            return null;
+        }
+        try {
+            switch (type) {
+                case ValueMetaInterface.TYPE_INTEGER:
+                    return Long.valueOf(number);
+                case ValueMetaInterface.TYPE_NUMBER:
+                    return Double.valueOf(number);
+                default:
+                    return new BigDecimal(number);
+            }
+        } catch (NumberFormatException e) {
+            throw new KettleException(BaseMessages.getString(PKG, "XPathStep.Error.NotANumber", value, meta.getFieldNames()[field],
+                    ValueMetaFactory.getValueMetaName(type)), e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.step.BaseStepData;
+import org.pentaho.di.trans.step.StepDataInterface;
+
+import javax.xml.xpath.XPathExpression;
+
+public class XPathStepData extends BaseStepData implements StepDataInterface {
+
+    private CanonicalStepData parserData;
+    private XPathExpression[] xpathExpressions;
+    private RowMetaInterface outputRowMeta;
+    private int inputFieldIndex;
+    private int firstFieldIndex;
+    private int canonicalFieldIndex;
+
+    public XPathStepData() {
+        super();
+    }
+
+    /**
+     * @return the parser, and the canonicalizer if the canonical form is output, of this step copy, set up as for
+     * the Canonical XML step
+     */
+    public CanonicalStepData getParserData() {
+        return parserData;
+    }
+
+    public void setParserData(final CanonicalStepData parserData) {
+        this.parserData = parserData;
+    }
+
+    /**
+     * @return the compiled XPath expressions of this step copy, which are not thread-safe
+     */
+    public XPathExpression[] getXpathExpressions() {
+        return xpathExpressions;
+    }
+
+    public void setXpathExpressions(final XPathExpression[] xpathExpressions) {
+        this.xpathExpressions = xpathExpressions;
+    }
+
+    public RowMetaInterface getOutputRowMeta() {
+        return outputRowMeta;
+    }
+
+    public void setOutputRowMeta(final RowMetaInterface outputRowMeta) {
+        this.outputRowMeta = outputRowMeta;
+    }
+
+    public int getInputFieldIndex() {
+        return inputFieldIndex;
+    }
+
+    public void setInputFieldIndex(final int inputFieldIndex) {
+        this.inputFieldIndex = inputFieldIndex;
+    }
+
+    /**
+     * @return the index in the output row of the field of the first XPath expression, which the fields of the others
+     * follow
+     */
+    public int getFirstFieldIndex() {
+        return firstFieldIndex;
+    }
+
+    public void setFirstFieldIndex(final int firstFieldIndex) {
+        this.firstFieldIndex = firstFieldIndex;
+    }
+
+    /**
+     * @return the index of the canonical field in the output row, or -1 if it is not added
+     */
+    public int getCanonicalFieldIndex() {
+        return canonicalFieldIndex;
+    }
+
+    public void setCanonicalFieldIndex(final int canonicalFieldIndex) {
+        this.canonicalFieldIndex = canonicalFieldIndex;
+    }
+}
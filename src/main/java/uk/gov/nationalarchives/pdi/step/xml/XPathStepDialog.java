@@ -0,0 +1,375 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.CCombo;
+import org.eclipse.swt.events.*;
+import org.eclipse.swt.graphics.Cursor;
+import org.eclipse.swt.layout.FormAttachment;
+import org.eclipse.swt.layout.FormData;
+import org.eclipse.swt.layout.FormLayout;
+import org.eclipse.swt.widgets.*;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.BaseStepMeta;
+import org.pentaho.di.trans.step.StepDialogInterface;
+import org.pentaho.di.ui.core.dialog.ErrorDialog;
+import org.pentaho.di.ui.core.widget.ColumnInfo;
+import org.pentaho.di.ui.core.widget.LabelText;
+import org.pentaho.di.ui.core.widget.TableView;
+import org.pentaho.di.ui.trans.step.BaseStepDialog;
+
+public class XPathStepDialog extends BaseStepDialog implements StepDialogInterface {
+
+    private static final Class<?> PKG = XPathStepMeta.class; // for i18n purposes
+
+    private final XPathStepMeta meta;
+
+    private CCombo inputField;
+    private Button inputIsFile;
+    private LabelText catalogFile;
+    private Button skipExternalDtd;
+    private Button catalogOnly;
+    private LabelText canonicalFieldName;
+    private TableView fields;
+
+    /**
+     * @param parent    the SWT shell to open the dialog in
+     * @param in        the meta object holding the step's settings
+     * @param transMeta transformation description
+     * @param sname     the step name
+     */
+    public XPathStepDialog(final Shell parent, final Object in, final TransMeta transMeta, final String sname) {
+        super(parent, (BaseStepMeta) in, transMeta, sname);
+        meta = (XPathStepMeta) in;
+    }
+
+    /**
+     * Opens the dialog, and returns once it has been closed.
+     *
+     * @return the name of the step if the dialog was confirmed, or null if it was cancelled
+     */
+    public String open() {
+        Shell parent = getParent();
+        Display display = parent.getDisplay();
+
+        shell = new Shell(parent, SWT.DIALOG_TRIM | SWT.RESIZE | SWT.MIN | SWT.MAX);
+        props.setLook(shell);
+        setShellImage(shell, meta);
+
+        changed = meta.hasChanged();
+
+        ModifyListener lsMod = new ModifyListener() {
+            public void modifyText(ModifyEvent e) {
+                meta.setChanged();
+            }
+        };
+
+        FormLayout formLayout = new FormLayout();
+        formLayout.marginWidth = Const.FORM_MARGIN;
+        formLayout.marginHeight = Const.FORM_MARGIN;
+        shell.setLayout(formLayout);
+        shell.setText(BaseMessages.getString(PKG, "XPathStep.Shell.Title"));
+        int middle = props.getMiddlePct();
+        int margin = Const.MARGIN;
+
+        // Stepname label
+        wlStepname = new Label(shell, SWT.RIGHT);
+        wlStepname.setText(BaseMessages.getString(PKG, "System.Label.StepName"));
+        props.setLook(wlStepname);
+        fdlStepname = new FormData();
+        fdlStepname.left = new FormAttachment(0, 0);
+        fdlStepname.right = new FormAttachment(middle, -margin);
+        fdlStepname.top = new FormAttachment(0, margin);
+        wlStepname.setLayoutData(fdlStepname);
+
+        // Stepname input box
+        wStepname = new Text(shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+        wStepname.setText(stepname);
+        props.setLook(wStepname);
+        wStepname.addModifyListener(lsMod);
+        fdStepname = new FormData();
+        fdStepname.left = new FormAttachment(middle, 0);
+        fdStepname.top = new FormAttachment(0, margin);
+        fdStepname.right = new FormAttachment(100, 0);
+        wStepname.setLayoutData(fdStepname);
+
+        // Field holding the document to extract values from
+        inputField = addFieldCombo("XPathStep.InputField.Label", wStepname, lsMod, middle, margin);
+        inputIsFile = addCheckbox("CanonicalStep.InputIsFile.Label", inputField, middle, margin);
+
+        // Resolution of DTDs and external entities
+        catalogFile = addLabelText("CanonicalStep.CatalogFile.Label", inputIsFile, lsMod, margin);
+        skipExternalDtd = addCheckbox("CanonicalStep.SkipExternalDtd.Label", catalogFile, middle, margin);
+        catalogOnly = addCheckbox("CanonicalStep.CatalogOnly.Label", skipExternalDtd, middle, margin);
+
+        // Canonical XML from the same parse
+        canonicalFieldName = addLabelText("XPathStep.CanonicalField.Label", catalogOnly, lsMod, margin);
+
+        // OK and cancel buttons
+        wOK = new Button(shell, SWT.PUSH);
+        wOK.setText(BaseMessages.getString(PKG, "System.Button.OK"));
+        wCancel = new Button(shell, SWT.PUSH);
+        wCancel.setText(BaseMessages.getString(PKG, "System.Button.Cancel"));
+        setButtonPositions(new Button[]{wOK, wCancel}, margin, null);
+
+        // Fields to extract, filling the space above the buttons
+        final Label wlFields = new Label(shell, SWT.NONE);
+        wlFields.setText(BaseMessages.getString(PKG, "XPathStep.Fields.Label"));
+        props.setLook(wlFields);
+        final FormData fdlFields = new FormData();
+        fdlFields.left = new FormAttachment(0, 0);
+        fdlFields.top = new FormAttachment(canonicalFieldName, margin);
+        wlFields.setLayoutData(fdlFields);
+
+        final ColumnInfo[] columns = new ColumnInfo[]{
+                new ColumnInfo(BaseMessages.getString(PKG, "XPathStep.Field.Name.Label"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+                new ColumnInfo(BaseMessages.getString(PKG, "XPathStep.Field.XPath.Label"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+                new ColumnInfo(BaseMessages.getString(PKG, "XPathStep.Field.Type.Label"), ColumnInfo.COLUMN_TYPE_CCOMBO, getFieldTypeNames(), true)
+        };
+        fields = new TableView(transMeta, shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, columns, meta.getNrFields(), lsMod, props);
+        final FormData fdFields = new FormData();
+        fdFields.left = new FormAttachment(0, 0);
+        fdFields.top = new FormAttachment(wlFields, margin);
+        fdFields.right = new FormAttachment(100, 0);
+        fdFields.bottom = new FormAttachment(wOK, -2 * margin);
+        fields.setLayoutData(fdFields);
+
+        // Add listeners for cancel and OK
+        lsCancel = new Listener() {
+            public void handleEvent(Event e) {
+                cancel();
+            }
+        };
+        lsOK = new Listener() {
+            public void handleEvent(Event e) {
+                ok();
+            }
+        };
+        wCancel.addListener(SWT.Selection, lsCancel);
+        wOK.addListener(SWT.Selection, lsOK);
+
+        // default listener (for hitting "enter")
+        lsDef = new SelectionAdapter() {
+            public void widgetDefaultSelected(SelectionEvent e) {
+                ok();
+            }
+        };
+        wStepname.addSelectionListener(lsDef);
+
+        // Detect X or ALT-F4 or something that kills this window and cancel the dialog properly
+        shell.addShellListener(new ShellAdapter() {
+            public void shellClosed(ShellEvent e) {
+                cancel();
+            }
+        });
+
+        setSize();
+        populateDialog();
+        meta.setChanged(changed);
+
+        shell.open();
+        while (!shell.isDisposed()) {
+            if (!display.readAndDispatch()) {
+                display.sleep();
+            }
+        }
+        return stepname;
+    }
+
+    /**
+     * Adds a labelled combo below another control, offering the fields of the previous steps.
+     *
+     * @param labelKey the i18n key of the label text
+     * @param above    the control to place the combo below
+     * @param lsMod    the listener to notify of modifications
+     * @param middle   the percentage of the dialog width at which the label ends
+     * @param margin   the margin between controls
+     * @return the combo
+     */
+    private CCombo addFieldCombo(final String labelKey, final Control above, final ModifyListener lsMod, final int middle, final int margin) {
+        final Label label = new Label(shell, SWT.RIGHT);
+        label.setText(BaseMessages.getString(PKG, labelKey));
+        props.setLook(label);
+        final FormData fdLabel = new FormData();
+        fdLabel.left = new FormAttachment(0, 0);
+        fdLabel.top = new FormAttachment(above, 2 * margin);
+        fdLabel.right = new FormAttachment(middle, -margin);
+        label.setLayoutData(fdLabel);
+
+        final CCombo combo = new CCombo(shell, SWT.BORDER | SWT.READ_ONLY);
+        combo.setEditable(true);
+        props.setLook(combo);
+        combo.addModifyListener(lsMod);
+        final FormData fdCombo = new FormData();
+        fdCombo.left = new FormAttachment(middle, margin);
+        fdCombo.top = new FormAttachment(above, 2 * margin);
+        fdCombo.right = new FormAttachment(100, -margin);
+        combo.setLayoutData(fdCombo);
+        combo.addFocusListener(new FocusListener() {
+            public void focusLost(FocusEvent e) {
+            }
+
+            public void focusGained(FocusEvent e) {
+                Cursor busy = new Cursor(shell.getDisplay(), SWT.CURSOR_WAIT);
+                shell.setCursor(busy);
+                populateFields(combo);
+                shell.setCursor(null);
+                busy.dispose();
+            }
+        });
+        return combo;
+    }
+
+    /**
+     * Adds a labelled checkbox below another control, which marks the meta object as changed when toggled.
+     *
+     * @param labelKey the i18n key of the label text
+     * @param above    the control to place the checkbox below
+     * @param middle   the percentage of the dialog width at which the label ends
+     * @param margin   the margin between controls
+     * @return the checkbox
+     */
+    private Button addCheckbox(final String labelKey, final Control above, final int middle, final int margin) {
+        final Label label = new Label(shell, SWT.RIGHT);
+        label.setText(BaseMessages.getString(PKG, labelKey));
+        props.setLook(label);
+        final FormData fdLabel = new FormData();
+        fdLabel.left = new FormAttachment(0, 0);
+        fdLabel.top = new FormAttachment(above, margin);
+        fdLabel.right = new FormAttachment(middle, -margin);
+        label.setLayoutData(fdLabel);
+
+        final Button checkbox = new Button(shell, SWT.CHECK);
+        props.setLook(checkbox);
+        final FormData fdCheckbox = new FormData();
+        fdCheckbox.left = new FormAttachment(middle, margin);
+        fdCheckbox.top = new FormAttachment(above, margin);
+        fdCheckbox.right = new FormAttachment(100, -margin);
+        checkbox.setLayoutData(fdCheckbox);
+        checkbox.addSelectionListener(new SelectionAdapter() {
+            public void widgetSelected(SelectionEvent e) {
+                meta.setChanged();
+            }
+        });
+        return checkbox;
+    }
+
+    /**
+     * Adds a labelled text field below another control.
+     *
+     * @param labelKey the i18n key of the label text
+     * @param above    the control to place the text field below
+     * @param lsMod    the listener to notify of modifications
+     * @param margin   the margin between controls
+     * @return the text field
+     */
+    private LabelText addLabelText(final String labelKey, final Control above, final ModifyListener lsMod, final int margin) {
+        final LabelText labelText = new LabelText(shell, BaseMessages.getString(PKG, labelKey), null);
+        props.setLook(labelText);
+        labelText.addModifyListener(lsMod);
+        final FormData fdLabelText = new FormData();
+        fdLabelText.left = new FormAttachment(0, 0);
+        fdLabelText.right = new FormAttachment(100, 0);
+        fdLabelText.top = new FormAttachment(above, margin);
+        labelText.setLayoutData(fdLabelText);
+        return labelText;
+    }
+
+    private void populateDialog() {
+        wStepname.selectAll();
+        inputField.setText(Const.NVL(meta.getInputField(), ""));
+        inputIsFile.setSelection(meta.isInputIsFile());
+        catalogFile.setText(Const.NVL(meta.getCatalogFile(), ""));
+        skipExternalDtd.setSelection(meta.isSkipExternalDtd());
+        catalogOnly.setSelection(meta.isCatalogOnly());
+        canonicalFieldName.setText(Const.NVL(meta.getCanonicalField(), ""));
+        for (int i = 0; i < meta.getNrFields(); i++) {
+            final TableItem item = fields.table.getItem(i);
+            item.setText(1, Const.NVL(meta.getFieldNames()[i], ""));
+            item.setText(2, Const.NVL(meta.getXpaths()[i], ""));
+            item.setText(3, ValueMetaFactory.getValueMetaName(meta.getFieldTypes()[i]));
+        }
+        fields.setRowNums();
+        fields.optWidth(true);
+    }
+
+    private void cancel() {
+        stepname = null;
+        meta.setChanged(changed);
+        dispose();
+    }
+
+    private void ok() {
+        stepname = wStepname.getText();
+        meta.setInputField(inputField.getText());
+        meta.setInputIsFile(inputIsFile.getSelection());
+        meta.setCatalogFile(catalogFile.getText());
+        meta.setSkipExternalDtd(skipExternalDtd.getSelection());
+        meta.setCatalogOnly(catalogOnly.getSelection());
+        meta.setCanonicalField(canonicalFieldName.getText());
+        final int nrFields = fields.nrNonEmpty();
+        meta.allocate(nrFields);
+        for (int i = 0; i < nrFields; i++) {
+            final TableItem item = fields.getNonEmpty(i);
+            meta.getFieldNames()[i] = item.getText(1);
+            meta.getXpaths()[i] = item.getText(2);
+            meta.getFieldTypes()[i] = XPathStepMeta.getFieldType(item.getText(3));
+        }
+        dispose();
+    }
+
+    private static String[] getFieldTypeNames() {
+        final String[] names = new String[XPathStepMeta.FIELD_TYPES.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = ValueMetaFactory.getValueMetaName(XPathStepMeta.FIELD_TYPES[i]);
+        }
+        return names;
+    }
+
+    private void populateFields(final CCombo cc) {
+        if (cc.isDisposed()) {
+            return;
+        }
+        try {
+            String initValue = cc.getText();
+            cc.removeAll();
+            RowMetaInterface r = transMeta.getPrevStepFields(stepname);
+            if (r != null) {
+                cc.setItems(r.getFieldNames());
+            }
+            if (!Utils.isEmpty(initValue)) {
+                cc.setText(initValue);
+            }
+        } catch (KettleException ke) {
+            new ErrorDialog(shell, BaseMessages.getString(PKG, "CanonicalStepDialog.FailedToGetFields.DialogTitle"), BaseMessages
+                    .getString(PKG, "CanonicalStepDialog.FailedToGetFields.DialogMessage"), ke);
+        }
+    }
+}
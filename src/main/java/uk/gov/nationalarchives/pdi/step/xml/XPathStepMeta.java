@@ -0,0 +1,445 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.eclipse.swt.widgets.Shell;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.*;
+import org.pentaho.metastore.api.IMetaStore;
+import org.w3c.dom.Node;
+
+import java.util.List;
+
+@Step(
+        id = "XPathStep",
+        name = "XPathStep.Name",
+        description = "XPathStep.TooltipDesc",
+        image = "CanonicalStep.svg",
+        categoryDescription = "i18n:org.pentaho.di.trans.step:BaseStep.Category.Input",
+        i18nPackageName = "uk.gov.nationalarchives.pdi.step.xml"
+)
+public class XPathStepMeta extends BaseStepMeta implements StepMetaInterface {
+
+    private static final Class<?> PKG = XPathStepMeta.class;
+
+    /**
+     * The types of the fields which values may be extracted as.
+     */
+    static final int[] FIELD_TYPES = {
+            ValueMetaInterface.TYPE_STRING,
+            ValueMetaInterface.TYPE_INTEGER,
+            ValueMetaInterface.TYPE_NUMBER,
+            ValueMetaInterface.TYPE_BIGNUMBER,
+            ValueMetaInterface.TYPE_BOOLEAN
+    };
+
+    private static final String ELEM_NAME_INPUT_FIELD = "inputField";
+    private static final String ELEM_NAME_INPUT_IS_FILE = "inputIsFile";
+    private static final String ELEM_NAME_CATALOG_FILE = "catalogFile";
+    private static final String ELEM_NAME_SKIP_EXTERNAL_DTD = "skipExternalDtd";
+    private static final String ELEM_NAME_CATALOG_ONLY = "catalogOnly";
+    private static final String ELEM_NAME_FIELDS = "fields";
+    private static final String ELEM_NAME_FIELD = "field";
+    private static final String ELEM_NAME_FIELD_NAME = "name";
+    private static final String ELEM_NAME_FIELD_XPATH = "xpath";
+    private static final String ELEM_NAME_FIELD_TYPE = "type";
+    private static final String ELEM_NAME_CANONICAL_FIELD = "canonicalField";
+
+    private String inputField;
+    private boolean inputIsFile;
+    private String catalogFile;
+    private boolean skipExternalDtd;
+    private boolean catalogOnly;
+    private String[] fieldNames;
+    private String[] xpaths;
+    private int[] fieldTypes;
+    private String canonicalField;
+
+    public XPathStepMeta() {
+        super();
+    }
+
+    @Override
+    public void setDefault() {
+        allocate(0);
+        setInputField("");
+        setInputIsFile(false);
+        setCatalogFile("");
+        setSkipExternalDtd(false);
+        setCatalogOnly(false);
+        setCanonicalField("");
+    }
+
+    /**
+     * Allocates the arrays holding the fields to extract.
+     *
+     * @param nrFields the number of XPath expressions to evaluate
+     */
+    public void allocate(final int nrFields) {
+        fieldNames = new String[nrFields];
+        xpaths = new String[nrFields];
+        fieldTypes = new int[nrFields];
+    }
+
+    @Override
+    public Object clone() {
+        final XPathStepMeta retval = (XPathStepMeta) super.clone();
+        retval.fieldNames = fieldNames.clone();
+        retval.xpaths = xpaths.clone();
+        retval.fieldTypes = fieldTypes.clone();
+        return retval;
+    }
+
+    /**
+     * Called by Spoon to get a new instance of the SWT dialog for the step.
+     *
+     * @param shell     an SWT Shell
+     * @param meta      description of the step
+     * @param transMeta description of the the transformation
+     * @param name      the name of the step
+     * @return new instance of a dialog for this step
+     */
+    public StepDialogInterface getDialog(final Shell shell, final StepMetaInterface meta, final TransMeta transMeta, final String name) {
+        return new XPathStepDialog(shell, meta, transMeta, name);
+    }
+
+    @Override
+    public StepInterface getStep(final StepMeta stepMeta, final StepDataInterface stepDataInterface, final int copyNr, final TransMeta transMeta, final Trans trans) {
+        return new XPathStep(stepMeta, stepDataInterface, copyNr, transMeta, trans);
+    }
+
+    @Override
+    public StepDataInterface getStepData() {
+        return new XPathStepData();
+    }
+
+    @Override
+    public boolean supportsErrorHandling() {
+        return true;
+    }
+
+    public String getInputField() {
+        return inputField;
+    }
+
+    /**
+     * Setter for the name of the input field holding the XML document to extract values from.
+     *
+     * @param inputField the name of the field
+     */
+    public void setInputField(final String inputField) {
+        this.inputField = inputField;
+    }
+
+    public boolean isInputIsFile() {
+        return inputIsFile;
+    }
+
+    /**
+     * Setter for whether the input field holds the path or VFS URI of a file containing the XML, rather than
+     * holding the XML.
+     *
+     * @param inputIsFile true if the input field holds filenames
+     */
+    public void setInputIsFile(final boolean inputIsFile) {
+        this.inputIsFile = inputIsFile;
+    }
+
+    public String getCatalogFile() {
+        return catalogFile;
+    }
+
+    /**
+     * Setter for the XML catalog used to resolve DTDs and external entities to local copies.
+     *
+     * @param catalogFile the path of the catalog, which may contain variables, or empty to resolve them as given
+     */
+    public void setCatalogFile(final String catalogFile) {
+        this.catalogFile = catalogFile;
+    }
+
+    public boolean isSkipExternalDtd() {
+        return skipExternalDtd;
+    }
+
+    /**
+     * Setter for whether external DTDs are ignored.
+     *
+     * @param skipExternalDtd true to never load external DTDs
+     */
+    public void setSkipExternalDtd(final boolean skipExternalDtd) {
+        this.skipExternalDtd = skipExternalDtd;
+    }
+
+    public boolean isCatalogOnly() {
+        return catalogOnly;
+    }
+
+    /**
+     * Setter for whether DTDs, external entities, and the schemas and stylesheets they import are only read from
+     * local files, so that one which the catalog does not map to a local file fails at once, rather than waiting on
+     * a network which may not be reachable.
+     *
+     * @param catalogOnly true to never fetch DTDs and entities from the network
+     */
+    public void setCatalogOnly(final boolean catalogOnly) {
+        this.catalogOnly = catalogOnly;
+    }
+
+    /**
+     * @return the number of fields extracted by XPath expressions
+     */
+    public int getNrFields() {
+        return fieldNames.length;
+    }
+
+    public String[] getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * Setter for the names of the fields added by this step, one for each XPath expression.
+     *
+     * @param fieldNames the names of the fields added
+     */
+    public void setFieldNames(final String[] fieldNames) {
+        this.fieldNames = fieldNames;
+    }
+
+    public String[] getXpaths() {
+        return xpaths;
+    }
+
+    /**
+     * Setter for the XPath expressions evaluated against each document, in the same order as the field names. As
+     * with the XPath of the Canonical XML step, the document is not parsed namespace aware, so unprefixed elements
+     * are matched by name whatever their default namespace, e.g. {@code /Record/Title}, and prefixed elements by
+     * their qualified names, e.g. {@code /Record/*[name()='dc:title']}.
+     *
+     * @param xpaths the XPath expressions, which may contain variables
+     */
+    public void setXpaths(final String[] xpaths) {
+        this.xpaths = xpaths;
+    }
+
+    public int[] getFieldTypes() {
+        return fieldTypes;
+    }
+
+    /**
+     * Setter for the types of the fields added, in the same order as the field names. A Boolean field holds the
+     * XPath boolean value of the result, so that an expression selecting nodes is true if any are selected; a field
+     * of any other type holds the string value of the result, converted to the type.
+     *
+     * @param fieldTypes the types, each one of {@link #FIELD_TYPES}
+     */
+    public void setFieldTypes(final int[] fieldTypes) {
+        this.fieldTypes = fieldTypes;
+    }
+
+    public String getCanonicalField() {
+        return canonicalField;
+    }
+
+    /**
+     * Setter for the name of a field to add holding the Canonical XML of the document, produced from the same parse
+     * as the extracted values.
+     *
+     * @param canonicalField the name of the field, or empty if the canonical form is not required
+     */
+    public void setCanonicalField(final String canonicalField) {
+        this.canonicalField = canonicalField;
+    }
+
+    /**
+     * This method is called by Spoon when a step needs to serialize its configuration to XML.
+     *
+     * @return a string containing the XML serialization of this step
+     */
+    public String getXML() {
+        StringBuilder xml = new StringBuilder();
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_INPUT_FIELD, inputField));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_INPUT_IS_FILE, inputIsFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CATALOG_FILE, catalogFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SKIP_EXTERNAL_DTD, skipExternalDtd));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CATALOG_ONLY, catalogOnly));
+        xml.append(XMLHandler.openTag(ELEM_NAME_FIELDS));
+        for (int i = 0; i < fieldNames.length; i++) {
+            xml.append(XMLHandler.openTag(ELEM_NAME_FIELD));
+            xml.append(XMLHandler.addTagValue(ELEM_NAME_FIELD_NAME, fieldNames[i]));
+            xml.append(XMLHandler.addTagValue(ELEM_NAME_FIELD_XPATH, xpaths[i]));
+            xml.append(XMLHandler.addTagValue(ELEM_NAME_FIELD_TYPE, ValueMetaFactory.getValueMetaName(fieldTypes[i])));
+            xml.append(XMLHandler.closeTag(ELEM_NAME_FIELD));
+        }
+        xml.append(XMLHandler.closeTag(ELEM_NAME_FIELDS));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CANONICAL_FIELD, canonicalField));
+        return xml.toString();
+    }
+
+    /**
+     * This method is called by PDI when a step needs to load its configuration from XML.
+     *
+     * @param stepnode  the XML node containing the configuration
+     * @param databases the databases available in the transformation
+     * @param metaStore the metaStore to optionally read from
+     */
+    public void loadXML(final Node stepnode, final List<DatabaseMeta> databases, final IMetaStore metaStore) throws KettleXMLException {
+        try {
+            setInputField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_INPUT_FIELD), ""));
+            setInputIsFile("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_INPUT_IS_FILE)));
+            setCatalogFile(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_CATALOG_FILE), ""));
+            setSkipExternalDtd("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_SKIP_EXTERNAL_DTD)));
+            setCatalogOnly("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_CATALOG_ONLY)));
+            final Node fieldsNode = XMLHandler.getSubNode(stepnode, ELEM_NAME_FIELDS);
+            final int nrFields = XMLHandler.countNodes(fieldsNode, ELEM_NAME_FIELD);
+            allocate(nrFields);
+            for (int i = 0; i < nrFields; i++) {
+                final Node fieldNode = XMLHandler.getSubNodeByNr(fieldsNode, ELEM_NAME_FIELD, i);
+                fieldNames[i] = Const.NVL(XMLHandler.getTagValue(fieldNode, ELEM_NAME_FIELD_NAME), "");
+                xpaths[i] = Const.NVL(XMLHandler.getTagValue(fieldNode, ELEM_NAME_FIELD_XPATH), "");
+                fieldTypes[i] = getFieldType(XMLHandler.getTagValue(fieldNode, ELEM_NAME_FIELD_TYPE));
+            }
+            setCanonicalField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_CANONICAL_FIELD), ""));
+        } catch (Exception e) {
+            throw new KettleXMLException(BaseMessages.getString(PKG, "CanonicalStepMeta.Error.UnableToReadStepInfo"), e);
+        }
+    }
+
+    /**
+     * @return the type of the given name, or String if the name is not one of {@link #FIELD_TYPES}
+     */
+    static int getFieldType(final String typeName) {
+        final int type = ValueMetaFactory.getIdForValueMeta(typeName);
+        for (final int fieldType : FIELD_TYPES) {
+            if (type == fieldType) {
+                return type;
+            }
+        }
+        return ValueMetaInterface.TYPE_STRING;
+    }
+
+    /**
+     * This method is called by Spoon when a step needs to serialize its configuration to a repository.
+     *
+     * @param rep               the repository to save to
+     * @param metaStore         the metaStore to optionally write to
+     * @param id_transformation the id to use for the transformation when saving
+     * @param id_step           the id to use for the step  when saving
+     */
+    public void saveRep(final Repository rep, final IMetaStore metaStore, final ObjectId id_transformation, final ObjectId id_step)
+            throws KettleException {
+        try {
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_INPUT_FIELD, inputField); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_INPUT_IS_FILE, inputIsFile); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CATALOG_FILE, catalogFile); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_SKIP_EXTERNAL_DTD, skipExternalDtd); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CATALOG_ONLY, catalogOnly); //$NON-NLS-1$
+            for (int i = 0; i < fieldNames.length; i++) {
+                rep.saveStepAttribute(id_transformation, id_step, i, ELEM_NAME_FIELD_NAME, fieldNames[i]); //$NON-NLS-1$
+                rep.saveStepAttribute(id_transformation, id_step, i, ELEM_NAME_FIELD_XPATH, xpaths[i]); //$NON-NLS-1$
+                rep.saveStepAttribute(id_transformation, id_step, i, ELEM_NAME_FIELD_TYPE, ValueMetaFactory.getValueMetaName(fieldTypes[i])); //$NON-NLS-1$
+            }
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CANONICAL_FIELD, canonicalField); //$NON-NLS-1$
+        } catch (Exception e) {
+            throw new KettleException("Unable to save step into repository: " + id_step, e);
+        }
+    }
+
+    /**
+     * This method is called by PDI when a step needs to read its configuration from a repository.
+     *
+     * @param rep       the repository to read from
+     * @param metaStore the metaStore to optionally read from
+     * @param id_step   the id of the step being read
+     * @param databases the databases available in the transformation
+     */
+    public void readRep(final Repository rep, final IMetaStore metaStore, final ObjectId id_step, final List<DatabaseMeta> databases)
+            throws KettleException {
+        try {
+            inputField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_INPUT_FIELD), ""); //$NON-NLS-1$
+            inputIsFile = rep.getStepAttributeBoolean(id_step, ELEM_NAME_INPUT_IS_FILE); //$NON-NLS-1$
+            catalogFile = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_CATALOG_FILE), ""); //$NON-NLS-1$
+            skipExternalDtd = rep.getStepAttributeBoolean(id_step, ELEM_NAME_SKIP_EXTERNAL_DTD); //$NON-NLS-1$
+            catalogOnly = rep.getStepAttributeBoolean(id_step, ELEM_NAME_CATALOG_ONLY); //$NON-NLS-1$
+            final int nrFields = rep.countNrStepAttributes(id_step, ELEM_NAME_FIELD_NAME); //$NON-NLS-1$
+            allocate(nrFields);
+            for (int i = 0; i < nrFields; i++) {
+                fieldNames[i] = Const.NVL(rep.getStepAttributeString(id_step, i, ELEM_NAME_FIELD_NAME), ""); //$NON-NLS-1$
+                xpaths[i] = Const.NVL(rep.getStepAttributeString(id_step, i, ELEM_NAME_FIELD_XPATH), ""); //$NON-NLS-1$
+                fieldTypes[i] = getFieldType(rep.getStepAttributeString(id_step, i, ELEM_NAME_FIELD_TYPE)); //$NON-NLS-1$
+            }
+            canonicalField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_CANONICAL_FIELD), ""); //$NON-NLS-1$
+        } catch (Exception e) {
+            throw new KettleException("Unable to load step from repository", e);
+        }
+    }
+
+    /**
+     * Appends a field of the chosen type for each XPath expression, and the canonical field if it is set, to the
+     * row-stream.
+     *
+     * @param inputRowMeta the row structure coming in to the step
+     * @param name         the name of the step making the changes
+     * @param info         row structures of any info steps coming in
+     * @param nextStep     the description of a step this step is passing rows to
+     * @param space        the variable space for resolving variables
+     * @param repository   the repository instance optionally read from
+     * @param metaStore    the metaStore to optionally read from
+     */
+    public void getFields(final RowMetaInterface inputRowMeta, final String name, final RowMetaInterface[] info, final StepMeta nextStep,
+                          final VariableSpace space, final Repository repository, final IMetaStore metaStore) throws KettleStepException {
+        for (int i = 0; i < fieldNames.length; i++) {
+            final ValueMetaInterface v;
+            try {
+                v = ValueMetaFactory.createValueMeta(fieldNames[i], fieldTypes[i]);
+            } catch (KettlePluginException e) {
+                throw new KettleStepException(e.getMessage(), e);
+            }
+            v.setOrigin(name);
+            inputRowMeta.addValueMeta(v);
+        }
+        if (!Utils.isEmpty(canonicalField)) {
+            final ValueMetaInterface v = new ValueMetaString(canonicalField);
+            v.setOrigin(name);
+            inputRowMeta.addValueMeta(v);
+        }
+    }
+}
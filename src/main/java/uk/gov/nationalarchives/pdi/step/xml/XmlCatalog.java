@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal OASIS XML Catalog, mapping the public and system identifiers of DTDs and external entities to local
+ * copies. The {@code public}, {@code system} and {@code rewriteSystem} entries are supported, within any
+ * {@code group}; other entries, including {@code nextCatalog} and delegation, are ignored.
+ */
+public class XmlCatalog {
+
+    private final Map<String, String> publicIds = new HashMap<>();
+    private final Map<String, String> systemIds = new HashMap<>();
+    private final List<String[]> systemRewrites = new ArrayList<>();
+
+    private XmlCatalog() {
+    }
+
+    /**
+     * Loads a catalog.
+     *
+     * @param location a local file path or file URI of the catalog
+     * @return the catalog
+     * @throws IOException if the catalog cannot be read or is not well-formed
+     */
+    public static XmlCatalog load(final String location) throws IOException {
+        final Path path = XmlFiles.toLocalPath(location);
+        final URI base = path != null ? path.toAbsolutePath().toUri() : URI.create(location);
+
+        final Document document;
+        try {
+            final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+            // the catalog's own DOCTYPE must not be fetched, as that is what catalogs are for
+            dbf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            document = dbf.newDocumentBuilder().parse(base.toString());
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Unable to read XML catalog " + location + ": " + e.getMessage(), e);
+        }
+
+        final XmlCatalog catalog = new XmlCatalog();
+        catalog.addEntries(document.getDocumentElement(), base);
+        catalog.systemRewrites.sort(Comparator.comparingInt((String[] rewrite) -> rewrite[0].length()).reversed());
+        return catalog;
+    }
+
+    private void addEntries(final Element parent, final URI base) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (!(child instanceof Element)) {
+                continue;
+            }
+            final Element entry = (Element) child;
+            final URI entryBase = entry.hasAttributeNS("http://www.w3.org/XML/1998/namespace", "base")
+                    ? base.resolve(entry.getAttributeNS("http://www.w3.org/XML/1998/namespace", "base"))
+                    : base;
+            switch (entry.getLocalName()) {
+                case "group":
+                    addEntries(entry, entryBase);
+                    break;
+
+                case "public":
+                    publicIds.put(normalizePublicId(entry.getAttribute("publicId")), entryBase.resolve(entry.getAttribute("uri")).toString());
+                    break;
+
+                case "system":
+                    systemIds.put(entry.getAttribute("systemId"), entryBase.resolve(entry.getAttribute("uri")).toString());
+                    break;
+
+                case "rewriteSystem":
+                    systemRewrites.add(new String[]{entry.getAttribute("systemIdStartString"), entryBase.resolve(entry.getAttribute("rewritePrefix")).toString()});
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Resolves an external identifier to a local copy. System identifiers are preferred to public identifiers,
+     * and the longest matching rewrite applies.
+     *
+     * @param publicId the public identifier, or null
+     * @param systemId the system identifier, or null
+     * @return the URI of the local copy, or null if the catalog has no entry for the identifiers
+     */
+    public String resolve(final String publicId, final String systemId) {
+        if (systemId != null) {
+            final String uri = systemIds.get(systemId);
+            if (uri != null) {
+                return uri;
+            }
+            for (final String[] rewrite : systemRewrites) {
+                if (systemId.startsWith(rewrite[0])) {
+                    return rewrite[1] + systemId.substring(rewrite[0].length());
+                }
+            }
+        }
+        if (publicId != null) {
+            return publicIds.get(normalizePublicId(publicId));
+        }
+        return null;
+    }
+
+    private static String normalizePublicId(final String publicId) {
+        return publicId.trim().replaceAll("\\s+", " ");
+    }
+}
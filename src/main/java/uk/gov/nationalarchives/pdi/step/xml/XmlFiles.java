@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.xml.sax.InputSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Opens XML documents held in files, so that they can be streamed straight into a parser
+ * rather than first being loaded into memory.
+ */
+public class XmlFiles {
+
+    /**
+     * Files at least this large are read through memory mapped regions rather than a channel.
+     */
+    static final long MEMORY_MAP_THRESHOLD = 1024 * 1024;
+
+    private XmlFiles() {
+    }
+
+    /**
+     * Opens an XML document for parsing.
+     *
+     * @param location a local file path, a file URI, or any other VFS URI
+     * @param space    the variable space used to configure VFS
+     * @return an input source for the bytes of the document, whose system id is set so that
+     * relative references within the document can be resolved
+     * @throws IOException         if a local file cannot be opened
+     * @throws KettleFileException if a VFS file cannot be opened
+     */
+    public static InputSource open(final String location, final VariableSpace space) throws IOException, KettleFileException {
+        final Path path = toLocalPath(location);
+        if (path != null) {
+            return open(path);
+        }
+        final InputSource inputSource = new InputSource(openDeflated(KettleVFS.getInputStream(location, space)));
+        inputSource.setSystemId(location);
+        return inputSource;
+    }
+
+    /**
+     * Opens an XML document in a local file for parsing.
+     *
+     * @param path the path of the file
+     * @return an input source for the bytes of the document, whose system id is set so that
+     * relative references within the document can be resolved
+     * @throws IOException if the file cannot be opened
+     */
+    public static InputSource open(final Path path) throws IOException {
+        final InputSource inputSource = new InputSource(openDeflated(openLocal(path)));
+        inputSource.setSystemId(path.toUri().toString());
+        return inputSource;
+    }
+
+    /**
+     * Reads the document through {@link DeflatedXml}, so that a file written by the Canonical XML step with
+     * compressed output is read as the XML it holds.
+     */
+    private static InputStream openDeflated(final InputStream is) throws IOException {
+        try {
+            return DeflatedXml.open(is);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(is);
+            throw e;
+        }
+    }
+
+    private static InputStream openLocal(final Path path) throws IOException {
+        if (Files.size(path) >= MEMORY_MAP_THRESHOLD) {
+            return new MappedFileInputStream(path);
+        }
+        return Files.newInputStream(path);
+    }
+
+    /**
+     * @return the local path, or null if the location must be resolved through VFS
+     * @throws IOException if the location is not a valid local path, so that it is reported like a file which
+     * cannot be opened
+     */
+    static Path toLocalPath(final String location) throws IOException {
+        final int colon = location.indexOf(':');
+
+        // a single character before the colon is a Windows drive letter, not a URI scheme
+        if (colon < 2 || !isScheme(location.substring(0, colon))) {
+            try {
+                return Paths.get(location);
+            } catch (InvalidPathException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        if ("file".equalsIgnoreCase(location.substring(0, colon))) {
+            try {
+                return Paths.get(URI.create(location));
+            } catch (IllegalArgumentException e) {
+                // not a hierarchical file URI that NIO understands, leave it to VFS
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isScheme(final String scheme) {
+        if (!Character.isLetter(scheme.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < scheme.length(); i++) {
+            final char c = scheme.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '+' || c == '-' || c == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
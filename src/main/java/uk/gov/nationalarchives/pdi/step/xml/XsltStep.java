@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.*;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Transforms the XML of each row with an XSLT stylesheet. The stylesheet is compiled once for all step copies and
+ * runs in the JVM by the {@link TemplatesCache}, and each step copy transforms with its own {@link Transformer}.
+ * <p>
+ * The result may be output as serialized by the stylesheet, or as its Canonical XML, which is produced directly
+ * from the result tree by a {@link CanonicalContentHandler} rather than by serializing and parsing it again.
+ * <p>
+ * A document which a Canonical XML step has already parsed, and output as a DOM, is read by a
+ * {@link DocumentXMLReader} without being parsed again.
+ */
+public class XsltStep extends BaseStep implements StepInterface {
+
+    private static final Class<?> PKG = XsltStep.class;
+
+    /**
+     * The constructor should simply pass on its arguments to the parent class.
+     *
+     * @param stepMeta          step description
+     * @param stepDataInterface step data class
+     * @param copyNr            step copy
+     * @param transMeta         transformation description
+     * @param trans             transformation executing
+     */
+    public XsltStep(final StepMeta stepMeta, final StepDataInterface stepDataInterface, final int copyNr, final TransMeta transMeta, final Trans trans) {
+        super(stepMeta, stepDataInterface, copyNr, transMeta, trans);
+    }
+
+    @Override
+    public boolean processRow(final StepMetaInterface smi, final StepDataInterface sdi) throws KettleException {
+        final XsltStepMeta meta = (XsltStepMeta) smi;
+        final XsltStepData data = (XsltStepData) sdi;
+
+        final Object[] row = getRow();
+        if (row == null) {
+            setOutputDone();
+            return false;
+        }
+
+        if (first) {
+            first = false;
+            data.setOutputRowMeta(getInputRowMeta().clone());
+            meta.getFields(data.getOutputRowMeta(), getStepname(), null, null, this, null, null);
+            data.setInputFieldIndex(getInputRowMeta().indexOfValue(meta.getInputField()));
+            if (data.getInputFieldIndex() < 0) {
+                throw new KettleException(BaseMessages.getString(PKG, "CanonicalStep.Error.InputFieldNotFound", meta.getInputField()));
+            }
+            data.setOutputFieldIndex(data.getOutputRowMeta().indexOfValue(meta.getOutputField()));
+
+            final CachingEntityResolver entityResolver = getEntityResolver(meta);
+            data.setXmlReader(CanonicalStep.getXmlReader(meta.isSkipExternalDtd(), entityResolver));
+            data.setTemplates(getTemplates(meta, entityResolver));
+        }
+
+        final String result;
+        try {
+            result = transform(row[data.getInputFieldIndex()], meta, data);
+        } catch (KettleException kex) {
+            putError(data.getOutputRowMeta(), row, 1L, kex.getMessage(), meta.getInputField(), "XsltStep001");
+            return true;
+        }
+
+        final Object[] outputRow = RowDataUtil.resizeArray(row, data.getOutputRowMeta().size());
+        outputRow[data.getOutputFieldIndex()] = result;
+        putRow(data.getOutputRowMeta(), outputRow);
+        return true;
+    }
+
+    private CachingEntityResolver getEntityResolver(final XsltStepMeta meta) throws KettleException {
+        try {
+            return CachingEntityResolver.forCatalog(environmentSubstitute(Const.NVL(meta.getCatalogFile(), "")), meta.isCatalogOnly());
+        } catch (IOException e) {
+            throw new KettleException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Gets the stylesheet as compiled for all step copies.
+     */
+    private Templates getTemplates(final XsltStepMeta meta, final CachingEntityResolver entityResolver) throws KettleException {
+        final String stylesheetFile = environmentSubstitute(Const.NVL(meta.getStylesheetFile(), ""));
+        if (Utils.isEmpty(stylesheetFile)) {
+            throw new KettleException(BaseMessages.getString(PKG, "XsltStep.Error.NoStylesheet"));
+        }
+        try {
+            return TemplatesCache.getTemplates(stylesheetFile, entityResolver);
+        } catch (IOException | TransformerException e) {
+            throw new KettleException(BaseMessages.getString(PKG, "XsltStep.Error.InvalidStylesheet", stylesheetFile), e);
+        }
+    }
+
+    private String transform(final Object value, final XsltStepMeta meta, final XsltStepData data) throws KettleException {
+        InputSource inputSource = null;
+        try {
+            if (data.getTransformer() == null) {
+                data.setTransformer(TemplatesCache.newTransformer(data.getTemplates()));
+            }
+            final SAXSource source;
+            if (value instanceof Document && !meta.isInputIsFile()) {
+                // already parsed by a Canonical XML step with a DOM output field
+                source = new SAXSource(new DocumentXMLReader((Document) value), new InputSource());
+            } else {
+                inputSource = CanonicalStep.getInputSource(value, meta.getInputField(), meta.isInputIsFile(), this);
+                source = new SAXSource(data.getXmlReader(), inputSource);
+            }
+            if (meta.isCanonicalize()) {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                final CanonicalContentHandler handler = new CanonicalContentHandler(baos);
+                final SAXResult result = new SAXResult(handler);
+                result.setLexicalHandler(handler);
+                data.getTransformer().transform(source, result);
+                return CanonicalStep.toUtf8String(baos);
+            } else {
+                final StringWriter writer = new StringWriter();
+                data.getTransformer().transform(source, new StreamResult(writer));
+                return writer.toString();
+            }
+        } catch (TransformerException e) {
+            // a transformer may be left part way through the failed document, so the next is given a new one
+            data.setTransformer(null);
+            throw new KettleException(e.getMessageAndLocation(), e);
+        } finally {
+            if (inputSource != null) {
+                IOUtils.closeQuietly(inputSource.getByteStream());
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.step.BaseStepData;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.xml.sax.XMLReader;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+
+public class XsltStepData extends BaseStepData implements StepDataInterface {
+
+    private XMLReader xmlReader;
+    private Templates templates;
+    private Transformer transformer;
+    private RowMetaInterface outputRowMeta;
+    private int inputFieldIndex;
+    private int outputFieldIndex;
+
+    public XsltStepData() {
+        super();
+    }
+
+    public XMLReader getXmlReader() {
+        return xmlReader;
+    }
+
+    public void setXmlReader(final XMLReader xmlReader) {
+        this.xmlReader = xmlReader;
+    }
+
+    /**
+     * @return the stylesheet, as compiled for all step copies
+     */
+    public Templates getTemplates() {
+        return templates;
+    }
+
+    public void setTemplates(final Templates templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * @return the transformer of this step copy, or null if one is yet to be created from the compiled stylesheet
+     */
+    public Transformer getTransformer() {
+        return transformer;
+    }
+
+    public void setTransformer(final Transformer transformer) {
+        this.transformer = transformer;
+    }
+
+    public RowMetaInterface getOutputRowMeta() {
+        return outputRowMeta;
+    }
+
+    public void setOutputRowMeta(final RowMetaInterface outputRowMeta) {
+        this.outputRowMeta = outputRowMeta;
+    }
+
+    public int getInputFieldIndex() {
+        return inputFieldIndex;
+    }
+
+    public void setInputFieldIndex(final int inputFieldIndex) {
+        this.inputFieldIndex = inputFieldIndex;
+    }
+
+    public int getOutputFieldIndex() {
+        return outputFieldIndex;
+    }
+
+    public void setOutputFieldIndex(final int outputFieldIndex) {
+        this.outputFieldIndex = outputFieldIndex;
+    }
+}
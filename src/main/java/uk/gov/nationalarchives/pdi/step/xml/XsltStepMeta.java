@@ -0,0 +1,336 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.eclipse.swt.widgets.Shell;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.*;
+import org.pentaho.metastore.api.IMetaStore;
+import org.w3c.dom.Node;
+
+import java.util.List;
+
+@Step(
+        id = "XsltStep",
+        name = "XsltStep.Name",
+        description = "XsltStep.TooltipDesc",
+        image = "CanonicalStep.svg",
+        categoryDescription = "i18n:org.pentaho.di.trans.step:BaseStep.Category.Transform",
+        i18nPackageName = "uk.gov.nationalarchives.pdi.step.xml"
+)
+public class XsltStepMeta extends BaseStepMeta implements StepMetaInterface {
+
+    private static final Class<?> PKG = XsltStepMeta.class;
+
+    private static final String ELEM_NAME_INPUT_FIELD = "inputField";
+    private static final String ELEM_NAME_INPUT_IS_FILE = "inputIsFile";
+    private static final String ELEM_NAME_STYLESHEET_FILE = "stylesheetFile";
+    private static final String ELEM_NAME_CATALOG_FILE = "catalogFile";
+    private static final String ELEM_NAME_SKIP_EXTERNAL_DTD = "skipExternalDtd";
+    private static final String ELEM_NAME_CATALOG_ONLY = "catalogOnly";
+    private static final String ELEM_NAME_OUTPUT_FIELD = "outputField";
+    private static final String ELEM_NAME_CANONICALIZE = "canonicalize";
+
+    private String inputField;
+    private boolean inputIsFile;
+    private String stylesheetFile;
+    private String catalogFile;
+    private boolean skipExternalDtd;
+    private boolean catalogOnly;
+    private String outputField;
+    private boolean canonicalize;
+
+    public XsltStepMeta() {
+        super();
+    }
+
+    @Override
+    public void setDefault() {
+        setInputField("");
+        setInputIsFile(false);
+        setStylesheetFile("");
+        setCatalogFile("");
+        setSkipExternalDtd(false);
+        setCatalogOnly(false);
+        setOutputField("xslt_result");
+        setCanonicalize(false);
+    }
+
+    /**
+     * Called by Spoon to get a new instance of the SWT dialog for the step.
+     *
+     * @param shell     an SWT Shell
+     * @param meta      description of the step
+     * @param transMeta description of the the transformation
+     * @param name      the name of the step
+     * @return new instance of a dialog for this step
+     */
+    public StepDialogInterface getDialog(final Shell shell, final StepMetaInterface meta, final TransMeta transMeta, final String name) {
+        return new XsltStepDialog(shell, meta, transMeta, name);
+    }
+
+    @Override
+    public StepInterface getStep(final StepMeta stepMeta, final StepDataInterface stepDataInterface, final int copyNr, final TransMeta transMeta, final Trans trans) {
+        return new XsltStep(stepMeta, stepDataInterface, copyNr, transMeta, trans);
+    }
+
+    @Override
+    public StepDataInterface getStepData() {
+        return new XsltStepData();
+    }
+
+    @Override
+    public boolean supportsErrorHandling() {
+        return true;
+    }
+
+    public String getInputField() {
+        return inputField;
+    }
+
+    /**
+     * Setter for the name of the input field holding the XML document to transform.
+     *
+     * @param inputField the name of the field
+     */
+    public void setInputField(final String inputField) {
+        this.inputField = inputField;
+    }
+
+    public boolean isInputIsFile() {
+        return inputIsFile;
+    }
+
+    /**
+     * Setter for whether the input field holds the path or VFS URI of a file containing the XML, rather than
+     * holding the XML.
+     *
+     * @param inputIsFile true if the input field holds filenames
+     */
+    public void setInputIsFile(final boolean inputIsFile) {
+        this.inputIsFile = inputIsFile;
+    }
+
+    public String getStylesheetFile() {
+        return stylesheetFile;
+    }
+
+    /**
+     * Setter for the XSLT stylesheet to transform documents with.
+     *
+     * @param stylesheetFile the local path or URI of the stylesheet, which may contain variables
+     */
+    public void setStylesheetFile(final String stylesheetFile) {
+        this.stylesheetFile = stylesheetFile;
+    }
+
+    public String getCatalogFile() {
+        return catalogFile;
+    }
+
+    /**
+     * Setter for the XML catalog used to resolve DTDs, external entities, and the stylesheets imported or included
+     * by the stylesheet, to local copies.
+     *
+     * @param catalogFile the path of the catalog, which may contain variables, or empty to resolve them as given
+     */
+    public void setCatalogFile(final String catalogFile) {
+        this.catalogFile = catalogFile;
+    }
+
+    public boolean isSkipExternalDtd() {
+        return skipExternalDtd;
+    }
+
+    /**
+     * Setter for whether external DTDs of the documents to transform are ignored.
+     *
+     * @param skipExternalDtd true to never load external DTDs
+     */
+    public void setSkipExternalDtd(final boolean skipExternalDtd) {
+        this.skipExternalDtd = skipExternalDtd;
+    }
+
+    public boolean isCatalogOnly() {
+        return catalogOnly;
+    }
+
+    /**
+     * Setter for whether DTDs, external entities, and the schemas and stylesheets they import are only read from
+     * local files, so that one which the catalog does not map to a local file fails at once, rather than waiting on
+     * a network which may not be reachable.
+     *
+     * @param catalogOnly true to never fetch DTDs and entities from the network
+     */
+    public void setCatalogOnly(final boolean catalogOnly) {
+        this.catalogOnly = catalogOnly;
+    }
+
+    public String getOutputField() {
+        return outputField;
+    }
+
+    /**
+     * Setter for the name of the field to add holding the result of the transformation.
+     *
+     * @param outputField the name of the field
+     */
+    public void setOutputField(final String outputField) {
+        this.outputField = outputField;
+    }
+
+    public boolean isCanonicalize() {
+        return canonicalize;
+    }
+
+    /**
+     * Setter for whether the result tree is canonicalized as it is produced, so that the output field holds its
+     * Canonical XML, rather than the result as serialized by the stylesheet's output method.
+     *
+     * @param canonicalize true to output the Canonical XML of the result
+     */
+    public void setCanonicalize(final boolean canonicalize) {
+        this.canonicalize = canonicalize;
+    }
+
+    /**
+     * This method is called by Spoon when a step needs to serialize its configuration to XML.
+     *
+     * @return a string containing the XML serialization of this step
+     */
+    public String getXML() {
+        StringBuilder xml = new StringBuilder();
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_INPUT_FIELD, inputField));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_INPUT_IS_FILE, inputIsFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_STYLESHEET_FILE, stylesheetFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CATALOG_FILE, catalogFile));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_SKIP_EXTERNAL_DTD, skipExternalDtd));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CATALOG_ONLY, catalogOnly));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_OUTPUT_FIELD, outputField));
+        xml.append(XMLHandler.addTagValue(ELEM_NAME_CANONICALIZE, canonicalize));
+        return xml.toString();
+    }
+
+    /**
+     * This method is called by PDI when a step needs to load its configuration from XML.
+     *
+     * @param stepnode  the XML node containing the configuration
+     * @param databases the databases available in the transformation
+     * @param metaStore the metaStore to optionally read from
+     */
+    public void loadXML(final Node stepnode, final List<DatabaseMeta> databases, final IMetaStore metaStore) throws KettleXMLException {
+        try {
+            setInputField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_INPUT_FIELD), ""));
+            setInputIsFile("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_INPUT_IS_FILE)));
+            setStylesheetFile(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_STYLESHEET_FILE), ""));
+            setCatalogFile(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_CATALOG_FILE), ""));
+            setSkipExternalDtd("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_SKIP_EXTERNAL_DTD)));
+            setCatalogOnly("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_CATALOG_ONLY)));
+            setOutputField(Const.NVL(XMLHandler.getTagValue(stepnode, ELEM_NAME_OUTPUT_FIELD), ""));
+            setCanonicalize("Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, ELEM_NAME_CANONICALIZE)));
+        } catch (Exception e) {
+            throw new KettleXMLException(BaseMessages.getString(PKG, "CanonicalStepMeta.Error.UnableToReadStepInfo"), e);
+        }
+    }
+
+    /**
+     * This method is called by Spoon when a step needs to serialize its configuration to a repository.
+     *
+     * @param rep               the repository to save to
+     * @param metaStore         the metaStore to optionally write to
+     * @param id_transformation the id to use for the transformation when saving
+     * @param id_step           the id to use for the step  when saving
+     */
+    public void saveRep(final Repository rep, final IMetaStore metaStore, final ObjectId id_transformation, final ObjectId id_step)
+            throws KettleException {
+        try {
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_INPUT_FIELD, inputField); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_INPUT_IS_FILE, inputIsFile); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_STYLESHEET_FILE, stylesheetFile); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CATALOG_FILE, catalogFile); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_SKIP_EXTERNAL_DTD, skipExternalDtd); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CATALOG_ONLY, catalogOnly); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_OUTPUT_FIELD, outputField); //$NON-NLS-1$
+            rep.saveStepAttribute(id_transformation, id_step, ELEM_NAME_CANONICALIZE, canonicalize); //$NON-NLS-1$
+        } catch (Exception e) {
+            throw new KettleException("Unable to save step into repository: " + id_step, e);
+        }
+    }
+
+    /**
+     * This method is called by PDI when a step needs to read its configuration from a repository.
+     *
+     * @param rep       the repository to read from
+     * @param metaStore the metaStore to optionally read from
+     * @param id_step   the id of the step being read
+     * @param databases the databases available in the transformation
+     */
+    public void readRep(final Repository rep, final IMetaStore metaStore, final ObjectId id_step, final List<DatabaseMeta> databases)
+            throws KettleException {
+        try {
+            inputField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_INPUT_FIELD), ""); //$NON-NLS-1$
+            inputIsFile = rep.getStepAttributeBoolean(id_step, ELEM_NAME_INPUT_IS_FILE); //$NON-NLS-1$
+            stylesheetFile = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_STYLESHEET_FILE), ""); //$NON-NLS-1$
+            catalogFile = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_CATALOG_FILE), ""); //$NON-NLS-1$
+            skipExternalDtd = rep.getStepAttributeBoolean(id_step, ELEM_NAME_SKIP_EXTERNAL_DTD); //$NON-NLS-1$
+            catalogOnly = rep.getStepAttributeBoolean(id_step, ELEM_NAME_CATALOG_ONLY); //$NON-NLS-1$
+            outputField = Const.NVL(rep.getStepAttributeString(id_step, ELEM_NAME_OUTPUT_FIELD), ""); //$NON-NLS-1$
+            canonicalize = rep.getStepAttributeBoolean(id_step, ELEM_NAME_CANONICALIZE); //$NON-NLS-1$
+        } catch (Exception e) {
+            throw new KettleException("Unable to load step from repository", e);
+        }
+    }
+
+    /**
+     * Appends the result field to the row-stream.
+     *
+     * @param inputRowMeta the row structure coming in to the step
+     * @param name         the name of the step making the changes
+     * @param info         row structures of any info steps coming in
+     * @param nextStep     the description of a step this step is passing rows to
+     * @param space        the variable space for resolving variables
+     * @param repository   the repository instance optionally read from
+     * @param metaStore    the metaStore to optionally read from
+     */
+    public void getFields(final RowMetaInterface inputRowMeta, final String name, final RowMetaInterface[] info, final StepMeta nextStep,
+                          final VariableSpace space, final Repository repository, final IMetaStore metaStore) throws KettleStepException {
+        final ValueMetaInterface v = new ValueMetaString(outputField);
+        v.setOrigin(name);
+        inputRowMeta.addValueMeta(v);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.variables.Variables;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.TransTestFactory;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.StepInterface;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Soak tests which put a large number of generated documents of varied size and shape through the Canonical XML
+ * step, measuring its throughput, per-row latency and peak heap after garbage collection against the recorded
+ * {@link SoakBaselines}.
+ * <p>
+ * These are only run by the {@code soak} profile. The number of rows of each test is set by the {@code soak.rows}
+ * system property.
+ */
+public class CanonicalStepSoakIT {
+
+    static final String STEP_NAME = "Soak test for Canonical XML step";
+
+    private static final int ROWS = Integer.getInteger("soak.rows", 1_000_000);
+
+    /**
+     * The number of distinct documents, which the rows cycle through.
+     */
+    private static final int DOCUMENTS = 1000;
+
+    private static SoakBaselines baselines;
+
+    @BeforeAll
+    public static void setUpBeforeClass() throws KettleException, IOException {
+        KettleEnvironment.init(false);
+        baselines = SoakBaselines.load();
+    }
+
+    @AfterAll
+    public static void tearDownAfterClass() throws IOException {
+        baselines.writeResults();
+    }
+
+    @Test
+    public void testDom() throws KettleException, ListenerNotFoundException {
+        soak("dom", getSoakMeta(), false);
+    }
+
+    @Test
+    public void testStreamingBinary() throws KettleException, ListenerNotFoundException {
+        final CanonicalStepMeta meta = getSoakMeta();
+        meta.setStreaming(true);
+        meta.setOutputBinary(true);
+        soak("streamingBinary", meta, true);
+    }
+
+    @Test
+    public void testWorkersDigestOnly() throws KettleException, ListenerNotFoundException {
+        final CanonicalStepMeta meta = getSoakMeta();
+        meta.setWorkerThreads(4);
+        meta.getSha256Fields()[0] = "sha256";
+        meta.setDigestOnly(true);
+        soak("workersDigestOnly", meta, false);
+    }
+
+    private void soak(final String scenario, final CanonicalStepMeta meta, final boolean binary) throws KettleException, ListenerNotFoundException {
+        final Object[] documents = generateDocuments(binary);
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(binary ? new ValueMetaBinary("xml") : new ValueMetaString("xml"));
+
+        final TransMeta tm = TransTestFactory.generateTestTransformation(new Variables(), meta, STEP_NAME);
+        final Trans trans = new Trans(tm);
+        trans.prepareExecution(null);
+        final StepInterface step = trans.getStepInterface(STEP_NAME, 0);
+        final LatencyListener latencies = new LatencyListener();
+        step.addRowListener(latencies);
+        final RowProducer producer = trans.addRowProducer(TransTestFactory.INJECTOR_STEPNAME, 0);
+
+        System.gc();
+        final HeapAfterGcListener heap = new HeapAfterGcListener();
+        heap.start();
+
+        final long start = System.nanoTime();
+        trans.startThreads();
+        for (int i = 0; i < ROWS; i++) {
+            producer.putRow(rowMeta, new Object[]{documents[i % DOCUMENTS]});
+        }
+        producer.finished();
+        trans.waitUntilFinished();
+        final long elapsed = System.nanoTime() - start;
+        final long peakHeap = heap.stop();
+
+        assertEquals(0, trans.getResult().getNrErrors());
+        assertEquals(ROWS, step.getLinesWritten());
+        assertEquals(ROWS, latencies.histogram.getCount());
+
+        final Map<SoakBaselines.Metric, Double> results = new EnumMap<>(SoakBaselines.Metric.class);
+        results.put(SoakBaselines.Metric.ROWS_PER_SECOND, ROWS * 1e9 / elapsed);
+        results.put(SoakBaselines.Metric.P50_LATENCY_MICROS, latencies.histogram.getValueAtPercentile(50) / 1e3);
+        results.put(SoakBaselines.Metric.P99_LATENCY_MICROS, latencies.histogram.getValueAtPercentile(99) / 1e3);
+        results.put(SoakBaselines.Metric.PEAK_HEAP_AFTER_GC_MEGABYTES, peakHeap / (1024.0 * 1024));
+        baselines.check(scenario, results);
+    }
+
+    /**
+     * Generates documents of every shape, most of a few kilobytes, some of tens of kilobytes, and one in a thousand
+     * of up to a megabyte.
+     */
+    private static Object[] generateDocuments(final boolean binary) {
+        // seeded, so that every run puts the same documents through the step
+        final Random random = new Random(0);
+        final CorpusGenerator.Shape[] shapes = CorpusGenerator.Shape.values();
+        final Object[] documents = new Object[DOCUMENTS];
+        for (int i = 0; i < DOCUMENTS; i++) {
+            final int chars;
+            if (i == DOCUMENTS / 2) {
+                chars = 256 * 1024 + random.nextInt(768 * 1024);
+            } else if (i % 10 == 0) {
+                chars = 16 * 1024 + random.nextInt(48 * 1024);
+            } else {
+                chars = 1024 + random.nextInt(3 * 1024);
+            }
+            final String xml = CorpusGenerator.generate(chars, shapes[i % shapes.length], i % 2 == 0);
+            documents[i] = binary ? xml.getBytes(StandardCharsets.UTF_8) : xml;
+        }
+        return documents;
+    }
+
+    private static CanonicalStepMeta getSoakMeta() {
+        final CanonicalStepMeta meta = new CanonicalStepMeta();
+        meta.allocate(1);
+        meta.getInputFields()[0] = "xml";
+        meta.getOutputFields()[0] = "canonical_xml";
+        return meta;
+    }
+
+    /**
+     * Records the latency of each row from when it is read by the step until it is written. The step reads and
+     * writes its rows in order on its own thread, even when it has workers, so the times at which the rows in
+     * flight were read are held in a queue.
+     */
+    private static class LatencyListener extends RowAdapter {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        private final ArrayDeque<Long> readTimes = new ArrayDeque<>();
+
+        @Override
+        public void rowReadEvent(final RowMetaInterface rowMeta, final Object[] row) {
+            readTimes.add(System.nanoTime());
+        }
+
+        @Override
+        public void rowWrittenEvent(final RowMetaInterface rowMeta, final Object[] row) {
+            histogram.record(System.nanoTime() - readTimes.remove());
+        }
+    }
+
+    /**
+     * Records the peak heap use after each garbage collection, which is the memory held live by the step. The peak
+     * use of the heap pools would instead depend on how much garbage the collector let build up before it ran.
+     */
+    private static class HeapAfterGcListener implements NotificationListener {
+        private final Set<String> heapPools = new HashSet<>();
+        // the notifications are delivered on a thread of the JVM's own
+        private final AtomicLong peak = new AtomicLong();
+
+        HeapAfterGcListener() {
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    heapPools.add(pool.getName());
+                }
+            }
+        }
+
+        void start() {
+            for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+            }
+        }
+
+        /**
+         * Stops listening for garbage collections.
+         *
+         * @return the peak heap use after a collection, in bytes
+         */
+        long stop() throws ListenerNotFoundException {
+            for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) collector).removeNotificationListener(this);
+            }
+            // the notification of the last collection may not have been delivered yet, so include its use too
+            long lastCollection = 0;
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null) {
+                    lastCollection += pool.getCollectionUsage().getUsed();
+                }
+            }
+            return Math.max(peak.get(), lastCollection);
+        }
+
+        @Override
+        public void handleNotification(final Notification notification, final Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            long used = 0;
+            for (final Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+                if (heapPools.contains(pool.getKey())) {
+                    used += pool.getValue().getUsed();
+                }
+            }
+            peak.accumulateAndGet(used, Math::max);
+        }
+    }
+}
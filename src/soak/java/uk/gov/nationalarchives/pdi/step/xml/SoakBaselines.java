@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * The baselines of the soak tests, and the results measured against them.
+ * <p>
+ * Baselines are read from the {@code soak.baselines} file if that system property is set, and otherwise from
+ * {@code soak-baselines.properties} on the classpath. Each is keyed by scenario and metric, e.g.
+ * {@code dom.rowsPerSecond}; a metric with no baseline fails, so that a run cannot pass without being checked. The
+ * results are written in the same format to the {@code soak.results} file, from which new baselines may be recorded.
+ */
+class SoakBaselines {
+
+    enum Metric {
+        ROWS_PER_SECOND("rowsPerSecond", true),
+        P50_LATENCY_MICROS("p50LatencyMicros", false),
+        P99_LATENCY_MICROS("p99LatencyMicros", false),
+        PEAK_HEAP_AFTER_GC_MEGABYTES("peakHeapAfterGcMegabytes", false);
+
+        final String key;
+        final boolean higherIsBetter;
+
+        Metric(final String key, final boolean higherIsBetter) {
+            this.key = key;
+            this.higherIsBetter = higherIsBetter;
+        }
+    }
+
+    private static final String RESOURCE = "/soak-baselines.properties";
+
+    /**
+     * The fraction by which a result may be worse than its baseline before it fails, to allow for noise.
+     */
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("soak.tolerance", "0.1"));
+
+    private final Properties baselines;
+    private final Properties results = new Properties();
+
+    private SoakBaselines(final Properties baselines) {
+        this.baselines = baselines;
+    }
+
+    static SoakBaselines load() throws IOException {
+        final Properties baselines = new Properties();
+        final String file = System.getProperty("soak.baselines");
+        try (final InputStream is = file != null ? Files.newInputStream(Paths.get(file)) : SoakBaselines.class.getResourceAsStream(RESOURCE)) {
+            if (is != null) {
+                baselines.load(is);
+            }
+        }
+        return new SoakBaselines(baselines);
+    }
+
+    /**
+     * Records the results of a scenario, and asserts that each has a baseline and is no worse than it.
+     *
+     * @param scenario the name of the scenario
+     * @param measured the result of each metric
+     */
+    void check(final String scenario, final Map<Metric, Double> measured) {
+        final List<Executable> checks = new ArrayList<>();
+        for (final Map.Entry<Metric, Double> result : measured.entrySet()) {
+            final Metric metric = result.getKey();
+            final String key = scenario + '.' + metric.key;
+            final double value = result.getValue();
+            results.setProperty(key, String.format(Locale.ROOT, "%.1f", value));
+
+            final String baseline = baselines.getProperty(key);
+            if (baseline == null) {
+                checks.add(() -> fail(String.format(Locale.ROOT, "%s was %.1f, but has no baseline; record one from %s",
+                        key, value, System.getProperty("soak.results", "the soak.results file"))));
+            } else {
+                final double limit = metric.higherIsBetter
+                        ? Double.parseDouble(baseline) * (1 - TOLERANCE)
+                        : Double.parseDouble(baseline) * (1 + TOLERANCE);
+                checks.add(() -> {
+                    if (metric.higherIsBetter ? value < limit : value > limit) {
+                        fail(String.format(Locale.ROOT, "%s was %.1f, against a baseline of %s", key, value, baseline));
+                    }
+                });
+            }
+        }
+        assertAll(scenario, checks.stream());
+    }
+
+    /**
+     * Writes the results recorded so far to the {@code soak.results} file, if that system property is set.
+     */
+    void writeResults() throws IOException {
+        final String file = System.getProperty("soak.results");
+        if (file == null) {
+            return;
+        }
+        final Path path = Paths.get(file);
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        try (final OutputStream os = Files.newOutputStream(path)) {
+            results.store(os, "Soak test results, in the format of soak-baselines.properties");
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CachingEntityResolverTest {
+
+    private static final String PUBLIC_DOCTYPE = "<!DOCTYPE doc PUBLIC '-//TEST//DTD Doc//EN' 'http://nowhere.invalid/doc.dtd'><doc>&e;</doc>";
+    private static final String REWRITTEN_DOCTYPE = "<!DOCTYPE doc SYSTEM 'http://example.org/dtds/doc.dtd'><doc>&e;</doc>";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testCatalogResolvesDtdForDom() throws Exception {
+        final CachingEntityResolver resolver = CachingEntityResolver.forCatalog(writeCatalog().toString());
+        final DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        builder.setEntityResolver(resolver);
+        for (final String xml : new String[]{PUBLIC_DOCTYPE, REWRITTEN_DOCTYPE}) {
+            final Element doc = builder.parse(new InputSource(new StringReader(xml))).getDocumentElement();
+            assertEquals("default", doc.getAttribute("attr"));
+            assertEquals("entity", doc.getTextContent());
+        }
+    }
+
+    @Test
+    public void testCatalogResolvesDtdForStreaming() throws Exception {
+        final CachingEntityResolver resolver = CachingEntityResolver.forCatalog(writeCatalog().toString());
+        final XMLInputFactory xif = XMLInputFactory.newInstance();
+        xif.setProperty(XMLInputFactory.SUPPORT_DTD, true);
+        xif.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+        xif.setXMLResolver(resolver);
+        for (final String xml : new String[]{PUBLIC_DOCTYPE, REWRITTEN_DOCTYPE}) {
+            final XMLStreamReader reader = xif.createXMLStreamReader(new StringReader(xml));
+            while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                // skip the DOCTYPE
+            }
+            assertEquals("default", reader.getAttributeValue(null, "attr"));
+            assertEquals("entity", reader.getElementText());
+        }
+    }
+
+    @Test
+    public void testModifiedDtdIsReadAgain() throws Exception {
+        final CachingEntityResolver resolver = CachingEntityResolver.forCatalog(writeCatalog().toString());
+        final DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        builder.setEntityResolver(resolver);
+        assertEquals("entity", builder.parse(new InputSource(new StringReader(PUBLIC_DOCTYPE))).getDocumentElement().getTextContent());
+
+        final Path dtd = tempDir.resolve("dtds").resolve("doc.dtd");
+        final FileTime modified = FileTime.fromMillis(Files.getLastModifiedTime(dtd).toMillis() + 10000);
+        Files.write(dtd, "<!ENTITY e 'edited'>".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(dtd, modified);
+        assertEquals("edited", builder.parse(new InputSource(new StringReader(PUBLIC_DOCTYPE))).getDocumentElement().getTextContent());
+    }
+
+    @Test
+    public void testCatalogOnlyFailsForUnmappedDtd() throws Exception {
+        final CachingEntityResolver resolver = CachingEntityResolver.forCatalog(writeCatalog().toString(), true);
+        final DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        builder.setEntityResolver(resolver);
+        assertEquals("entity", builder.parse(new InputSource(new StringReader(PUBLIC_DOCTYPE))).getDocumentElement().getTextContent());
+
+        final String unmapped = "<!DOCTYPE doc SYSTEM 'http://nowhere.invalid/other.dtd'><doc/>";
+        assertThrows(IOException.class, () -> builder.parse(new InputSource(new StringReader(unmapped))));
+    }
+
+    private Path writeCatalog() throws Exception {
+        final Path dtds = Files.createDirectory(tempDir.resolve("dtds"));
+        Files.write(dtds.resolve("doc.dtd"), "<!ATTLIST doc attr CDATA 'default'><!ENTITY e 'entity'>".getBytes(StandardCharsets.UTF_8));
+        final Path catalog = tempDir.resolve("catalog.xml");
+        Files.write(catalog, ("<catalog xmlns='urn:oasis:names:tc:entity:xmlns:xml:catalog'>"
+                + "<public publicId='-//TEST//DTD Doc//EN' uri='dtds/doc.dtd'/>"
+                + "<rewriteSystem systemIdStartString='http://example.org/dtds/' rewritePrefix='dtds/'/>"
+                + "</catalog>").getBytes(StandardCharsets.UTF_8));
+        return catalog;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+
+import javax.xml.stream.XMLInputFactory;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class CanonicalComparatorTest {
+
+    private final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    @Test
+    public void testEquivalentDocuments() throws Exception {
+        assertNull(compare("<?xml version='1.0'?><doc b='2' a='1'><e/>&#38;</doc>", "<doc a=\"1\" b=\"2\"><e></e>&amp;</doc>"));
+    }
+
+    @Test
+    public void testFirstDifference() throws Exception {
+        final CanonicalComparator.Difference difference = compare("<doc><e>x</e><e>y</e><f/></doc>", "<doc><e>x</e><e>z</e><f/></doc>");
+        assertEquals("<doc><e>x</e><e>".length(), difference.getOffset());
+        assertEquals("/doc[1]/e[2]", difference.getPath());
+    }
+
+    @Test
+    public void testOffsetIsInUtf8Bytes() throws Exception {
+        final CanonicalComparator.Difference difference = compare("<doc>café 😀 x</doc>", "<doc>café 😀 y</doc>");
+        assertEquals(5 + 5 + 1 + 4 + 1, difference.getOffset());
+        assertEquals("/doc[1]", difference.getPath());
+    }
+
+    @Test
+    public void testPrefixDifference() throws Exception {
+        final CanonicalComparator.Difference difference = compare("<doc><e/></doc>", "<doc><e/></doc><!--after-->");
+        assertEquals("<doc><e></e></doc>".length(), difference.getOffset());
+        assertEquals("/", difference.getPath());
+    }
+
+    private CanonicalComparator.Difference compare(final String first, final String second) throws Exception {
+        return CanonicalComparator.compare(xmlInputFactory.createXMLStreamReader(new StringReader(first)),
+                xmlInputFactory.createXMLStreamReader(new StringReader(second)));
+    }
+}
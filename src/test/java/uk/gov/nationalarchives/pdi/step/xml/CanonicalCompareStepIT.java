@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.variables.Variables;
+import org.pentaho.di.trans.RowStepCollector;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.TransTestFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CanonicalCompareStepIT {
+
+    static final String STEP_NAME = "Integration test for Canonical XML Compare step";
+
+    @BeforeAll
+    public static void setUpBeforeClass() throws KettleException {
+        KettleEnvironment.init(false);
+    }
+
+    @Test
+    public void testCompare() throws KettleException {
+        final CanonicalCompareStepMeta meta = new CanonicalCompareStepMeta();
+        meta.setDefault();
+        meta.setFirstField("first");
+        meta.setSecondField("second");
+        meta.setOffsetField("offset");
+        meta.setPathField("path");
+
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("first"));
+        rowMeta.addValueMeta(new ValueMetaString("second"));
+        input.add(new RowMetaAndData(rowMeta, "<doc b='2' a='1'>&#38;</doc>", "<doc a=\"1\" b=\"2\">&amp;</doc>"));
+        input.add(new RowMetaAndData(rowMeta, "<doc><e>x</e></doc>", "<doc><e>y</e></doc>"));
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        assertEquals(0, result.get(STEP_NAME).getRowsError().size());
+        final List<RowMetaAndData> rows = result.get(STEP_NAME).getRowsWritten();
+        assertEquals(2, rows.size());
+
+        assertTrue(rows.get(0).getBoolean("canonical_equal", false));
+        assertNull(rows.get(0).getData()[rows.get(0).getRowMeta().indexOfValue("offset")]);
+        assertNull(rows.get(0).getData()[rows.get(0).getRowMeta().indexOfValue("path")]);
+
+        assertFalse(rows.get(1).getBoolean("canonical_equal", true));
+        assertEquals("<doc><e>".length(), rows.get(1).getInteger("offset", -1));
+        assertEquals("/doc[1]/e[1]", rows.get(1).getString("path", null));
+    }
+
+    @Test
+    public void testMalformed() throws KettleException {
+        final CanonicalCompareStepMeta meta = new CanonicalCompareStepMeta();
+        meta.setDefault();
+        meta.setFirstField("first");
+        meta.setSecondField("second");
+
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("first"));
+        rowMeta.addValueMeta(new ValueMetaString("second"));
+        input.add(new RowMetaAndData(rowMeta, "<doc>", "<doc></doc>"));
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        assertEquals(1, result.get(STEP_NAME).getRowsError().size());
+    }
+}
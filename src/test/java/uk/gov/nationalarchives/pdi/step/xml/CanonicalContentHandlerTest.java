@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CanonicalContentHandlerTest {
+
+    private static final String IDENTITY = "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+            + "<xsl:template match='@*|node()'><xsl:copy><xsl:apply-templates select='@*|node()'/></xsl:copy></xsl:template>"
+            + "</xsl:stylesheet>";
+
+    @Test
+    public void testSameAsCanonicalizingSerializedResult() throws Exception {
+        assertSameAsSerialized(IDENTITY, "<?xml version='1.0'?><!--top--><a:doc xmlns:a='urn:a' xmlns:b='urn:b' b:x='1' a='&#9;&#10;&lt;&quot;'>"
+                + "<a:e xmlns:a='urn:a2'/><e xmlns='urn:e'><e2/><f xmlns=''>t&amp;&#13;\n<![CDATA[<x>]]></f></e></a:doc><?tail d?>");
+
+        // namespaces declared by literal result elements, and added for generated elements and attributes
+        assertSameAsSerialized("<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform' xmlns:q='urn:q' xmlns:r='urn:r'"
+                + " exclude-result-prefixes='r'><xsl:template match='/'><xsl:comment>c&#13;</xsl:comment><q:root xmlns='urn:def'><child>"
+                + "<xsl:attribute name='q:at'>v</xsl:attribute><xsl:element name='n:dyn' namespace='urn:n'/>"
+                + "<xsl:value-of disable-output-escaping='yes' select='\"x\"'/></child><plain xmlns=''/></q:root></xsl:template></xsl:stylesheet>",
+                "<doc/>");
+    }
+
+    private static void assertSameAsSerialized(final String stylesheet, final String xml) throws Exception {
+        final Templates templates = TransformerFactory.newInstance().newTemplates(new StreamSource(new StringReader(stylesheet)));
+
+        final StringWriter serialized = new StringWriter();
+        templates.newTransformer().transform(new StreamSource(new StringReader(xml)), new StreamResult(serialized));
+        final StringWriter expected = new StringWriter();
+        new StreamingCanonicalizer(XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(serialized.toString())), expected)
+                .canonicalize();
+
+        final StringWriter actual = new StringWriter();
+        final CanonicalContentHandler handler = new CanonicalContentHandler(actual);
+        final SAXResult result = new SAXResult(handler);
+        result.setLexicalHandler(handler);
+        templates.newTransformer().transform(new StreamSource(new StringReader(xml)), result);
+
+        assertEquals(expected.toString(), actual.toString());
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+
+import javax.xml.stream.XMLInputFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CanonicalFormCheckTest {
+
+    private final CanonicalFormCheck check = new CanonicalFormCheck(XMLInputFactory.newInstance());
+
+    @Test
+    public void testCanonical() {
+        // namespace declarations are sorted with the other attributes, as they are by the DOM canonicalization
+        final String xml = "<!--before-->\n<doc a=\"1\" b=\"&quot;\" xmlns=\"urn:a\"><e>café &amp; &lt;</e><!--c--></doc>";
+        assertTrue(check.isCanonical(xml));
+        assertTrue(check.isCanonical(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testNotCanonical() {
+        assertNotCanonical("<?xml version=\"1.0\"?><doc></doc>");
+        assertNotCanonical("<doc/>");
+        assertNotCanonical("<doc b=\"2\" a=\"1\"></doc>");
+        assertNotCanonical("<doc a='1'></doc>");
+        assertNotCanonical("<doc>&#38;</doc>");
+        assertNotCanonical("<doc></doc>\n");
+        assertNotCanonical("<doc>\r\n</doc>");
+    }
+
+    @Test
+    public void testMalformedIsNotCanonical() {
+        assertNotCanonical("<doc>");
+        assertNotCanonical("<doc></doc><doc></doc>");
+    }
+
+    @Test
+    public void testOtherEncodingIsNotCanonical() {
+        assertFalse(check.isCanonical("<doc>café</doc>".getBytes(StandardCharsets.UTF_16)));
+    }
+
+    private void assertNotCanonical(final String xml) {
+        assertFalse(check.isCanonical(xml), xml);
+        assertFalse(check.isCanonical(xml.getBytes(StandardCharsets.UTF_8)), xml);
+    }
+}
@@ -22,26 +22,39 @@
  */
 package uk.gov.nationalarchives.pdi.step.xml;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.pentaho.di.core.KettleEnvironment;
 import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
 import org.pentaho.di.core.row.value.ValueMetaSerializable;
+import org.pentaho.di.core.row.value.ValueMetaString;
 import org.pentaho.di.core.variables.Variables;
 import org.pentaho.di.trans.RowStepCollector;
 import org.pentaho.di.trans.TransMeta;
 
 import org.pentaho.di.trans.TransTestFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 public class CanonicalStepIT {
@@ -61,6 +74,315 @@ public class CanonicalStepIT {
         assertEquals(0, result.get(STEP_NAME).getRowsError().size());
     }
 
+    @Test
+    public void testSuccessBinary() throws KettleException {
+        final CanonicalStepMeta meta = getTestMeta();
+        meta.setOutputBinary(true);
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, getValidBinaryInputData());
+        assertEquals(0, result.get(STEP_NAME).getRowsError().size());
+        final List<RowMetaAndData> rows = result.get(STEP_NAME).getRowsWritten();
+        assertEquals(1, rows.size());
+        assertArrayEquals("<doc>caf\u00e9</doc>".getBytes(StandardCharsets.UTF_8), (byte[]) rows.get(0).getData()[1]);
+    }
+
+    @Test
+    public void testCompressedOutput() throws Exception {
+        final CanonicalStepMeta meta = getTestMeta();
+        meta.setCompressOutput(true);
+        TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, getValidBinaryInputData());
+        assertEquals(0, result.get(STEP_NAME).getRowsError().size());
+        final byte[] deflated = (byte[]) result.get(STEP_NAME).getRowsWritten().get(0).getData()[1];
+        assertTrue(DeflatedXml.isDeflated(deflated));
+        try (final InputStream is = DeflatedXml.open(deflated)) {
+            assertArrayEquals("<doc>caf\u00e9</doc>".getBytes(StandardCharsets.UTF_8), IOUtils.toByteArray(is));
+        }
+
+        // compressed XML is read directly
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaBinary("xml_string"));
+        input.add(new RowMetaAndData(rowMeta, deflated));
+        tm = TransTestFactory.generateTestTransformationError(new Variables(), getTestMeta(), STEP_NAME);
+        result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        assertEquals("<doc>caf\u00e9</doc>", result.get(STEP_NAME).getRowsWritten().get(0).getString("canonical_xml", null));
+    }
+
+    @Test
+    public void testDigestOnly() throws KettleException {
+        final CanonicalStepMeta meta = getTestMeta();
+        meta.getSha256Fields()[0] = "sha256";
+        meta.getMd5Fields()[0] = "md5";
+        meta.setDigestOnly(true);
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, getValidInputData());
+        assertEquals(0, result.get(STEP_NAME).getRowsError().size());
+        final RowMetaAndData row = result.get(STEP_NAME).getRowsWritten().get(0);
+        assertEquals(-1, row.getRowMeta().indexOfValue("canonical_xml"));
+        assertEquals("ee1da6067a56e2e303bed913fba30147a1095dbaa9edb83fe9f084024948274a", row.getString("sha256", null));
+        assertEquals("6f2d89afef1eff62cdcc40a69553a463", row.getString("md5", null));
+    }
+
+    @Test
+    public void testMultipleFieldMappings() throws KettleException {
+        final CanonicalStepMeta meta = new CanonicalStepMeta();
+        meta.allocate(2);
+        meta.setInputFields(new String[]{"descriptive", "rights"});
+        meta.setOutputFields(new String[]{"canonical_descriptive", "canonical_rights"});
+        meta.setSha256Fields(new String[]{"", "rights_sha256"});
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("descriptive"));
+        rowMeta.addValueMeta(new ValueMetaString("rights"));
+        input.add(new RowMetaAndData(rowMeta, "<desc b='2' a='1'/>", "<doc>test &#38;</doc>"));
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        assertEquals(0, result.get(STEP_NAME).getRowsError().size());
+        final RowMetaAndData row = result.get(STEP_NAME).getRowsWritten().get(0);
+        assertEquals("<desc a=\"1\" b=\"2\"></desc>", row.getString("canonical_descriptive", null));
+        assertEquals("<doc>test &amp;</doc>", row.getString("canonical_rights", null));
+        assertEquals("ee1da6067a56e2e303bed913fba30147a1095dbaa9edb83fe9f084024948274a", row.getString("rights_sha256", null));
+    }
+
+    @Test
+    public void testPassThroughCanonical() throws KettleException {
+        final CanonicalStepMeta meta = getTestMeta();
+        meta.getSha256Fields()[0] = "sha256";
+        meta.setPassThroughCanonical(true);
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("xml_string"));
+        input.add(new RowMetaAndData(rowMeta, "<doc>test &amp;</doc>"));
+        input.add(new RowMetaAndData(rowMeta, "<doc>test &#38;</doc>"));
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        assertEquals(0, result.get(STEP_NAME).getRowsError().size());
+        final List<RowMetaAndData> rows = result.get(STEP_NAME).getRowsWritten();
+        assertEquals(2, rows.size());
+        for (final RowMetaAndData row : rows) {
+            assertEquals("<doc>test &amp;</doc>", row.getString("canonical_xml", null));
+            assertEquals("ee1da6067a56e2e303bed913fba30147a1095dbaa9edb83fe9f084024948274a", row.getString("sha256", null));
+        }
+    }
+
+    @Test
+    public void testSplitRecords() throws KettleException {
+        final CanonicalStepMeta meta = getTestMeta();
+        meta.setRecordPath("/export/record");
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("id"));
+        rowMeta.addValueMeta(new ValueMetaString("xml_string"));
+        input.add(new RowMetaAndData(rowMeta, "a", "<export><record b='2' a='1'/><record>test &#38;</record></export>"));
+        input.add(new RowMetaAndData(rowMeta, "b", "<export><record/><record>"));
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        final List<RowMetaAndData> rows = result.get(STEP_NAME).getRowsWritten();
+        assertEquals(3, rows.size());
+        assertEquals("a", rows.get(0).getString("id", null));
+        assertEquals("<record a=\"1\" b=\"2\"></record>", rows.get(0).getString("canonical_xml", null));
+        assertEquals("a", rows.get(1).getString("id", null));
+        assertEquals("<record>test &amp;</record>", rows.get(1).getString("canonical_xml", null));
+        assertEquals("b", rows.get(2).getString("id", null));
+        assertEquals("<record></record>", rows.get(2).getString("canonical_xml", null));
+
+        // the second document is malformed after its first record
+        assertEquals(1, result.get(STEP_NAME).getRowsError().size());
+        assertEquals("b", result.get(STEP_NAME).getRowsError().get(0).getString("id", null));
+    }
+
+    @Test
+    public void testSchemaValidation(@TempDir final Path tempDir) throws Exception {
+        final Path schemaFile = tempDir.resolve("doc.xsd");
+        Files.write(schemaFile, ("<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:t' elementFormDefault='qualified'>"
+                + "<xs:element name='doc'><xs:complexType><xs:sequence><xs:element name='e' type='xs:int'/></xs:sequence></xs:complexType></xs:element>"
+                + "</xs:schema>").getBytes(StandardCharsets.UTF_8));
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("xml_string"));
+        input.add(new RowMetaAndData(rowMeta, "<doc xmlns='urn:t'><e>5</e></doc>"));
+        input.add(new RowMetaAndData(rowMeta, "<doc xmlns='urn:t'><e>five</e></doc>"));
+
+        // validated in the parse that builds the DOM, and in the parse that canonicalizes by streaming
+        for (final boolean streaming : new boolean[]{false, true}) {
+            final CanonicalStepMeta meta = getTestMeta();
+            meta.setSchemaFile(schemaFile.toString());
+            meta.setStreaming(streaming);
+            final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+            final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                    STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+            final List<RowMetaAndData> rows = result.get(STEP_NAME).getRowsWritten();
+            assertEquals(1, rows.size());
+            assertEquals("<doc xmlns=\"urn:t\"><e>5</e></doc>", rows.get(0).getString("canonical_xml", null));
+            assertEquals(1, result.get(STEP_NAME).getRowsError().size());
+        }
+    }
+
+    @Test
+    public void testMetricFields() throws KettleException {
+        final CanonicalStepMeta meta = getTestMeta();
+        meta.setParseTimeField("parse_ms");
+        meta.setCanonicalizeTimeField("c14n_ms");
+        meta.setInputBytesField("input_bytes");
+        meta.setOutputBytesField("output_bytes");
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, getValidInputData());
+        final RowMetaAndData row = result.get(STEP_NAME).getRowsWritten().get(0);
+        assertTrue(row.getNumber("parse_ms", -1) >= 0);
+        assertTrue(row.getNumber("c14n_ms", -1) >= 0);
+        assertEquals("<doc>test &#38;</doc>".length(), row.getInteger("input_bytes", -1));
+        assertEquals("<doc>test &amp;</doc>".length(), row.getInteger("output_bytes", -1));
+    }
+
+    @Test
+    public void testDocumentField() throws KettleException {
+        final CanonicalStepMeta meta = getTestMeta();
+        meta.getDocumentFields()[0] = "dom";
+        // a document is required, so the XML is parsed into one rather than streamed
+        meta.setStreaming(true);
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, getValidInputData());
+        final RowMetaAndData row = result.get(STEP_NAME).getRowsWritten().get(0);
+        assertEquals("<doc>test &amp;</doc>", row.getString("canonical_xml", null));
+        final Document document = (Document) row.getData()[row.getRowMeta().indexOfValue("dom")];
+        assertEquals("test &", document.getDocumentElement().getTextContent());
+    }
+
+    @Test
+    public void testDocumentFieldUnchangedBySelection() throws KettleException {
+        final CanonicalStepMeta meta = getTestMeta();
+        meta.getDocumentFields()[0] = "dom";
+        meta.setXpath("/env/body/*");
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("xml_string"));
+        input.add(new RowMetaAndData(rowMeta, "<env xmlns:a='urn:a' xmlns:b='urn:b'><body><a:record id='1'/></body></env>"));
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        final RowMetaAndData row = result.get(STEP_NAME).getRowsWritten().get(0);
+        assertEquals("<a:record id=\"1\" xmlns:a=\"urn:a\"></a:record>", row.getString("canonical_xml", null));
+        // the namespaces declared for the canonical form of the selection are not added to the document
+        final Document document = (Document) row.getData()[row.getRowMeta().indexOfValue("dom")];
+        final Element record = (Element) document.getDocumentElement().getFirstChild().getFirstChild();
+        assertEquals(1, record.getAttributes().getLength());
+        assertEquals("1", record.getAttribute("id"));
+    }
+
+    @Test
+    public void testWorkerThreadsPreserveOrder() throws KettleException {
+        final CanonicalStepMeta meta = getTestMeta();
+        meta.setWorkerThreads(4);
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("xml_string"));
+        for (int i = 0; i < 100; i++) {
+            final StringBuilder xml = new StringBuilder("<doc n='" + i + "'>");
+            // vary the size of the documents, so that they complete out of order
+            for (int j = 0; j < (i % 7) * 100; j++) {
+                xml.append("<item/>");
+            }
+            input.add(new RowMetaAndData(rowMeta, xml.append("</doc>").toString()));
+        }
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        final List<RowMetaAndData> rows = result.get(STEP_NAME).getRowsWritten();
+        assertEquals(100, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertTrue(rows.get(i).getString("canonical_xml", "").startsWith("<doc n=\"" + i + "\">"));
+        }
+    }
+
+    @Test
+    public void testFileWorkerThreadsPreserveOrder(@TempDir final Path tempDir) throws Exception {
+        final CanonicalStepMeta meta = getTestMeta();
+        meta.setInputIsFile(true);
+        meta.setWorkerThreads(4);
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("xml_string"));
+        for (int i = 0; i < 40; i++) {
+            final StringBuilder xml = new StringBuilder("<doc n='" + i + "'>");
+            // vary the size of the files, so that they complete out of order
+            for (int j = 0; j < (i % 7) * 1000; j++) {
+                xml.append("<item/>");
+            }
+            final Path file = tempDir.resolve("doc" + i + ".xml");
+            Files.write(file, xml.append("</doc>").toString().getBytes(StandardCharsets.UTF_8));
+            input.add(new RowMetaAndData(rowMeta, file.toString()));
+        }
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        final List<RowMetaAndData> rows = result.get(STEP_NAME).getRowsWritten();
+        assertEquals(40, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(tempDir.resolve("doc" + i + ".xml").toString(), rows.get(i).getString("xml_string", null));
+            assertTrue(rows.get(i).getString("canonical_xml", "").startsWith("<doc n=\"" + i + "\">"));
+        }
+    }
+
+    @Test
+    public void testSpillFilesDeletedWhenLaterMappingFails(@TempDir final Path tempDir) throws Exception {
+        final CanonicalStepMeta meta = new CanonicalStepMeta();
+        meta.allocate(2);
+        meta.setInputFields(new String[]{"large", "invalid"});
+        meta.setOutputFields(new String[]{"canonical_large", "canonical_invalid"});
+        meta.setSpillFileFields(new String[]{"large_file", ""});
+        meta.setSpillThresholdMb(1);
+        meta.setSpillDirectory(tempDir.toString());
+        final StringBuilder large = new StringBuilder("<doc>");
+        while (large.length() < 2 * 1024 * 1024) {
+            large.append("<item/>");
+        }
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("large"));
+        rowMeta.addValueMeta(new ValueMetaString("invalid"));
+        input.add(new RowMetaAndData(rowMeta, large.append("</doc>").toString(), "<doc>"));
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        assertEquals(1, result.get(STEP_NAME).getRowsError().size());
+        try (final Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testInvalidFilePath() throws KettleException {
+        final CanonicalStepMeta meta = getTestMeta();
+        meta.setInputIsFile(true);
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("xml_string"));
+        input.add(new RowMetaAndData(rowMeta, "record\u0000.xml"));
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        assertEquals(0, result.get(STEP_NAME).getRowsWritten().size());
+        assertEquals(1, result.get(STEP_NAME).getRowsError().size());
+    }
+
     @Test
     public void testException() throws KettleException {
         final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), getTestMeta(), STEP_NAME);
@@ -70,6 +392,34 @@ public class CanonicalStepIT {
         });
     }
 
+    /**
+     * Runs the step with a DOM output field, to give the input of the steps which read one.
+     *
+     * @param xml the documents
+     * @return the rows output, each with a document in the {@code xml_string} field, and its DOM in the {@code dom}
+     * field
+     */
+    static List<RowMetaAndData> getDocumentRows(final String... xml) throws KettleException {
+        final CanonicalStepMeta meta = new CanonicalStepMeta();
+        meta.allocate(1);
+        meta.getInputFields()[0] = "xml_string";
+        meta.getOutputFields()[0] = "canonical_xml";
+        meta.getDocumentFields()[0] = "dom";
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("xml_string"));
+        for (final String document : xml) {
+            input.add(new RowMetaAndData(rowMeta, document));
+        }
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        final List<RowMetaAndData> rows = result.get(STEP_NAME).getRowsWritten();
+        assertEquals(xml.length, rows.size());
+        return rows;
+    }
+
     private List<RowMetaAndData> getValidInputData() {
         final List<RowMetaAndData> retval = new ArrayList<>();
         final RowMetaInterface rowMeta = new RowMeta();
@@ -78,6 +428,14 @@ public class CanonicalStepIT {
         return retval;
     }
 
+    private List<RowMetaAndData> getValidBinaryInputData() {
+        final List<RowMetaAndData> retval = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaBinary("xml_string"));
+        retval.add(new RowMetaAndData(rowMeta, "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><doc>caf\u00e9</doc>".getBytes(StandardCharsets.ISO_8859_1)));
+        return retval;
+    }
+
     private List<RowMetaAndData> getInvalidInputData() {
         final List<RowMetaAndData> retval = new ArrayList<>();
         final RowMetaInterface rowMeta = new RowMeta();
@@ -88,8 +446,9 @@ public class CanonicalStepIT {
 
     private CanonicalStepMeta getTestMeta() {
         final CanonicalStepMeta meta = new CanonicalStepMeta();
-        meta.setInputField("xml_string");
-        meta.setOutputField("canonical_xml");
+        meta.allocate(1);
+        meta.getInputFields()[0] = "xml_string";
+        meta.getOutputFields()[0] = "canonical_xml";
         return meta;
     }
 }
@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.w3c.dom.Node;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class CanonicalStepMetaTest {
+
+    @Test
+    public void testLoadSingleFieldXml() throws Exception {
+        final Node stepnode = XMLHandler.getSubNode(XMLHandler.loadXMLString(
+                "<step><inputField>xml_string</inputField><outputField>canonical_xml</outputField><sha256Field>sha256</sha256Field></step>"), "step");
+        final CanonicalStepMeta meta = new CanonicalStepMeta();
+        meta.loadXML(stepnode, null, null);
+        assertArrayEquals(new String[]{"xml_string"}, meta.getInputFields());
+        assertArrayEquals(new String[]{"canonical_xml"}, meta.getOutputFields());
+        assertArrayEquals(new String[]{"sha256"}, meta.getSha256Fields());
+        assertArrayEquals(new String[]{""}, meta.getMd5Fields());
+    }
+
+    @Test
+    public void testFieldMappingsXmlRoundTrip() throws Exception {
+        final CanonicalStepMeta meta = new CanonicalStepMeta();
+        meta.setDefault();
+        meta.allocate(2);
+        meta.setInputFields(new String[]{"descriptive", "rights"});
+        meta.setOutputFields(new String[]{"canonical_descriptive", "canonical_rights"});
+        meta.setSha256Fields(new String[]{"", "rights_sha256"});
+        meta.setSha512Fields(new String[]{"", ""});
+        meta.setMd5Fields(new String[]{"descriptive_md5", ""});
+
+        final Node stepnode = XMLHandler.getSubNode(XMLHandler.loadXMLString("<step>" + meta.getXML() + "</step>"), "step");
+        final CanonicalStepMeta loaded = new CanonicalStepMeta();
+        loaded.loadXML(stepnode, null, null);
+        assertArrayEquals(meta.getInputFields(), loaded.getInputFields());
+        assertArrayEquals(meta.getOutputFields(), loaded.getOutputFields());
+        assertArrayEquals(meta.getSha256Fields(), loaded.getSha256Fields());
+        assertArrayEquals(meta.getSha512Fields(), loaded.getSha512Fields());
+        assertArrayEquals(meta.getMd5Fields(), loaded.getMd5Fields());
+    }
+}
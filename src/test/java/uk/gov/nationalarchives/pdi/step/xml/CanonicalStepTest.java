@@ -24,16 +24,24 @@ package uk.gov.nationalarchives.pdi.step.xml;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 
 import org.apache.xml.security.c14n.Canonicalizer;
 import org.junit.jupiter.api.Test;
+import org.pentaho.di.core.exception.KettleException;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.StringReader;
 
 public class CanonicalStepTest {
@@ -48,6 +56,62 @@ public class CanonicalStepTest {
         assertEquals("<doc>“test”</doc>", result);
     }
 
+    @Test
+    public void testCanonicalizeStreamingMatchesDom() throws Exception {
+        org.apache.xml.security.Init.init();
+        CanonicalStepData mockData = mock(CanonicalStepData.class);
+        when(mockData.getCanonicalizer()).thenReturn(Canonicalizer.getInstance(Canonicalizer.ALGO_ID_C14N_EXCL_WITH_COMMENTS));
+        when(mockData.getXmlInputFactory()).thenReturn(XMLInputFactory.newInstance());
+        final String[] xmlStrings = {
+                "<doc>&#8220;test&#8221;</doc>",
+                "<?xml version=\"1.0\"?>\n<!--before-->\n<?pi   data?>\n<doc b='2' a='1'><e/>text &amp; &lt;more&gt;&#13;<![CDATA[<&>]]></doc>\n<!--after-->",
+                "<a:doc xmlns:a=\"urn:a\" xmlns=\"urn:default\" z='z' a:y=\"&#9;&#10;&#13;&quot;\"><child xmlns=\"\"/><?empty?></a:doc>",
+                "<!DOCTYPE doc [<!ATTLIST doc defaulted CDATA 'yes'><!ENTITY ent '<x>y</x>'>]><doc>&ent;</doc>"
+        };
+        for (final String xmlString : xmlStrings) {
+            final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            CanonicalStep.canonicalizeStreaming(new InputSource(new StringReader(xmlString)), mockData, streamed);
+            assertEquals(CanonicalStep.canonicalize(getTestDocument(xmlString), mockData), streamed.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void testCanonicalizeStreamingBinaryUsesDeclaredEncoding() throws Exception {
+        CanonicalStepData mockData = mock(CanonicalStepData.class);
+        when(mockData.getXmlInputFactory()).thenReturn(XMLInputFactory.newInstance());
+        final byte[] xmlBytes = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><doc>caf\u00e9</doc>".getBytes("ISO-8859-1");
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        CanonicalStep.canonicalizeStreaming(new InputSource(new ByteArrayInputStream(xmlBytes)), mockData, streamed);
+        assertArrayEquals("<doc>caf\u00e9</doc>".getBytes("UTF-8"), streamed.toByteArray());
+    }
+
+    @Test
+    public void testCanonicalizeSelectionDeclaresInScopeNamespaces() throws Exception {
+        org.apache.xml.security.Init.init();
+        CanonicalStepData mockData = mock(CanonicalStepData.class);
+        when(mockData.getCanonicalizer()).thenReturn(Canonicalizer.getInstance(Canonicalizer.ALGO_ID_C14N_EXCL_WITH_COMMENTS));
+        when(mockData.getXPathExpression()).thenReturn(XPathFactory.newInstance().newXPath().compile("//Record"));
+        Document envelope = getTestDocument("<e:env xmlns:e='urn:e' xmlns='urn:x' xmlns:u='urn:u'><e:body>"
+                + "<Record id='1'><e:a/><e:b e:c='1'/></Record><Record id='2'/></e:body></e:env>");
+        final ByteArrayOutputStream selected = new ByteArrayOutputStream();
+        CanonicalStep.canonicalizeSelection(envelope, mockData, selected);
+
+        // as in Exclusive XML Canonicalization, each namespace is only declared where it is used
+        final String expected = "<Record id=\"1\" xmlns=\"urn:x\"><e:a xmlns:e=\"urn:e\"></e:a><e:b e:c=\"1\" xmlns:e=\"urn:e\"></e:b></Record>"
+                + "<Record id=\"2\" xmlns=\"urn:x\"></Record>";
+        assertEquals(expected, selected.toString("UTF-8"));
+    }
+
+    @Test
+    public void testGetInputSource() throws Exception {
+        assertNotNull(CanonicalStep.getInputSource("<doc/>", "xml", false, null).getCharacterStream());
+        assertNotNull(CanonicalStep.getInputSource("<doc/>".getBytes("UTF-8"), "xml", false, null).getByteStream());
+        assertThrows(KettleException.class, () -> CanonicalStep.getInputSource(123, "xml", false, null));
+        assertThrows(KettleException.class, () -> CanonicalStep.getInputSource(null, "xml", false, null));
+        // a file is located by a String, not held in binary
+        assertThrows(KettleException.class, () -> CanonicalStep.getInputSource("<doc/>".getBytes("UTF-8"), "xml", true, null));
+    }
+
     private Document getTestDocument(final String xmlString) throws Exception {
         DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
         DocumentBuilder builder = dbf.newDocumentBuilder();
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CanonicalizationCacheTest {
+
+    @Test
+    public void testKeysDistinguishContentAndType() {
+        assertEquals(CanonicalizationCache.keyOf("<doc/>"), CanonicalizationCache.keyOf("<doc/>"));
+        assertNotEquals(CanonicalizationCache.keyOf("<doc/>"), CanonicalizationCache.keyOf("<doc />"));
+        assertNotEquals(CanonicalizationCache.keyOf("<doc/>"), CanonicalizationCache.keyOf("<doc/>".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testFileKeysDistinguishVersions() {
+        assertEquals(CanonicalizationCache.keyOf("/data/doc.xml", 100, 1000), CanonicalizationCache.keyOf("/data/doc.xml", 100, 1000));
+        assertNotEquals(CanonicalizationCache.keyOf("/data/doc.xml", 100, 1000), CanonicalizationCache.keyOf("/data/doc.xml", 100, 2000));
+        assertNotEquals(CanonicalizationCache.keyOf("/data/doc.xml", 100, 1000), CanonicalizationCache.keyOf("/data/doc.xml", 101, 1000));
+        assertNotEquals(CanonicalizationCache.keyOf("/data/doc.xml", 100, 1000), CanonicalizationCache.keyOf("/data/other.xml", 100, 1000));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        // room for two results of 1000 characters, but not three
+        final CanonicalizationCache cache = new CanonicalizationCache("config", 5000);
+        final CanonicalizationCache.Key a = CanonicalizationCache.keyOf("a");
+        final CanonicalizationCache.Key b = CanonicalizationCache.keyOf("b");
+        final CanonicalizationCache.Key c = CanonicalizationCache.keyOf("c");
+        cache.put(a, result('a'));
+        cache.put(b, result('b'));
+        assertNotNull(cache.get(a));
+        cache.put(c, result('c'));
+
+        assertEquals(2, cache.getEntries());
+        assertNotNull(cache.get(a));
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(c));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testResultLargerThanCacheIsNotCached() {
+        final CanonicalizationCache cache = new CanonicalizationCache("config", 100);
+        final CanonicalizationCache.Key a = CanonicalizationCache.keyOf("a");
+        cache.put(a, result('a'));
+        assertNull(cache.get(a));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testSharedCacheReplacedWhenConfigurationChanges() {
+        final CanonicalizationCache cache = CanonicalizationCache.getShared("trans/step", "config", 5000);
+        assertSame(cache, CanonicalizationCache.getShared("trans/step", "config", 5000));
+        assertNotSame(cache, CanonicalizationCache.getShared("trans/step", "changed", 5000));
+    }
+
+    @Test
+    public void testSharedCacheDiscardedWhenLastCopyReleasesIt() {
+        final CanonicalizationCache cache = CanonicalizationCache.getShared("trans/released", "config", 5000);
+        assertSame(cache, CanonicalizationCache.getShared("trans/released", "config", 5000));
+        CanonicalizationCache.releaseShared("trans/released", cache);
+        assertSame(cache, CanonicalizationCache.getShared("trans/released", "config", 5000));
+        CanonicalizationCache.releaseShared("trans/released", cache);
+        CanonicalizationCache.releaseShared("trans/released", cache);
+        assertNotSame(cache, CanonicalizationCache.getShared("trans/released", "config", 5000));
+    }
+
+    private static CanonicalizationResult result(final char c) {
+        final StringBuilder xml = new StringBuilder("<doc>");
+        while (xml.length() < 994) {
+            xml.append(c);
+        }
+        return new CanonicalizationResult(xml.append("</doc>").toString());
+    }
+}
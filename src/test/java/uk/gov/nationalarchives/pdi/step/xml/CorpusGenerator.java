@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+/**
+ * Generates deterministic XML documents of a given size and shape for the benchmarks and soak tests.
+ */
+public class CorpusGenerator {
+
+    public enum Size {
+        SMALL(2 * 1024),
+        LARGE(4 * 1024 * 1024);
+
+        final int chars;
+
+        Size(final int chars) {
+            this.chars = chars;
+        }
+    }
+
+    public enum Shape {
+        /**
+         * Many sibling records beneath the document element.
+         */
+        FLAT,
+
+        /**
+         * Records nested many levels deep.
+         */
+        DEEP,
+
+        /**
+         * Records using many namespace prefixes, declared at different levels.
+         */
+        NAMESPACED
+    }
+
+    private static final int DEEP_NESTING = 64;
+    private static final int NAMESPACES = 8;
+
+    private CorpusGenerator() {
+    }
+
+    /**
+     * Generates a document.
+     *
+     * @param size     the approximate size of the document
+     * @param shape    the shape of the document
+     * @param comments true to include comments between records
+     * @return the XML document
+     */
+    public static String generate(final Size size, final Shape shape, final boolean comments) {
+        return generate(size.chars, shape, comments);
+    }
+
+    /**
+     * Generates a document.
+     *
+     * @param chars    the approximate number of characters in the document
+     * @param shape    the shape of the document
+     * @param comments true to include comments between records
+     * @return the XML document
+     */
+    public static String generate(final int chars, final Shape shape, final boolean comments) {
+        final StringBuilder xml = new StringBuilder(chars + 1024);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        if (comments) {
+            xml.append("<!-- generated corpus -->\n");
+        }
+
+        xml.append("<records");
+        if (shape == Shape.NAMESPACED) {
+            for (int i = 0; i < NAMESPACES; i++) {
+                xml.append(" xmlns:ns").append(i).append("=\"http://example.org/ns/").append(i).append('"');
+            }
+        }
+        xml.append('>');
+
+        for (int record = 0; xml.length() < chars; record++) {
+            if (comments) {
+                xml.append("<!-- record ").append(record).append(" -->");
+            }
+            switch (shape) {
+                case FLAT:
+                    appendRecord(xml, record, "record");
+                    break;
+
+                case DEEP:
+                    for (int level = 0; level < DEEP_NESTING; level++) {
+                        xml.append("<level depth=\"").append(level).append("\">");
+                    }
+                    appendRecord(xml, record, "record");
+                    for (int level = 0; level < DEEP_NESTING; level++) {
+                        xml.append("</level>");
+                    }
+                    break;
+
+                case NAMESPACED:
+                    final String prefix = "ns" + (record % NAMESPACES);
+                    xml.append("<wrapper xmlns:local=\"http://example.org/local/").append(record).append("\" local:id=\"").append(record).append("\">");
+                    appendRecord(xml, record, prefix + ":record");
+                    xml.append("</wrapper>");
+                    break;
+            }
+        }
+
+        return xml.append("</records>").toString();
+    }
+
+    private static void appendRecord(final StringBuilder xml, final int record, final String name) {
+        xml.append('<').append(name).append(" type=\"catalogue\" id=\"R").append(record).append("\" ref=\"TNA/").append(record % 97).append("\">")
+                .append("<title>Record ").append(record).append(" &amp; related papers</title>")
+                .append("<description>Correspondence &lt;bundle&gt; &#8220;").append(record * 31).append("&#8221;</description>")
+                .append("<empty/>")
+                .append("</").append(name).append('>');
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeflatedXmlTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final StringBuilder xml = new StringBuilder("<doc>");
+        for (int i = 0; i < 10_000; i++) {
+            xml.append("<item n=\"").append(i).append("\">caf\u00e9</item>");
+        }
+        final byte[] bytes = xml.append("</doc>").toString().getBytes(StandardCharsets.UTF_8);
+
+        final Deflater deflater = DeflatedXml.newDeflater();
+        try {
+            // the same compressor is reused for each output
+            for (int i = 0; i < 2; i++) {
+                final byte[] deflated = DeflatedXml.deflate(bytes, deflater);
+                assertTrue(deflated.length < bytes.length / 4);
+                assertTrue(DeflatedXml.isDeflated(deflated));
+                try (final InputStream is = DeflatedXml.open(deflated)) {
+                    assertArrayEquals(bytes, IOUtils.toByteArray(is));
+                }
+                try (final InputStream is = DeflatedXml.open(new ByteArrayInputStream(deflated))) {
+                    assertArrayEquals(bytes, IOUtils.toByteArray(is));
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Test
+    public void testXmlIsNotDeflated() throws Exception {
+        final String[] documents = {"<doc/>", " <doc/>", "\n<doc/>", "\uFEFF<doc/>", ""};
+        for (final String document : documents) {
+            for (final String encoding : new String[]{"UTF-8", "UTF-16BE", "UTF-16LE"}) {
+                final byte[] bytes = document.getBytes(encoding);
+                assertFalse(DeflatedXml.isDeflated(bytes));
+                try (final InputStream is = DeflatedXml.open(new ByteArrayInputStream(bytes))) {
+                    assertArrayEquals(bytes, IOUtils.toByteArray(is));
+                }
+            }
+        }
+    }
+}
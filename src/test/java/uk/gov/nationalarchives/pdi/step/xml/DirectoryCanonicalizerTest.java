@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DirectoryCanonicalizerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testMirrorTreeAndManifest() throws Exception {
+        final Path source = createSourceTree();
+        final Path target = tempDir.resolve("canonical");
+        final Path manifest = tempDir.resolve("manifest.csv");
+
+        for (final boolean streaming : new boolean[]{true, false}) {
+            final DirectoryCanonicalizer canonicalizer = new DirectoryCanonicalizer(source, target, manifest);
+            canonicalizer.setStreaming(streaming);
+            canonicalizer.setDigestAlgorithms(new String[]{"SHA-256", "MD5"});
+            final DirectoryCanonicalizer.Summary summary = canonicalizer.canonicalize("test", 2, () -> false);
+
+            assertEquals(2, summary.getFiles());
+            assertEquals(1, summary.getErrors());
+            assertEquals(61, summary.getInputBytes());
+            assertEquals(43, summary.getOutputBytes());
+            assertEquals("<doc a=\"1\" b=\"2\"><e></e></doc>", read(target.resolve("one.xml")));
+            assertEquals("<x>  &lt;</x>", read(target.resolve("a/b/two.xml")));
+            assertFalse(Files.exists(target.resolve("a/bad.xml")));
+            assertFalse(Files.exists(target.resolve("a/notes.txt")));
+
+            // rows are written as files complete, so in no particular order
+            final List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+            assertEquals("path,input_bytes,output_bytes,sha256,md5,error", lines.get(0));
+            assertEquals("a/b/two.xml,34,13,770ef566f0bfbd69f82e7337d6e19f231c242e6c36df765b8879312b61c56589,4b1051fef5798ab3a000c882007687be,",
+                    findRow(lines, "a/b/two.xml,"));
+            assertEquals("one.xml,27,30,262583205a7216b1aef41f8e745dd2c069784dc2fe1fe238abf7e5b715ece919,3b8d8361265b415c6717b4e1c3184f8f,",
+                    findRow(lines, "one.xml,"));
+            final String errorRow = findRow(lines, "a/bad.xml,");
+            assertTrue(errorRow.startsWith("a/bad.xml,3,,,,"));
+            assertTrue(errorRow.length() > "a/bad.xml,3,,,,".length());
+        }
+    }
+
+    @Test
+    public void testAlongsideSkipsPreviousOutput() throws Exception {
+        final Path source = createSourceTree();
+        for (int run = 0; run < 2; run++) {
+            final DirectoryCanonicalizer canonicalizer = new DirectoryCanonicalizer(source, null, tempDir.resolve("manifest.csv"));
+            canonicalizer.setOutputSuffix(".c14n.xml");
+            final DirectoryCanonicalizer.Summary summary = canonicalizer.canonicalize("test", 1, () -> false);
+            assertEquals(2, summary.getFiles());
+            assertEquals(1, summary.getErrors());
+        }
+        assertEquals("<doc a=\"1\" b=\"2\"><e></e></doc>", read(source.resolve("one.xml.c14n.xml")));
+        assertEquals("<x>  &lt;</x>", read(source.resolve("a/b/two.xml.c14n.xml")));
+    }
+
+    @Test
+    public void testAlongsideRequiresSuffix() {
+        final DirectoryCanonicalizer canonicalizer = new DirectoryCanonicalizer(tempDir, tempDir, tempDir.resolve("manifest.csv"));
+        assertThrows(IllegalStateException.class, () -> canonicalizer.canonicalize("test", 1, () -> false));
+    }
+
+    @Test
+    public void testQuote() {
+        assertEquals("a/b.xml", DirectoryCanonicalizer.quote("a/b.xml"));
+        assertEquals("\"a,b.xml\"", DirectoryCanonicalizer.quote("a,b.xml"));
+        assertEquals("\"say \"\"hi\"\"\nthere\"", DirectoryCanonicalizer.quote("say \"hi\"\nthere"));
+    }
+
+    private static String findRow(final List<String> lines, final String prefix) {
+        return lines.stream().filter(line -> line.startsWith(prefix)).findFirst().orElseThrow(AssertionError::new);
+    }
+
+    private Path createSourceTree() throws Exception {
+        final Path source = tempDir.resolve("source");
+        Files.createDirectories(source.resolve("a/b"));
+        write(source.resolve("one.xml"), "<doc b='2' a='1'><e/></doc>");
+        write(source.resolve("a/b/two.xml"), "<?xml version='1.0'?><x>  &lt;</x>");
+        write(source.resolve("a/bad.xml"), "<x>");
+        write(source.resolve("a/notes.txt"), "<x/>");
+        return source;
+    }
+
+    private static void write(final Path path, final String content) throws Exception {
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(final Path path) throws Exception {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DocumentValidatorTest {
+
+    private static final String SCHEMA = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:t' elementFormDefault='qualified'>"
+            + "<xs:element name='doc'><xs:complexType><xs:sequence><xs:element name='e' type='xs:int' maxOccurs='unbounded'/></xs:sequence>"
+            + "<xs:attribute name='a'/></xs:complexType></xs:element></xs:schema>";
+
+    @Test
+    public void testDomAndStreamAgree() throws Exception {
+        final ValidatorHandler validatorHandler = SchemaCache.newValidatorHandler(compile(SCHEMA));
+        // each is validated twice, as validators are reused for the documents of a thread, valid or not
+        for (int i = 0; i < 2; i++) {
+            assertValid(true, "<doc xmlns='urn:t' a='1'><e>5</e><!-- comment --><e><![CDATA[6]]></e></doc>", validatorHandler);
+            assertValid(true, "<p:doc xmlns:p='urn:t'><p:e>5</p:e></p:doc>", validatorHandler);
+            assertValid(false, "<p:doc xmlns:p='urn:t'><p:e>x</p:e></p:doc>", validatorHandler);
+            assertValid(false, "<doc xmlns='urn:t'><e>5</e><f/></doc>", validatorHandler);
+            assertValid(false, "<doc xmlns='urn:other'/>", validatorHandler);
+            assertValid(false, "<doc/>", validatorHandler);
+            // the nearest declaration of a prefix is in scope
+            assertValid(false, "<x:doc xmlns:x='urn:t'><x:e xmlns:x='urn:other'>1</x:e></x:doc>", validatorHandler);
+            assertValid(true, "<doc xmlns='urn:t'><t:e xmlns:t='urn:t'>1</t:e></doc>", validatorHandler);
+        }
+    }
+
+    private static void assertValid(final boolean expected, final String xml, final ValidatorHandler validatorHandler) throws Exception {
+        boolean domValid = true;
+        try {
+            DocumentValidator.validate(DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml))), validatorHandler);
+        } catch (SAXException e) {
+            domValid = false;
+        }
+        assertEquals(expected, domValid, xml);
+
+        boolean streamValid = true;
+        XMLStreamReader reader = null;
+        try {
+            reader = new ValidatingStreamReader(XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml)), validatorHandler);
+            new StreamingCanonicalizer(reader, new ByteArrayOutputStream()).canonicalize();
+        } catch (XMLStreamException e) {
+            streamValid = false;
+        } finally {
+            CanonicalStep.closeQuietly(reader);
+        }
+        assertEquals(expected, streamValid, xml);
+    }
+
+    private static Schema compile(final String schema) throws SAXException {
+        return SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(new StreamSource(new StringReader(schema)));
+    }
+}
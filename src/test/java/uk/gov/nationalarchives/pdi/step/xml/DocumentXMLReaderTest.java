@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DocumentXMLReaderTest {
+
+    private static final String STYLESHEET = "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'"
+            + " xmlns:dc='http://purl.org/dc/elements/1.1/'>"
+            + "<xsl:template match='@*|node()'><xsl:copy><xsl:apply-templates select='@*|node()'/></xsl:copy></xsl:template>"
+            + "<xsl:template match='dc:title'><T n='{count(//dc:*)}'><xsl:value-of select='.'/></T></xsl:template>"
+            + "</xsl:stylesheet>";
+
+    @Test
+    public void testSameAsNamespaceAwareParse() throws Exception {
+        assertSameAsParsed("<?pi a?><!--top--><r xmlns='urn:a' xmlns:dc='http://purl.org/dc/elements/1.1/' b='2' a='1'>"
+                + "<dc:title>X &amp; Y</dc:title><!-- c --><s dc:x='1'><![CDATA[<>]]></s><?p d?></r><!--end-->");
+
+        // entity references, and namespaces declared below the document element
+        assertSameAsParsed("<!DOCTYPE r [<!ENTITY e 'ent'>]><r>&e;<q xmlns:p='urn:p'><p:z/></q></r>");
+    }
+
+    private static void assertSameAsParsed(final String xml) throws Exception {
+        final Templates templates = TransformerFactory.newInstance().newTemplates(new StreamSource(new StringReader(STYLESHEET)));
+
+        final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+        parserFactory.setNamespaceAware(true);
+        final String expected = transform(templates, new SAXSource(parserFactory.newSAXParser().getXMLReader(), new InputSource(new StringReader(xml))));
+
+        // parsed as the Canonical XML step parses it, which is not namespace aware
+        final DocumentXMLReader reader = new DocumentXMLReader(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new InputSource(new StringReader(xml))));
+        final String actual = transform(templates, new SAXSource(reader, new InputSource()));
+
+        assertEquals(expected, actual);
+    }
+
+    private static String transform(final Templates templates, final Source source) throws Exception {
+        final StringWriter writer = new StringWriter();
+        final CanonicalContentHandler handler = new CanonicalContentHandler(writer);
+        final SAXResult result = new SAXResult(handler);
+        result.setLexicalHandler(handler);
+        templates.newTransformer().transform(source, result);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MultiDigestOutputStreamTest {
+
+    private final ExecutorService executor = WorkerExecutors.newDigestExecutor("test");
+
+    @AfterEach
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testParallelDigestsMatchSequential() throws Exception {
+        final byte[] bytes = new byte[5 * MultiDigestOutputStream.CHUNK_SIZE * MultiDigestOutputStream.QUEUED_CHUNKS + 123];
+        new Random(42).nextBytes(bytes);
+
+        final MultiDigestOutputStream sequential = new MultiDigestOutputStream(newDigests(), null);
+        write(sequential, bytes);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final MultiDigestOutputStream parallel = new MultiDigestOutputStream(newDigests(), out, executor, 1000);
+        write(parallel, bytes);
+
+        assertArrayEquals(sequential.getHexDigests(), parallel.getHexDigests());
+        assertArrayEquals(bytes, out.toByteArray());
+    }
+
+    @Test
+    public void testAbortStopsDigestThreads() throws Exception {
+        final MultiDigestOutputStream parallel = new MultiDigestOutputStream(newDigests(), null, executor, 0);
+        parallel.write(new byte[MultiDigestOutputStream.CHUNK_SIZE * 2]);
+        parallel.abort();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static MessageDigest[] newDigests() throws Exception {
+        return new MessageDigest[]{MessageDigest.getInstance("SHA-256"), MessageDigest.getInstance("SHA-512"), MessageDigest.getInstance("MD5")};
+    }
+
+    /**
+     * Writes in pieces of varying size, and single bytes, so that writes straddle the chunks.
+     */
+    private static void write(final MultiDigestOutputStream os, final byte[] bytes) throws Exception {
+        int off = 0;
+        int len = 1;
+        while (off < bytes.length) {
+            final int n = Math.min(len, bytes.length - off);
+            if (n == 1) {
+                os.write(bytes[off]);
+            } else {
+                os.write(bytes, off, n);
+            }
+            off += n;
+            len = len * 3 % 100_003 + 1;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+
+import javax.xml.stream.XMLInputFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class RecordSplitterTest {
+
+    private static final String DOCUMENT = "<?xml version='1.0'?>"
+            + "<export xmlns='urn:e' xmlns:x='urn:x'><!--c--><records>"
+            + "<record id='1' b='2' a='1'>one<record>nested</record></record>"
+            + "<other><record x:y='1'/></other>"
+            + "<record xmlns=''>two</record>"
+            + "</records></export>";
+
+    @Test
+    public void testSplitByName() throws Exception {
+        assertEquals(Arrays.asList(
+                "<record a=\"1\" b=\"2\" id=\"1\" xmlns=\"urn:e\">one<record>nested</record></record>",
+                "<record x:y=\"1\" xmlns=\"urn:e\" xmlns:x=\"urn:x\"></record>",
+                "<record xmlns=\"\">two</record>"
+        ), split("record"));
+    }
+
+    @Test
+    public void testSplitByPath() throws Exception {
+        assertEquals(Arrays.asList(
+                "<record a=\"1\" b=\"2\" id=\"1\" xmlns=\"urn:e\">one<record>nested</record></record>",
+                "<record xmlns=\"\">two</record>"
+        ), split("/export/records/record"));
+    }
+
+    @Test
+    public void testDeclaresInheritedNamespacesWhereUsed() throws Exception {
+        final String document = "<e:env xmlns:e='urn:e' xmlns='urn:x' xmlns:u='urn:u'><e:body>"
+                + "<Record id='1'><e:a/><e:b e:c='1'/></Record><Record id='2'/>"
+                + "</e:body></e:env>";
+        assertEquals(Arrays.asList(
+                "<Record id=\"1\" xmlns=\"urn:x\"><e:a xmlns:e=\"urn:e\"></e:a><e:b e:c=\"1\" xmlns:e=\"urn:e\"></e:b></Record>",
+                "<Record id=\"2\" xmlns=\"urn:x\"></Record>"
+        ), split(document, "Record"));
+    }
+
+    @Test
+    public void testNoRecords() throws Exception {
+        assertEquals(0, split("missing").size());
+    }
+
+    private List<String> split(final String record) throws Exception {
+        return split(DOCUMENT, record);
+    }
+
+    private List<String> split(final String document, final String record) throws Exception {
+        final RecordSplitter splitter = new RecordSplitter(XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(document)), record);
+        final List<String> records = new ArrayList<>();
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        while (splitter.next(os)) {
+            records.add(new String(os.toByteArray(), StandardCharsets.UTF_8));
+            os.reset();
+        }
+        return records;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.xml.validation.Schema;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class SchemaCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testCompiledOnceUntilModified() throws Exception {
+        Files.write(tempDir.resolve("types.xsd"), ("<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:t'>"
+                + "<xs:simpleType name='num'><xs:restriction base='xs:int'/></xs:simpleType></xs:schema>").getBytes(StandardCharsets.UTF_8));
+        final Path schemaFile = tempDir.resolve("main.xsd");
+        Files.write(schemaFile, ("<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:t' xmlns:t='urn:t'>"
+                + "<xs:include schemaLocation='types.xsd'/><xs:element name='doc' type='t:num'/></xs:schema>").getBytes(StandardCharsets.UTF_8));
+        final CachingEntityResolver entityResolver = CachingEntityResolver.forCatalog("");
+
+        final Schema schema = SchemaCache.getSchema(schemaFile.toString(), entityResolver);
+        assertSame(schema, SchemaCache.getSchema(schemaFile.toString(), entityResolver));
+
+        Files.setLastModifiedTime(schemaFile, FileTime.fromMillis(Files.getLastModifiedTime(schemaFile).toMillis() + 60_000));
+        assertNotSame(schema, SchemaCache.getSchema(schemaFile.toString(), entityResolver));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpillOutputStreamTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testBelowThresholdHeldInMemory() throws Exception {
+        final SpillOutputStream out = new SpillOutputStream(16, tempDir);
+        out.write("<doc>".getBytes(StandardCharsets.UTF_8));
+        out.write('x');
+        out.write("</doc>".getBytes(StandardCharsets.UTF_8));
+        out.close();
+        assertFalse(out.isSpilled());
+        assertEquals("<doc>x</doc>", out.toUtf8String());
+        try (final java.util.stream.Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testAboveThresholdWrittenToFile() throws Exception {
+        final StringBuilder expected = new StringBuilder();
+        final SpillOutputStream out = new SpillOutputStream(1000, tempDir);
+        for (int i = 0; i < 20_000; i++) {
+            final String item = "<item>" + i + "</item>";
+            expected.append(item);
+            if (i % 2 == 0) {
+                out.write(item.getBytes(StandardCharsets.UTF_8));
+            } else {
+                for (final byte b : item.getBytes(StandardCharsets.UTF_8)) {
+                    out.write(b);
+                }
+            }
+        }
+        out.write(new byte[100_000]);
+        out.close();
+
+        assertTrue(out.isSpilled());
+        assertEquals(tempDir, out.getFile().getParent());
+        final byte[] bytes = Files.readAllBytes(out.getFile());
+        assertEquals(expected.length() + 100_000, bytes.length);
+        assertEquals(expected.toString(), new String(bytes, 0, expected.length(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDiscardDeletesFile() throws Exception {
+        final SpillOutputStream out = new SpillOutputStream(10, tempDir);
+        out.write(new byte[100]);
+        out.discard();
+        assertFalse(Files.exists(out.getFile()));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class TemplatesCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testCompiledOnceUntilChanged() throws Exception {
+        Files.write(tempDir.resolve("common.xsl"), ("<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+                + "<xsl:template match='e'><item><xsl:value-of select='.'/></item></xsl:template></xsl:stylesheet>").getBytes(StandardCharsets.UTF_8));
+        final Path stylesheetFile = tempDir.resolve("main.xsl");
+        Files.write(stylesheetFile, stylesheet("list"));
+        final CachingEntityResolver entityResolver = CachingEntityResolver.forCatalog("");
+
+        final Templates templates = TemplatesCache.getTemplates(stylesheetFile.toString(), entityResolver);
+        assertSame(templates, TemplatesCache.getTemplates(stylesheetFile.toString(), entityResolver));
+        assertEquals("<list><item>1</item><item>2</item></list>", transform(templates, "<doc><e>1</e><e>2</e></doc>"));
+
+        // a change of content is seen whether or not the modification time changes
+        Files.write(stylesheetFile, stylesheet("lst"));
+        final Templates changed = TemplatesCache.getTemplates(stylesheetFile.toString(), entityResolver);
+        assertNotSame(templates, changed);
+        assertEquals("<lst><item>1</item></lst>", transform(changed, "<doc><e>1</e></doc>"));
+    }
+
+    private static byte[] stylesheet(final String listElement) {
+        return ("<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+                + "<xsl:import href='common.xsl'/><xsl:output omit-xml-declaration='yes'/>"
+                + "<xsl:template match='/doc'><" + listElement + "><xsl:apply-templates/></" + listElement + "></xsl:template>"
+                + "</xsl:stylesheet>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String transform(final Templates templates, final String xml) throws Exception {
+        final StringWriter writer = new StringWriter();
+        TemplatesCache.newTransformer(templates).transform(new StreamSource(new StringReader(xml)), new StreamResult(writer));
+        return writer.toString();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.variables.Variables;
+import org.pentaho.di.trans.RowStepCollector;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.TransTestFactory;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class XPathStepIT {
+
+    static final String STEP_NAME = "Integration test for XML XPath Extract step";
+
+    @BeforeAll
+    public static void setUpBeforeClass() throws KettleException {
+        KettleEnvironment.init(false);
+    }
+
+    @Test
+    public void testExtract() throws KettleException {
+        final XPathStepMeta meta = new XPathStepMeta();
+        meta.setDefault();
+        meta.setInputField("xml_string");
+        meta.allocate(6);
+        meta.setFieldNames(new String[]{"title", "count", "total", "price", "restricted", "missing"});
+        meta.setXpaths(new String[]{"/rec/*[name()='dc:title']", "count(/rec/item)", "sum(/rec/item/@n)", "/rec/@price", "/rec/closed", "/rec/none"});
+        meta.setFieldTypes(new int[]{ValueMetaInterface.TYPE_STRING, ValueMetaInterface.TYPE_INTEGER, ValueMetaInterface.TYPE_NUMBER,
+                ValueMetaInterface.TYPE_BIGNUMBER, ValueMetaInterface.TYPE_BOOLEAN, ValueMetaInterface.TYPE_INTEGER});
+        meta.setCanonicalField("canonical_xml");
+
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("xml_string"));
+        input.add(new RowMetaAndData(rowMeta, "<rec price='10.25' xmlns:dc='http://purl.org/dc/elements/1.1/'><dc:title>A &amp; B</dc:title>"
+                + "<item n='1.5'/><item n='2'/></rec>"));
+        input.add(new RowMetaAndData(rowMeta, "<rec price='free'><closed/></rec>"));
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        final List<RowMetaAndData> rows = result.get(STEP_NAME).getRowsWritten();
+        assertEquals(1, rows.size());
+
+        final RowMetaAndData row = rows.get(0);
+        assertEquals("A & B", row.getString("title", null));
+        assertEquals(2L, row.getInteger("count", -1));
+        assertEquals(3.5, row.getNumber("total", -1), 0);
+        assertEquals(new BigDecimal("10.25"), row.getBigNumber("price", null));
+        assertFalse(row.getBoolean("restricted", true));
+        assertEquals(-1L, row.getInteger("missing", -1));
+        assertEquals("<rec price=\"10.25\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><dc:title>A &amp; B</dc:title>"
+                + "<item n=\"1.5\"></item><item n=\"2\"></item></rec>", row.getString("canonical_xml", null));
+
+        // a price which is not a number
+        assertEquals(1, result.get(STEP_NAME).getRowsError().size());
+    }
+
+    @Test
+    public void testExtractDocumentField() throws KettleException {
+        // the rows of a Canonical XML step, with each document both as a String and as a DOM
+        final List<RowMetaAndData> input = CanonicalStepIT.getDocumentRows(
+                "<doc xmlns='urn:d' xmlns:p='urn:p'><p:e a='1' p:b='2'><!-- c --><f>x &amp; y</f></p:e><p:g xmlns:p='urn:q'/></doc>",
+                "<rec price='10.25'><item n='1.5'/><item n='2'/></rec>");
+
+        final List<RowMetaAndData> expected = extract(input, "xml_string");
+        final List<RowMetaAndData> actual = extract(input, "dom");
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            for (final String field : new String[]{"name", "text", "elements", "total", "xpath_canonical"}) {
+                assertEquals(expected.get(i).getString(field, null), actual.get(i).getString(field, null));
+            }
+        }
+        assertEquals("p:e", actual.get(0).getString("name", null));
+        assertEquals("x & y", actual.get(0).getString("text", null));
+        assertEquals("<doc xmlns=\"urn:d\" xmlns:p=\"urn:p\"><p:e a=\"1\" p:b=\"2\"><!-- c --><f>x &amp; y</f></p:e>"
+                + "<p:g xmlns:p=\"urn:q\"></p:g></doc>", actual.get(0).getString("xpath_canonical", null));
+        assertEquals(2L, actual.get(1).getInteger("elements", -1));
+        assertEquals(3.5, actual.get(1).getNumber("total", -1), 0);
+    }
+
+    private static List<RowMetaAndData> extract(final List<RowMetaAndData> input, final String inputField) throws KettleException {
+        final XPathStepMeta meta = new XPathStepMeta();
+        meta.setDefault();
+        meta.setInputField(inputField);
+        meta.allocate(4);
+        meta.setFieldNames(new String[]{"name", "text", "elements", "total"});
+        meta.setXpaths(new String[]{"name(/*/*[1])", "//f", "count(/*/*)", "sum(//item/@n)"});
+        meta.setFieldTypes(new int[]{ValueMetaInterface.TYPE_STRING, ValueMetaInterface.TYPE_STRING, ValueMetaInterface.TYPE_INTEGER,
+                ValueMetaInterface.TYPE_NUMBER});
+        meta.setCanonicalField("xpath_canonical");
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        assertEquals(0, result.get(STEP_NAME).getRowsError().size());
+        return result.get(STEP_NAME).getRowsWritten();
+    }
+}
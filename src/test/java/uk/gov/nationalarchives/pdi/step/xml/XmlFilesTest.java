@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class XmlFilesTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testToLocalPath() throws IOException {
+        assertEquals(Paths.get("/data/record.xml"), XmlFiles.toLocalPath("/data/record.xml"));
+        assertEquals(Paths.get("/data/record.xml"), XmlFiles.toLocalPath("file:///data/record.xml"));
+        assertEquals(Paths.get("relative/record.xml"), XmlFiles.toLocalPath("relative/record.xml"));
+        assertNull(XmlFiles.toLocalPath("zip:file:///data/records.zip!/record.xml"));
+        assertNull(XmlFiles.toLocalPath("sftp://host/data/record.xml"));
+        assertThrows(IOException.class, () -> XmlFiles.toLocalPath("record\u0000.xml"));
+    }
+
+    @Test
+    public void testMappedFileInputStreamAcrossRegions() throws Exception {
+        final StringBuilder xml = new StringBuilder("<doc>");
+        for (int i = 0; i < 100; i++) {
+            xml.append("<item>").append(i).append("</item>");
+        }
+        xml.append("</doc>");
+        final byte[] expected = xml.toString().getBytes(StandardCharsets.UTF_8);
+        final Path file = Files.write(tempDir.resolve("doc.xml"), expected);
+
+        try (final InputStream is = new MappedFileInputStream(file, 7)) {
+            assertEquals(expected.length, is.available());
+            assertEquals('<', is.read());
+            final byte[] remainder = IOUtils.toByteArray(is);
+            assertEquals(expected.length - 1, remainder.length);
+            assertArrayEquals(Arrays.copyOfRange(expected, 1, expected.length), remainder);
+            assertEquals(-1, is.read());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.variables.Variables;
+import org.pentaho.di.trans.RowStepCollector;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.TransTestFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class XsltStepIT {
+
+    static final String STEP_NAME = "Integration test for XML XSLT Transform step";
+
+    @BeforeAll
+    public static void setUpBeforeClass() throws KettleException {
+        KettleEnvironment.init(false);
+    }
+
+    @Test
+    public void testTransform(@TempDir final Path tempDir) throws Exception {
+        final Path stylesheetFile = tempDir.resolve("wrap.xsl");
+        Files.write(stylesheetFile, ("<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+                + "<xsl:output omit-xml-declaration='yes'/>"
+                + "<xsl:template match='/'><wrapped z='1' a='2'><xsl:copy-of select='*'/></wrapped></xsl:template>"
+                + "</xsl:stylesheet>").getBytes(StandardCharsets.UTF_8));
+
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("xml_string"));
+        input.add(new RowMetaAndData(rowMeta, "<doc xmlns='urn:d'><e/></doc>"));
+        input.add(new RowMetaAndData(rowMeta, "<doc>"));
+
+        final String[] expected = {
+                "<wrapped z=\"1\" a=\"2\"><doc xmlns=\"urn:d\"><e/></doc></wrapped>",
+                "<wrapped a=\"2\" z=\"1\"><doc xmlns=\"urn:d\"><e></e></doc></wrapped>"
+        };
+        for (final boolean canonicalize : new boolean[]{false, true}) {
+            final XsltStepMeta meta = new XsltStepMeta();
+            meta.setDefault();
+            meta.setInputField("xml_string");
+            meta.setStylesheetFile(stylesheetFile.toString());
+            meta.setCanonicalize(canonicalize);
+
+            final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+            final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                    STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+            final List<RowMetaAndData> rows = result.get(STEP_NAME).getRowsWritten();
+            assertEquals(1, rows.size());
+            assertEquals(expected[canonicalize ? 1 : 0], rows.get(0).getString("xslt_result", null));
+            assertEquals(1, result.get(STEP_NAME).getRowsError().size());
+        }
+    }
+
+    @Test
+    public void testTransformDocumentField(@TempDir final Path tempDir) throws Exception {
+        final Path stylesheetFile = tempDir.resolve("describe.xsl");
+        Files.write(stylesheetFile, ("<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform' xmlns:p='urn:p'>"
+                + "<xsl:output omit-xml-declaration='yes'/>"
+                + "<xsl:template match='/'><described ns='{namespace-uri(/*)}' prefixed='{count(//p:*)}' attributes='{count(//@*)}'>"
+                + "<xsl:copy-of select='*'/></described></xsl:template>"
+                + "</xsl:stylesheet>").getBytes(StandardCharsets.UTF_8));
+
+        // the rows of a Canonical XML step, with each document both as a String and as a DOM
+        final List<RowMetaAndData> input = CanonicalStepIT.getDocumentRows(
+                "<doc xmlns='urn:d' xmlns:p='urn:p'><p:e a='1' p:b='2'><!-- c --><f>x &amp; y</f></p:e><p:g xmlns:p='urn:q'/></doc>",
+                "<doc><e a='1'/></doc>");
+
+        for (final boolean canonicalize : new boolean[]{false, true}) {
+            final List<String> expected = transform(input, "xml_string", stylesheetFile, canonicalize);
+            assertEquals(expected, transform(input, "dom", stylesheetFile, canonicalize));
+        }
+        assertEquals("<described xmlns:p=\"urn:p\" ns=\"urn:d\" prefixed=\"1\" attributes=\"2\"><doc xmlns=\"urn:d\">"
+                + "<p:e a=\"1\" p:b=\"2\"><!-- c --><f>x &amp; y</f></p:e><p:g xmlns:p=\"urn:q\"/></doc></described>",
+                transform(input, "dom", stylesheetFile, false).get(0));
+    }
+
+    private static List<String> transform(final List<RowMetaAndData> input, final String inputField, final Path stylesheetFile,
+            final boolean canonicalize) throws KettleException {
+        final XsltStepMeta meta = new XsltStepMeta();
+        meta.setDefault();
+        meta.setInputField(inputField);
+        meta.setStylesheetFile(stylesheetFile.toString());
+        meta.setCanonicalize(canonicalize);
+
+        final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+        final Map<String, RowStepCollector> result = TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+        assertEquals(0, result.get(STEP_NAME).getRowsError().size());
+        final List<String> results = new ArrayList<>();
+        for (final RowMetaAndData row : result.get(STEP_NAME).getRowsWritten()) {
+            results.add(row.getString("xslt_result", null));
+        }
+        return results;
+    }
+}
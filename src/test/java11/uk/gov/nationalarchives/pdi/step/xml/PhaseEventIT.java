@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ * Copyright © 2021 The National Archives
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.gov.nationalarchives.pdi.step.xml;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.variables.Variables;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.TransTestFactory;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests the Java Flight Recorder events of the Canonical XML step. These are integration tests, so that they run
+ * against the multi-release jar, which holds the Java 11 version of {@link PhaseEvent}.
+ */
+public class PhaseEventIT {
+
+    private static final String STEP_NAME = "Integration test for Canonical XML step events";
+    private static final String PARSE = "uk.gov.nationalarchives.pdi.step.xml.Parse";
+    private static final String CANONICALIZE = "uk.gov.nationalarchives.pdi.step.xml.Canonicalize";
+
+    private static final String XML = "<doc>test &#38;</doc>";
+    private static final String CANONICAL_XML = "<doc>test &amp;</doc>";
+
+    @BeforeAll
+    public static void setUpBeforeClass() throws KettleException {
+        KettleEnvironment.init(false);
+    }
+
+    @Test
+    public void testParseAndCanonicalizeEvents(@TempDir final Path tempDir) throws Exception {
+        final List<RecordedEvent> events = record(false, tempDir);
+        final List<RecordedEvent> parse = filter(events, PARSE);
+        assertEquals(1, parse.size());
+        assertEvent(parse.get(0), XML.length(), 0);
+        final List<RecordedEvent> canonicalize = filter(events, CANONICALIZE);
+        assertEquals(1, canonicalize.size());
+        assertEvent(canonicalize.get(0), XML.length(), CANONICAL_XML.length());
+    }
+
+    @Test
+    public void testStreamingCanonicalizeEvent(@TempDir final Path tempDir) throws Exception {
+        final List<RecordedEvent> events = record(true, tempDir);
+        // the document is parsed as it is canonicalized, so there is no separate parse
+        assertEquals(0, filter(events, PARSE).size());
+        final List<RecordedEvent> canonicalize = filter(events, CANONICALIZE);
+        assertEquals(1, canonicalize.size());
+        assertEvent(canonicalize.get(0), XML.length(), CANONICAL_XML.length());
+    }
+
+    private static List<RecordedEvent> record(final boolean streaming, final Path tempDir) throws Exception {
+        final CanonicalStepMeta meta = new CanonicalStepMeta();
+        meta.allocate(1);
+        meta.getInputFields()[0] = "xml_string";
+        meta.getOutputFields()[0] = "canonical_xml";
+        meta.setStreaming(streaming);
+        final List<RowMetaAndData> input = new ArrayList<>();
+        final RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("xml_string"));
+        input.add(new RowMetaAndData(rowMeta, XML));
+
+        final Path file = tempDir.resolve("events.jfr");
+        try (final Recording recording = new Recording()) {
+            recording.enable(PARSE).withThreshold(Duration.ZERO);
+            recording.enable(CANONICALIZE).withThreshold(Duration.ZERO);
+            recording.start();
+            final TransMeta tm = TransTestFactory.generateTestTransformationError(new Variables(), meta, STEP_NAME);
+            TransTestFactory.executeTestTransformationError(tm, TransTestFactory.INJECTOR_STEPNAME,
+                    STEP_NAME, TransTestFactory.DUMMY_STEPNAME, TransTestFactory.ERROR_STEPNAME, input);
+            recording.stop();
+            recording.dump(file);
+        }
+        return RecordingFile.readAllEvents(file);
+    }
+
+    private static List<RecordedEvent> filter(final List<RecordedEvent> events, final String name) {
+        return events.stream()
+                .filter(event -> event.getEventType().getName().equals(name))
+                .collect(Collectors.toList());
+    }
+
+    private static void assertEvent(final RecordedEvent event, final long inputBytes, final long outputBytes) {
+        assertEquals(STEP_NAME, event.getString("stepName"));
+        assertEquals(0, event.getInt("copyNr"));
+        assertEquals(1, event.getLong("rowNr"));
+        assertEquals(inputBytes, event.getLong("inputBytes"));
+        assertEquals(outputBytes, event.getLong("outputBytes"));
+        assertFalse(event.getBoolean("error"));
+    }
+}